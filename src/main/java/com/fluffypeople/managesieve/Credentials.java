@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+/**
+ * Username and password (and optional authorization ID) used to authenticate
+ * a session. Keeping these together lets a session be re-established later,
+ * for example after following a referral.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class Credentials {
+
+    private final String username;
+    private final String password;
+    private final String authorizationId;
+
+    public Credentials(final String username, final String password) {
+        this(username, password, null);
+    }
+
+    /**
+     * @param username        String name to authenticate as
+     * @param password        String password
+     * @param authorizationId String identity to act as, or null to act as
+     *                        username. Lets an admin user manage another
+     *                        user's scripts, if the server allows it.
+     */
+    public Credentials(final String username, final String password, final String authorizationId) {
+        if (username == null) {
+            throw new IllegalArgumentException("Username must not be null");
+        }
+        this.username = username;
+        this.password = password;
+        this.authorizationId = authorizationId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getAuthorizationId() {
+        return authorizationId;
+    }
+
+    /**
+     * The account whose scripts this session will manage. This is the
+     * authorization ID if set, otherwise the username.
+     *
+     * @return String account name
+     */
+    public String getAccount() {
+        return authorizationId != null ? authorizationId : username;
+    }
+
+    @Override
+    public String toString() {
+        // Never log passwords
+        if (authorizationId != null) {
+            return username + " as " + authorizationId;
+        }
+        return username;
+    }
+}
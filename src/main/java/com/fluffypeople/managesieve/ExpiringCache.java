@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small, thread safe, size bounded cache where entries also expire after a
+ * fixed time. Once the cache is full the least recently used entry is dropped
+ * to make room.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ExpiringCache<K, V> {
+
+    private final int maxEntries;
+    private final long ttl;
+    private final LinkedHashMap<K, Item<V>> map;
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries int maximum number of entries to hold
+     * @param ttl        long time in milliseconds that an entry is valid for.
+     *                   Zero or less means entries never expire.
+     */
+    public ExpiringCache(final int maxEntries, final long ttl) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one entry, got " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.map = new LinkedHashMap<K, Item<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest) {
+                return size() > ExpiringCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get a value from the cache.
+     *
+     * @param key to look up
+     * @return the value, or null if not present or expired
+     */
+    public synchronized V get(final K key) {
+        Item<V> e = map.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (isExpired(e, now())) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    /**
+     * Store a value, replacing any existing value for the key. The expiry
+     * timer is reset.
+     *
+     * @param key   to store against
+     * @param value to store. Must not be null
+     */
+    public synchronized void put(final K key, final V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Can't cache null values");
+        }
+        map.put(key, new Item<V>(value, now()));
+    }
+
+    /**
+     * Remove a value from the cache.
+     *
+     * @param key to remove
+     * @return the value that was removed, or null
+     */
+    public synchronized V remove(final K key) {
+        Item<V> e = map.remove(key);
+        return e != null ? e.value : null;
+    }
+
+    /**
+     * Remove everything from the cache.
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * Drop any expired entries, and return the number left.
+     *
+     * @return number of live entries
+     */
+    public synchronized int size() {
+        long now = now();
+        Iterator<Item<V>> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired(it.next(), now)) {
+                it.remove();
+            }
+        }
+        return map.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Current time in milliseconds. Tests can override this to control
+     * expiry.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private boolean isExpired(final Item<V> e, final long now) {
+        return ttl > 0 && now - e.created >= ttl;
+    }
+
+    private static class Item<V> {
+
+        private final V value;
+        private final long created;
+
+        Item(final V value, final long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
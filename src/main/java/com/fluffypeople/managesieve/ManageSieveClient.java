@@ -34,6 +34,7 @@ import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -82,12 +83,19 @@ public class ManageSieveClient {
     private final static Pattern ESCAPE_RE = Pattern.compile("([\"\\\\])");
     private final static int DQUOTE_LENGTH = 1;
     private final static int MAX_ESCAPED_STRING_LENGTH = 1024;
-    private Socket socket = null;
+    private volatile Socket socket = null;
     private ServerCapabilities cap;
     private StreamTokenizer in;
     private PrintWriter out;
+    private OutputStream rawOut;
     private String hostname;
+    private int port;
     private int socketTimeout = 0; // Default socket timeout is zero, or don't time out.
+    private volatile long lastActivity = System.currentTimeMillis();
+    // Time the last command was sent or response read, for round trip times
+    private long responseMark = System.nanoTime();
+    private volatile long responseCount = 0;
+    private volatile long responseNanos = 0;
 
     /**
      * Public constructor.
@@ -153,6 +161,7 @@ public class ManageSieveClient {
      */
     public synchronized ManageSieveResponse connect(final String host, final int port) throws IOException, ParseException {
         hostname = host;
+        this.port = port;
         socket = new Socket(InetAddress.getByName(hostname), port);
 
         setupAfterConnect(socket);
@@ -163,7 +172,85 @@ public class ManageSieveClient {
      * Returns true if the underlying socket is connected.
      */
     public synchronized boolean isConnected() {
-        return socket != null && socket.isConnected();
+        Socket s = socket;
+        return s != null && s.isConnected() && !s.isClosed();
+    }
+
+    /**
+     * Get the hostname passed to {@link #connect}. Will return null if called
+     * before the server has been connected.
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Get the port passed to {@link #connect}.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the time the last command was sent to the server, or the client
+     * connected, whichever is later.
+     *
+     * @return long time in milliseconds since the epoch
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Get the number of responses read from the server.
+     */
+    public long getResponseCount() {
+        return responseCount;
+    }
+
+    /**
+     * Get the total time spent waiting for responses from the server. Each
+     * response is timed from when its command was sent, or from the previous
+     * response for pipelined commands, so time spent between commands isn't
+     * counted.
+     *
+     * @return long time in milliseconds
+     */
+    public long getResponseTime() {
+        return TimeUnit.NANOSECONDS.toMillis(responseNanos);
+    }
+
+    /**
+     * Close the underlying socket without sending LOGOUT. Use this to clean up
+     * after the server has sent BYE, or when the connection is known to be
+     * broken. Safe to call more than once.
+     */
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                log.debug("Problem closing socket", ex);
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * Close the underlying socket from another thread, without waiting for a
+     * command in progress. The command will fail with an IOException. The
+     * session can't be used again afterwards, and should be closed with
+     * {@link #close()} (or invalidated if it came from a pool).
+     */
+    public void abort() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                log.debug("Problem aborting socket", ex);
+            }
+        }
     }
 
     /**
@@ -388,6 +475,13 @@ public class ManageSieveClient {
             scripts.clear();
         }
         sendCommand("LISTSCRIPTS");
+        return parseScriptList(scripts);
+    }
+
+    /**
+     * Read the response to LISTSCRIPTS, adding each script to the list.
+     */
+    ManageSieveResponse parseScriptList(List<SieveScript> scripts) throws IOException, ParseException {
         while (true) {
             int token = in.nextToken();
             switch (token) {
@@ -470,6 +564,25 @@ public class ManageSieveClient {
         return parseResponse();
     }
 
+    /**
+     * Upload a script that is already encoded as UTF-8. The same as
+     * {@link #putscript(String, String)}, except the body is written to the
+     * socket as it is, without being encoded again.
+     *
+     * @param name String name of the script
+     * @param body byte[] UTF-8 body of the script
+     * @return OK if the script is added, NO on error
+     * @throws IOException
+     * @throws ParseException
+     */
+    public synchronized ManageSieveResponse putscript(final String name, final byte[] body) throws IOException, ParseException {
+        writeCommand("PUTSCRIPT", escapeString(name), "{" + body.length + "+}");
+        writeLiteral(body);
+        writeLine("");
+        flush();
+        return parseResponse();
+    }
+
     /**
      * "This command gets the contents of the specified script". The name of the
      * script is taken from the script parameter, and the body is stored in the
@@ -518,6 +631,21 @@ public class ManageSieveClient {
         return parseResponse();
     }
 
+    /**
+     * "The UNAUTHENTICATE command returns the server to the unauthenticated
+     * state". The session can then be authenticated again, possibly as a
+     * different user, without reconnecting. Only valid if the server lists
+     * UNAUTHENTICATE in its capabilities.
+     *
+     * @return OK on success, NO on error
+     * @throws IOException
+     * @throws ParseException
+     */
+    public synchronized ManageSieveResponse unauthenticate() throws IOException, ParseException {
+        sendCommand("UNAUTHENTICATE");
+        return parseResponse();
+    }
+
     public synchronized ManageSieveResponse logout() throws IOException, ParseException {
         sendCommand("LOGOUT");
         return parseResponse();
@@ -546,6 +674,17 @@ public class ManageSieveClient {
         return parseResponse();
     }
 
+    /**
+     * Start a new {@link Pipeline} on this session. Commands added to the
+     * pipeline are sent together when it is executed, saving a round trip per
+     * command.
+     *
+     * @return a new, empty pipeline
+     */
+    public Pipeline pipeline() {
+        return new Pipeline(this);
+    }
+
     public synchronized ManageSieveResponse capability() throws IOException, ParseException {
         sendCommand("CAPABILITY");
         parseCapabilities();
@@ -590,6 +729,8 @@ public class ManageSieveClient {
                         cap.setVersion(parseString());
                     } else if (word.equalsIgnoreCase("OWNER")) {
                         cap.setOwner(parseString());
+                    } else if (word.equalsIgnoreCase("UNAUTHENTICATE")) {
+                        cap.setHasUnauthenticate(true);
                     } else {
                         // Unknown capability, read until EOL
                         while (token != StreamTokenizer.TT_EOL) {
@@ -609,7 +750,7 @@ public class ManageSieveClient {
         }
     }
 
-    private ManageSieveResponse parseResponse() throws IOException, ParseException {
+    ManageSieveResponse parseResponse() throws IOException, ParseException {
         in.nextToken();
         return parseResponseFromCurrentToken();
     }
@@ -655,10 +796,14 @@ public class ManageSieveClient {
         } else {
             throw new ParseException("Expecting WORD got " + tokenToString(token) + " at line " + in.lineno());
         }
+        long now = System.nanoTime();
+        responseNanos += now - responseMark;
+        responseCount += 1;
+        responseMark = now;
         return resp;
     }
 
-    private ResponseAndPayload parseResponseWithPayload() throws IOException, ParseException {
+    ResponseAndPayload parseResponseWithPayload() throws IOException, ParseException {
         int token = in.nextToken();
         String payload;
         ManageSieveResponse response;
@@ -751,7 +896,7 @@ public class ManageSieveClient {
         }
     }
 
-    private String escapeString(final String raw) {
+    String escapeString(final String raw) {
         StringBuilder result = new StringBuilder();
         result.append(DQUOTE);
         Matcher matcher = ESCAPE_RE.matcher(raw);
@@ -772,7 +917,7 @@ public class ManageSieveClient {
      * @param raw String to convert
      * @return converted String
      */
-    private String encodeString(final String raw) {
+    String encodeString(final String raw) {
         StringBuilder result = new StringBuilder();
 
         result.append("{");
@@ -785,6 +930,15 @@ public class ManageSieveClient {
     }
 
     private void sendCommand(final String command, String... param) throws IOException {
+        writeCommand(command, param);
+        flush();
+    }
+
+    /**
+     * Write a command to the server without flushing, so that several
+     * commands can be sent together. Used by {@link Pipeline}.
+     */
+    void writeCommand(final String command, String... param) {
         StringBuilder line = new StringBuilder();
         line.append(command);
         if (param != null) {
@@ -793,14 +947,42 @@ public class ManageSieveClient {
                 line.append(param[i]);
             }
         }
-        sendLine(line.toString());
+        writeLine(line.toString());
     }
 
     private void sendLine(final String line) throws IOException {
+        writeLine(line);
+        flush();
+    }
+
+    private void writeLine(final String line) {
         log.debug("Sending line: " + line);
         out.print(line);
         out.print(CRLF);
+    }
+
+    /**
+     * Write the bytes of a literal, after the line announcing its length.
+     */
+    private void writeLiteral(final byte[] data) throws IOException {
+        if (rawOut == null) {
+            out.print(new String(data, UTF8));
+            return;
+        }
+        // Everything before the literal has to reach the stream first
+        out.flush();
+        rawOut.write(data);
+    }
+
+    /**
+     * Flush anything written to the server.
+     *
+     * @throws IOException if there was a problem writing
+     */
+    void flush() throws IOException {
         out.flush();
+        lastActivity = System.currentTimeMillis();
+        responseMark = System.nanoTime();
 
         if (out.checkError()) {
             throw new IOException("Unknown error writing to server");
@@ -808,16 +990,20 @@ public class ManageSieveClient {
     }
 
     private void setupAfterConnect(Socket sock) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        responseMark = System.nanoTime();
         sock.setSoTimeout(socketTimeout);
         final BufferedInputStream byteStream = new BufferedInputStream(sock.getInputStream());
         in = new StreamTokenizer(new InputStreamReader(byteStream, UTF8));
         setupTokenizer();
-        out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), UTF8));
+        rawOut = sock.getOutputStream();
+        out = new PrintWriter(new OutputStreamWriter(rawOut, UTF8));
     }
 
     void setupForTesting(Reader from, Writer to) {
         in = new StreamTokenizer(from);
         out = new PrintWriter(to);
+        rawOut = null;
 
         setupTokenizer();
     }
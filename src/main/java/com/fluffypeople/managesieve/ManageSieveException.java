@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server gives an unexpected NO or BYE response to a command
+ * that we need to succeed, for example while establishing a session.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ManageSieveException extends IOException {
+
+    private static final long serialVersionUID = -3349468721947409163L;
+    private final ManageSieveResponse response;
+
+    /**
+     * Constructs an instance of <code>ManageSieveException</code> with the
+     * specified detail message and no response.
+     *
+     * @param msg the detail message.
+     */
+    public ManageSieveException(final String msg) {
+        this(msg, null);
+    }
+
+    /**
+     * Constructs an instance of <code>ManageSieveException</code> with the
+     * specified detail message and the response that caused it.
+     *
+     * @param msg      the detail message.
+     * @param response the response from the server, may be null.
+     */
+    public ManageSieveException(final String msg, final ManageSieveResponse response) {
+        super(response != null ? msg + ": " + response : msg);
+        this.response = response;
+    }
+
+    /**
+     * Get the response from the server that caused this exception.
+     *
+     * @return ManageSieveResponse, may be null
+     */
+    public ManageSieveResponse getResponse() {
+        return response;
+    }
+}
@@ -149,9 +149,32 @@ public class ManageSieveResponse {
      * @return Array of String sub-codes. May be null.
      */
     public String[] getSubCodes() {
+        if (subCodes == null) {
+            return null;
+        }
         return Arrays.copyOf(subCodes, subCodes.length);
     }
 
+    /**
+     * Check if this response has the given sub-code, for example
+     * <code>MAXSIZE</code> in <code>QUOTA/MAXSIZE</code>. The comparison
+     * ignores case.
+     *
+     * @param subCode String sub-code to look for
+     * @return true if the sub-code is present, false otherwise
+     */
+    public boolean hasSubCode(final String subCode) {
+        if (subCodes == null) {
+            return false;
+        }
+        for (int i = 1; i < subCodes.length; i++) {
+            if (subCodes[i].equalsIgnoreCase(subCode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Return any "Human readable" message from the response.
      */
@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Send several commands to the server without waiting for each response.
+ * <p>
+ * Manage Sieve clients use non-synchronizing literals (<code>{n+}</code>), so
+ * a client never has to wait for the server before sending the next command.
+ * A pipeline takes advantage of that: commands are queued, then
+ * {@link #execute()} writes them all and reads the responses back in order,
+ * costing one round trip instead of one per command.
+ * <p>
+ * Commands are still run by the server one at a time, in order, and a
+ * failure of one command doesn't stop the following commands from running.
+ * Callers that need "stop on first error" behaviour should check the
+ * responses and undo any later commands themselves.
+ * <p>
+ * To avoid both sides blocking on full socket buffers, large pipelines are
+ * written in windows of at most {@link #getMaxWindowBytes()} bytes, reading
+ * the responses to each window before starting the next.
+ * <p>
+ * Pipelines are not thread safe, but the client is locked while the pipeline
+ * is executing so other threads can't interleave commands.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class Pipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(Pipeline.class);
+    public static final int DEFAULT_MAX_WINDOW_BYTES = 32 * 1024;
+    private final ManageSieveClient client;
+    private final List<Command> commands = new ArrayList<Command>();
+    private int maxWindowBytes = DEFAULT_MAX_WINDOW_BYTES;
+
+    Pipeline(final ManageSieveClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Set the maximum number of bytes written before stopping to read
+     * responses. A single command larger than this is still sent, in a window
+     * of its own.
+     */
+    public Pipeline setMaxWindowBytes(final int maxWindowBytes) {
+        if (maxWindowBytes < 1) {
+            throw new IllegalArgumentException("maxWindowBytes must be positive, got " + maxWindowBytes);
+        }
+        this.maxWindowBytes = maxWindowBytes;
+        return this;
+    }
+
+    public int getMaxWindowBytes() {
+        return maxWindowBytes;
+    }
+
+    /**
+     * Number of commands queued.
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Queue a HAVESPACE command. See {@link ManageSieveClient#havespace}.
+     *
+     * @return the index of this command's response in the list returned by
+     * {@link #execute()}
+     */
+    public int havespace(final String name, final long size) {
+        return add(new Command("HAVESPACE", null, client.escapeString(name), Long.toString(size, 10)));
+    }
+
+    /**
+     * Queue a LISTSCRIPTS command. The list will be filled when the pipeline
+     * is executed. See {@link ManageSieveClient#listscripts}.
+     *
+     * @param scripts List to add the scripts to. Cleared now.
+     * @return the index of this command's response
+     */
+    public int listscripts(final List<SieveScript> scripts) {
+        scripts.clear();
+        return add(new Command("LISTSCRIPTS", null, scripts));
+    }
+
+    /**
+     * Queue a PUTSCRIPT command. See {@link ManageSieveClient#putscript}.
+     *
+     * @return the index of this command's response
+     */
+    public int putscript(final String name, final String body) {
+        return add(new Command("PUTSCRIPT", null, client.escapeString(name), client.encodeString(body)));
+    }
+
+    /**
+     * Queue a CHECKSCRIPT command. See {@link ManageSieveClient#checkscript}.
+     *
+     * @return the index of this command's response
+     */
+    public int checkscript(final String body) {
+        return add(new Command("CHECKSCRIPT", null, client.encodeString(body)));
+    }
+
+    /**
+     * Queue a GETSCRIPT command. The body of the script will be set when the
+     * pipeline is executed. See {@link ManageSieveClient#getScript}.
+     *
+     * @return the index of this command's response
+     */
+    public int getScript(final SieveScript script) {
+        return add(new Command("GETSCRIPT", script, client.escapeString(script.getName())));
+    }
+
+    /**
+     * Queue a SETACTIVE command. See {@link ManageSieveClient#setactive}.
+     *
+     * @return the index of this command's response
+     */
+    public int setactive(final String name) {
+        return add(new Command("SETACTIVE", null, client.escapeString(name)));
+    }
+
+    /**
+     * Queue a DELETESCRIPT command. See
+     * {@link ManageSieveClient#deletescript}.
+     *
+     * @return the index of this command's response
+     */
+    public int deletescript(final String name) {
+        return add(new Command("DELETESCRIPT", null, client.escapeString(name)));
+    }
+
+    /**
+     * Queue a RENAMESCRIPT command. See
+     * {@link ManageSieveClient#renamescript}.
+     *
+     * @return the index of this command's response
+     */
+    public int renamescript(final String oldName, final String newName) {
+        return add(new Command("RENAMESCRIPT", null, client.encodeString(oldName), client.encodeString(newName)));
+    }
+
+    /**
+     * Queue a NOOP command. See {@link ManageSieveClient#noop}.
+     *
+     * @return the index of this command's response
+     */
+    public int noop(final String tag) {
+        if (tag != null) {
+            return add(new Command("NOOP", null, client.encodeString(tag)));
+        } else {
+            return add(new Command("NOOP", null));
+        }
+    }
+
+    /**
+     * Send all the queued commands and read their responses. The pipeline is
+     * empty afterwards and can be reused.
+     * <p>
+     * If the server sends BYE the connection is closed, so any commands after
+     * that point are not run. Their slots in the result are filled with the
+     * same BYE response.
+     *
+     * @return List of responses, in the same order as the commands were
+     * queued
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public List<ManageSieveResponse> execute() throws IOException, ParseException {
+        if (commands.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ManageSieveResponse> responses = new ArrayList<ManageSieveResponse>(commands.size());
+        synchronized (client) {
+            int next = 0;
+            while (next < commands.size()) {
+                // Write one window
+                int start = next;
+                int bytes = 0;
+                do {
+                    Command c = commands.get(next);
+                    client.writeCommand(c.name, c.params);
+                    bytes += c.length;
+                    next += 1;
+                } while (next < commands.size() && bytes + commands.get(next).length <= maxWindowBytes);
+                client.flush();
+                log.debug("Pipelined {} commands ({} bytes)", next - start, bytes);
+
+                // Read its responses
+                for (int i = start; i < next; i++) {
+                    ManageSieveResponse resp = read(commands.get(i));
+                    responses.add(resp);
+                    if (resp.isBye()) {
+                        while (responses.size() < commands.size()) {
+                            responses.add(resp);
+                        }
+                        commands.clear();
+                        return responses;
+                    }
+                }
+            }
+        }
+        commands.clear();
+        return responses;
+    }
+
+    private ManageSieveResponse read(final Command c) throws IOException, ParseException {
+        if (c.list != null) {
+            return client.parseScriptList(c.list);
+        } else if (c.script != null) {
+            ResponseAndPayload rp = client.parseResponseWithPayload();
+            c.script.setBody(rp.getPayload());
+            return rp.getResponse();
+        } else {
+            return client.parseResponse();
+        }
+    }
+
+    private int add(final Command c) {
+        commands.add(c);
+        return commands.size() - 1;
+    }
+
+    private static class Command {
+
+        private final String name;
+        private final String[] params;
+        private final SieveScript script;
+        private final List<SieveScript> list;
+        private final int length;
+
+        Command(final String name, final SieveScript script, final String... params) {
+            this(name, script, null, params);
+        }
+
+        Command(final String name, final SieveScript script, final List<SieveScript> list, final String... params) {
+            this.name = name;
+            this.script = script;
+            this.list = list;
+            this.params = params;
+            int l = name.length() + 2;
+            for (String p : params) {
+                // Close enough, we only need a rough size
+                l += p.length() + 1;
+            }
+            this.length = l;
+        }
+    }
+}
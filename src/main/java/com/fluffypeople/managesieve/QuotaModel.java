@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What we know about one account's quota.
+ * <p>
+ * Manage Sieve doesn't let clients ask for quota limits directly, but they can
+ * be learned from the answers to HAVESPACE and PUTSCRIPT. An OK proves that a
+ * script of that size (and the resulting number of scripts and total storage)
+ * fits. A NO with a <code>QUOTA/MAXSIZE</code>, <code>QUOTA/MAXSCRIPTS</code>
+ * or plain <code>QUOTA</code> code proves that something that large doesn't.
+ * <p>
+ * From that, {@link #check} can answer some space questions without asking the
+ * server. It only gives a definite answer when everything it needs is known,
+ * and returns {@link Answer#UNKNOWN} otherwise. Limits can be changed on the
+ * server at any time, so models should be thrown away after a while (see
+ * {@link SpaceChecker}).
+ * <p>
+ * Script count and total storage can only be worked out once the full list of
+ * scripts (and for storage, their sizes) has been given with
+ * {@link #setScripts}. LISTSCRIPTS doesn't return sizes, so a listing straight
+ * from {@link ManageSieveClient#listscripts} leaves total storage unknown, and
+ * {@link #check} can then only answer NO or UNKNOWN. To get local YES answers
+ * the listing must include the script bodies (see
+ * {@link SpaceChecker#loadScripts}).
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class QuotaModel {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * Result of a local space check.
+     */
+    public enum Answer {
+
+        YES, NO, UNKNOWN
+    }
+
+    // Script name to size in bytes, or UNKNOWN_SIZE
+    private final Map<String, Long> scripts = new HashMap<String, Long>();
+    private boolean listingComplete = false;
+    private long sizeOk = -1;
+    private long sizeRejected = Long.MAX_VALUE;
+    private int countOk = -1;
+    private int countRejected = Integer.MAX_VALUE;
+    private long storageOk = -1;
+    private long storageRejected = Long.MAX_VALUE;
+
+    /**
+     * Size of a script body as counted by the server, i.e. in UTF-8 octets.
+     *
+     * @param body String script body
+     * @return long size in bytes
+     */
+    public static long sizeOf(final String body) {
+        return body.getBytes(UTF8).length;
+    }
+
+    /**
+     * Set the full list of scripts for the account, usually from
+     * {@link ManageSieveClient#listscripts}. Scripts with a body will also have
+     * their size recorded.
+     *
+     * @param listing Collection of all the scripts the account has
+     */
+    public synchronized void setScripts(final Collection<SieveScript> listing) {
+        scripts.clear();
+        for (SieveScript s : listing) {
+            scripts.put(s.getName(), s.getBody() != null ? sizeOf(s.getBody()) : UNKNOWN_SIZE);
+        }
+        listingComplete = true;
+    }
+
+    /**
+     * Record a script that was successfully stored with PUTSCRIPT.
+     */
+    public synchronized void scriptStored(final String name, final long size) {
+        learnOk(name, size);
+        scripts.put(name, size);
+    }
+
+    /**
+     * Record a script that was deleted.
+     */
+    public synchronized void scriptDeleted(final String name) {
+        scripts.remove(name);
+    }
+
+    /**
+     * Record a script that was renamed.
+     */
+    public synchronized void scriptRenamed(final String oldName, final String newName) {
+        Long size = scripts.remove(oldName);
+        scripts.put(newName, size != null ? size : UNKNOWN_SIZE);
+    }
+
+    /**
+     * Learn from the servers answer to a HAVESPACE or PUTSCRIPT for a script
+     * with the given name and size. Responses that don't say anything about
+     * quota are ignored.
+     *
+     * @param name String script name
+     * @param size long script size in bytes
+     * @param resp ManageSieveResponse from the server
+     */
+    public synchronized void learn(final String name, final long size, final ManageSieveResponse resp) {
+        if (resp.isOk()) {
+            learnOk(name, size);
+        } else if (resp.getCode() == ManageSieveResponse.Code.QUOTA) {
+            if (resp.hasSubCode("MAXSIZE")) {
+                sizeRejected = Math.min(sizeRejected, size);
+                if (sizeOk >= size) {
+                    // Limit has been lowered since we last looked
+                    sizeOk = size - 1;
+                }
+            } else if (resp.hasSubCode("MAXSCRIPTS")) {
+                int count = countAfter(name);
+                if (count >= 0) {
+                    countRejected = Math.min(countRejected, count);
+                    if (countOk >= count) {
+                        countOk = count - 1;
+                    }
+                }
+            } else {
+                long total = storageAfter(name, size);
+                if (total >= 0) {
+                    storageRejected = Math.min(storageRejected, total);
+                    if (storageOk >= total) {
+                        storageOk = total - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check, without asking the server, if a script with the given name and
+     * size would fit.
+     *
+     * @param name String script name
+     * @param size long script size in bytes
+     * @return YES or NO if the answer is certain (given what we know), UNKNOWN
+     * if the server needs to be asked.
+     */
+    public synchronized Answer check(final String name, final long size) {
+        if (size >= sizeRejected) {
+            return Answer.NO;
+        }
+        int count = countAfter(name);
+        if (count >= 0 && count >= countRejected) {
+            return Answer.NO;
+        }
+        long total = storageAfter(name, size);
+        if (total >= 0 && total >= storageRejected) {
+            return Answer.NO;
+        }
+
+        boolean countFits = scripts.containsKey(name) || (count >= 0 && count <= countOk);
+        boolean storageFits = total >= 0 && total <= storageOk;
+        if (size <= sizeOk && countFits && storageFits) {
+            return Answer.YES;
+        }
+        return Answer.UNKNOWN;
+    }
+
+    private void learnOk(final String name, final long size) {
+        sizeOk = Math.max(sizeOk, size);
+        if (sizeRejected <= size) {
+            // Limit has been raised since we last looked
+            sizeRejected = Long.MAX_VALUE;
+        }
+        int count = countAfter(name);
+        if (count >= 0) {
+            countOk = Math.max(countOk, count);
+            if (countRejected <= count) {
+                countRejected = Integer.MAX_VALUE;
+            }
+        }
+        long total = storageAfter(name, size);
+        if (total >= 0) {
+            storageOk = Math.max(storageOk, total);
+            if (storageRejected <= total) {
+                storageRejected = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Number of scripts the account would have after storing the named
+     * script, or -1 if we don't know.
+     */
+    private int countAfter(final String name) {
+        if (!listingComplete) {
+            return -1;
+        }
+        return scripts.containsKey(name) ? scripts.size() : scripts.size() + 1;
+    }
+
+    /**
+     * Total storage the account would use after storing the named script, or
+     * -1 if we don't know.
+     */
+    private long storageAfter(final String name, final long size) {
+        if (!listingComplete) {
+            return -1;
+        }
+        long total = size;
+        for (Map.Entry<String, Long> e : scripts.entrySet()) {
+            if (e.getKey().equals(name)) {
+                continue;
+            }
+            if (e.getValue() == UNKNOWN_SIZE) {
+                return -1;
+            }
+            total += e.getValue();
+        }
+        return total;
+    }
+}
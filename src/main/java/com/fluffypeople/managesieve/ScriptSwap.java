@@ -0,0 +1,202 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces a script and makes it active, as safely as the protocol allows, in
+ * two round trips.
+ * <p>
+ * The first round trip lists the scripts (to find the one active now),
+ * uploads the new body under a temporary name, and activates it. PUTSCRIPT
+ * checks the script, so there is no separate CHECKSCRIPT. The temporary name
+ * is unique, so if the upload fails, activating it fails too and nothing has
+ * changed. The second round trip deletes the old script and renames the
+ * temporary one into its place. An active script keeps its active status
+ * when renamed, so there is no moment without an active script.
+ * <p>
+ * If a step fails, the steps before it are undone: the temporary script is
+ * deleted and the script that was active before is made active again. The
+ * one case that can't be undone is the rename failing after the old script
+ * was deleted. The new script is left active under its temporary name, and
+ * the result says it wasn't rolled back. The same goes for LISTSCRIPTS
+ * failing after the new script was activated: without the listing there's no
+ * telling which script to make active again, so nothing more is done.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ScriptSwap {
+
+    private static final Logger log = LoggerFactory.getLogger(ScriptSwap.class);
+    private static final Random random = new Random();
+    private final ManageSieveClient client;
+
+    public ScriptSwap(final ManageSieveClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Replace (or create) a script and make it active.
+     *
+     * @param name String name of the script
+     * @param body String new body of the script
+     * @return Result saying what happened
+     * @throws IOException    if there are underlying IO issues. The state on
+     *                        the server is unknown.
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public Result swap(final String name, final String body) throws IOException, ParseException {
+        String tmp = name + ".swap-" + Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+        List<SieveScript> scripts = new ArrayList<SieveScript>();
+
+        Pipeline p = client.pipeline();
+        int list = p.listscripts(scripts);
+        int put = p.putscript(tmp, body);
+        int activate = p.setactive(tmp);
+        List<ManageSieveResponse> responses = p.execute();
+
+        if (!responses.get(put).isOk()) {
+            // Nothing changed: the temporary name didn't exist to activate
+            return new Result("PUTSCRIPT", responses.get(put), true, 1);
+        }
+        if (!responses.get(list).isOk()) {
+            // Without the listing we don't know which script to put back or
+            // if the name is taken, so stop here
+            if (!responses.get(activate).isOk()) {
+                boolean undone = client.deletescript(tmp).isOk();
+                return new Result("LISTSCRIPTS", responses.get(list), undone, 2);
+            }
+            log.warn("Swap of {} stopped: can't list scripts, new one active as {}", name, tmp);
+            return new Result("LISTSCRIPTS", responses.get(list), false, 1);
+        }
+        String previous = null;
+        for (SieveScript s : scripts) {
+            if (s.isActive()) {
+                previous = s.getName();
+            }
+        }
+        if (!responses.get(activate).isOk()) {
+            boolean undone = client.deletescript(tmp).isOk();
+            return new Result("SETACTIVE", responses.get(activate), undone, 2);
+        }
+
+        boolean exists = false;
+        for (SieveScript s : scripts) {
+            if (s.getName().equals(name)) {
+                exists = true;
+            }
+        }
+        int delete = -1;
+        if (exists) {
+            delete = p.deletescript(name);
+        }
+        int rename = p.renamescript(tmp, name);
+        responses = p.execute();
+
+        if (responses.get(rename).isOk()) {
+            return new Result(null, responses.get(rename), false, 2);
+        }
+        if (delete != -1 && responses.get(delete).isOk()) {
+            log.warn("Swap of {} half done: old script deleted, new one active as {}", name, tmp);
+            return new Result("RENAMESCRIPT", responses.get(rename), false, 2);
+        }
+
+        // The old script is still there, put things back how they were. The
+        // listing worked, so no previous script means none was active
+        ManageSieveResponse failed = delete != -1 ? responses.get(delete) : responses.get(rename);
+        p.setactive(previous != null ? previous : "");
+        p.deletescript(tmp);
+        responses = p.execute();
+        boolean undone = responses.get(0).isOk() && responses.get(1).isOk();
+        return new Result(delete != -1 ? "DELETESCRIPT" : "RENAMESCRIPT", failed, undone, 3);
+    }
+
+    /**
+     * What happened during a swap.
+     */
+    public static class Result {
+
+        private final String failedStep;
+        private final ManageSieveResponse response;
+        private final boolean rolledBack;
+        private final int roundTrips;
+
+        Result(final String failedStep, final ManageSieveResponse response, final boolean rolledBack, final int roundTrips) {
+            this.failedStep = failedStep;
+            this.response = response;
+            this.rolledBack = rolledBack;
+            this.roundTrips = roundTrips;
+        }
+
+        /**
+         * True if the new script is in place and active.
+         */
+        public boolean isOk() {
+            return failedStep == null;
+        }
+
+        /**
+         * The command that failed, or null if the swap worked.
+         */
+        public String getFailedStep() {
+            return failedStep;
+        }
+
+        /**
+         * The response to the command that failed, or to the last command if
+         * the swap worked.
+         */
+        public ManageSieveResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * True if the swap failed and everything was put back as it was.
+         */
+        public boolean isRolledBack() {
+            return rolledBack;
+        }
+
+        /**
+         * Number of round trips to the server.
+         */
+        public int getRoundTrips() {
+            return roundTrips;
+        }
+
+        @Override
+        public String toString() {
+            if (isOk()) {
+                return "Swapped in " + roundTrips + " round trips";
+            }
+            return failedStep + " failed (" + response + "), " + (rolledBack ? "rolled back" : "not rolled back");
+        }
+    }
+}
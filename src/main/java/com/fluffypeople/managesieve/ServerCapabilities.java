@@ -39,6 +39,7 @@ public class ServerCapabilities {
     private final Set<String> SASLMethods;
     private final Set<String> sieveExtensions;
     private boolean tls = false;
+    private boolean unauthenticate = false;
     private int maxRedirects = 0;
     private final Set<String> notify;
     private String language = null;
@@ -82,6 +83,11 @@ public class ServerCapabilities {
         return sieveExtensions.contains(extension);
     }
 
+    public String[] getSieveExtensions() {
+        String[] result = new String[sieveExtensions.size()];
+        return sieveExtensions.toArray(result);
+    }
+
     public void setHasTLS(final boolean tls) {
         this.tls = tls;
     }
@@ -90,6 +96,19 @@ public class ServerCapabilities {
         return tls;
     }
 
+    public void setHasUnauthenticate(final boolean unauthenticate) {
+        this.unauthenticate = unauthenticate;
+    }
+
+    /**
+     * Does the server support the UNAUTHENTICATE command (<a
+     * href="http://tools.ietf.org/html/rfc5804#section-2.14.1">rfc5804
+     * section 2.14.1</a>)?
+     */
+    public boolean hasUnauthenticate() {
+        return unauthenticate;
+    }
+
     public void setNotify(final String raw) {
         notify.clear();
         parseString(notify, raw);
@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import javax.net.ssl.SSLSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates connected (and optionally authenticated) {@link ManageSieveClient}
+ * sessions for one server.
+ * <p>
+ * If the server answers with a REFERRAL response code (either in the greeting
+ * or in response to AUTHENTICATE) the factory will follow the referral to the
+ * new host, up to {@link #getMaxReferrals()} times. A referral that points back
+ * to a host already tried is treated as a loop and reported as an error.
+ * <p>
+ * If a referral cache is set with {@link #setReferralCache}, the backend each
+ * account was referred to is remembered, and later sessions for that account
+ * connect straight to it. If the remembered backend can't be reached, or
+ * refers the account somewhere else, the entry is dropped and the factory
+ * starts again from the configured server. Any other refusal from the
+ * remembered backend (such as a wrong password) is reported straight away.
+ * <p>
+ * Configure the factory before sharing it between threads. Once configured,
+ * {@link #connect()} and {@link #open} are thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class SessionFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionFactory.class);
+    public static final int DEFAULT_MAX_REFERRALS = 3;
+    private final SieveURL server;
+    private boolean useTLS = true;
+    private SSLSocketFactory sslSocketFactory = null;
+    private boolean rfcCheck = true;
+    private int socketTimeout = 0;
+    private int maxReferrals = DEFAULT_MAX_REFERRALS;
+    private ExpiringCache<String, SieveURL> referralCache = null;
+
+    public SessionFactory(final String host, final int port) {
+        this(new SieveURL(null, host, port));
+    }
+
+    public SessionFactory(final SieveURL server) {
+        this.server = server;
+    }
+
+    /**
+     * Get the server this factory connects to, before any referrals.
+     */
+    public SieveURL getServer() {
+        return server;
+    }
+
+    /**
+     * Set if sessions should be upgraded to TLS after connecting. Defaults to
+     * true.
+     */
+    public void setUseTLS(final boolean useTLS) {
+        this.useTLS = useTLS;
+    }
+
+    public boolean isUseTLS() {
+        return useTLS;
+    }
+
+    /**
+     * Set the SSLSocketFactory to use for STARTTLS, and if the certificate
+     * hostname should be checked. See
+     * {@link ManageSieveClient#starttls(SSLSocketFactory, boolean)}.
+     *
+     * @param sslSocketFactory factory to use, or null for the default
+     * @param rfcCheck         true to check the certificate matches the host
+     */
+    public void setSSLSocketFactory(final SSLSocketFactory sslSocketFactory, final boolean rfcCheck) {
+        this.sslSocketFactory = sslSocketFactory;
+        this.rfcCheck = rfcCheck;
+    }
+
+    /**
+     * Set the socket timeout for new sessions. See
+     * {@link ManageSieveClient#setSocketTimeout(int)}.
+     */
+    public void setSocketTimeout(final int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Set the maximum number of referrals that will be followed while
+     * establishing one session. Zero means referrals are not followed.
+     */
+    public void setMaxReferrals(final int maxReferrals) {
+        if (maxReferrals < 0) {
+            throw new IllegalArgumentException("maxReferrals must not be negative, got " + maxReferrals);
+        }
+        this.maxReferrals = maxReferrals;
+    }
+
+    public int getMaxReferrals() {
+        return maxReferrals;
+    }
+
+    /**
+     * Set the cache used to remember which backend each account was referred
+     * to. The cache can be shared between factories for the same server.
+     *
+     * @param referralCache cache of account name to backend, or null to
+     *                      disable
+     */
+    public void setReferralCache(final ExpiringCache<String, SieveURL> referralCache) {
+        this.referralCache = referralCache;
+    }
+
+    public ExpiringCache<String, SieveURL> getReferralCache() {
+        return referralCache;
+    }
+
+    /**
+     * Connect to the server, following any referral in the greeting, and
+     * upgrade to TLS if configured. The session is not authenticated.
+     *
+     * @return a connected client
+     * @throws ManageSieveException if the server refuses the connection, or
+     *                              referrals loop
+     * @throws IOException          if there are underlying IO issues
+     * @throws ParseException       if we can't parse the response from the
+     *                              server
+     */
+    public ManageSieveClient connect() throws IOException, ParseException {
+        return connect(server, new HashSet<SieveURL>());
+    }
+
+    /**
+     * Connect and authenticate, following referrals.
+     *
+     * @param username String username to authenticate with
+     * @param password String password to authenticate with
+     * @return an authenticated client
+     * @throws ManageSieveException if authentication fails, or referrals
+     *                              loop
+     * @throws IOException          if there are underlying IO issues
+     * @throws ParseException       if we can't parse the response from the
+     *                              server
+     */
+    public ManageSieveClient open(final String username, final String password) throws IOException, ParseException {
+        return open(new Credentials(username, password));
+    }
+
+    /**
+     * Connect and authenticate, following referrals. If the account has a
+     * cached referral, connect straight to that backend.
+     *
+     * @param credentials to authenticate with
+     * @return an authenticated client
+     * @throws ManageSieveException if authentication fails, or referrals
+     *                              loop
+     * @throws IOException          if there are underlying IO issues
+     * @throws ParseException       if we can't parse the response from the
+     *                              server
+     */
+    public ManageSieveClient open(final Credentials credentials) throws IOException, ParseException {
+        final String account = credentials.getAccount();
+        SieveURL cached = referralCache != null ? referralCache.get(account) : null;
+        if (cached != null) {
+            ManageSieveClient client = openCached(cached, credentials);
+            if (client != null) {
+                return client;
+            }
+            referralCache.remove(account);
+        }
+        return authenticate(server, credentials);
+    }
+
+    /**
+     * Create the client object. Subclasses can override this to customise the
+     * client before it connects.
+     *
+     * @return a new, unconnected client
+     * @throws IOException if the client can't be configured
+     */
+    protected ManageSieveClient newClient() throws IOException {
+        ManageSieveClient client = new ManageSieveClient();
+        client.setSocketTimeout(socketTimeout);
+        return client;
+    }
+
+    private ManageSieveClient authenticate(final SieveURL start, final Credentials credentials) throws IOException, ParseException {
+        final Set<SieveURL> visited = new HashSet<SieveURL>();
+        SieveURL target = start;
+        while (true) {
+            ManageSieveClient client = connect(target, visited);
+            ManageSieveResponse resp;
+            try {
+                resp = client.authenticate(credentials.getUsername(), credentials.getPassword(), credentials.getAuthorizationId());
+            } catch (IOException ex) {
+                client.close();
+                throw ex;
+            } catch (ParseException ex) {
+                client.close();
+                throw ex;
+            }
+            if (resp.isOk()) {
+                remember(credentials.getAccount(), new SieveURL(null, client.getHostname(), client.getPort()));
+                return client;
+            }
+            client.close();
+            SieveURL referral = getReferral(resp);
+            if (referral == null) {
+                throw new ManageSieveException("Can't authenticate " + credentials + " at " + target, resp);
+            }
+            log.debug("Authentication for {} referred from {} to {}", new Object[]{credentials, target, referral});
+            target = referral;
+        }
+    }
+
+    /**
+     * Try the backend remembered for an account. Returns null if the backend
+     * can't be reached or sends a referral, so the caller can drop the entry
+     * and start again. Other refusals are final, so that a wrong password
+     * isn't sent twice.
+     */
+    private ManageSieveClient openCached(final SieveURL cached, final Credentials credentials) throws IOException, ParseException {
+        ManageSieveClient client = newClient();
+        ManageSieveResponse resp;
+        try {
+            resp = handshake(client, cached);
+            if (!resp.isOk()) {
+                log.debug("Cached backend {} for {} refused the connection: {}", new Object[]{cached, credentials.getAccount(), resp});
+                client.close();
+                return null;
+            }
+            resp = client.authenticate(credentials.getUsername(), credentials.getPassword(), credentials.getAuthorizationId());
+        } catch (IOException ex) {
+            log.debug("Cached backend {} for {} failed, starting again from {}", new Object[]{cached, credentials.getAccount(), server, ex});
+            client.close();
+            return null;
+        } catch (ParseException ex) {
+            log.debug("Cached backend {} for {} failed, starting again from {}", new Object[]{cached, credentials.getAccount(), server, ex});
+            client.close();
+            return null;
+        }
+        if (resp.isOk()) {
+            remember(credentials.getAccount(), cached);
+            return client;
+        }
+        client.close();
+        if (resp.getCode() == ManageSieveResponse.Code.REFERRAL) {
+            log.debug("Cached backend {} for {} sent a referral, starting again from {}", new Object[]{cached, credentials.getAccount(), server});
+            return null;
+        }
+        throw new ManageSieveException("Can't authenticate " + credentials + " at " + cached, resp);
+    }
+
+    private ManageSieveClient connect(final SieveURL start, final Set<SieveURL> visited) throws IOException, ParseException {
+        SieveURL target = start;
+        while (true) {
+            if (!visited.add(target)) {
+                throw new ManageSieveException("Referral loop detected at " + target);
+            }
+            if (visited.size() > maxReferrals + 1) {
+                throw new ManageSieveException("Too many referrals, last was to " + target);
+            }
+            ManageSieveClient client = newClient();
+            ManageSieveResponse resp;
+            try {
+                resp = handshake(client, target);
+            } catch (IOException ex) {
+                client.close();
+                throw ex;
+            } catch (ParseException ex) {
+                client.close();
+                throw ex;
+            }
+            if (resp.isOk()) {
+                return client;
+            }
+            client.close();
+            SieveURL referral = getReferral(resp);
+            if (referral == null) {
+                throw new ManageSieveException("Can't connect to " + target, resp);
+            }
+            log.debug("Connection referred from {} to {}", target, referral);
+            target = referral;
+        }
+    }
+
+    /**
+     * Connect a client to a host and upgrade to TLS if configured.
+     */
+    private ManageSieveResponse handshake(final ManageSieveClient client, final SieveURL target) throws IOException, ParseException {
+        ManageSieveResponse resp = client.connect(target.getHost(), target.getPort());
+        if (resp.isOk() && useTLS) {
+            if (sslSocketFactory != null) {
+                resp = client.starttls(sslSocketFactory, rfcCheck);
+            } else {
+                resp = client.starttls();
+            }
+        }
+        return resp;
+    }
+
+    private void remember(final String account, final SieveURL backend) {
+        if (referralCache == null) {
+            return;
+        }
+        if (backend.equals(server)) {
+            referralCache.remove(account);
+        } else {
+            referralCache.put(account, backend);
+        }
+    }
+
+    private static SieveURL getReferral(final ManageSieveResponse resp) throws ParseException {
+        if (resp.getCode() == ManageSieveResponse.Code.REFERRAL && resp.getParam() != null) {
+            return SieveURL.parse(resp.getParam());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sieve URL, as defined in <a
+ * href="http://tools.ietf.org/html/rfc5804#section-3">rfc5804 section 3</a>.
+ * Servers use these in REFERRAL response codes to send clients to a different
+ * host.
+ * <p>
+ * Only the authority part of the URL (user, host, port) is kept, since that's
+ * all that is needed to reconnect. Bare hostnames (with or without a port) are
+ * accepted too, as some servers send those instead of a full URL.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public final class SieveURL {
+
+    /**
+     * Default port for Manage Sieve, from the IANA registration.
+     */
+    public static final int DEFAULT_PORT = 4190;
+    private static final Pattern URL_RE = Pattern.compile("^(?:sieve://)?(?:([^@/]*)@)?(\\[[^\\]]+\\]|[^:/]+)(?::(\\d+))?(?:/.*)?$", Pattern.CASE_INSENSITIVE);
+    private final String user;
+    private final String host;
+    private final int port;
+
+    /**
+     * Create a new URL pointing at the given host and port.
+     *
+     * @param user String user name from the URL, may be null
+     * @param host String hostname
+     * @param port int port number
+     */
+    public SieveURL(final String user, final String host, final int port) {
+        if (host == null || host.isEmpty()) {
+            throw new IllegalArgumentException("Host must not be empty");
+        }
+        this.user = user;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Parse a sieve URL.
+     *
+     * @param raw String to parse, for example
+     *            <code>sieve://user@backend.example.com:4190/</code>
+     * @return the parsed URL
+     * @throws ParseException if the string isn't a sieve URL
+     */
+    public static SieveURL parse(final String raw) throws ParseException {
+        if (raw == null) {
+            throw new ParseException("Can't parse null as a sieve URL");
+        }
+        Matcher m = URL_RE.matcher(raw.trim());
+        if (!m.matches()) {
+            throw new ParseException("Not a sieve URL: " + raw);
+        }
+        String user = m.group(1);
+        if (user != null && user.isEmpty()) {
+            user = null;
+        }
+        String host = m.group(2);
+        if (host.startsWith("[")) {
+            // IPv6 literal
+            host = host.substring(1, host.length() - 1);
+        }
+        int port = DEFAULT_PORT;
+        if (m.group(3) != null) {
+            try {
+                port = Integer.parseInt(m.group(3), 10);
+            } catch (NumberFormatException ex) {
+                throw new ParseException("Invalid port in sieve URL: " + raw);
+            }
+        }
+        return new SieveURL(user, host, port);
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + host.toLowerCase().hashCode();
+        hash = 31 * hash + port;
+        return hash;
+    }
+
+    /**
+     * Two URLs are equal if they point at the same host and port. The user
+     * part is ignored, since it doesn't change where we connect to.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final SieveURL other = (SieveURL) obj;
+        return host.equalsIgnoreCase(other.host) && port == other.port;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("sieve://");
+        if (user != null) {
+            result.append(user).append("@");
+        }
+        if (host.indexOf(':') > -1) {
+            result.append("[").append(host).append("]");
+        } else {
+            result.append(host);
+        }
+        if (port != DEFAULT_PORT) {
+            result.append(":").append(port);
+        }
+        return result.toString();
+    }
+}
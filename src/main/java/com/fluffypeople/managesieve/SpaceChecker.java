@@ -0,0 +1,295 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers HAVESPACE questions, using a {@link QuotaModel} per account to
+ * avoid asking the server when the answer is already known.
+ * <p>
+ * Only questions the model can't answer for certain go to the server. When
+ * more than one question is asked at once, the ones that need the server are
+ * sent together in a {@link Pipeline}, unless pipelining has been turned off.
+ * Every answer from the server is fed back into the model.
+ * <p>
+ * Models are kept in an {@link ExpiringCache}, so knowledge about an account
+ * is forgotten after a while and limits changed on the server are picked up.
+ * <p>
+ * This class is thread safe, but each client must only be used by one thread
+ * at a time, as usual.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class SpaceChecker {
+
+    private static final Logger log = LoggerFactory.getLogger(SpaceChecker.class);
+    private final ExpiringCache<String, QuotaModel> models;
+    private volatile boolean pipelining = true;
+    private final AtomicLong localAnswers = new AtomicLong();
+    private final AtomicLong serverAnswers = new AtomicLong();
+
+    /**
+     * Create a new checker.
+     *
+     * @param maxAccounts int maximum number of accounts to remember
+     * @param ttl         long time in milliseconds to remember an account for
+     */
+    public SpaceChecker(final int maxAccounts, final long ttl) {
+        this(new ExpiringCache<String, QuotaModel>(maxAccounts, ttl));
+    }
+
+    public SpaceChecker(final ExpiringCache<String, QuotaModel> models) {
+        this.models = models;
+    }
+
+    /**
+     * Set if questions for the server should be pipelined. Defaults to true.
+     */
+    public void setPipelining(final boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    /**
+     * Get the model for an account, creating an empty one if needed. Use this
+     * to give the model a script listing, or to tell it about scripts stored,
+     * deleted or renamed without going through this class.
+     *
+     * @param account String account name
+     * @return QuotaModel for the account
+     */
+    public QuotaModel getModel(final String account) {
+        synchronized (models) {
+            QuotaModel model = models.get(account);
+            if (model == null) {
+                model = new QuotaModel();
+                models.put(account, model);
+            }
+            return model;
+        }
+    }
+
+    /**
+     * Give the model for an account the full list of its scripts, with their
+     * sizes. LISTSCRIPTS doesn't give sizes, so each script is fetched with
+     * GETSCRIPT (pipelined, unless pipelining has been turned off). Until this
+     * has been done questions can only be answered locally with a NO.
+     *
+     * @param client  ManageSieveClient authenticated as the account
+     * @param account String account name
+     * @return true if the listing was loaded, false if LISTSCRIPTS failed
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public boolean loadScripts(final ManageSieveClient client, final String account) throws IOException, ParseException {
+        List<SieveScript> scripts = new ArrayList<SieveScript>();
+        ManageSieveResponse resp = client.listscripts(scripts);
+        if (!resp.isOk()) {
+            log.debug("{}: Can't list scripts: {}", account, resp);
+            return false;
+        }
+        // A script that can't be fetched keeps a null body, and so an
+        // unknown size
+        if (pipelining && scripts.size() > 1) {
+            Pipeline p = client.pipeline();
+            for (SieveScript script : scripts) {
+                p.getScript(script);
+            }
+            p.execute();
+        } else {
+            for (SieveScript script : scripts) {
+                client.getScript(script);
+            }
+        }
+        getModel(account).setScripts(scripts);
+        return true;
+    }
+
+    /**
+     * Forget everything known about an account.
+     */
+    public void forget(final String account) {
+        models.remove(account);
+    }
+
+    /**
+     * Check if a script with the given name and size would fit within the
+     * account's quota.
+     *
+     * @param client  ManageSieveClient authenticated as the account
+     * @param account String account name
+     * @param name    String script name
+     * @param size    long script size, in bytes
+     * @return true if there is space, false otherwise
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public boolean havespace(final ManageSieveClient client, final String account, final String name, final long size) throws IOException, ParseException {
+        Request request = new Request(name, size);
+        havespace(client, account, Collections.singletonList(request));
+        return request.hasSpace();
+    }
+
+    /**
+     * Answer a batch of space questions for one account. The answer to each
+     * question is stored in its {@link Request}.
+     * <p>
+     * Each question is answered as if it was the only one. The answers don't
+     * take into account other scripts in the same batch.
+     *
+     * @param client   ManageSieveClient authenticated as the account
+     * @param account  String account name
+     * @param requests List of questions
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public void havespace(final ManageSieveClient client, final String account, final List<Request> requests) throws IOException, ParseException {
+        QuotaModel model = getModel(account);
+        List<Request> remote = new ArrayList<Request>();
+        for (Request r : requests) {
+            QuotaModel.Answer answer = model.check(r.name, r.size);
+            if (answer == QuotaModel.Answer.UNKNOWN) {
+                remote.add(r);
+            } else {
+                r.hasSpace = answer == QuotaModel.Answer.YES;
+                r.response = null;
+                localAnswers.incrementAndGet();
+            }
+        }
+        if (remote.isEmpty()) {
+            return;
+        }
+
+        log.debug("{}: {} of {} space checks need the server", new Object[]{account, remote.size(), requests.size()});
+        serverAnswers.addAndGet(remote.size());
+        if (pipelining && remote.size() > 1) {
+            Pipeline p = client.pipeline();
+            for (Request r : remote) {
+                p.havespace(r.name, r.size);
+            }
+            List<ManageSieveResponse> responses = p.execute();
+            for (int i = 0; i < remote.size(); i++) {
+                answered(model, remote.get(i), responses.get(i));
+            }
+        } else {
+            for (Request r : remote) {
+                answered(model, r, client.havespace(r.name, r.size));
+            }
+        }
+    }
+
+    /**
+     * Tell the model about the result of a PUTSCRIPT, so that later checks
+     * can use it.
+     *
+     * @param account String account name
+     * @param name    String script name
+     * @param size    long script size in bytes
+     * @param resp    ManageSieveResponse from PUTSCRIPT
+     */
+    public void putscriptResult(final String account, final String name, final long size, final ManageSieveResponse resp) {
+        QuotaModel model = getModel(account);
+        if (resp.isOk()) {
+            model.scriptStored(name, size);
+        } else {
+            model.learn(name, size, resp);
+        }
+    }
+
+    /**
+     * Number of questions answered without asking the server.
+     */
+    public long getLocalAnswers() {
+        return localAnswers.get();
+    }
+
+    /**
+     * Number of questions that were sent to the server.
+     */
+    public long getServerAnswers() {
+        return serverAnswers.get();
+    }
+
+    private static void answered(final QuotaModel model, final Request r, final ManageSieveResponse resp) {
+        r.response = resp;
+        r.hasSpace = resp.isOk();
+        model.learn(r.name, r.size, resp);
+    }
+
+    /**
+     * One space question, and its answer.
+     */
+    public static class Request {
+
+        private final String name;
+        private final long size;
+        private boolean hasSpace = false;
+        private ManageSieveResponse response = null;
+
+        public Request(final String name, final long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the answer. Only valid once the request has been checked.
+         */
+        public boolean hasSpace() {
+            return hasSpace;
+        }
+
+        /**
+         * Get the server response, or null if the question was answered
+         * locally.
+         */
+        public ManageSieveResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * True if the question was answered without asking the server.
+         */
+        public boolean isLocal() {
+            return response == null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+
+/**
+ * An account to be worked on by a bulk job: the credentials to manage its
+ * scripts with, and which backend it lives on.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class Account {
+
+    private final Credentials credentials;
+    private final String backend;
+
+    /**
+     * Create an account on the default backend.
+     */
+    public Account(final Credentials credentials) {
+        this(credentials, null);
+    }
+
+    /**
+     * @param credentials to authenticate with
+     * @param backend     String name of the backend the account lives on, or
+     *                    null for the default
+     */
+    public Account(final Credentials credentials, final String backend) {
+        this.credentials = credentials;
+        this.backend = backend;
+    }
+
+    /**
+     * Account name. See {@link Credentials#getAccount()}.
+     */
+    public String getName() {
+        return credentials.getAccount();
+    }
+
+    public Credentials getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * Name of the backend this account lives on, or null for the default.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    @Override
+    public String toString() {
+        return backend != null ? getName() + "@" + backend : getName();
+    }
+}
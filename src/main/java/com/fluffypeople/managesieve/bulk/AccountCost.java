@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.script.ScriptCost;
+
+/**
+ * The estimated per-message cost of one account's filters, from a
+ * {@link CostSurvey}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class AccountCost {
+
+    private final String account;
+    private ScriptCost worst = null;
+    private int scripts = 0;
+    private int failed = 0;
+
+    AccountCost(final String account) {
+        this.account = account;
+    }
+
+    /**
+     * Record a script.
+     *
+     * @param cost   ScriptCost of the script
+     * @param counts boolean true if the script runs for each message (or
+     *               might, if that isn't known)
+     */
+    synchronized void script(final ScriptCost cost, final boolean counts) {
+        scripts += 1;
+        if (counts && (worst == null || cost.getCost() > worst.getCost())) {
+            worst = cost;
+        }
+    }
+
+    synchronized void failed() {
+        scripts += 1;
+        failed += 1;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    /**
+     * Estimated cost per message, from {@link #getDetail()}. Zero if the
+     * account has no script that runs.
+     */
+    public synchronized double getCost() {
+        return worst != null ? worst.getCost() : 0;
+    }
+
+    /**
+     * Name of the script the cost comes from, or null if there isn't one.
+     */
+    public synchronized String getScript() {
+        return worst != null ? worst.getName() : null;
+    }
+
+    /**
+     * Cost details of the script the cost comes from, or null if there isn't
+     * one.
+     */
+    public synchronized ScriptCost getDetail() {
+        return worst;
+    }
+
+    /**
+     * Number of scripts the account has, including ones that couldn't be
+     * parsed.
+     */
+    public synchronized int getScriptCount() {
+        return scripts;
+    }
+
+    /**
+     * Number of scripts that couldn't be parsed, and so aren't in the cost.
+     */
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return account + "[cost=" + Math.round(getCost()) + ", script=" + getScript() + "]";
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.Pipeline;
+import com.fluffypeople.managesieve.ScriptSwap;
+import com.fluffypeople.managesieve.script.SieveMinifier;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deploys a script to many accounts.
+ * <p>
+ * For each account the script body comes from a {@link ScriptProvider}, so
+ * every account can get the same script or its own variant. Commands for an
+ * account are sent as a {@link Pipeline}, so an account costs two round trips
+ * (one with swap mode off, see below).
+ * <p>
+ * If checking is turned on, every distinct body (by SHA-256) is sent to
+ * CHECKSCRIPT once, using the session of the first account that needs it.
+ * Other accounts with the same body wait for that answer. If the server
+ * rejects a body, every account that would get it fails without being
+ * touched.
+ * <p>
+ * The number of accounts worked on at once can be limited per backend (see
+ * {@link Account#getBackend()}), so one slow server doesn't get swamped while
+ * the others have spare capacity.
+ * <p>
+ * By default scripts are replaced with a {@link ScriptSwap}, which costs a
+ * second round trip per account but never leaves an account half changed.
+ * With {@link #setSwap(boolean) swap} mode off, SETACTIVE is pipelined behind
+ * PUTSCRIPT and sent before its answer comes back. If PUTSCRIPT fails and the
+ * account already had a script with the same name, the old copy is made
+ * active. That account is counted as failed and as stale in the
+ * {@link JobReport}, and written as {@link ManifestWriter#STALE} in the
+ * manifest.
+ * <p>
+ * If a {@link JobJournal} is set, accounts it shows as done are skipped and
+ * each account is marked done once its script is active, so a restarted
+ * deploy carries on where the last one stopped. The journal is compacted
+ * when the deploy finishes.
+ * <p>
+ * If a {@link SieveMinifier} is set, comments and extra whitespace are taken
+ * out of each body before anything else happens to it.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class BulkDeployer {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkDeployer.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final SessionRouter router;
+    private final Map<String, Integer> backendParallelism = new ConcurrentHashMap<String, Integer>();
+    private int workers = 8;
+    private boolean check = true;
+    private boolean activate = true;
+    private boolean swap = true;
+    private final AtomicLong checksSent = new AtomicLong();
+    private JobJournal journal = null;
+    private SieveMinifier minifier = null;
+
+    public BulkDeployer(final SessionRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Set the total number of accounts worked on at once.
+     */
+    public void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Limit the number of accounts worked on at once for one backend.
+     *
+     * @param backend String backend name, or null for the default backend
+     * @param parallelism maximum number of accounts at once
+     */
+    public void setBackendParallelism(final String backend, final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive, got " + parallelism);
+        }
+        backendParallelism.put(backendKey(backend), parallelism);
+    }
+
+    /**
+     * Set if each distinct script is checked with CHECKSCRIPT before it's
+     * uploaded. Defaults to true.
+     */
+    public void setCheck(final boolean check) {
+        this.check = check;
+    }
+
+    public boolean isCheck() {
+        return check;
+    }
+
+    /**
+     * Set if the script is made active after it's uploaded. Defaults to true.
+     */
+    public void setActivate(final boolean activate) {
+        this.activate = activate;
+    }
+
+    public boolean isActivate() {
+        return activate;
+    }
+
+    /**
+     * Set if scripts are replaced with a {@link ScriptSwap}, which never
+     * leaves an account half changed, instead of a plain PUTSCRIPT and
+     * SETACTIVE. Only used when activating. Defaults to true.
+     */
+    public void setSwap(final boolean swap) {
+        this.swap = swap;
+    }
+
+    public boolean isSwap() {
+        return swap;
+    }
+
+    /**
+     * Set the journal used to skip accounts finished by an earlier run, or
+     * null for none.
+     */
+    public void setJournal(final JobJournal journal) {
+        this.journal = journal;
+    }
+
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set a minifier to shrink each body before it is checked and uploaded,
+     * or null for none. The bytes saved are counted by the minifier.
+     */
+    public void setMinifier(final SieveMinifier minifier) {
+        this.minifier = minifier;
+    }
+
+    public SieveMinifier getMinifier() {
+        return minifier;
+    }
+
+    /**
+     * Number of CHECKSCRIPT commands sent by this deployer.
+     */
+    public long getChecksSent() {
+        return checksSent.get();
+    }
+
+    /**
+     * Deploy the same script to every account.
+     *
+     * @see #deploy(AccountSource, String, ScriptProvider, Writer)
+     */
+    public JobReport deploy(final AccountSource accounts, final String name, final String body, final Writer outcomes) throws IOException, InterruptedException {
+        return deploy(accounts, name, new ScriptProvider() {
+            @Override
+            public String scriptFor(final Account account) {
+                return body;
+            }
+        }, outcomes);
+    }
+
+    /**
+     * Deploy a script to every account.
+     *
+     * @param accounts AccountSource of accounts to deploy to
+     * @param name     String name of the script
+     * @param provider ScriptProvider giving the body for each account
+     * @param outcomes Writer to write the outcome for each account to, in
+     *                 {@link ManifestWriter} format. May be null. Flushed, but
+     *                 not closed.
+     * @return JobReport of what was deployed
+     * @throws IOException          if the account source or the outcomes
+     *                              can't be read or written
+     * @throws InterruptedException if interrupted
+     */
+    public JobReport deploy(final AccountSource accounts, final String name, final ScriptProvider provider, final Writer outcomes) throws IOException, InterruptedException {
+        final JobReport report = new JobReport();
+        final ManifestWriter manifest = outcomes != null ? new ManifestWriter(outcomes) : null;
+        final ConcurrentMap<String, Verdict> verdicts = new ConcurrentHashMap<String, Verdict>();
+        final ConcurrentMap<String, Semaphore> limits = new ConcurrentHashMap<String, Semaphore>();
+
+        try {
+            new BulkRunner("sieve-deploy", workers).run(accounts, new BulkRunner.Task() {
+                @Override
+                public void process(final Account account) throws IOException, ParseException {
+                    try {
+                        deployAccount(account, name, provider, verdicts, limits, manifest, report);
+                    } catch (StaleActivationException ex) {
+                        report.accountStale();
+                        if (manifest != null) {
+                            manifest.stale(account.getName(), name, ex.getMessage());
+                        }
+                        throw ex;
+                    } catch (IOException ex) {
+                        if (manifest != null) {
+                            manifest.failure(account.getName(), name, ex.getMessage());
+                        }
+                        throw ex;
+                    } catch (ParseException ex) {
+                        if (manifest != null) {
+                            manifest.failure(account.getName(), name, ex.getMessage());
+                        }
+                        throw ex;
+                    }
+                }
+            }, report, journal, false);
+        } finally {
+            report.finish();
+            if (manifest != null) {
+                manifest.flush();
+            }
+        }
+        if (journal != null) {
+            journal.compact();
+        }
+        log.info("Deploy of {} finished: {}", name, report);
+        return report;
+    }
+
+    private void deployAccount(final Account account, final String name, final ScriptProvider provider,
+            final ConcurrentMap<String, Verdict> verdicts, final ConcurrentMap<String, Semaphore> limits,
+            final ManifestWriter manifest, final JobReport report) throws IOException, ParseException {
+        final String body = minifier != null ? minifier.minify(provider.scriptFor(account)) : provider.scriptFor(account);
+        final byte[] data = body.getBytes(UTF8);
+        final String sha256 = DigestUtils.sha256Hex(data);
+
+        final Verdict verdict;
+        if (check) {
+            Verdict fresh = new Verdict();
+            Verdict existing = verdicts.putIfAbsent(sha256, fresh);
+            verdict = existing != null ? existing : fresh;
+            // Fail fast if this body is already known to be bad
+            ManageSieveResponse known = verdict.peek();
+            if (known != null && !known.isOk()) {
+                throw new ManageSieveException("Script " + sha256 + " rejected by CHECKSCRIPT", known);
+            }
+        } else {
+            verdict = null;
+        }
+
+        Semaphore limit = limitFor(account.getBackend(), limits);
+        if (limit != null) {
+            try {
+                limit.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for backend " + account.getBackend());
+            }
+        }
+        try {
+            new SessionTask(router) {
+                @Override
+                void process(final Account account, final ManageSieveClient client) throws IOException, ParseException {
+                    if (verdict != null) {
+                        ManageSieveResponse resp = verdict.check(client, body, checksSent);
+                        if (!resp.isOk()) {
+                            throw new ManageSieveException("Script " + sha256 + " rejected by CHECKSCRIPT", resp);
+                        }
+                    }
+                    if (activate && swap) {
+                        ScriptSwap.Result result = new ScriptSwap(client).swap(name, body);
+                        if (!result.isOk()) {
+                            throw new ManageSieveException("Swap of " + name + " failed for " + account + ": " + result, result.getResponse());
+                        }
+                        return;
+                    }
+                    Pipeline p = client.pipeline();
+                    int put = p.putscript(name, body);
+                    int set = activate ? p.setactive(name) : -1;
+                    List<ManageSieveResponse> responses = p.execute();
+                    if (!responses.get(put).isOk()) {
+                        if (set != -1 && responses.get(set).isOk()) {
+                            throw new StaleActivationException("PUTSCRIPT " + name + " failed for " + account + ", old copy made active", responses.get(put));
+                        }
+                        throw new ManageSieveException("PUTSCRIPT " + name + " failed for " + account, responses.get(put));
+                    }
+                    if (set != -1 && !responses.get(set).isOk()) {
+                        throw new ManageSieveException("SETACTIVE " + name + " failed for " + account, responses.get(set));
+                    }
+                }
+            }.process(account);
+        } finally {
+            if (limit != null) {
+                limit.release();
+            }
+        }
+
+        report.script(data.length);
+        if (manifest != null) {
+            manifest.script(account.getName(), name, activate, data.length, sha256, "deployed");
+        }
+    }
+
+    private Semaphore limitFor(final String backend, final ConcurrentMap<String, Semaphore> limits) {
+        String key = backendKey(backend);
+        Semaphore limit = limits.get(key);
+        if (limit == null) {
+            Integer parallelism = backendParallelism.get(key);
+            if (parallelism == null) {
+                return null;
+            }
+            limits.putIfAbsent(key, new Semaphore(parallelism, true));
+            limit = limits.get(key);
+        }
+        return limit;
+    }
+
+    private static String backendKey(final String backend) {
+        return backend != null ? backend : "";
+    }
+
+    /**
+     * The upload failed, but the SETACTIVE pipelined behind it worked, so an
+     * older copy of the script is now active.
+     */
+    private static class StaleActivationException extends ManageSieveException {
+
+        private static final long serialVersionUID = 1L;
+
+        StaleActivationException(final String msg, final ManageSieveResponse response) {
+            super(msg, response);
+        }
+    }
+
+    /**
+     * The CHECKSCRIPT answer for one script body. The first thread to ask
+     * sends the command, others wait for it. If the check fails with an
+     * exception, BYE, or TRYLATER, the next thread to ask tries again.
+     */
+    private static class Verdict {
+
+        private ManageSieveResponse response = null;
+        private boolean running = false;
+
+        synchronized ManageSieveResponse peek() {
+            return response;
+        }
+
+        ManageSieveResponse check(final ManageSieveClient client, final String body, final AtomicLong counter) throws IOException, ParseException {
+            synchronized (this) {
+                while (running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for CHECKSCRIPT");
+                    }
+                }
+                if (response != null) {
+                    return response;
+                }
+                running = true;
+            }
+            ManageSieveResponse result = null;
+            try {
+                counter.incrementAndGet();
+                result = client.checkscript(body);
+                return result;
+            } finally {
+                synchronized (this) {
+                    // Only remember answers about the script, not about the server
+                    if (result != null && !result.isBye() && result.getCode() != ManageSieveResponse.Code.TRYLATER) {
+                        response = result;
+                    }
+                    running = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.Pipeline;
+import com.fluffypeople.managesieve.SieveScript;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports every script of every account into a single zip archive.
+ * <p>
+ * Accounts are read from an {@link AccountSource} by a fixed number of
+ * workers, each using a session borrowed from the account's backend. A worker
+ * lists the account's scripts, then fetches them in pipelined batches of
+ * {@link #getPipelineDepth()}. Once all of an account's scripts are fetched
+ * they are handed to a single writer thread through a bounded queue, which
+ * adds them to the archive and the manifest straight away. When the writer
+ * falls behind, workers wait, so memory use depends on the number of workers
+ * and the queue size, not on the number of accounts.
+ * <p>
+ * Scripts are stored as <code>account/script.sieve</code>, with both names
+ * URL encoded. The manifest (see {@link ManifestWriter}) lists every script
+ * with its active flag, size and SHA-256, and every account that failed.
+ * <p>
+ * If a {@link JobJournal} is set, the export must be written to files with
+ * {@link #export(AccountSource, File, File)}. Accounts are marked done in the
+ * journal only after their entries and manifest records have been synced to
+ * disk. A restarted export renames what the earlier runs left behind to
+ * <code>.partial.N</code> files, copies the entries and manifest records of
+ * the accounts the journal shows as done into the new files, and exports
+ * only the rest. A zip left by a crash has no central directory, but its
+ * entries can still be read in order, up to where it was cut off. The
+ * partial files are deleted, and the journal compacted, when the export
+ * finishes.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class BulkExporter {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkExporter.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Item END = new Item(null, null, false, null);
+    private static final int MAX_UNJOURNALED = 256;
+    private final SessionRouter router;
+    private int workers = 8;
+    private int queueSize = 64;
+    private int pipelineDepth = 8;
+    private JobJournal journal = null;
+
+    public BulkExporter(final SessionRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Set the number of accounts exported at once.
+     */
+    public void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Set the number of scripts that can be waiting for the writer.
+     */
+    public void setQueueSize(final int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Set the number of GETSCRIPT commands sent in one pipeline.
+     */
+    public void setPipelineDepth(final int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("pipelineDepth must be positive, got " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Set the journal used to skip accounts finished by an earlier run, or
+     * null for none.
+     */
+    public void setJournal(final JobJournal journal) {
+        this.journal = journal;
+    }
+
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Export every account.
+     *
+     * @param accounts AccountSource to export
+     * @param archive  OutputStream to write the zip archive to. Finished, but
+     *                 not closed.
+     * @param manifest Writer to write the manifest to. Flushed, but not
+     *                 closed.
+     * @return JobReport of what was exported
+     * @throws IOException          if the archive, manifest, or account source
+     *                              can't be written or read
+     * @throws InterruptedException if interrupted
+     */
+    public JobReport export(final AccountSource accounts, final OutputStream archive, final Writer manifest) throws IOException, InterruptedException {
+        if (journal != null) {
+            throw new IllegalStateException("An export with a journal must be written to files, so it can be synced and resumed");
+        }
+        ZipOutputStream zip = new ZipOutputStream(archive);
+        return export(accounts, zip, new ManifestWriter(manifest), null, null);
+    }
+
+    /**
+     * Export every account to files. If a journal is set and shows accounts
+     * as done, the files left by the earlier run are recovered (see above).
+     *
+     * @param accounts AccountSource to export
+     * @param archive  File to write the zip archive to
+     * @param manifest File to write the manifest to
+     * @return JobReport of what was exported in this run
+     * @throws IOException          if the archive, manifest, or account source
+     *                              can't be written or read, or the journal
+     *                              shows accounts done but there is nothing
+     *                              to recover them from
+     * @throws InterruptedException if interrupted
+     */
+    public JobReport export(final AccountSource accounts, final File archive, final File manifest) throws IOException, InterruptedException {
+        List<File> oldArchives = new ArrayList<File>();
+        List<File> oldManifests = new ArrayList<File>();
+        if (journal != null) {
+            oldArchives = partials(archive);
+            oldManifests = partials(manifest);
+            if (journal.getDoneCount() > 0 && oldArchives.isEmpty()) {
+                throw new IOException("Journal shows " + journal.getDoneCount() + " accounts done, but there is no earlier archive at " + archive);
+            }
+        }
+
+        FileOutputStream archiveFile = new FileOutputStream(archive);
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(archiveFile));
+        Writer manifestOut = null;
+        JobReport report;
+        try {
+            FileOutputStream manifestFile = new FileOutputStream(manifest);
+            manifestOut = new OutputStreamWriter(new BufferedOutputStream(manifestFile), UTF8);
+            ManifestWriter manifestWriter = new ManifestWriter(manifestOut);
+            if (journal != null && journal.getDoneCount() > 0) {
+                recover(oldArchives, oldManifests, zip, manifestWriter);
+            }
+            report = export(accounts, zip, manifestWriter, archiveFile, manifestFile);
+        } finally {
+            if (manifestOut != null) {
+                manifestOut.close();
+            }
+            zip.close();
+        }
+        for (File f : oldArchives) {
+            f.delete();
+        }
+        for (File f : oldManifests) {
+            f.delete();
+        }
+        return report;
+    }
+
+    private JobReport export(final AccountSource accounts, final ZipOutputStream zip, final ManifestWriter manifestWriter, final FileOutputStream archiveFile, final FileOutputStream manifestFile) throws IOException, InterruptedException {
+        final JobReport report = new JobReport();
+        final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(queueSize);
+        final ArchiveWriter writer = new ArchiveWriter(queue, zip, manifestWriter, report, journal, archiveFile, manifestFile);
+        Thread writerThread = new Thread(writer, "sieve-export-writer");
+        writerThread.start();
+
+        final SessionTask exportTask = new SessionTask(router) {
+            @Override
+            void process(final Account account, final ManageSieveClient client) throws IOException, ParseException {
+                if (writer.failure != null) {
+                    throw new IOException("Archive writer has failed", writer.failure);
+                }
+                exportAccount(account, client, queue, writer);
+            }
+        };
+
+        try {
+            new BulkRunner("sieve-export", workers).run(accounts, new BulkRunner.Task() {
+                @Override
+                public void process(final Account account) throws IOException, ParseException {
+                    try {
+                        exportTask.process(account);
+                    } catch (IOException ex) {
+                        manifestWriter.failure(account.getName(), null, ex.getMessage());
+                        throw ex;
+                    } catch (ParseException ex) {
+                        manifestWriter.failure(account.getName(), null, ex.getMessage());
+                        throw ex;
+                    }
+                }
+            }, report, journal, true);
+        } finally {
+            queue.put(END);
+            writerThread.join();
+            report.finish();
+        }
+        if (writer.failure != null) {
+            throw writer.failure;
+        }
+        if (journal != null) {
+            journal.compact();
+        }
+        log.info("Export finished: {}", report);
+        return report;
+    }
+
+    /**
+     * Rename the files left by earlier runs, and anything at the target
+     * path, to numbered partial files.
+     *
+     * @return the partial files, oldest first
+     */
+    private static List<File> partials(final File target) throws IOException {
+        List<File> result = new ArrayList<File>();
+        int n = 1;
+        File f;
+        while ((f = new File(target.getPath() + ".partial." + n)).exists()) {
+            result.add(f);
+            n += 1;
+        }
+        if (target.exists()) {
+            if (!target.renameTo(f)) {
+                throw new IOException("Can't rename " + target + " to " + f);
+            }
+            result.add(f);
+        }
+        return result;
+    }
+
+    /**
+     * Copy the entries and manifest records of accounts the journal shows as
+     * done from earlier runs.
+     */
+    private void recover(final List<File> oldArchives, final List<File> oldManifests, final ZipOutputStream zip, final ManifestWriter manifest) throws IOException {
+        Set<String> copied = new HashSet<String>();
+        for (File f : oldArchives) {
+            ZipInputStream in = new ZipInputStream(new FileInputStream(f));
+            try {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    String[] names = ExportArchive.parseEntryName(entry.getName());
+                    byte[] data = ExportArchive.readEntry(in);
+                    if (names != null && journal.isDone(names[0]) && copied.add(entry.getName())) {
+                        zip.putNextEntry(new ZipEntry(entry.getName()));
+                        zip.write(data);
+                        zip.closeEntry();
+                    }
+                }
+            } catch (IOException ex) {
+                // Cut off by a crash. Everything marked done was synced
+                // before this point.
+                log.info("Recovered {} up to {}", f, ex.getMessage());
+            } finally {
+                in.close();
+            }
+        }
+
+        int fields = ManifestWriter.HEADER.split("\t").length;
+        Set<String> lines = new HashSet<String>();
+        for (File f : oldManifests) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split("\t", -1);
+                    if (line.startsWith("#") || parts.length != fields || !parts[0].equals(ManifestWriter.OK)) {
+                        continue;
+                    }
+                    if (journal.isDone(ManifestWriter.unescape(parts[1])) && lines.add(line)) {
+                        manifest.raw(line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        log.info("Recovered {} scripts from earlier runs", copied.size());
+    }
+
+    private void exportAccount(final Account account, final ManageSieveClient client, final BlockingQueue<Item> queue, final ArchiveWriter writer) throws IOException, ParseException {
+        List<SieveScript> scripts = new ArrayList<SieveScript>();
+        ManageSieveResponse resp = client.listscripts(scripts);
+        if (!resp.isOk()) {
+            throw new ManageSieveException("Can't list scripts for " + account, resp);
+        }
+
+        for (int start = 0; start < scripts.size(); start += pipelineDepth) {
+            List<SieveScript> batch = scripts.subList(start, Math.min(start + pipelineDepth, scripts.size()));
+            Pipeline p = client.pipeline();
+            for (SieveScript s : batch) {
+                p.getScript(s);
+            }
+            List<ManageSieveResponse> responses = p.execute();
+            for (int i = 0; i < batch.size(); i++) {
+                if (!responses.get(i).isOk()) {
+                    throw new ManageSieveException("Can't get script " + batch.get(i).getName() + " for " + account, responses.get(i));
+                }
+            }
+        }
+
+        // Only queue once everything is fetched, so a retry can't add
+        // entries twice
+        for (SieveScript s : scripts) {
+            put(queue, new Item(account.getName(), s.getName(), s.isActive(), s.getBody()), writer);
+        }
+        put(queue, new Item(account.getName(), null, false, null), writer);
+    }
+
+    private static void put(final BlockingQueue<Item> queue, final Item item, final ArchiveWriter writer) throws IOException {
+        try {
+            while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+                if (writer.failure != null) {
+                    throw new IOException("Archive writer has failed", writer.failure);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the archive writer");
+        }
+    }
+
+    /**
+     * Build the name of the archive entry for a script.
+     *
+     * @param account String account name
+     * @param script  String script name
+     * @return String entry name
+     */
+    public static String entryName(final String account, final String script) {
+        try {
+            return URLEncoder.encode(account, "UTF-8") + "/" + URLEncoder.encode(script, "UTF-8") + ".sieve";
+        } catch (UnsupportedEncodingException ex) {
+            // Every JVM has UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * A script on its way to the writer. An item without a script marks the
+     * end of an account.
+     */
+    private static class Item {
+
+        private final String account;
+        private final String script;
+        private final boolean active;
+        private final String body;
+
+        Item(final String account, final String script, final boolean active, final String body) {
+            this.account = account;
+            this.script = script;
+            this.active = active;
+            this.body = body;
+        }
+    }
+
+    private static class ArchiveWriter implements Runnable {
+
+        private final BlockingQueue<Item> queue;
+        private final ZipOutputStream zip;
+        private final ManifestWriter manifest;
+        private final JobReport report;
+        private final JobJournal journal;
+        private final FileOutputStream archiveFile;
+        private final FileOutputStream manifestFile;
+        // Accounts written but not yet marked done in the journal
+        private final List<String> finished = new ArrayList<String>();
+        private volatile IOException failure = null;
+
+        ArchiveWriter(final BlockingQueue<Item> queue, final ZipOutputStream zip, final ManifestWriter manifest, final JobReport report, final JobJournal journal, final FileOutputStream archiveFile, final FileOutputStream manifestFile) {
+            this.queue = queue;
+            this.zip = zip;
+            this.manifest = manifest;
+            this.report = report;
+            this.journal = journal;
+            this.archiveFile = archiveFile;
+            this.manifestFile = manifestFile;
+        }
+
+        /**
+         * Get everything written so far on to disk, then mark the finished
+         * accounts done.
+         */
+        private void markDone() throws IOException {
+            zip.flush();
+            manifest.flush();
+            if (archiveFile != null) {
+                archiveFile.getFD().sync();
+            }
+            if (manifestFile != null) {
+                manifestFile.getFD().sync();
+            }
+            journal.markDone(finished);
+            finished.clear();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Item item = queue.take();
+                    if (item == END) {
+                        break;
+                    }
+                    if (failure != null) {
+                        // Keep draining so workers don't block
+                        continue;
+                    }
+                    try {
+                        write(item);
+                        // Mark a batch done when we catch up, so a busy
+                        // export doesn't sync once per account
+                        if (finished.size() >= MAX_UNJOURNALED || (!finished.isEmpty() && queue.isEmpty())) {
+                            markDone();
+                        }
+                    } catch (IOException ex) {
+                        log.error("Can't write archive", ex);
+                        failure = ex;
+                    }
+                }
+                if (failure == null) {
+                    zip.finish();
+                    zip.flush();
+                    manifest.flush();
+                    if (!finished.isEmpty()) {
+                        markDone();
+                    }
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (InterruptedException ex) {
+                failure = new InterruptedIOException("Archive writer interrupted");
+            }
+        }
+
+        private void write(final Item item) throws IOException {
+            if (item.script == null) {
+                report.accountDone();
+                if (journal != null) {
+                    finished.add(item.account);
+                }
+                return;
+            }
+            byte[] data = item.body.getBytes(UTF8);
+            String name = entryName(item.account, item.script);
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(data);
+            zip.closeEntry();
+            manifest.script(item.account, item.script, item.active, data.length, DigestUtils.sha256Hex(data), name);
+            report.script(data.length);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.session.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a task for every account from an {@link AccountSource}, using a fixed
+ * number of worker threads. Each worker pulls the next account from the
+ * source when it's ready for it, so only as many accounts are in memory as
+ * there are workers.
+ * <p>
+ * A task that throws fails only that account. The failure is counted in the
+ * {@link JobReport} and the job carries on. If the account source itself
+ * fails, the workers stop and the exception is thrown from {@link #run}.
+ * <p>
+ * If a {@link JobJournal} is given, accounts it shows as done are skipped,
+ * and failures are recorded in it.
+ * <p>
+ * Some tasks hand work on to other threads, so an account isn't finished
+ * when the task returns. Those tasks run deferred: the runner records
+ * failures thrown by the task, but leaves recording success (in both the
+ * report and the journal) to whoever finishes the account.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+class BulkRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkRunner.class);
+
+    /**
+     * Work to be done for one account.
+     */
+    interface Task {
+
+        void process(Account account) throws IOException, ParseException;
+    }
+
+    /**
+     * How long to wait for workers to stop after an interrupt, in
+     * milliseconds. A task stuck in a read that ignores interrupts only
+     * stops when its socket times out.
+     */
+    private static final long STOP_WAIT = 30000;
+
+    private final String name;
+    private final int workers;
+
+    BulkRunner(final String name, final int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive, got " + workers);
+        }
+        this.name = name;
+        this.workers = workers;
+    }
+
+    /**
+     * Run the task for every account, returning when they are all done.
+     *
+     * @param source AccountSource to read accounts from
+     * @param task   Task to run for each account
+     * @param report JobReport to record results in
+     * @throws IOException          if the account source fails
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              workers. The workers are interrupted too.
+     */
+    void run(final AccountSource source, final Task task, final JobReport report) throws IOException, InterruptedException {
+        run(source, task, report, null, false);
+    }
+
+    /**
+     * Run the task for every account not already done, returning when they
+     * are all done.
+     *
+     * @param source   AccountSource to read accounts from
+     * @param task     Task to run for each account
+     * @param report   JobReport to record results in
+     * @param journal  JobJournal to skip done accounts and record results,
+     *                 or null for none
+     * @param deferred true if the task records success itself
+     * @throws IOException          if the account source fails
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              workers. The workers are interrupted too,
+     *                              and waited for before this is thrown.
+     */
+    void run(final AccountSource source, final Task task, final JobReport report, final JobJournal journal, final boolean deferred) throws IOException, InterruptedException {
+        final AtomicReference<IOException> sourceFailure = new AtomicReference<IOException>();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new DaemonThreadFactory(name));
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (!Thread.currentThread().isInterrupted() && sourceFailure.get() == null) {
+                            Account account;
+                            try {
+                                account = source.next();
+                            } catch (IOException ex) {
+                                sourceFailure.compareAndSet(null, ex);
+                                return;
+                            }
+                            if (account == null) {
+                                return;
+                            }
+                            if (journal != null && journal.isDone(account.getName())) {
+                                report.accountSkipped();
+                                continue;
+                            }
+                            try {
+                                task.process(account);
+                                if (!deferred) {
+                                    if (journal != null) {
+                                        journal.markDone(account.getName());
+                                    }
+                                    report.accountDone();
+                                }
+                            } catch (IOException ex) {
+                                failed(report, journal, account, ex);
+                            } catch (ParseException ex) {
+                                failed(report, journal, account, ex);
+                            } catch (RuntimeException ex) {
+                                failed(report, journal, account, ex);
+                            }
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.debug("{}: {}", name, report);
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            awaitStopped(executor);
+            throw ex;
+        } finally {
+            executor.shutdownNow();
+        }
+        if (sourceFailure.get() != null) {
+            throw sourceFailure.get();
+        }
+    }
+
+    /**
+     * Wait (for a while) for interrupted workers to stop, so the caller
+     * doesn't move on while they are still writing to the journal or report.
+     * Keeps the thread's interrupt.
+     */
+    private void awaitStopped(final ExecutorService executor) {
+        long deadline = System.currentTimeMillis() + STOP_WAIT;
+        try {
+            while (true) {
+                try {
+                    if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                        log.warn("{}: workers still running {}ms after being interrupted", name, STOP_WAIT);
+                    }
+                    return;
+                } catch (InterruptedException ex) {
+                    // Already stopping, keep waiting
+                }
+            }
+        } finally {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void failed(final JobReport report, final JobJournal journal, final Account account, final Exception ex) {
+        log.debug("{} failed", account, ex);
+        report.accountFailed(account, ex);
+        if (journal != null) {
+            try {
+                journal.markFailed(account.getName(), ex.getMessage());
+            } catch (IOException jex) {
+                log.warn("Can't record failure of {} in journal", account, jex);
+            }
+        }
+    }
+}
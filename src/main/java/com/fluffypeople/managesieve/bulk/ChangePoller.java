@@ -0,0 +1,487 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.Pipeline;
+import com.fluffypeople.managesieve.SieveScript;
+import com.fluffypeople.managesieve.session.DaemonThreadFactory;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches accounts for changes made by other clients, such as webmail.
+ * <p>
+ * Each poll of an account sends LISTSCRIPTS and a GETSCRIPT for every script
+ * seen last time in one pipeline, then fetches any new scripts. Bodies are
+ * compared by SHA-256 with the last poll, and the differences are sent to
+ * listeners as {@link ScriptChange}s. The first poll of an account reports
+ * every script as added.
+ * <p>
+ * Each account has its own interval between polls. When a poll finds a
+ * change the interval is halved, and when it doesn't the interval grows by
+ * half, always staying between {@link #getMinInterval()} and
+ * {@link #getMaxInterval()}. Busy accounts end up polled often and dormant
+ * ones rarely.
+ * <p>
+ * Total load is kept within a budget of commands per second across all
+ * accounts. A poll costs one command plus one per script fetched. When the
+ * budget is used up, polls wait, which stretches every account's interval.
+ * <p>
+ * This class is thread safe. Listeners are called from poller threads, and
+ * must be thread safe too.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ChangePoller {
+
+    private static final Logger log = LoggerFactory.getLogger(ChangePoller.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Told about changes.
+     */
+    public interface ChangeListener {
+
+        void changed(ScriptChange change);
+    }
+
+    private final SessionRouter router;
+    private final Map<String, Watched> accounts = new ConcurrentHashMap<String, Watched>();
+    private final DelayQueue<Watched> due = new DelayQueue<Watched>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private volatile long minInterval = 30000;
+    private volatile long maxInterval = 3600000;
+    private double budget = 10;
+    private double tokens = 0;
+    private long lastRefill = System.currentTimeMillis();
+    private int workers = 4;
+    private Thread dispatcher = null;
+    private ExecutorService executor = null;
+
+    public ChangePoller(final SessionRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Set the range of polling intervals. Defaults to 30 seconds to one hour.
+     *
+     * @param minInterval long milliseconds
+     * @param maxInterval long milliseconds
+     */
+    public void setIntervals(final long minInterval, final long maxInterval) {
+        if (minInterval < 1 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Need 1 <= minInterval <= maxInterval, got " + minInterval + ", " + maxInterval);
+        }
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * Set the most commands per second to send across all accounts. Defaults
+     * to 10.
+     */
+    public synchronized void setBudget(final double budget) {
+        if (!(budget > 0)) {
+            throw new IllegalArgumentException("budget must be positive, got " + budget);
+        }
+        this.budget = budget;
+    }
+
+    public synchronized double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Set the number of accounts polled at once.
+     */
+    public synchronized void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    public void addListener(final ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start watching an account. It is first polled straight away.
+     */
+    public void addAccount(final Account account) {
+        Watched w = new Watched(account, minInterval);
+        Watched old = accounts.put(account.getName(), w);
+        if (old != null) {
+            due.remove(old);
+        }
+        due.add(w);
+    }
+
+    /**
+     * Stop watching an account.
+     */
+    public void removeAccount(final String name) {
+        Watched w = accounts.remove(name);
+        if (w != null) {
+            due.remove(w);
+        }
+    }
+
+    /**
+     * Current polling interval for an account.
+     *
+     * @param name String account name
+     * @return long milliseconds, or -1 if the account isn't watched
+     */
+    public long getInterval(final String name) {
+        Watched w = accounts.get(name);
+        return w != null ? w.getInterval() : -1;
+    }
+
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    public long getChangeCount() {
+        return changes.get();
+    }
+
+    /**
+     * Number of commands sent to the servers.
+     */
+    public long getCommandCount() {
+        return commands.get();
+    }
+
+    /**
+     * Start polling in the background.
+     */
+    public synchronized void start() {
+        if (dispatcher != null) {
+            return;
+        }
+        final int n = workers;
+        final Semaphore slots = new Semaphore(n);
+        executor = Executors.newFixedThreadPool(n, new DaemonThreadFactory("sieve-poll"));
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        final Watched w = due.take();
+                        slots.acquire();
+                        takeBudget(1 + w.getScriptCount());
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    poll(w);
+                                } finally {
+                                    slots.release();
+                                }
+                            }
+                        });
+                    }
+                } catch (InterruptedException ex) {
+                    // Stopping
+                }
+            }
+        }, "sieve-poll-dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stop polling.
+     */
+    public synchronized void stop() {
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            executor.shutdownNow();
+            dispatcher = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * Poll an account now, outside the schedule and the budget.
+     *
+     * @param name String account name
+     * @return List of changes found, which have also been sent to listeners
+     * @throws IOException    if the account can't be polled
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public List<ScriptChange> pollNow(final String name) throws IOException, ParseException {
+        Watched w = accounts.get(name);
+        if (w == null) {
+            throw new IllegalArgumentException("Not watching " + name);
+        }
+        due.remove(w);
+        try {
+            return check(w);
+        } finally {
+            reschedule(w);
+        }
+    }
+
+    private void poll(final Watched w) {
+        try {
+            check(w);
+        } catch (IOException ex) {
+            log.warn("Can't poll {}: {}", w.account, ex.getMessage());
+        } catch (ParseException ex) {
+            log.warn("Can't poll {}: {}", w.account, ex.getMessage());
+        } catch (RuntimeException ex) {
+            log.error("Can't poll {}", w.account, ex);
+        } finally {
+            reschedule(w);
+        }
+    }
+
+    private void reschedule(final Watched w) {
+        // Don't bring back an account removed while it was being polled
+        if (accounts.get(w.account.getName()) == w) {
+            due.remove(w);
+            w.schedule();
+            due.add(w);
+        }
+    }
+
+    private List<ScriptChange> check(final Watched w) throws IOException, ParseException {
+        final List<ScriptChange> found = new ArrayList<ScriptChange>();
+        new SessionTask(router) {
+            @Override
+            void process(final Account account, final ManageSieveClient client) throws IOException, ParseException {
+                found.clear();
+                found.addAll(w.poll(client));
+            }
+        }.process(w.account);
+        polls.incrementAndGet();
+        changes.addAndGet(found.size());
+        w.adapt(!found.isEmpty(), minInterval, maxInterval);
+        for (ScriptChange change : found) {
+            for (ChangeListener l : listeners) {
+                try {
+                    l.changed(change);
+                } catch (RuntimeException ex) {
+                    log.error("Listener failed for {}", change, ex);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Wait until the budget allows a poll of the given cost. The budget can
+     * go into debt by one poll, so an expensive poll isn't stuck forever.
+     */
+    private void takeBudget(final int cost) throws InterruptedException {
+        synchronized (this) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                tokens = Math.min(budget, tokens + (now - lastRefill) * budget / 1000);
+                lastRefill = now;
+                if (tokens >= 0) {
+                    tokens -= cost;
+                    return;
+                }
+                wait(Math.max(1, (long) (-tokens * 1000 / budget)));
+            }
+        }
+    }
+
+    /**
+     * What we know about one account.
+     */
+    private class Watched implements Delayed {
+
+        private final Account account;
+        // Script name to SHA-256, from the last poll
+        private Map<String, String> hashes = null;
+        private String active = null;
+        private long interval;
+        // Only changed while not in the queue
+        private volatile long next = System.currentTimeMillis();
+
+        Watched(final Account account, final long interval) {
+            this.account = account;
+            this.interval = interval;
+        }
+
+        synchronized long getInterval() {
+            return interval;
+        }
+
+        synchronized int getScriptCount() {
+            return hashes != null ? hashes.size() : 0;
+        }
+
+        synchronized void schedule() {
+            next = System.currentTimeMillis() + interval;
+        }
+
+        synchronized void adapt(final boolean changed, final long min, final long max) {
+            interval = changed ? interval / 2 : interval + interval / 2;
+            interval = Math.max(min, Math.min(max, interval));
+        }
+
+        synchronized List<ScriptChange> poll(final ManageSieveClient client) throws IOException, ParseException {
+            List<SieveScript> listed = new ArrayList<SieveScript>();
+            Map<String, SieveScript> fetched = new HashMap<String, SieveScript>();
+            Map<String, Integer> getscripts = new HashMap<String, Integer>();
+            Map<String, ManageSieveResponse> answers = new HashMap<String, ManageSieveResponse>();
+            Pipeline p = client.pipeline();
+            int list = p.listscripts(listed);
+            if (hashes != null) {
+                for (String name : hashes.keySet()) {
+                    SieveScript s = new SieveScript(name, null, false);
+                    fetched.put(name, s);
+                    getscripts.put(name, p.getScript(s));
+                }
+            }
+            List<ManageSieveResponse> responses = p.execute();
+            commands.addAndGet(responses.size());
+            if (!responses.get(list).isOk()) {
+                throw new ManageSieveException("Can't list scripts for " + account, responses.get(list));
+            }
+            for (Map.Entry<String, Integer> e : getscripts.entrySet()) {
+                answers.put(e.getKey(), responses.get(e.getValue()));
+            }
+
+            // Fetch the scripts we didn't know about
+            List<SieveScript> missing = new ArrayList<SieveScript>();
+            for (SieveScript s : listed) {
+                if (!fetched.containsKey(s.getName())) {
+                    SieveScript f = new SieveScript(s.getName(), null, false);
+                    missing.add(f);
+                    fetched.put(s.getName(), f);
+                    getscripts.put(s.getName(), p.getScript(f));
+                }
+            }
+            if (!missing.isEmpty()) {
+                responses = p.execute();
+                commands.addAndGet(responses.size());
+                for (SieveScript f : missing) {
+                    answers.put(f.getName(), responses.get(getscripts.get(f.getName())));
+                }
+            }
+
+            List<ScriptChange> result = new ArrayList<ScriptChange>();
+            Map<String, String> now = new HashMap<String, String>();
+            String nowActive = null;
+            for (SieveScript s : listed) {
+                SieveScript f = fetched.get(s.getName());
+                ManageSieveResponse resp = answers.get(s.getName());
+                if (resp.isBye()) {
+                    throw new ManageSieveException("Can't get " + s.getName() + " for " + account, resp);
+                }
+                if (!resp.isOk() || f.getBody() == null) {
+                    String old = hashes != null ? hashes.get(s.getName()) : null;
+                    if (resp.getCode() == ManageSieveResponse.Code.NONEXISTENT || old == null) {
+                        // Deleted since LISTSCRIPTS, or new and not readable
+                        // yet, either way catch it next time
+                        continue;
+                    }
+                    // Can't tell if it changed, so assume it didn't
+                    log.debug("Can't get {} for {}: {}", new Object[]{s.getName(), account, resp});
+                    now.put(s.getName(), old);
+                    if (s.isActive()) {
+                        nowActive = s.getName();
+                    }
+                    continue;
+                }
+                String sha256 = DigestUtils.sha256Hex(f.getBody().getBytes(UTF8));
+                now.put(s.getName(), sha256);
+                if (s.isActive()) {
+                    nowActive = s.getName();
+                }
+                String old = hashes != null ? hashes.get(s.getName()) : null;
+                if (old == null) {
+                    result.add(new ScriptChange(account, s.getName(), ScriptChange.Type.ADDED, f.getBody(), sha256));
+                } else if (!old.equals(sha256)) {
+                    result.add(new ScriptChange(account, s.getName(), ScriptChange.Type.MODIFIED, f.getBody(), sha256));
+                }
+            }
+            if (hashes != null) {
+                for (String name : hashes.keySet()) {
+                    if (!now.containsKey(name)) {
+                        result.add(new ScriptChange(account, name, ScriptChange.Type.REMOVED, null, null));
+                    }
+                }
+            }
+            if (active != null && !active.equals(nowActive)) {
+                result.add(new ScriptChange(account, active, ScriptChange.Type.DEACTIVATED, null, null));
+            }
+            if (nowActive != null && !nowActive.equals(active)) {
+                result.add(new ScriptChange(account, nowActive, ScriptChange.Type.ACTIVATED, null, null));
+            }
+            hashes = now;
+            active = nowActive;
+            return result;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            long d = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return d < 0 ? -1 : (d > 0 ? 1 : 0);
+        }
+    }
+}
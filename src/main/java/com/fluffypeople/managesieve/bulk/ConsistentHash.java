@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * A consistent hash ring. Each node is placed on the ring at several points,
+ * and a key belongs to the first node point at or after the key's own hash.
+ * Adding or removing a node only moves the keys next to its points.
+ * <p>
+ * This class is immutable.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ConsistentHash {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /**
+     * @param nodes    Collection of String node names
+     * @param replicas int number of points for each node. More points give a
+     *                 more even spread.
+     */
+    public ConsistentHash(final Collection<String> nodes, final int replicas) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one node");
+        }
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be positive, got " + replicas);
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < replicas; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Find the node a key belongs to.
+     *
+     * @param key String key
+     * @return String node name
+     */
+    public String nodeFor(final String key) {
+        SortedMap<Long, String> tail = ring.tailMap(hash(key));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Number of points on the ring.
+     */
+    public int size() {
+        return ring.size();
+    }
+
+    /**
+     * The first eight bytes of the MD5 of the key. MD5 is used for its spread,
+     * not its security.
+     */
+    static long hash(final String key) {
+        byte[] digest = DigestUtils.md5(key.getBytes(UTF8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xff);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.script.CostAnalyzer;
+import com.fluffypeople.managesieve.script.ScriptCost;
+import com.fluffypeople.managesieve.session.DaemonThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the per-message cost of every account's filters in an archive
+ * written by {@link BulkExporter}, and ranks the accounts by it.
+ * <p>
+ * The archive is read by the calling thread, and scripts are handed to
+ * {@link #getWorkers()} threads to be parsed and costed with a
+ * {@link CostAnalyzer}. When the workers fall behind, the reader runs the
+ * work itself, so at most {@link #getQueueSize()} scripts are held in memory.
+ * One small {@link AccountCost} is kept per account.
+ * <p>
+ * Only the active script runs for each message. If the manifest is given,
+ * an account's cost is the cost of its active script (and zero if it has
+ * none). Without it, which script is active isn't known, and the most
+ * expensive script is used. Scripts pulled in with include are costed on
+ * their own, not added to the script that includes them.
+ * <p>
+ * Each survey is run by a single thread.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class CostSurvey {
+
+    private static final Logger log = LoggerFactory.getLogger(CostSurvey.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final String HEADER = "# rank\taccount\tcost\tscript\ttests\tregexes\tbody\tscripts\tfailed";
+    private final CostAnalyzer analyzer;
+    private final ConcurrentHashMap<String, AccountCost> accounts = new ConcurrentHashMap<String, AccountCost>();
+    private final AtomicLong scripts = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private int workers = 4;
+    private int queueSize = 64;
+
+    public CostSurvey() {
+        this(new CostAnalyzer());
+    }
+
+    public CostSurvey(final CostAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Set the number of threads that parse scripts.
+     */
+    public void setWorkers(final int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive, got " + workers);
+        }
+        this.workers = workers;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Set the number of scripts that can be waiting for a worker.
+     */
+    public void setQueueSize(final int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be positive, got " + queueSize);
+        }
+        this.queueSize = queueSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Cost every script in an archive. Can be called more than once, for
+     * example for the archives from several shards, before
+     * {@link #getRanking(int)}.
+     *
+     * @param archive  InputStream of a zip archive from {@link BulkExporter}.
+     *                 Not closed.
+     * @param manifest Reader of the manifest that goes with the archive, or
+     *                 null. Not closed.
+     * @throws IOException          if the archive or manifest can't be read
+     * @throws InterruptedException if interrupted
+     */
+    public void analyze(final InputStream archive, final Reader manifest) throws IOException, InterruptedException {
+        final Set<String> active = manifest != null ? ExportArchive.readActive(manifest) : null;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("sieve-cost"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            ZipInputStream zip = new ZipInputStream(archive);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                final String entryName = entry.getName();
+                final String[] names = ExportArchive.parseEntryName(entryName);
+                if (entry.isDirectory() || names == null) {
+                    continue;
+                }
+                final byte[] body = ExportArchive.readEntry(zip);
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        analyzeEntry(names[0], names[1], body, active == null || active.contains(entryName));
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            if (!pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                pool.shutdownNow();
+            }
+        }
+        log.info("Cost survey: {} scripts in {} accounts, {} failed", new Object[]{scripts.get(), accounts.size(), failed.get()});
+    }
+
+    /**
+     * Get the most expensive accounts, most expensive first.
+     *
+     * @param top int maximum number of accounts to return
+     * @return List of AccountCost
+     */
+    public List<AccountCost> getRanking(final int top) {
+        List<AccountCost> result = new ArrayList<AccountCost>(accounts.values());
+        Collections.sort(result, new Comparator<AccountCost>() {
+            @Override
+            public int compare(final AccountCost a, final AccountCost b) {
+                int c = Double.compare(b.getCost(), a.getCost());
+                return c != 0 ? c : a.getAccount().compareTo(b.getAccount());
+            }
+        });
+        return result.size() > top ? new ArrayList<AccountCost>(result.subList(0, top)) : result;
+    }
+
+    /**
+     * Write the most expensive accounts as a tab separated report, with a
+     * header line starting with <code>#</code>. Values are escaped as in
+     * {@link ManifestWriter}.
+     *
+     * @param out Writer to write to. Flushed, but not closed.
+     * @param top int maximum number of accounts to write
+     * @throws IOException if the report can't be written
+     */
+    public void writeReport(final Writer out, final int top) throws IOException {
+        out.write(HEADER);
+        out.write("\n");
+        int rank = 0;
+        for (AccountCost a : getRanking(top)) {
+            rank += 1;
+            ScriptCost detail = a.getDetail();
+            String[] values = {
+                Integer.toString(rank),
+                a.getAccount(),
+                Long.toString(Math.round(a.getCost())),
+                a.getScript(),
+                detail != null ? Integer.toString(detail.getTestCount()) : "0",
+                detail != null ? Integer.toString(detail.getRegexCount()) : "0",
+                detail != null ? Integer.toString(detail.getBodyTestCount()) : "0",
+                Integer.toString(a.getScriptCount()),
+                Integer.toString(a.getFailedCount())
+            };
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write('\t');
+                }
+                out.write(ManifestWriter.escape(values[i]));
+            }
+            out.write("\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Get the cost of one account, or null if it wasn't in the archive.
+     */
+    public AccountCost getAccount(final String account) {
+        return accounts.get(account);
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    /**
+     * Number of scripts read, including ones that couldn't be parsed.
+     */
+    public long getScriptCount() {
+        return scripts.get();
+    }
+
+    /**
+     * Number of scripts that couldn't be parsed.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    private void analyzeEntry(final String account, final String script, final byte[] body, final boolean counts) {
+        AccountCost cost = accounts.get(account);
+        if (cost == null) {
+            AccountCost fresh = new AccountCost(account);
+            cost = accounts.putIfAbsent(account, fresh);
+            if (cost == null) {
+                cost = fresh;
+            }
+        }
+        scripts.incrementAndGet();
+        try {
+            ScriptCost sc = analyzer.analyze(script, new String(body, UTF8));
+            cost.script(sc, counts);
+        } catch (ParseException ex) {
+            log.debug("Can't parse {} for {}: {}", new Object[]{script, account, ex.getMessage()});
+            failed.incrementAndGet();
+            cost.failed();
+        } catch (RuntimeException ex) {
+            log.warn("Can't cost " + script + " for " + account, ex);
+            failed.incrementAndGet();
+            cost.failed();
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.Pipeline;
+import com.fluffypeople.managesieve.session.AdaptiveLimiter;
+import com.fluffypeople.managesieve.session.DaemonThreadFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the scripts on the server in step with a directory of files.
+ * <p>
+ * The directory holds one sub-directory per account, named after the
+ * account, containing one <code>.sieve</code> file per script, named after
+ * the script. For example <code>root/alice@example.com/vacation.sieve</code>
+ * is the script "vacation" for alice@example.com. Other files are ignored,
+ * and so are deleted files: scripts are never removed from the server.
+ * <p>
+ * The directory is scanned every {@link #getScanInterval()} milliseconds.
+ * A file has changed if its size or modification time has, and its content
+ * hash differs from what was last uploaded, so touching a file (as a git
+ * checkout does) doesn't cause an upload. Changes are held back until the
+ * directory has been quiet for {@link #getQuietPeriod()}, so a burst of
+ * edits goes up as one batch, but never for longer than
+ * {@link #getMaxDelay()}. Then the changed scripts of each account are
+ * uploaded in one pipeline, with several accounts at once. Uploads that fail
+ * because of the connection or an overloaded server are tried again with the
+ * next batch. Scripts the server rejects aren't tried again until the file
+ * changes.
+ * <p>
+ * The first scan finds every file changed, so everything is uploaded once at
+ * start up.
+ * <p>
+ * Propagation latency, from a file's modification time to the server
+ * accepting it, is recorded for every upload.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class DirectorySync {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectorySync.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".sieve";
+
+    /**
+     * Turns an account directory name into an account.
+     */
+    public interface AccountResolver {
+
+        /**
+         * @param name String name of the account directory
+         * @return Account, or null to ignore the directory
+         */
+        Account resolve(String name);
+    }
+
+    private final File root;
+    private final SessionRouter router;
+    private final AccountResolver resolver;
+    private final Map<File, FileState> files = new HashMap<File, FileState>();
+    // Changed files waiting to be uploaded, in the order they were seen
+    private final Map<File, FileState> pending = new LinkedHashMap<File, FileState>();
+    private long firstPending = 0;
+    private long lastChange = 0;
+    private long scanInterval = 1000;
+    private long quietPeriod = 2000;
+    private long maxDelay = 30000;
+    private int workers = 4;
+    private ScheduledExecutorService scanner = null;
+    private long uploaded = 0;
+    private long failed = 0;
+    private long batches = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+    private long lastLatency = 0;
+
+    /**
+     * @param root     File directory to watch
+     * @param router   SessionRouter to get sessions from
+     * @param resolver AccountResolver to map directory names to accounts
+     */
+    public DirectorySync(final File root, final SessionRouter router, final AccountResolver resolver) {
+        this.root = root;
+        this.router = router;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Set how often the directory is scanned. Defaults to one second.
+     */
+    public synchronized void setScanInterval(final long scanInterval) {
+        this.scanInterval = scanInterval;
+    }
+
+    public synchronized long getScanInterval() {
+        return scanInterval;
+    }
+
+    /**
+     * Set how long the directory must be unchanged before changes are
+     * uploaded. Defaults to two seconds.
+     */
+    public synchronized void setQuietPeriod(final long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    public synchronized long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    /**
+     * Set the longest a change is held back while the directory keeps
+     * changing. Defaults to 30 seconds.
+     */
+    public synchronized void setMaxDelay(final long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public synchronized long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Set the number of accounts uploaded to at once.
+     */
+    public synchronized void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Start scanning in the background.
+     */
+    public synchronized void start() {
+        if (scanner != null) {
+            return;
+        }
+        scanner = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("sieve-dirsync"));
+        scanner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception ex) {
+                    log.error("Directory sync failed", ex);
+                }
+            }
+        }, 0, scanInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop scanning. Changes not yet uploaded stay pending.
+     */
+    public synchronized void stop() {
+        if (scanner != null) {
+            scanner.shutdownNow();
+            scanner = null;
+        }
+    }
+
+    /**
+     * Scan once, and upload any pending changes if the directory has been
+     * quiet for long enough. This is what the background scanner runs.
+     *
+     * @return JobReport of the upload, or null if nothing was uploaded
+     * @throws IOException          if the directory can't be read
+     * @throws InterruptedException if interrupted
+     */
+    public JobReport poll() throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            scan(now);
+            if (pending.isEmpty() || (now - lastChange < quietPeriod && now - firstPending < maxDelay)) {
+                return null;
+            }
+        }
+        return flush();
+    }
+
+    /**
+     * Scan once and upload every change straight away, ignoring the quiet
+     * period.
+     *
+     * @return JobReport of the upload, or null if nothing changed
+     * @throws IOException          if the directory can't be read
+     * @throws InterruptedException if interrupted
+     */
+    public JobReport sync() throws IOException, InterruptedException {
+        synchronized (this) {
+            scan(System.currentTimeMillis());
+            if (pending.isEmpty()) {
+                return null;
+            }
+        }
+        return flush();
+    }
+
+    /**
+     * Number of scripts uploaded.
+     */
+    public synchronized long getUploadedCount() {
+        return uploaded;
+    }
+
+    /**
+     * Number of script uploads that failed, including ones that will be
+     * tried again.
+     */
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * Number of batches uploaded.
+     */
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Number of changed files waiting to be uploaded.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Propagation latency of the most recent upload, in milliseconds.
+     */
+    public synchronized long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * Highest propagation latency seen, in milliseconds.
+     */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Mean propagation latency, in milliseconds.
+     */
+    public synchronized double getMeanLatency() {
+        return uploaded == 0 ? 0 : (double) totalLatency / uploaded;
+    }
+
+    /**
+     * Look for changed files. Must hold the lock.
+     */
+    private void scan(final long now) throws IOException {
+        File[] accountDirs = root.listFiles();
+        if (accountDirs == null) {
+            throw new IOException("Can't read " + root);
+        }
+        for (File accountDir : accountDirs) {
+            if (!accountDir.isDirectory() || accountDir.getName().startsWith(".")) {
+                continue;
+            }
+            File[] scripts = accountDir.listFiles();
+            if (scripts == null) {
+                continue;
+            }
+            for (File f : scripts) {
+                if (!f.isFile() || !f.getName().endsWith(SUFFIX)) {
+                    continue;
+                }
+                FileState state = files.get(f);
+                if (state == null) {
+                    state = new FileState(accountDir.getName(), f.getName().substring(0, f.getName().length() - SUFFIX.length()));
+                    files.put(f, state);
+                }
+                long modified = f.lastModified();
+                long length = f.length();
+                if (modified == state.modified && length == state.length) {
+                    continue;
+                }
+                state.modified = modified;
+                state.length = length;
+                String sha256 = sha256(f);
+                if (sha256.equals(state.uploaded)) {
+                    // Touched, not changed
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    firstPending = now;
+                }
+                lastChange = now;
+                pending.put(f, state);
+            }
+        }
+    }
+
+    /**
+     * Upload the pending changes, grouped by account.
+     */
+    private JobReport flush() throws IOException, InterruptedException {
+        final Map<File, FileState> batch;
+        int threads;
+        synchronized (this) {
+            batch = new LinkedHashMap<File, FileState>(pending);
+            pending.clear();
+            threads = workers;
+            for (FileState state : batch.values()) {
+                // Cleared when the server accepts the file
+                state.failed = true;
+            }
+        }
+
+        Map<String, Account> resolved = new HashMap<String, Account>();
+        final Map<Account, List<File>> byAccount = new IdentityHashMap<Account, List<File>>();
+        List<Account> accounts = new ArrayList<Account>();
+        for (Map.Entry<File, FileState> e : batch.entrySet()) {
+            String dirName = e.getValue().account;
+            Account account = resolved.get(dirName);
+            if (account == null && !resolved.containsKey(dirName)) {
+                account = resolver.resolve(dirName);
+                resolved.put(dirName, account);
+                if (account != null) {
+                    accounts.add(account);
+                    byAccount.put(account, new ArrayList<File>());
+                }
+            }
+            if (account != null) {
+                byAccount.get(account).add(e.getKey());
+            } else {
+                synchronized (this) {
+                    e.getValue().failed = false;
+                }
+            }
+        }
+
+        final JobReport report = new JobReport();
+        new BulkRunner("sieve-dirsync", threads).run(new IteratorAccountSource(accounts), new SessionTask(router) {
+            @Override
+            void process(final Account account, final ManageSieveClient client) throws IOException, ParseException {
+                upload(account, client, byAccount.get(account), batch, report);
+            }
+        }, report);
+        report.finish();
+
+        synchronized (this) {
+            batches += 1;
+            // Anything that didn't go up is tried again next time
+            for (Map.Entry<File, FileState> e : batch.entrySet()) {
+                if (e.getValue().failed) {
+                    e.getValue().failed = false;
+                    failed += 1;
+                    if (!pending.containsKey(e.getKey())) {
+                        if (pending.isEmpty()) {
+                            firstPending = System.currentTimeMillis();
+                        }
+                        pending.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+        log.debug("Directory sync batch: {}", report);
+        return report;
+    }
+
+    private void upload(final Account account, final ManageSieveClient client, final List<File> changed, final Map<File, FileState> batch, final JobReport report) throws IOException, ParseException {
+        List<String> bodies = new ArrayList<String>(changed.size());
+        List<Long> modified = new ArrayList<Long>(changed.size());
+        Pipeline p = client.pipeline();
+        for (File f : changed) {
+            // Read the latest content, it may have changed again since the scan
+            modified.add(f.lastModified());
+            String body = read(f);
+            bodies.add(body);
+            p.putscript(batch.get(f).script, body);
+        }
+        List<ManageSieveResponse> responses = p.execute();
+        long now = System.currentTimeMillis();
+        ManageSieveResponse firstFailure = null;
+        synchronized (this) {
+            for (int i = 0; i < changed.size(); i++) {
+                FileState state = batch.get(changed.get(i));
+                if (responses.get(i).isOk()) {
+                    state.uploaded = DigestUtils.sha256Hex(bodies.get(i).getBytes(UTF8));
+                    state.failed = false;
+                    long latency = Math.max(0, now - modified.get(i));
+                    uploaded += 1;
+                    totalLatency += latency;
+                    lastLatency = latency;
+                    maxLatency = Math.max(maxLatency, latency);
+                    report.script(bodies.get(i).getBytes(UTF8).length);
+                } else {
+                    log.warn("Can't upload {} for {}: {}", new Object[]{state.script, account, responses.get(i)});
+                    if (!AdaptiveLimiter.isOverload(responses.get(i))) {
+                        // Rejected. Don't try again until the file changes.
+                        state.failed = false;
+                        failed += 1;
+                    }
+                    if (firstFailure == null) {
+                        firstFailure = responses.get(i);
+                    }
+                }
+            }
+        }
+        if (firstFailure != null) {
+            throw new ManageSieveException("Some scripts for " + account + " were rejected", firstFailure);
+        }
+    }
+
+    private static String read(final File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) f.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String sha256(final File f) throws IOException {
+        return DigestUtils.sha256Hex(read(f).getBytes(UTF8));
+    }
+
+    private static class FileState {
+
+        private final String account;
+        private final String script;
+        private long modified = -1;
+        private long length = -1;
+        private String uploaded = null;
+        private boolean failed = false;
+
+        FileState(final String account, final String script) {
+            this.account = account;
+            this.script = script;
+        }
+    }
+}
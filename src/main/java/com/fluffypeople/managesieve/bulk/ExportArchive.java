@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Helpers for reading the archive and manifest written by
+ * {@link BulkExporter}.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+class ExportArchive {
+
+    private static final String SUFFIX = ".sieve";
+
+    private ExportArchive() {
+    }
+
+    /**
+     * Split an archive entry name into account and script.
+     *
+     * @param entryName String name of a zip entry
+     * @return String[] of account and script, or null if the entry isn't a
+     *         script
+     */
+    static String[] parseEntryName(final String entryName) {
+        int slash = entryName.indexOf('/');
+        if (slash < 0 || !entryName.endsWith(SUFFIX) || entryName.length() - SUFFIX.length() < slash + 1) {
+            return null;
+        }
+        return new String[]{
+            decode(entryName.substring(0, slash)),
+            decode(entryName.substring(slash + 1, entryName.length() - SUFFIX.length()))
+        };
+    }
+
+    /**
+     * Read the archive entry names of active scripts from a manifest.
+     */
+    static Set<String> readActive(final Reader manifest) throws IOException {
+        Set<String> result = new HashSet<String>();
+        BufferedReader in = new BufferedReader(manifest);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\t", -1);
+            if (parts.length >= 4 && parts[0].equals(ManifestWriter.OK) && "true".equals(ManifestWriter.unescape(parts[3]))) {
+                result.add(BulkExporter.entryName(ManifestWriter.unescape(parts[1]), ManifestWriter.unescape(parts[2])));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read the rest of the current entry.
+     */
+    static byte[] readEntry(final InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            result.write(buffer, 0, n);
+        }
+        return result.toByteArray();
+    }
+
+    private static String decode(final String encoded) {
+        try {
+            return URLDecoder.decode(encoded, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // Every JVM has UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+}
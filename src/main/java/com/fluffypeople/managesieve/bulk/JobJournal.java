@@ -0,0 +1,395 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable record of which accounts a bulk job has finished, so a restarted
+ * job can skip them.
+ * <p>
+ * The journal is an append-only text file with one line per event. When it's
+ * opened, the existing lines are read into memory, so checking an account
+ * with {@link #isDone} is a hash lookup. A line cut short by a crash is
+ * dropped.
+ * <p>
+ * {@link #markDone} doesn't return until the record is on disk. To keep that
+ * cheap with many workers, syncs are group committed: while one thread is
+ * writing and forcing the file, others add their records to a buffer, and
+ * the next sync covers all of them. Failures are written but not forced,
+ * since a failed account is retried whether or not it was recorded.
+ * <p>
+ * {@link #compact()} rewrites the file with one line per account, dropping
+ * failures that were later retried successfully.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class JobJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(JobJournal.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HEADER = "# sieve job journal 1\n";
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+    private final File file;
+    private final Set<String> done = new HashSet<String>();
+    private final Map<String, String> failed = new HashMap<String, String>();
+    private final StringBuilder pending = new StringBuilder();
+    private FileChannel channel;
+    private long appended = 0;
+    private long durable = 0;
+    private boolean syncing = false;
+    private IOException failure = null;
+    private long syncs = 0;
+
+    JobJournal(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open a journal, creating it if needed.
+     *
+     * @param file File to keep the journal in
+     * @return JobJournal with any existing records loaded
+     * @throws IOException if the file can't be read or opened, or holds a
+     *                     corrupt record other than a cut short last one
+     */
+    public static JobJournal open(final File file) throws IOException {
+        JobJournal journal = new JobJournal(file);
+        journal.load();
+        return journal;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Check if an account was finished by this job or an earlier run of it.
+     */
+    public synchronized boolean isDone(final String account) {
+        return done.contains(account);
+    }
+
+    /**
+     * Number of accounts finished.
+     */
+    public synchronized int getDoneCount() {
+        return done.size();
+    }
+
+    /**
+     * The accounts that failed and haven't been finished since, with the
+     * reason for each.
+     */
+    public synchronized Map<String, String> getFailed() {
+        return Collections.unmodifiableMap(new HashMap<String, String>(failed));
+    }
+
+    /**
+     * Number of times the file has been forced to disk.
+     */
+    public synchronized long getSyncCount() {
+        return syncs;
+    }
+
+    /**
+     * Record that an account is finished. Returns once the record is on disk.
+     *
+     * @param account String account name
+     * @throws IOException if the journal can't be written
+     */
+    public void markDone(final String account) throws IOException {
+        markDone(Collections.singletonList(account));
+    }
+
+    /**
+     * Record that several accounts are finished, with a single sync. Returns
+     * once the records are on disk.
+     *
+     * @param accounts Collection of String account names
+     * @throws IOException if the journal can't be written
+     */
+    public void markDone(final Collection<String> accounts) throws IOException {
+        long seq;
+        synchronized (this) {
+            checkUsable();
+            for (String account : accounts) {
+                if (done.add(account)) {
+                    failed.remove(account);
+                    line(DONE, account, null);
+                }
+            }
+            seq = appended;
+        }
+        sync(seq);
+    }
+
+    /**
+     * Record that an account failed. The record is written with the next
+     * sync, not straight away.
+     *
+     * @param account String account name
+     * @param reason  String reason, may be null
+     * @throws IOException if the journal has already failed
+     */
+    public synchronized void markFailed(final String account, final String reason) throws IOException {
+        checkUsable();
+        if (done.contains(account)) {
+            return;
+        }
+        failed.put(account, reason);
+        line(FAILED, account, reason);
+    }
+
+    /**
+     * Rewrite the journal with one line per account. The new file is written
+     * next to the old one and renamed over it.
+     *
+     * @throws IOException if the new file can't be written
+     */
+    public synchronized void compact() throws IOException {
+        checkUsable();
+        awaitSync();
+        File tmp = new File(file.getPath() + ".tmp");
+        StringBuilder content = new StringBuilder(HEADER);
+        for (String account : done) {
+            appendLine(content, DONE, account, null);
+        }
+        for (Map.Entry<String, String> e : failed.entrySet()) {
+            appendLine(content, FAILED, e.getKey(), e.getValue());
+        }
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(content.toString().getBytes(UTF8));
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+
+        channel.close();
+        channel = null;
+        // File.renameTo won't replace an existing file everywhere
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            failure = new IOException("Can't rename " + tmp + " to " + file);
+            throw failure;
+        }
+        pending.setLength(0);
+        durable = appended;
+        openChannel();
+        log.debug("Compacted {}: {} done, {} failed", new Object[]{file, done.size(), failed.size()});
+    }
+
+    /**
+     * Write anything buffered and close the file.
+     *
+     * @throws IOException if the last records can't be written
+     */
+    public void close() throws IOException {
+        long seq;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            seq = appended;
+        }
+        try {
+            sync(seq);
+        } finally {
+            synchronized (this) {
+                awaitSync();
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    void load() throws IOException {
+        if (file.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                byte[] data = new byte[(int) raf.length()];
+                raf.readFully(data);
+                int end = data.length;
+                while (end > 0 && data[end - 1] != '\n') {
+                    end -= 1;
+                }
+                if (end != data.length) {
+                    log.warn("Dropping partial record at the end of {}", file);
+                    raf.getChannel().truncate(end);
+                }
+                String[] lines = new String(data, 0, end, UTF8).split("\n");
+                for (int i = 0; i < lines.length; i++) {
+                    replay(lines[i], i + 1);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        openChannel();
+        if (channel.size() == 0) {
+            channel.write(ByteBuffer.wrap(HEADER.getBytes(UTF8)));
+        }
+    }
+
+    private void replay(final String line, final int lineNumber) throws IOException {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String[] parts = line.split("\t", -1);
+        if (parts.length < 2) {
+            // Only the last record can be cut short, and that was dropped
+            throw new IOException("Corrupt journal " + file + " at line " + lineNumber);
+        }
+        String account = ManifestWriter.unescape(parts[1]);
+        if (parts[0].equals(DONE)) {
+            done.add(account);
+            failed.remove(account);
+        } else if (parts[0].equals(FAILED) && !done.contains(account)) {
+            failed.put(account, parts.length > 2 ? ManifestWriter.unescape(parts[2]) : null);
+        }
+    }
+
+    private void openChannel() throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+    }
+
+    /**
+     * Make sure everything up to seq is on disk, either by writing it or by
+     * waiting for the thread that is.
+     */
+    private void sync(final long seq) throws IOException {
+        byte[] data;
+        long upTo;
+        FileChannel target;
+        synchronized (this) {
+            while (true) {
+                checkUsable();
+                if (durable >= seq) {
+                    return;
+                }
+                if (!syncing) {
+                    break;
+                }
+                waitForSync();
+            }
+            syncing = true;
+            data = pending.toString().getBytes(UTF8);
+            pending.setLength(0);
+            upTo = appended;
+            target = channel;
+        }
+
+        IOException error = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            force(target);
+        } catch (IOException ex) {
+            error = ex;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                syncs += 1;
+                if (error == null) {
+                    durable = upTo;
+                } else {
+                    failure = error;
+                }
+                notifyAll();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Force the file to disk. Tests override this to hold a sync open.
+     */
+    void force(final FileChannel target) throws IOException {
+        target.force(false);
+    }
+
+    /**
+     * Wait for any sync in progress to finish. Must hold the lock.
+     */
+    private void awaitSync() throws IOException {
+        while (syncing) {
+            waitForSync();
+        }
+    }
+
+    private void waitForSync() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for journal sync");
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal " + file + " has failed", failure);
+        }
+        if (channel == null) {
+            throw new IOException("Journal " + file + " is closed");
+        }
+    }
+
+    private void line(final String type, final String account, final String reason) {
+        appendLine(pending, type, account, reason);
+        appended += 1;
+    }
+
+    private static void appendLine(final StringBuilder out, final String type, final String account, final String reason) {
+        out.append(type).append('\t').append(ManifestWriter.escape(account));
+        if (type.equals(FAILED)) {
+            out.append('\t').append(ManifestWriter.escape(reason));
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what happened during a bulk job. Updated as the job runs, so it can
+ * be polled for progress.
+ * <p>
+ * Only the most recent failures are kept, so a job where everything fails
+ * doesn't run out of memory.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class JobReport {
+
+    private static final int MAX_FAILURES = 100;
+    private final long started = System.currentTimeMillis();
+    private volatile long finished = 0;
+    private final AtomicLong accountsDone = new AtomicLong();
+    private final AtomicLong accountsFailed = new AtomicLong();
+    private final AtomicLong accountsSkipped = new AtomicLong();
+    private final AtomicLong accountsStale = new AtomicLong();
+    private final AtomicLong scripts = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LinkedList<String> failures = new LinkedList<String>();
+
+    void accountDone() {
+        accountsDone.incrementAndGet();
+    }
+
+    void accountSkipped() {
+        accountsSkipped.incrementAndGet();
+    }
+
+    void accountStale() {
+        accountsStale.incrementAndGet();
+    }
+
+    void accountFailed(final Account account, final Exception cause) {
+        accountsFailed.incrementAndGet();
+        synchronized (failures) {
+            failures.addLast(account + ": " + cause.getMessage());
+            if (failures.size() > MAX_FAILURES) {
+                failures.removeFirst();
+            }
+        }
+    }
+
+    void script(final long size) {
+        scripts.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    void finish() {
+        finished = System.currentTimeMillis();
+    }
+
+    /**
+     * Number of accounts processed successfully.
+     */
+    public long getAccountsDone() {
+        return accountsDone.get();
+    }
+
+    /**
+     * Number of accounts that failed.
+     */
+    public long getAccountsFailed() {
+        return accountsFailed.get();
+    }
+
+    /**
+     * Number of failed accounts that were left with an older copy of the
+     * script active. These are counted in {@link #getAccountsFailed()} too.
+     */
+    public long getAccountsStale() {
+        return accountsStale.get();
+    }
+
+    /**
+     * Number of accounts skipped, for example because a journal shows they
+     * were done by an earlier run.
+     */
+    public long getAccountsSkipped() {
+        return accountsSkipped.get();
+    }
+
+    /**
+     * Number of scripts processed.
+     */
+    public long getScripts() {
+        return scripts.get();
+    }
+
+    /**
+     * Total size of the scripts processed, in bytes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Time the job has been running (or ran for), in milliseconds.
+     */
+    public long getElapsed() {
+        return (finished != 0 ? finished : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * Scripts processed per second so far.
+     */
+    public double getScriptsPerSecond() {
+        return perSecond(scripts.get());
+    }
+
+    /**
+     * Bytes of script processed per second so far.
+     */
+    public double getBytesPerSecond() {
+        return perSecond(bytes.get());
+    }
+
+    private double perSecond(final long count) {
+        long elapsed = getElapsed();
+        return elapsed > 0 ? count * 1000.0 / elapsed : 0;
+    }
+
+    public boolean isFinished() {
+        return finished != 0;
+    }
+
+    /**
+     * The most recent failures, oldest first.
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return Collections.unmodifiableList(new ArrayList<String>(failures));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return accountsDone.get() + " accounts done, " + accountsFailed.get() + " failed ("
+                + accountsStale.get() + " stale), " + accountsSkipped.get() + " skipped, " + scripts.get() + " scripts, "
+                + bytes.get() + " bytes in " + getElapsed() + "ms";
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the manifest of a bulk job: one tab separated line per script (or
+ * per failed account), written as the job runs.
+ * <p>
+ * The columns are status (<code>OK</code>, <code>FAILED</code>, or
+ * <code>STALE</code> for a failed upload that left an older copy of the
+ * script active), account,
+ * script name, active flag, size in bytes, SHA-256 of the body, and a detail
+ * column (the archive entry, or the reason for a failure). Tabs, newlines and
+ * backslashes in values are escaped with a backslash, and missing values are
+ * written as <code>-</code>.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ManifestWriter {
+
+    public static final String OK = "OK";
+    public static final String FAILED = "FAILED";
+    public static final String STALE = "STALE";
+    public static final String HEADER = "# status\taccount\tscript\tactive\tsize\tsha256\tdetail";
+    private final Writer out;
+
+    /**
+     * @param out Writer to write to. Not closed by this class.
+     * @throws IOException if the header can't be written
+     */
+    public ManifestWriter(final Writer out) throws IOException {
+        this.out = out;
+        out.write(HEADER);
+        out.write("\n");
+    }
+
+    /**
+     * Record a script that was processed.
+     */
+    public synchronized void script(final String account, final String script, final boolean active, final long size, final String sha256, final String detail) throws IOException {
+        line(OK, account, script, Boolean.toString(active), Long.toString(size), sha256, detail);
+    }
+
+    /**
+     * Record an account that failed.
+     */
+    public synchronized void failure(final String account, final String script, final String reason) throws IOException {
+        line(FAILED, account, script, null, null, null, reason);
+    }
+
+    /**
+     * Record an account whose upload failed but where an older copy of the
+     * script was made active.
+     */
+    public synchronized void stale(final String account, final String script, final String reason) throws IOException {
+        line(STALE, account, script, "true", null, null, reason);
+    }
+
+    /**
+     * Copy a record from another manifest as it is.
+     */
+    synchronized void raw(final String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    private void line(final String... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write('\t');
+            }
+            out.write(escape(values[i]));
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Escape a value for use in a manifest.
+     *
+     * @param raw String to escape, may be null
+     * @return escaped value
+     */
+    public static String escape(final String raw) {
+        if (raw == null) {
+            return "-";
+        }
+        if (raw.equals("-")) {
+            return "\\-";
+        }
+        StringBuilder result = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            switch (c) {
+                case '\t':
+                    result.append("\\t");
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                default:
+                    result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Undo {@link #escape}.
+     *
+     * @param escaped String from a manifest
+     * @return the original value, or null for a missing value
+     */
+    public static String unescape(final String escaped) {
+        if (escaped.equals("-")) {
+            return null;
+        }
+        StringBuilder result = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c == '\\' && i + 1 < escaped.length()) {
+                i += 1;
+                switch (escaped.charAt(i)) {
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    default:
+                        result.append(escaped.charAt(i));
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
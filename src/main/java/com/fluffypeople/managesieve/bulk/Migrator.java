@@ -0,0 +1,445 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.Pipeline;
+import com.fluffypeople.managesieve.SieveScript;
+import com.fluffypeople.managesieve.session.DaemonThreadFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies every script of every account from one set of servers to another.
+ * <p>
+ * Readers take accounts from an {@link AccountSource}, list their scripts on
+ * the source side, and fetch them in pipelined batches of
+ * {@link #getPipelineDepth()}. Each script is put on a bounded queue as soon
+ * as it arrives. Writers take scripts off the queue and upload them on the
+ * destination side. When the writers fall behind, readers wait, so memory
+ * use depends on the number of readers and the queue size, not on the size
+ * of the accounts.
+ * <p>
+ * Each upload is checked by fetching the script back in the same pipeline as
+ * the PUTSCRIPT and comparing SHA-256 hashes. A script that was active on the
+ * source is only made active on the destination once it has been checked.
+ * <p>
+ * An account is finished once all its scripts are written. Its outcome goes
+ * to the {@link JobReport}, the optional outcomes writer (in
+ * {@link ManifestWriter} format), and the optional {@link JobJournal}.
+ * Accounts the journal shows as done are skipped.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class Migrator {
+
+    private static final Logger log = LoggerFactory.getLogger(Migrator.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Item END = new Item(null, null, false, null, null);
+    private final SessionRouter source;
+    private final SessionRouter destination;
+    private int readers = 4;
+    private int writers = 4;
+    private int queueSize = 64;
+    private int pipelineDepth = 8;
+    private JobJournal journal = null;
+
+    /**
+     * @param source      SessionRouter for the servers to copy from
+     * @param destination SessionRouter for the servers to copy to
+     */
+    public Migrator(final SessionRouter source, final SessionRouter destination) {
+        this.source = source;
+        this.destination = destination;
+    }
+
+    /**
+     * Set the number of accounts read at once.
+     */
+    public void setReaders(final int readers) {
+        this.readers = readers;
+    }
+
+    public int getReaders() {
+        return readers;
+    }
+
+    /**
+     * Set the number of scripts written at once.
+     */
+    public void setWriters(final int writers) {
+        if (writers < 1) {
+            throw new IllegalArgumentException("writers must be positive, got " + writers);
+        }
+        this.writers = writers;
+    }
+
+    public int getWriters() {
+        return writers;
+    }
+
+    /**
+     * Set the number of scripts that can be waiting for a writer.
+     */
+    public void setQueueSize(final int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Set the number of GETSCRIPT commands sent in one pipeline when reading.
+     */
+    public void setPipelineDepth(final int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("pipelineDepth must be positive, got " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Set the journal used to skip accounts finished by an earlier run, or
+     * null for none.
+     */
+    public void setJournal(final JobJournal journal) {
+        this.journal = journal;
+    }
+
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Migrate every account.
+     *
+     * @param accounts AccountSource of accounts to migrate
+     * @param outcomes Writer to write the outcome for each script to, in
+     *                 {@link ManifestWriter} format. May be null. Flushed, but
+     *                 not closed.
+     * @return JobReport of what was migrated
+     * @throws IOException          if the account source, outcomes or
+     *                              journal can't be read or written
+     * @throws InterruptedException if interrupted
+     */
+    public JobReport migrate(final AccountSource accounts, final Writer outcomes) throws IOException, InterruptedException {
+        final JobReport report = new JobReport();
+        final ManifestWriter manifest = outcomes != null ? new ManifestWriter(outcomes) : null;
+        final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(queueSize);
+
+        ExecutorService writerPool = Executors.newFixedThreadPool(writers, new DaemonThreadFactory("sieve-migrate-write"));
+        for (int i = 0; i < writers; i++) {
+            writerPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop(queue, manifest, report);
+                }
+            });
+        }
+        writerPool.shutdown();
+
+        try {
+            new BulkRunner("sieve-migrate-read", readers).run(accounts, new BulkRunner.Task() {
+                @Override
+                public void process(final Account account) throws IOException, ParseException {
+                    final AccountState state = new AccountState(account);
+                    try {
+                        new SessionTask(source) {
+                            @Override
+                            void process(final Account account, final ManageSieveClient client) throws IOException, ParseException {
+                                readAccount(state, client, queue);
+                            }
+                        }.process(account);
+                    } catch (IOException ex) {
+                        state.readFailed(ex, manifest);
+                        throw ex;
+                    } catch (ParseException ex) {
+                        state.readFailed(ex, manifest);
+                        throw ex;
+                    }
+                    if (state.release()) {
+                        state.finished(report);
+                    }
+                }
+            }, report, journal, true);
+        } finally {
+            for (int i = 0; i < writers; i++) {
+                queue.put(END);
+            }
+            writerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            report.finish();
+            if (manifest != null) {
+                manifest.flush();
+            }
+        }
+        if (journal != null) {
+            journal.compact();
+        }
+        log.info("Migration finished: {}, {} bytes/s", report, (long) report.getBytesPerSecond());
+        return report;
+    }
+
+    private void readAccount(final AccountState state, final ManageSieveClient client, final BlockingQueue<Item> queue) throws IOException, ParseException {
+        List<SieveScript> scripts = new ArrayList<SieveScript>();
+        ManageSieveResponse resp = client.listscripts(scripts);
+        if (!resp.isOk()) {
+            throw new ManageSieveException("Can't list scripts for " + state.account, resp);
+        }
+        // After a retry, skip the scripts that were already queued
+        List<SieveScript> todo = new ArrayList<SieveScript>(scripts.size());
+        for (SieveScript s : scripts) {
+            if (!state.isQueued(s.getName())) {
+                todo.add(s);
+            }
+        }
+
+        for (int start = 0; start < todo.size(); start += pipelineDepth) {
+            List<SieveScript> batch = todo.subList(start, Math.min(start + pipelineDepth, todo.size()));
+            Pipeline p = client.pipeline();
+            for (SieveScript s : batch) {
+                p.getScript(s);
+            }
+            List<ManageSieveResponse> responses = p.execute();
+            for (int i = 0; i < batch.size(); i++) {
+                SieveScript s = batch.get(i);
+                if (!responses.get(i).isOk()) {
+                    throw new ManageSieveException("Can't get script " + s.getName() + " for " + state.account, responses.get(i));
+                }
+                state.queued(s.getName());
+                try {
+                    queue.put(new Item(state, s.getName(), s.isActive(), s.getBody(), DigestUtils.sha256Hex(s.getBody().getBytes(UTF8))));
+                } catch (InterruptedException ex) {
+                    state.release();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a writer");
+                }
+                // The queue has it now
+                s.setBody(null);
+            }
+        }
+    }
+
+    private void writeLoop(final BlockingQueue<Item> queue, final ManifestWriter manifest, final JobReport report) {
+        while (true) {
+            final Item item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (item == END) {
+                return;
+            }
+            try {
+                new SessionTask(destination) {
+                    @Override
+                    void process(final Account account, final ManageSieveClient client) throws IOException, ParseException {
+                        writeScript(item, client);
+                    }
+                }.process(item.state.account);
+                long size = item.body.getBytes(UTF8).length;
+                report.script(size);
+                if (manifest != null) {
+                    manifest.script(item.state.account.getName(), item.name, item.active, size, item.sha256, "migrated");
+                }
+            } catch (IOException ex) {
+                item.state.writeFailed(item.name, ex, manifest);
+            } catch (ParseException ex) {
+                item.state.writeFailed(item.name, ex, manifest);
+            } catch (RuntimeException ex) {
+                item.state.writeFailed(item.name, ex, manifest);
+            } finally {
+                if (item.state.release()) {
+                    item.state.finished(report);
+                }
+            }
+        }
+    }
+
+    private void writeScript(final Item item, final ManageSieveClient client) throws IOException, ParseException {
+        SieveScript copy = new SieveScript(item.name, null, false);
+        Pipeline p = client.pipeline();
+        int put = p.putscript(item.name, item.body);
+        int get = p.getScript(copy);
+        List<ManageSieveResponse> responses = p.execute();
+        if (!responses.get(put).isOk()) {
+            throw new ManageSieveException("PUTSCRIPT " + item.name + " failed", responses.get(put));
+        }
+        if (!responses.get(get).isOk()) {
+            throw new ManageSieveException("GETSCRIPT " + item.name + " failed", responses.get(get));
+        }
+        String sha256 = DigestUtils.sha256Hex(copy.getBody().getBytes(UTF8));
+        if (!sha256.equals(item.sha256)) {
+            throw new IOException("Script " + item.name + " changed in transit: expected " + item.sha256 + ", got " + sha256);
+        }
+        if (item.active) {
+            ManageSieveResponse resp = client.setactive(item.name);
+            if (!resp.isOk()) {
+                throw new ManageSieveException("SETACTIVE " + item.name + " failed", resp);
+            }
+        }
+    }
+
+    /**
+     * A script on its way to a writer.
+     */
+    private static class Item {
+
+        private final AccountState state;
+        private final String name;
+        private final boolean active;
+        private final String body;
+        private final String sha256;
+
+        Item(final AccountState state, final String name, final boolean active, final String body, final String sha256) {
+            this.state = state;
+            this.name = name;
+            this.active = active;
+            this.body = body;
+            this.sha256 = sha256;
+        }
+    }
+
+    /**
+     * Tracks an account through the migration. The account is finished when
+     * the reader is done and every script it queued has been written. One
+     * count is held by the reader until it's done.
+     */
+    private class AccountState {
+
+        private final Account account;
+        private final Set<String> queued = new HashSet<String>();
+        private int outstanding = 1;
+        private boolean readFailed = false;
+        private String failure = null;
+
+        AccountState(final Account account) {
+            this.account = account;
+        }
+
+        synchronized boolean isQueued(final String name) {
+            return queued.contains(name);
+        }
+
+        synchronized void queued(final String name) {
+            queued.add(name);
+            outstanding += 1;
+        }
+
+        /**
+         * The reader, or the writer of one script, is done with the account.
+         *
+         * @return true if nothing else is outstanding
+         */
+        synchronized boolean release() {
+            outstanding -= 1;
+            return outstanding == 0;
+        }
+
+        synchronized void writeFailed(final String name, final Exception ex, final ManifestWriter manifest) {
+            log.debug("{}: can't write {}", new Object[]{account, name, ex});
+            if (failure == null) {
+                failure = name + ": " + ex.getMessage();
+            }
+            try {
+                if (manifest != null) {
+                    manifest.failure(account.getName(), name, ex.getMessage());
+                }
+            } catch (IOException mex) {
+                log.warn("Can't write outcome for {}", account, mex);
+            }
+        }
+
+        /**
+         * Reading failed. The runner records the failure, so nothing else
+         * should.
+         */
+        void readFailed(final Exception ex, final ManifestWriter manifest) throws IOException {
+            synchronized (this) {
+                readFailed = true;
+                outstanding -= 1;
+            }
+            if (manifest != null) {
+                manifest.failure(account.getName(), null, ex.getMessage());
+            }
+        }
+
+        /**
+         * Record the outcome, once nothing is outstanding.
+         */
+        void finished(final JobReport report) {
+            String reason;
+            synchronized (this) {
+                if (outstanding != 0 || readFailed) {
+                    return;
+                }
+                // Only get here once
+                outstanding = -1;
+                reason = failure;
+            }
+            if (reason == null) {
+                report.accountDone();
+                if (journal != null) {
+                    try {
+                        journal.markDone(account.getName());
+                    } catch (IOException ex) {
+                        log.warn("Can't record {} in journal", account, ex);
+                    }
+                }
+            } else {
+                IOException ex = new IOException(reason);
+                report.accountFailed(account, ex);
+                if (journal != null) {
+                    try {
+                        journal.markFailed(account.getName(), reason);
+                    } catch (IOException jex) {
+                        log.warn("Can't record {} in journal", account, jex);
+                    }
+                }
+            }
+        }
+    }
+}
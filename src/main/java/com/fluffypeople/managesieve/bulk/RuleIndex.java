@@ -0,0 +1,1085 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.script.RuleFacts;
+import com.fluffypeople.managesieve.session.DaemonThreadFactory;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk inverted index of the facts in every account's scripts (see
+ * {@link RuleFacts}), for questions like "which accounts redirect mail to
+ * another domain" or "who files mail from this address".
+ * <p>
+ * Each script is a document, identified by account and script name, and
+ * given a number. The index is a set of immutable segment files in a
+ * directory. Each segment holds its documents and, for each fact, the sorted
+ * numbers of the documents that have it. The fact dictionaries are kept in
+ * memory, and the lists of numbers are read from disk when a query needs
+ * them, so a query costs a binary search and a read per fact, and some
+ * bitset operations.
+ * <p>
+ * Changes are incremental. A new or changed script is added to an in-memory
+ * buffer, which is searched along with the segments, and the old version is
+ * marked deleted. A script whose SHA-256 hasn't changed is skipped.
+ * {@link #commit()} writes the buffer as a new segment, along with the
+ * deletions and active scripts, and then replaces the list of segments. The
+ * list is written to a temporary file and renamed, so a crash leaves the
+ * index as it was at the last commit. When there are more than
+ * {@link #getMaxSegments()} segments, they're merged into one, dropping
+ * deleted documents. Merging holds the merged lists in memory.
+ * <p>
+ * The index can be loaded from an archive written by {@link BulkExporter},
+ * and kept up to date by adding it to a {@link ChangePoller}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class RuleIndex implements ChangePoller.ChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(RuleIndex.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HEADER = "# sieve rule index 1";
+    private static final String SEGMENTS = "segments";
+    private static final int MAGIC = 0x53524958;
+    private final File dir;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Map<String, Doc> docs = new HashMap<String, Doc>();
+    private final Map<Integer, Doc> byId = new HashMap<Integer, Doc>();
+    private final BitSet live = new BitSet();
+    private final Map<String, String> active = new HashMap<String, String>();
+    private final List<Doc> buffered = new ArrayList<Doc>();
+    private final TreeMap<String, IntList> bufferedFacts = new TreeMap<String, IntList>();
+    private int nextDoc = 0;
+    private int nextSegment = 1;
+    private int generation = 0;
+    private int activeGeneration = 0;
+    private boolean dirty = false;
+    private boolean activeDirty = false;
+    private int flushSize = 10000;
+    private int maxSegments = 10;
+    private int workers = 4;
+
+    /**
+     * A script in the index.
+     */
+    public static class Hit {
+
+        private final String account;
+        private final String script;
+        private final String sha256;
+        private final boolean active;
+
+        Hit(final String account, final String script, final String sha256, final boolean active) {
+            this.account = account;
+            this.script = script;
+            this.sha256 = sha256;
+            this.active = active;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        /**
+         * SHA-256 of the script body that was indexed.
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        @Override
+        public String toString() {
+            return account + "/" + script + (active ? " (active)" : "");
+        }
+    }
+
+    private RuleIndex(final File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Open an index, creating it if the directory is empty or doesn't exist.
+     *
+     * @param dir File directory for the index
+     * @return RuleIndex
+     * @throws IOException if the index can't be read or created
+     */
+    public static RuleIndex open(final File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        RuleIndex index = new RuleIndex(dir);
+        File list = new File(dir, SEGMENTS);
+        if (list.exists()) {
+            index.readSegmentList(list);
+        }
+        index.removeUnused();
+        log.debug("Opened rule index {}: {} scripts in {} segments", new Object[]{dir, index.docs.size(), index.segments.size()});
+        return index;
+    }
+
+    /**
+     * Set the number of buffered scripts that triggers a commit.
+     */
+    public synchronized void setFlushSize(final int flushSize) {
+        if (flushSize < 1) {
+            throw new IllegalArgumentException("flushSize must be positive, got " + flushSize);
+        }
+        this.flushSize = flushSize;
+    }
+
+    public synchronized int getFlushSize() {
+        return flushSize;
+    }
+
+    /**
+     * Set the number of segments above which a commit merges them.
+     */
+    public synchronized void setMaxSegments(final int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be positive, got " + maxSegments);
+        }
+        this.maxSegments = maxSegments;
+    }
+
+    public synchronized int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Set the number of threads that parse scripts in {@link #load}.
+     */
+    public synchronized void setWorkers(final int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive, got " + workers);
+        }
+        this.workers = workers;
+    }
+
+    public synchronized int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Add or replace a script.
+     *
+     * @param account String account name
+     * @param script  String script name
+     * @param body    String script body
+     * @return true if the index changed, false if it already had this body
+     * @throws IOException if the buffer was full and couldn't be committed
+     */
+    public boolean update(final String account, final String script, final String body) throws IOException {
+        String sha256 = DigestUtils.sha256Hex(body.getBytes(UTF8));
+        if (isCurrent(account, script, sha256)) {
+            return false;
+        }
+        // Parse outside the lock
+        return add(account, script, sha256, RuleFacts.extract(body));
+    }
+
+    /**
+     * Check if the index has a script with this SHA-256.
+     */
+    public synchronized boolean isCurrent(final String account, final String script, final String sha256) {
+        Doc doc = docs.get(key(account, script));
+        return doc != null && doc.sha256.equals(sha256);
+    }
+
+    /**
+     * Remove a script.
+     *
+     * @return true if the script was in the index
+     */
+    public synchronized boolean remove(final String account, final String script) {
+        Doc doc = docs.get(key(account, script));
+        if (doc == null) {
+            return false;
+        }
+        delete(doc);
+        if (script.equals(active.get(account))) {
+            active.remove(account);
+            activeDirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * Set an account's active script.
+     *
+     * @param account String account name
+     * @param script  String script name, or null if no script is active
+     */
+    public synchronized void setActive(final String account, final String script) {
+        String old = script != null ? active.put(account, script) : active.remove(account);
+        if (old == null ? script != null : !old.equals(script)) {
+            activeDirty = true;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Keep the index up to date with a {@link ChangePoller}.
+     */
+    @Override
+    public void changed(final ScriptChange change) {
+        String account = change.getAccount().getName();
+        try {
+            switch (change.getType()) {
+                case ADDED:
+                case MODIFIED:
+                    update(account, change.getScript(), change.getBody());
+                    break;
+                case REMOVED:
+                    remove(account, change.getScript());
+                    break;
+                case ACTIVATED:
+                    setActive(account, change.getScript());
+                    break;
+                case DEACTIVATED:
+                    synchronized (this) {
+                        if (change.getScript().equals(active.get(account))) {
+                            setActive(account, null);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException ex) {
+            log.error("Can't update rule index for " + change, ex);
+        }
+    }
+
+    /**
+     * Add every script in an archive written by {@link BulkExporter}. Scripts
+     * are parsed by {@link #getWorkers()} threads. The index is committed at
+     * the end.
+     *
+     * @param archive  InputStream of the zip archive. Not closed.
+     * @param manifest Reader of the manifest that goes with the archive, to
+     *                 find the active scripts. May be null. Not closed.
+     * @return int number of scripts added or changed
+     * @throws IOException          if the archive, manifest or index can't be
+     *                              read or written
+     * @throws InterruptedException if interrupted
+     */
+    public int load(final InputStream archive, final Reader manifest) throws IOException, InterruptedException {
+        final Set<String> activeEntries = manifest != null ? ExportArchive.readActive(manifest) : null;
+        final int[] changed = new int[1];
+        final IOException[] failure = new IOException[1];
+        int threads = getWorkers();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new DaemonThreadFactory("sieve-rule-index"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            ZipInputStream zip = new ZipInputStream(archive);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                final String[] names = ExportArchive.parseEntryName(entry.getName());
+                if (names == null) {
+                    continue;
+                }
+                if (activeEntries != null && activeEntries.contains(entry.getName())) {
+                    setActive(names[0], names[1]);
+                }
+                final byte[] body = ExportArchive.readEntry(zip);
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (update(names[0], names[1], new String(body, UTF8))) {
+                                synchronized (changed) {
+                                    changed[0] += 1;
+                                }
+                            }
+                        } catch (IOException ex) {
+                            synchronized (failure) {
+                                failure[0] = ex;
+                            }
+                        }
+                    }
+                });
+                synchronized (failure) {
+                    if (failure[0] != null) {
+                        throw failure[0];
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            if (!pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                pool.shutdownNow();
+            }
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        commit();
+        synchronized (changed) {
+            return changed[0];
+        }
+    }
+
+    /**
+     * Find scripts.
+     *
+     * @param query RuleQuery to run
+     * @param limit int maximum number of scripts to return
+     * @return List of Hit, in the order the scripts were indexed
+     * @throws IOException if the index can't be read
+     */
+    public synchronized List<Hit> search(final RuleQuery query, final int limit) throws IOException {
+        BitSet bits = eval(query);
+        List<Hit> result = new ArrayList<Hit>();
+        for (int id = bits.nextSetBit(0); id >= 0 && result.size() < limit; id = bits.nextSetBit(id + 1)) {
+            Doc doc = byId.get(id);
+            result.add(new Hit(doc.account, doc.script, doc.sha256, doc.script.equals(active.get(doc.account))));
+        }
+        return result;
+    }
+
+    /**
+     * Count the scripts that match a query.
+     *
+     * @throws IOException if the index can't be read
+     */
+    public synchronized int count(final RuleQuery query) throws IOException {
+        return eval(query).cardinality();
+    }
+
+    /**
+     * Get every value of a field in the index, for example every domain that
+     * mail is redirected to.
+     *
+     * @param field String field name
+     * @return Set of values, sorted
+     * @throws IOException if the index can't be read
+     */
+    public synchronized Set<String> values(final String field) throws IOException {
+        String prefix = field + ":";
+        Set<String> result = new TreeSet<String>();
+        for (Segment seg : segments) {
+            for (int i = seg.first(prefix); i < seg.terms.length && seg.terms[i].startsWith(prefix); i++) {
+                BitSet bits = new BitSet();
+                seg.read(i, bits);
+                if (bits.intersects(live)) {
+                    result.add(seg.terms[i].substring(prefix.length()));
+                }
+            }
+        }
+        for (Map.Entry<String, IntList> e : bufferedFacts.tailMap(prefix).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (e.getValue().toBitSet().intersects(live)) {
+                result.add(e.getKey().substring(prefix.length()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of scripts in the index.
+     */
+    public synchronized int size() {
+        return docs.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Number of scripts added since the last commit.
+     */
+    public synchronized int getBufferedCount() {
+        return buffered.size();
+    }
+
+    /**
+     * Write everything since the last commit to disk. Merges the segments if
+     * there are more than {@link #getMaxSegments()}.
+     *
+     * @throws IOException if the index can't be written
+     */
+    public synchronized void commit() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        generation += 1;
+        List<File> obsolete = new ArrayList<File>();
+
+        Segment fresh = null;
+        List<Doc> toWrite = new ArrayList<Doc>();
+        for (Doc doc : buffered) {
+            if (live.get(doc.id)) {
+                toWrite.add(doc);
+            }
+        }
+        if (!toWrite.isEmpty()) {
+            TreeMap<String, IntList> facts = new TreeMap<String, IntList>();
+            for (Map.Entry<String, IntList> e : bufferedFacts.entrySet()) {
+                IntList ids = e.getValue().filter(live);
+                if (ids.size > 0) {
+                    facts.put(e.getKey(), ids);
+                }
+            }
+            fresh = writeSegment(nextSegment++, toWrite, facts);
+        }
+
+        for (Segment seg : segments) {
+            if (seg.deletesDirty) {
+                if (seg.deleteGeneration != 0) {
+                    obsolete.add(deletesFile(seg.number, seg.deleteGeneration));
+                }
+                writeDeletes(seg, generation);
+            }
+        }
+        if (activeDirty) {
+            if (activeGeneration != 0) {
+                obsolete.add(activeFile(activeGeneration));
+            }
+            writeActive(generation);
+        }
+
+        List<Segment> next = new ArrayList<Segment>(segments);
+        if (fresh != null) {
+            next.add(fresh);
+        }
+        writeSegmentList(next);
+
+        // Committed
+        segments.clear();
+        segments.addAll(next);
+        for (Segment seg : segments) {
+            seg.deletesDirty = false;
+        }
+        if (fresh != null) {
+            for (Doc doc : toWrite) {
+                doc.segment = fresh;
+            }
+        }
+        buffered.clear();
+        bufferedFacts.clear();
+        activeDirty = false;
+        dirty = false;
+        for (File f : obsolete) {
+            f.delete();
+        }
+        log.debug("Committed rule index {}: {} scripts in {} segments", new Object[]{dir, docs.size(), segments.size()});
+
+        if (segments.size() > maxSegments) {
+            merge();
+        }
+    }
+
+    /**
+     * Commit, then merge all segments into one, dropping deleted scripts.
+     *
+     * @throws IOException if the index can't be written
+     */
+    public synchronized void merge() throws IOException {
+        commit();
+        if (segments.isEmpty()) {
+            return;
+        }
+        List<Doc> keep = new ArrayList<Doc>();
+        for (Segment seg : segments) {
+            for (int id : seg.ids) {
+                if (live.get(id)) {
+                    keep.add(byId.get(id));
+                }
+            }
+        }
+        // Segments are in number order, so the merged lists stay sorted
+        TreeMap<String, IntList> facts = new TreeMap<String, IntList>();
+        for (Segment seg : segments) {
+            for (int i = 0; i < seg.terms.length; i++) {
+                IntList ids = seg.readList(i).filter(live);
+                if (ids.size == 0) {
+                    continue;
+                }
+                IntList merged = facts.get(seg.terms[i]);
+                if (merged == null) {
+                    facts.put(seg.terms[i], ids);
+                } else {
+                    merged.addAll(ids);
+                }
+            }
+        }
+
+        generation += 1;
+        List<Segment> old = new ArrayList<Segment>(segments);
+        List<Segment> next = new ArrayList<Segment>();
+        Segment merged = null;
+        if (!keep.isEmpty()) {
+            merged = writeSegment(nextSegment++, keep, facts);
+            next.add(merged);
+        }
+        writeSegmentList(next);
+
+        segments.clear();
+        segments.addAll(next);
+        for (Doc doc : keep) {
+            doc.segment = merged;
+        }
+        for (Segment seg : old) {
+            seg.close();
+            segmentFile(seg.number).delete();
+            if (seg.deleteGeneration != 0) {
+                deletesFile(seg.number, seg.deleteGeneration).delete();
+            }
+        }
+        log.info("Merged rule index {}: {} scripts", dir, docs.size());
+    }
+
+    /**
+     * Commit and close the index.
+     *
+     * @throws IOException if the index can't be written
+     */
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            for (Segment seg : segments) {
+                seg.close();
+            }
+        }
+    }
+
+    private boolean add(final String account, final String script, final String sha256, final Set<String> facts) throws IOException {
+        synchronized (this) {
+            String key = key(account, script);
+            Doc old = docs.get(key);
+            if (old != null) {
+                if (old.sha256.equals(sha256)) {
+                    return false;
+                }
+                delete(old);
+            }
+            Doc doc = new Doc(nextDoc++, account, script, sha256);
+            docs.put(key, doc);
+            byId.put(doc.id, doc);
+            live.set(doc.id);
+            buffered.add(doc);
+            for (String fact : facts) {
+                IntList ids = bufferedFacts.get(fact);
+                if (ids == null) {
+                    ids = new IntList();
+                    bufferedFacts.put(fact, ids);
+                }
+                ids.add(doc.id);
+            }
+            dirty = true;
+            if (buffered.size() >= flushSize) {
+                commit();
+            }
+            return true;
+        }
+    }
+
+    private void delete(final Doc doc) {
+        docs.remove(key(doc.account, doc.script));
+        byId.remove(doc.id);
+        live.clear(doc.id);
+        if (doc.segment != null) {
+            doc.segment.deleted.set(doc.id);
+            doc.segment.deletesDirty = true;
+        }
+        dirty = true;
+    }
+
+    private BitSet eval(final RuleQuery query) throws IOException {
+        BitSet result = evalInner(query);
+        result.and(live);
+        return result;
+    }
+
+    private BitSet evalInner(final RuleQuery query) throws IOException {
+        BitSet result = new BitSet();
+        switch (query.op) {
+            case TERM:
+                for (Segment seg : segments) {
+                    int i = Arrays.binarySearch(seg.terms, query.term);
+                    if (i >= 0) {
+                        seg.read(i, result);
+                    }
+                }
+                IntList ids = bufferedFacts.get(query.term);
+                if (ids != null) {
+                    result.or(ids.toBitSet());
+                }
+                return result;
+            case PREFIX:
+                for (Segment seg : segments) {
+                    for (int i = seg.first(query.term); i < seg.terms.length && seg.terms[i].startsWith(query.term); i++) {
+                        seg.read(i, result);
+                    }
+                }
+                SortedMap<String, IntList> tail = bufferedFacts.tailMap(query.term);
+                for (Map.Entry<String, IntList> e : tail.entrySet()) {
+                    if (!e.getKey().startsWith(query.term)) {
+                        break;
+                    }
+                    result.or(e.getValue().toBitSet());
+                }
+                return result;
+            case AND:
+                result = evalInner(query.children.get(0));
+                for (int i = 1; i < query.children.size() && !result.isEmpty(); i++) {
+                    result.and(evalInner(query.children.get(i)));
+                }
+                return result;
+            case OR:
+                for (RuleQuery child : query.children) {
+                    result.or(evalInner(child));
+                }
+                return result;
+            case NOT:
+                result.or(live);
+                result.andNot(evalInner(query.children.get(0)));
+                return result;
+            case ACTIVE:
+                for (Map.Entry<String, String> e : active.entrySet()) {
+                    Doc doc = docs.get(key(e.getKey(), e.getValue()));
+                    if (doc != null) {
+                        result.set(doc.id);
+                    }
+                }
+                return result;
+            default:
+                throw new IllegalStateException("Unknown query " + query.op);
+        }
+    }
+
+    private static String key(final String account, final String script) {
+        return account + "\u0000" + script;
+    }
+
+    private File segmentFile(final int number) {
+        return new File(dir, "seg-" + number + ".idx");
+    }
+
+    private File deletesFile(final int number, final int gen) {
+        return new File(dir, "seg-" + number + "." + gen + ".del");
+    }
+
+    private File activeFile(final int gen) {
+        return new File(dir, "active." + gen);
+    }
+
+    /**
+     * Segment file: magic, length of the header, then the header (the
+     * documents and the fact dictionary), then the lists of document numbers.
+     * Each list is delta encoded as variable length ints.
+     */
+    private Segment writeSegment(final int number, final List<Doc> segDocs, final TreeMap<String, IntList> facts) throws IOException {
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(segDocs.size());
+        for (Doc doc : segDocs) {
+            header.writeInt(doc.id);
+            header.writeUTF(doc.account);
+            header.writeUTF(doc.script);
+            header.writeUTF(doc.sha256);
+        }
+        header.writeInt(facts.size());
+        for (Map.Entry<String, IntList> e : facts.entrySet()) {
+            header.writeUTF(e.getKey());
+            header.writeInt(postings.size());
+            IntList ids = e.getValue();
+            int last = 0;
+            for (int i = 0; i < ids.size; i++) {
+                writeVarInt(postings, ids.values[i] - last);
+                last = ids.values[i];
+            }
+        }
+        header.writeInt(postings.size());
+        header.flush();
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream(8 + headerBytes.size() + postings.size());
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(MAGIC);
+        out.writeInt(headerBytes.size());
+        headerBytes.writeTo(out);
+        postings.writeTo(out);
+        out.flush();
+        writeFile(segmentFile(number), file.toByteArray());
+        return openSegment(number, 0);
+    }
+
+    private Segment openSegment(final int number, final int deleteGeneration) throws IOException {
+        File file = segmentFile(number);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException(file + " is not a rule index segment");
+            }
+            byte[] headerBytes = new byte[raf.readInt()];
+            raf.readFully(headerBytes);
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+            Segment seg = new Segment(number, raf, 8 + headerBytes.length);
+            seg.deleteGeneration = deleteGeneration;
+            seg.ids = new int[header.readInt()];
+            seg.docs = new Doc[seg.ids.length];
+            for (int i = 0; i < seg.ids.length; i++) {
+                seg.docs[i] = new Doc(header.readInt(), header.readUTF(), header.readUTF(), header.readUTF());
+                seg.docs[i].segment = seg;
+                seg.ids[i] = seg.docs[i].id;
+            }
+            int count = header.readInt();
+            seg.terms = new String[count];
+            seg.offsets = new int[count + 1];
+            for (int i = 0; i < count; i++) {
+                seg.terms[i] = header.readUTF();
+                seg.offsets[i] = header.readInt();
+            }
+            seg.offsets[count] = header.readInt();
+            if (deleteGeneration != 0) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(readFile(deletesFile(number, deleteGeneration))));
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    seg.deleted.set(in.readInt());
+                }
+            }
+            return seg;
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    private void writeDeletes(final Segment seg, final int gen) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(seg.deleted.cardinality());
+        for (int id = seg.deleted.nextSetBit(0); id >= 0; id = seg.deleted.nextSetBit(id + 1)) {
+            out.writeInt(id);
+        }
+        out.flush();
+        writeFile(deletesFile(seg.number, gen), bytes.toByteArray());
+        seg.deleteGeneration = gen;
+    }
+
+    private void writeActive(final int gen) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> e : active.entrySet()) {
+            content.append(ManifestWriter.escape(e.getKey())).append('\t').append(ManifestWriter.escape(e.getValue())).append('\n');
+        }
+        writeFile(activeFile(gen), content.toString().getBytes(UTF8));
+        activeGeneration = gen;
+    }
+
+    /**
+     * The commit point. Lists the segments and which deletes and active files
+     * go with them.
+     */
+    private void writeSegmentList(final List<Segment> list) throws IOException {
+        StringBuilder content = new StringBuilder(HEADER).append('\n');
+        content.append("generation\t").append(generation).append('\n');
+        content.append("next-doc\t").append(nextDoc).append('\n');
+        content.append("next-segment\t").append(nextSegment).append('\n');
+        content.append("active\t").append(activeGeneration).append('\n');
+        for (Segment seg : list) {
+            content.append("segment\t").append(seg.number).append('\t').append(seg.deleteGeneration).append('\n');
+        }
+        writeFile(new File(dir, SEGMENTS), content.toString().getBytes(UTF8));
+    }
+
+    private void readSegmentList(final File list) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(list), UTF8));
+        try {
+            String line = in.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException(list + " is not a rule index");
+            }
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts[0].equals("generation")) {
+                    generation = Integer.parseInt(parts[1]);
+                } else if (parts[0].equals("next-doc")) {
+                    nextDoc = Integer.parseInt(parts[1]);
+                } else if (parts[0].equals("next-segment")) {
+                    nextSegment = Integer.parseInt(parts[1]);
+                } else if (parts[0].equals("active")) {
+                    activeGeneration = Integer.parseInt(parts[1]);
+                } else if (parts[0].equals("segment")) {
+                    segments.add(openSegment(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        for (Segment seg : segments) {
+            for (Doc doc : seg.docs) {
+                if (!seg.deleted.get(doc.id)) {
+                    docs.put(key(doc.account, doc.script), doc);
+                    byId.put(doc.id, doc);
+                    live.set(doc.id);
+                }
+            }
+        }
+        if (activeGeneration != 0) {
+            String content = new String(readFile(activeFile(activeGeneration)), UTF8);
+            for (String line : content.split("\n")) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length == 2) {
+                    active.put(ManifestWriter.unescape(parts[0]), ManifestWriter.unescape(parts[1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete files left by a commit that didn't finish, or by a merge.
+     */
+    private void removeUnused() {
+        Set<String> used = new HashSet<String>();
+        used.add(SEGMENTS);
+        for (Segment seg : segments) {
+            used.add(segmentFile(seg.number).getName());
+            if (seg.deleteGeneration != 0) {
+                used.add(deletesFile(seg.number, seg.deleteGeneration).getName());
+            }
+        }
+        if (activeGeneration != 0) {
+            used.add(activeFile(activeGeneration).getName());
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            boolean ours = name.startsWith("seg-") || name.startsWith("active.") || name.endsWith(".tmp");
+            if (ours && !used.contains(name)) {
+                log.debug("Removing unused rule index file {}", f);
+                f.delete();
+            }
+        }
+    }
+
+    private static void writeFile(final File file, final byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        // File.renameTo won't replace an existing file everywhere
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Can't rename " + tmp + " to " + file);
+        }
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return ExportArchive.readEntry(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeVarInt(final ByteArrayOutputStream out, final int value) {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static class Doc {
+
+        final int id;
+        final String account;
+        final String script;
+        final String sha256;
+        Segment segment = null;
+
+        Doc(final int id, final String account, final String script, final String sha256) {
+            this.id = id;
+            this.account = account;
+            this.script = script;
+            this.sha256 = sha256;
+        }
+    }
+
+    private static class Segment {
+
+        final int number;
+        final RandomAccessFile file;
+        final long postingsStart;
+        final BitSet deleted = new BitSet();
+        int deleteGeneration = 0;
+        boolean deletesDirty = false;
+        int[] ids;
+        Doc[] docs;
+        String[] terms;
+        int[] offsets;
+
+        Segment(final int number, final RandomAccessFile file, final long postingsStart) {
+            this.number = number;
+            this.file = file;
+            this.postingsStart = postingsStart;
+        }
+
+        /**
+         * Index of the first term that is not less than prefix.
+         */
+        int first(final String prefix) {
+            int i = Arrays.binarySearch(terms, prefix);
+            return i >= 0 ? i : -(i + 1);
+        }
+
+        void read(final int term, final BitSet into) throws IOException {
+            IntList ids = readList(term);
+            for (int i = 0; i < ids.size; i++) {
+                into.set(ids.values[i]);
+            }
+        }
+
+        IntList readList(final int term) throws IOException {
+            byte[] data = new byte[offsets[term + 1] - offsets[term]];
+            synchronized (file) {
+                file.seek(postingsStart + offsets[term]);
+                file.readFully(data);
+            }
+            IntList result = new IntList();
+            int last = 0;
+            int pos = 0;
+            while (pos < data.length) {
+                int value = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = data[pos++] & 0xFF;
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                last += value;
+                result.add(last);
+            }
+            return result;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Growable list of sorted ints.
+     */
+    private static class IntList {
+
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(final IntList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        IntList filter(final BitSet keep) {
+            IntList result = new IntList();
+            for (int i = 0; i < size; i++) {
+                if (keep.get(values[i])) {
+                    result.add(values[i]);
+                }
+            }
+            return result;
+        }
+
+        BitSet toBitSet() {
+            BitSet result = new BitSet();
+            for (int i = 0; i < size; i++) {
+                result.set(values[i]);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A search of a {@link RuleIndex}. Queries are built from facts (see
+ * {@link com.fluffypeople.managesieve.script.RuleFacts}) and combined with
+ * {@link #and}, {@link #or} and {@link #not}. For example, accounts whose
+ * active script files mail from one address:
+ * <pre>
+ * RuleQuery.and(RuleQuery.active(),
+ *         RuleQuery.term("match", "from=boss@example.com"),
+ *         RuleQuery.term("action", "fileinto"))
+ * </pre>
+ * Values are lower cased, to match the facts.
+ * <p>
+ * Queries are immutable.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public final class RuleQuery {
+
+    enum Op {
+
+        TERM, PREFIX, AND, OR, NOT, ACTIVE
+    }
+
+    final Op op;
+    final String term;
+    final List<RuleQuery> children;
+
+    private RuleQuery(final Op op, final String term, final List<RuleQuery> children) {
+        this.op = op;
+        this.term = term;
+        this.children = children;
+    }
+
+    /**
+     * Scripts with a fact.
+     *
+     * @param field String field, such as <code>redirect</code>
+     * @param value String value
+     */
+    public static RuleQuery term(final String field, final String value) {
+        return new RuleQuery(Op.TERM, field + ":" + value.toLowerCase(Locale.ROOT), null);
+    }
+
+    /**
+     * Scripts with a fact whose value starts with a prefix.
+     *
+     * @param field  String field, such as <code>redirect-domain</code>
+     * @param prefix String start of the value
+     */
+    public static RuleQuery prefix(final String field, final String prefix) {
+        return new RuleQuery(Op.PREFIX, field + ":" + prefix.toLowerCase(Locale.ROOT), null);
+    }
+
+    /**
+     * Scripts with any value for a field.
+     */
+    public static RuleQuery field(final String field) {
+        return prefix(field, "");
+    }
+
+    /**
+     * Scripts that match every query.
+     */
+    public static RuleQuery and(final RuleQuery... queries) {
+        return combine(Op.AND, queries);
+    }
+
+    /**
+     * Scripts that match any query.
+     */
+    public static RuleQuery or(final RuleQuery... queries) {
+        return combine(Op.OR, queries);
+    }
+
+    /**
+     * Scripts that don't match a query.
+     */
+    public static RuleQuery not(final RuleQuery query) {
+        return new RuleQuery(Op.NOT, null, Collections.singletonList(query));
+    }
+
+    /**
+     * Scripts that are their account's active script.
+     */
+    public static RuleQuery active() {
+        return new RuleQuery(Op.ACTIVE, null, null);
+    }
+
+    private static RuleQuery combine(final Op op, final RuleQuery[] queries) {
+        if (queries.length == 0) {
+            throw new IllegalArgumentException(op + " needs at least one query");
+        }
+        return new RuleQuery(op, null, Collections.unmodifiableList(new ArrayList<RuleQuery>(Arrays.asList(queries))));
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case TERM:
+                return term;
+            case PREFIX:
+                return term + "*";
+            case ACTIVE:
+                return "active";
+            case NOT:
+                return "not " + children.get(0);
+            default:
+                StringBuilder result = new StringBuilder("(");
+                for (int i = 0; i < children.size(); i++) {
+                    if (i > 0) {
+                        result.append(op == Op.AND ? " and " : " or ");
+                    }
+                    result.append(children.get(i));
+                }
+                return result.append(")").toString();
+        }
+    }
+}
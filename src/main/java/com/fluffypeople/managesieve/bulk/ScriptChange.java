@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+/**
+ * A change to an account's scripts, seen by a {@link ChangePoller}.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ScriptChange {
+
+    public enum Type {
+
+        /**
+         * A script that wasn't there before.
+         */
+        ADDED,
+        /**
+         * A script that has gone.
+         */
+        REMOVED,
+        /**
+         * A script whose body has changed.
+         */
+        MODIFIED,
+        /**
+         * A script that has become the active script.
+         */
+        ACTIVATED,
+        /**
+         * A script that has stopped being the active script.
+         */
+        DEACTIVATED
+    }
+
+    private final Account account;
+    private final String script;
+    private final Type type;
+    private final String body;
+    private final String sha256;
+
+    ScriptChange(final Account account, final String script, final Type type, final String body, final String sha256) {
+        this.account = account;
+        this.script = script;
+        this.type = type;
+        this.body = body;
+        this.sha256 = sha256;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The new body, for ADDED and MODIFIED changes. Null otherwise.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * SHA-256 of the new body, for ADDED and MODIFIED changes. Null
+     * otherwise.
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + account + "/" + script;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.session.Backoff;
+import com.fluffypeople.managesieve.session.SessionSource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the {@link SessionSource} for an account, based on the account's
+ * backend. Accounts without a backend, or with one that hasn't been added,
+ * use the default source.
+ * <p>
+ * The router also holds the retry policy for bulk jobs. Work for an account
+ * that fails because the backend is overloaded (see
+ * {@link com.fluffypeople.managesieve.session.AdaptiveLimiter#isOverload(Throwable)})
+ * is tried again after a jittered backoff, up to
+ * {@link #getMaxAttempts()} times in all.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class SessionRouter {
+
+    private final SessionSource defaultSource;
+    private final Map<String, SessionSource> backends = new ConcurrentHashMap<String, SessionSource>();
+    private volatile int maxAttempts = 3;
+    private volatile Backoff backoff = new Backoff(200, 10000);
+
+    public SessionRouter(final SessionSource defaultSource) {
+        this.defaultSource = defaultSource;
+    }
+
+    /**
+     * Add a named backend.
+     *
+     * @param name   String backend name, as used by {@link Account#getBackend()}
+     * @param source SessionSource for the backend
+     * @return this router, for chaining
+     */
+    public SessionRouter addBackend(final String name, final SessionSource source) {
+        backends.put(name, source);
+        return this;
+    }
+
+    /**
+     * Set how work is retried when a backend is overloaded.
+     *
+     * @param maxAttempts int attempts in all, including the first. One means
+     *                    don't retry.
+     * @param backoff     Backoff to wait between attempts
+     * @return this router, for chaining
+     */
+    public SessionRouter setRetry(final int maxAttempts, final Backoff backoff) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive, got " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoff = backoff;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Backoff getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * Get the session source for an account.
+     */
+    public SessionSource sourceFor(final Account account) {
+        if (account.getBackend() != null) {
+            SessionSource source = backends.get(account.getBackend());
+            if (source != null) {
+                return source;
+            }
+        }
+        return defaultSource;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.session.AdaptiveLimiter;
+import com.fluffypeople.managesieve.session.CircuitBreaker;
+import com.fluffypeople.managesieve.session.SessionSource;
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link BulkRunner.Task} that needs a session for the account. The session
+ * is borrowed from the account's {@link SessionSource} and given back
+ * afterwards. If the work fails with an exception other than a NO from the
+ * server the session is in an unknown state, so it is invalidated instead of
+ * released.
+ * <p>
+ * If the work fails because the backend is overloaded, the session is given
+ * back with {@link SessionSource#overloaded} and the whole thing is tried
+ * again with a new session, following the router's retry policy. The work
+ * must be safe to repeat.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+abstract class SessionTask implements BulkRunner.Task {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionTask.class);
+    private final SessionRouter router;
+
+    SessionTask(final SessionRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public void process(final Account account) throws IOException, ParseException {
+        SessionSource source = router.sourceFor(account);
+        int attempt = 0;
+        while (true) {
+            try {
+                attempt(account, source);
+                return;
+            } catch (IOException ex) {
+                if (!AdaptiveLimiter.isOverload(ex) || attempt + 1 >= router.getMaxAttempts()) {
+                    throw ex;
+                }
+                log.debug("{}: backend overloaded, retrying: {}", account, ex.getMessage());
+                router.getBackoff().sleep(attempt);
+                attempt += 1;
+            }
+        }
+    }
+
+    private void attempt(final Account account, final SessionSource source) throws IOException, ParseException {
+        ManageSieveClient client = source.borrow(account.getCredentials());
+        boolean ok = false;
+        try {
+            process(account, client);
+            ok = true;
+        } catch (IOException ex) {
+            if (AdaptiveLimiter.isOverload(ex)) {
+                source.overloaded(client);
+                client = null;
+            } else if (!CircuitBreaker.isFailure(ex)) {
+                // The server answered NO, the session is still good
+                ok = true;
+            }
+            throw ex;
+        } finally {
+            if (client != null) {
+                if (ok) {
+                    source.release(client);
+                } else {
+                    source.invalidate(client);
+                }
+            }
+        }
+    }
+
+    /**
+     * Do the work for one account.
+     *
+     * @param account the account
+     * @param client  ManageSieveClient authenticated for the account
+     */
+    abstract void process(Account account, ManageSieveClient client) throws IOException, ParseException;
+}
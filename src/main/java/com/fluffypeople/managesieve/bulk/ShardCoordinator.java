@@ -0,0 +1,481 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares a bulk job between several worker processes through a shared
+ * directory.
+ * <p>
+ * The account space is split into a fixed number of shards, and each account
+ * belongs to a shard by consistent hashing of its name. Workers take leases
+ * on shards. A lease is a file in the directory naming the worker and when
+ * the lease expires. A worker must renew its leases before they expire. If
+ * it dies, its leases run out and other workers take over its shards. When a
+ * shard is finished the worker writes a done marker, and the shard is never
+ * handed out again.
+ * <p>
+ * Each shard has its own manifest and journal in the directory, so a worker
+ * that takes over a shard carries on from where the last one stopped (see
+ * {@link JobJournal}). {@link #merge} joins the shard manifests into one.
+ * <p>
+ * Changes to leases are made while holding an exclusive lock on a lock file
+ * in the directory, which works between processes on one machine and, with
+ * most network file systems, between machines. Workers should have roughly
+ * synchronised clocks.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ShardCoordinator {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardCoordinator.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int REPLICAS = 64;
+    // File locks are held per JVM, so threads in one JVM also need a lock
+    private static final Map<String, Object> jvmLocks = new HashMap<String, Object>();
+    private final File dir;
+    private final String workerId;
+    private final int shardCount;
+    private final ConsistentHash ring;
+    private final Object jvmLock;
+    private volatile long leaseTime = 60000;
+
+    /**
+     * @param dir        File shared directory. Created if needed.
+     * @param workerId   String unique name for this worker
+     * @param shardCount int number of shards. Every worker must use the same
+     *                   number.
+     * @throws IOException if the directory can't be created
+     */
+    public ShardCoordinator(final File dir, final String workerId, final int shardCount) throws IOException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive, got " + shardCount);
+        }
+        if (workerId.indexOf('\t') != -1 || workerId.indexOf('\n') != -1) {
+            throw new IllegalArgumentException("workerId can't contain tabs or newlines");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        this.dir = dir;
+        this.workerId = workerId;
+        this.shardCount = shardCount;
+        List<String> names = new ArrayList<String>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            names.add(shardName(i));
+        }
+        this.ring = new ConsistentHash(names, REPLICAS);
+        String key = dir.getCanonicalPath();
+        synchronized (jvmLocks) {
+            Object lock = jvmLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                jvmLocks.put(key, lock);
+            }
+            this.jvmLock = lock;
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Set how long a lease lasts without being renewed. Defaults to one
+     * minute.
+     *
+     * @param leaseTime long milliseconds
+     */
+    public void setLeaseTime(final long leaseTime) {
+        this.leaseTime = leaseTime;
+    }
+
+    public long getLeaseTime() {
+        return leaseTime;
+    }
+
+    /**
+     * Find the shard an account belongs to.
+     *
+     * @param account String account name
+     * @return int shard number
+     */
+    public int shardOf(final String account) {
+        String name = ring.nodeFor(account);
+        return Integer.parseInt(name.substring(name.indexOf('-') + 1));
+    }
+
+    /**
+     * Take a lease on a shard that isn't finished, and isn't leased by a live
+     * worker. Shards are tried starting from a point that depends on the
+     * worker's name, so workers starting together don't all fight over the
+     * same one.
+     *
+     * @return Shard now leased to this worker, or null if none are free
+     * @throws IOException if the directory can't be read or written
+     */
+    public Shard acquire() throws IOException {
+        int start = (int) ((ConsistentHash.hash(workerId) & Long.MAX_VALUE) % shardCount);
+        long now = System.currentTimeMillis();
+        FileLock lock = null;
+        synchronized (jvmLock) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, "coordinator.lock"), "rw");
+            try {
+                lock = lockFile.getChannel().lock();
+                for (int n = 0; n < shardCount; n++) {
+                    int id = (start + n) % shardCount;
+                    if (isDone(id)) {
+                        continue;
+                    }
+                    Lease lease = readLease(id);
+                    if (lease != null && lease.expires > now && !lease.owner.equals(workerId)) {
+                        continue;
+                    }
+                    if (lease != null && !lease.owner.equals(workerId)) {
+                        log.info("Taking over {} from {}, whose lease ran out", shardName(id), lease.owner);
+                    }
+                    writeLease(id, now + leaseTime);
+                    return new Shard(id);
+                }
+                return null;
+            } finally {
+                if (lock != null) {
+                    lock.release();
+                }
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Extend the lease on a shard.
+     *
+     * @param shard Shard leased to this worker
+     * @return true if the lease was renewed, false if another worker has
+     * taken the shard
+     * @throws IOException if the directory can't be read or written
+     */
+    public boolean renew(final Shard shard) throws IOException {
+        return update(shard, false);
+    }
+
+    /**
+     * Mark a shard as finished and give up the lease.
+     *
+     * @param shard Shard leased to this worker
+     * @return true if the shard was marked finished, false if another worker
+     * had taken it
+     * @throws IOException if the directory can't be read or written
+     */
+    public boolean complete(final Shard shard) throws IOException {
+        return update(shard, true);
+    }
+
+    /**
+     * Give up the lease on a shard without finishing it, so another worker
+     * can take it straight away.
+     *
+     * @param shard Shard leased to this worker
+     * @throws IOException if the directory can't be read or written
+     */
+    public void release(final Shard shard) throws IOException {
+        FileLock lock = null;
+        synchronized (jvmLock) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, "coordinator.lock"), "rw");
+            try {
+                lock = lockFile.getChannel().lock();
+                Lease lease = readLease(shard.id);
+                if (lease != null && lease.owner.equals(workerId)) {
+                    leaseFile(shard.id).delete();
+                }
+            } finally {
+                if (lock != null) {
+                    lock.release();
+                }
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Check if every shard is finished.
+     */
+    public boolean isFinished() {
+        for (int id = 0; id < shardCount; id++) {
+            if (!isDone(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Join the manifests of every shard into one, with a single header.
+     * Records cut short by a crash are left out.
+     *
+     * @param out Writer to write to. Flushed, but not closed.
+     * @throws IOException if a manifest can't be read, or out can't be
+     *                     written
+     */
+    public void merge(final Writer out) throws IOException {
+        int fields = ManifestWriter.HEADER.split("\t").length;
+        out.write(ManifestWriter.HEADER);
+        out.write("\n");
+        for (int id = 0; id < shardCount; id++) {
+            File manifest = new Shard(id).getManifestFile();
+            if (!manifest.exists()) {
+                continue;
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), UTF8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("#") || line.split("\t", -1).length != fields) {
+                        continue;
+                    }
+                    out.write(line);
+                    out.write("\n");
+                }
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    private boolean update(final Shard shard, final boolean finish) throws IOException {
+        FileLock lock = null;
+        synchronized (jvmLock) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, "coordinator.lock"), "rw");
+            try {
+                lock = lockFile.getChannel().lock();
+                Lease lease = readLease(shard.id);
+                if (lease == null || !lease.owner.equals(workerId)) {
+                    log.warn("Lost the lease on {} to {}", shard, lease != null ? lease.owner : "nobody");
+                    return false;
+                }
+                if (finish) {
+                    write(doneFile(shard.id), workerId + "\n");
+                    leaseFile(shard.id).delete();
+                } else {
+                    writeLease(shard.id, System.currentTimeMillis() + leaseTime);
+                }
+                return true;
+            } finally {
+                if (lock != null) {
+                    lock.release();
+                }
+                lockFile.close();
+            }
+        }
+    }
+
+    private boolean isDone(final int id) {
+        return doneFile(id).exists();
+    }
+
+    private Lease readLease(final int id) throws IOException {
+        File file = leaseFile(id);
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line = in.readLine();
+            String[] parts = line != null ? line.split("\t") : new String[0];
+            if (parts.length != 2) {
+                // Half written by a worker that died. Treat it as expired.
+                return new Lease("", 0);
+            }
+            return new Lease(parts[0], Long.parseLong(parts[1]));
+        } catch (NumberFormatException ex) {
+            return new Lease("", 0);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeLease(final int id, final long expires) throws IOException {
+        write(leaseFile(id), workerId + "\t" + expires + "\n");
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(UTF8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private File leaseFile(final int id) {
+        return new File(dir, shardName(id) + ".lease");
+    }
+
+    private File doneFile(final int id) {
+        return new File(dir, shardName(id) + ".done");
+    }
+
+    private static String shardName(final int id) {
+        return "shard-" + id;
+    }
+
+    private static class Lease {
+
+        private final String owner;
+        private final long expires;
+
+        Lease(final String owner, final long expires) {
+            this.owner = owner;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A shard leased to this worker.
+     */
+    public class Shard {
+
+        private final int id;
+        private volatile boolean leaseLost = false;
+
+        private Shard(final int id) {
+            this.id = id;
+        }
+
+        /**
+         * Check if this worker has lost the lease, because another worker
+         * took the shard or the lease couldn't be renewed in time. A job
+         * that sees this should stop, since another worker may be writing
+         * the shard's journal and manifest.
+         */
+        public boolean isLeaseLost() {
+            return leaseLost;
+        }
+
+        void leaseLost() {
+            leaseLost = true;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return shardName(id);
+        }
+
+        /**
+         * Check if an account belongs to this shard.
+         */
+        public boolean contains(final String account) {
+            return shardOf(account) == id;
+        }
+
+        /**
+         * Get a file in the shared directory that belongs to this shard.
+         *
+         * @param suffix String added to the shard name, for example ".zip"
+         * @return File
+         */
+        public File getFile(final String suffix) {
+            return new File(dir, getName() + suffix);
+        }
+
+        public File getManifestFile() {
+            return getFile(".tsv");
+        }
+
+        public File getJournalFile() {
+            return getFile(".journal");
+        }
+
+        /**
+         * Open the shard's manifest for appending, so the records of an
+         * earlier worker are kept. A record the earlier worker didn't finish
+         * is ended, so it can be spotted and dropped by {@link #merge}.
+         *
+         * @return Writer for the manifest. Must be closed by the caller.
+         * @throws IOException if the manifest can't be opened
+         */
+        public Writer openManifest() throws IOException {
+            File file = getManifestFile();
+            FileOutputStream out = new FileOutputStream(file, true);
+            FileChannel channel = out.getChannel();
+            if (channel.size() > 0) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.getChannel().read(last, raf.length() - 1);
+                } finally {
+                    raf.close();
+                }
+                if (last.get(0) != '\n') {
+                    out.write('\n');
+                }
+            }
+            return new OutputStreamWriter(out, UTF8);
+        }
+
+        /**
+         * Open the shard's journal.
+         */
+        public JobJournal openJournal() throws IOException {
+            return JobJournal.open(getJournalFile());
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+}
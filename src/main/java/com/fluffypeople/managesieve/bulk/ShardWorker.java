@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.session.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a bulk job as one of several workers sharing a
+ * {@link ShardCoordinator}. The worker takes shards one at a time, runs the
+ * job on the accounts in the shard, and marks it finished, until every shard
+ * is finished. Leases are renewed in the background while the job runs.
+ * <p>
+ * Jobs should use the shard's journal and manifest (see
+ * {@link ShardCoordinator.Shard}), so that a worker taking over a shard from
+ * a dead one skips the accounts that were already done.
+ * <p>
+ * If the lease is lost, because another worker took the shard or renewals
+ * kept failing for longer than the lease time, the job's account source
+ * stops giving out accounts and the thread running the job is interrupted.
+ * The shard is left to its new owner and isn't marked finished. The job must
+ * not return until everything it started has stopped, or its threads could
+ * still be writing to a shard that someone else now owns.
+ * {@link BulkDeployer} waits for its workers before it throws.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ShardWorker {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardWorker.class);
+
+    /**
+     * Opens a fresh source of every account. Called once per shard, so it
+     * must give the same accounts each time.
+     * <p>
+     * Each shard reads the whole source and keeps the accounts that hash to
+     * it, so a worker that runs S shards reads the source S times. That costs
+     * one hash per account per shard, and nothing is held in memory or
+     * written to disk, which matters because accounts carry credentials. A
+     * source that is slow to read (a directory server, say) should be copied
+     * to a local list or file first.
+     */
+    public interface Accounts {
+
+        AccountSource open() throws IOException;
+    }
+
+    /**
+     * The work to do for one shard.
+     */
+    public interface Job {
+
+        /**
+         * @param shard    Shard being worked on
+         * @param accounts AccountSource of the accounts in the shard
+         */
+        void run(ShardCoordinator.Shard shard, AccountSource accounts) throws IOException, InterruptedException;
+    }
+
+    private final ShardCoordinator coordinator;
+    private final Accounts accounts;
+    private long pollInterval = 1000;
+
+    public ShardWorker(final ShardCoordinator coordinator, final Accounts accounts) {
+        this.coordinator = coordinator;
+        this.accounts = accounts;
+    }
+
+    /**
+     * Set how long to wait before looking again when every unfinished shard
+     * is leased by another worker.
+     *
+     * @param pollInterval long milliseconds
+     */
+    public void setPollInterval(final long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Work on shards until they are all finished.
+     *
+     * @param job Job to run for each shard
+     * @return int number of shards finished by this worker
+     * @throws IOException          if the shared directory or account source
+     *                              fails, or the job throws
+     * @throws InterruptedException if interrupted
+     */
+    public int run(final Job job) throws IOException, InterruptedException {
+        int finished = 0;
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("shard-renew-" + coordinator.getWorkerId()));
+        try {
+            while (!coordinator.isFinished()) {
+                final ShardCoordinator.Shard shard = coordinator.acquire();
+                if (shard == null) {
+                    Thread.sleep(pollInterval);
+                    continue;
+                }
+                log.info("{}: working on {}", coordinator.getWorkerId(), shard);
+                final LeaseGuard guard = new LeaseGuard(shard, Thread.currentThread(), coordinator.getLeaseTime());
+                long period = Math.max(1, coordinator.getLeaseTime() / 3);
+                ScheduledFuture<?> renewal = renewer.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (coordinator.renew(shard)) {
+                                guard.renewed();
+                            } else {
+                                guard.lost();
+                            }
+                        } catch (IOException ex) {
+                            log.warn("Can't renew lease on {}", shard, ex);
+                            guard.failed();
+                        }
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+
+                boolean ok = false;
+                try {
+                    job.run(shard, new ShardAccountSource(accounts.open(), shard));
+                    ok = true;
+                } catch (IOException ex) {
+                    if (!shard.isLeaseLost()) {
+                        throw ex;
+                    }
+                } catch (InterruptedException ex) {
+                    if (!shard.isLeaseLost()) {
+                        throw ex;
+                    }
+                } finally {
+                    renewal.cancel(false);
+                    guard.finished();
+                    if (!ok && !shard.isLeaseLost()) {
+                        coordinator.release(shard);
+                    }
+                }
+                if (shard.isLeaseLost()) {
+                    // Clear the interrupt from the guard
+                    Thread.interrupted();
+                    log.warn("{}: lost the lease on {}, leaving it to its new owner", coordinator.getWorkerId(), shard);
+                    continue;
+                }
+                if (coordinator.complete(shard)) {
+                    finished += 1;
+                }
+            }
+        } finally {
+            renewer.shutdownNow();
+        }
+        return finished;
+    }
+
+    /**
+     * Watches the lease on a shard while a job runs, and stops the job if
+     * the lease is lost.
+     */
+    private static class LeaseGuard {
+
+        private final ShardCoordinator.Shard shard;
+        private final Thread thread;
+        private final long leaseTime;
+        private long lastRenewed = System.currentTimeMillis();
+        private boolean running = true;
+
+        LeaseGuard(final ShardCoordinator.Shard shard, final Thread thread, final long leaseTime) {
+            this.shard = shard;
+            this.thread = thread;
+            this.leaseTime = leaseTime;
+        }
+
+        synchronized void renewed() {
+            lastRenewed = System.currentTimeMillis();
+        }
+
+        /**
+         * A renewal failed. Once the lease has had time to run out, another
+         * worker may have it.
+         */
+        synchronized void failed() {
+            if (System.currentTimeMillis() - lastRenewed >= leaseTime) {
+                lost();
+            }
+        }
+
+        synchronized void lost() {
+            if (running && !shard.isLeaseLost()) {
+                shard.leaseLost();
+                thread.interrupt();
+            }
+        }
+
+        synchronized void finished() {
+            running = false;
+        }
+    }
+
+    /**
+     * Passes on only the accounts in one shard, until the lease is lost.
+     */
+    private static class ShardAccountSource implements AccountSource {
+
+        private final AccountSource source;
+        private final ShardCoordinator.Shard shard;
+
+        ShardAccountSource(final AccountSource source, final ShardCoordinator.Shard shard) {
+            this.source = source;
+            this.shard = shard;
+        }
+
+        @Override
+        public Account next() throws IOException {
+            Account account;
+            do {
+                if (shard.isLeaseLost()) {
+                    return null;
+                }
+                account = source.next();
+            } while (account != null && !shard.contains(account.getName()));
+            return account;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import com.fluffypeople.managesieve.xml.XML;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Estimates how much work a server does to run a script against one message,
+ * from the structure of the script alone.
+ * <p>
+ * Every test and action in the script is counted, as if every branch were
+ * taken, so the estimate is an upper bound. A test against headers costs
+ * <pre>base * headers * keys * match * comparator</pre>
+ * where base depends on the test (address and date tests parse what they
+ * look at, body tests read the whole message), match is 1 for :is, 2 for
+ * :contains, 3 for :matches and more for :regex depending on the pattern,
+ * and comparator is more for Unicode and numeric comparators. Tests and
+ * actions from extensions that keep state or talk to other systems
+ * (duplicate, vacation, notify and so on) have fixed, higher costs.
+ * <p>
+ * The numbers are only meant for comparing scripts with each other.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class CostAnalyzer {
+
+    private static final Map<String, Double> TEST_BASE = new HashMap<String, Double>();
+    private static final Map<String, Double> FIXED_TESTS = new HashMap<String, Double>();
+    private static final Map<String, Double> ACTIONS = new HashMap<String, Double>();
+
+    static {
+        TEST_BASE.put("header", 2.0);
+        TEST_BASE.put("address", 3.0);
+        TEST_BASE.put("envelope", 2.0);
+        TEST_BASE.put("string", 1.0);
+        TEST_BASE.put("date", 3.0);
+        TEST_BASE.put("currentdate", 1.0);
+        TEST_BASE.put("hasflag", 1.0);
+        TEST_BASE.put("metadata", 5.0);
+        TEST_BASE.put("servermetadata", 5.0);
+        TEST_BASE.put("body", 20.0);
+
+        FIXED_TESTS.put("true", 0.0);
+        FIXED_TESTS.put("false", 0.0);
+        FIXED_TESTS.put("size", 1.0);
+        FIXED_TESTS.put("ihave", 1.0);
+        FIXED_TESTS.put("environment", 1.0);
+        FIXED_TESTS.put("valid_notify_method", 2.0);
+        FIXED_TESTS.put("notify_method_capability", 2.0);
+        FIXED_TESTS.put("mailboxexists", 5.0);
+        FIXED_TESTS.put("specialuse_exists", 5.0);
+        FIXED_TESTS.put("spamtest", 5.0);
+        FIXED_TESTS.put("virustest", 5.0);
+        FIXED_TESTS.put("duplicate", 10.0);
+
+        ACTIONS.put("require", 0.0);
+        ACTIONS.put("keep", 1.0);
+        ACTIONS.put("discard", 1.0);
+        ACTIONS.put("fileinto", 1.0);
+        ACTIONS.put("stop", 0.0);
+        ACTIONS.put("set", 1.0);
+        ACTIONS.put("addflag", 1.0);
+        ACTIONS.put("setflag", 1.0);
+        ACTIONS.put("removeflag", 1.0);
+        ACTIONS.put("addheader", 2.0);
+        ACTIONS.put("deleteheader", 2.0);
+        ACTIONS.put("redirect", 5.0);
+        ACTIONS.put("reject", 5.0);
+        ACTIONS.put("ereject", 5.0);
+        ACTIONS.put("include", 5.0);
+        ACTIONS.put("vacation", 10.0);
+        ACTIONS.put("notify", 10.0);
+    }
+
+    /**
+     * Estimate the cost of a script.
+     *
+     * @param name   String name to label the result with
+     * @param script String Sieve script
+     * @return the estimate
+     * @throws ParseException if the script can't be parsed
+     */
+    public ScriptCost analyze(final String name, final String script) throws ParseException {
+        XML xml;
+        try {
+            xml = new SieveToXML().convert(script);
+        } catch (IOException ex) {
+            // Can't happen reading from a String
+            throw new ParseException(ex.getMessage());
+        }
+        ScriptCost result = new ScriptCost(name);
+        block(xml.getDocument().getDocumentElement(), 0, result);
+        return result;
+    }
+
+    /**
+     * Estimate the cost of running one test once, including any tests inside
+     * it.
+     *
+     * @param test Element test from {@link SieveToXML}
+     * @return double estimated cost
+     */
+    public static double testCost(final Element test) {
+        return test(test, null);
+    }
+
+    private void block(final Element block, final int depth, final ScriptCost result) {
+        List<Element> commands = children(block, "control", "action");
+        if (!commands.isEmpty()) {
+            result.depth = Math.max(result.depth, depth);
+        }
+        for (Element command : commands) {
+            String name = command.getAttribute("name");
+            if (name.equals("require")) {
+                for (Element arg : children(command)) {
+                    result.extensions.addAll(strings(arg));
+                }
+            } else if (command.getNodeName().equals("action")) {
+                result.actions += 1;
+                Double cost = ACTIONS.get(name);
+                result.cost += cost != null ? cost : 3;
+            }
+            for (Element test : children(command, "test")) {
+                result.cost += test(test, result);
+            }
+            block(command, depth + 1, result);
+        }
+    }
+
+    /**
+     * Cost of a test, counting what's in it into result if it isn't null.
+     */
+    private static double test(final Element test, final ScriptCost result) {
+        String name = test.getAttribute("name");
+        if (result != null) {
+            result.tests += 1;
+        }
+        if (name.equals("allof") || name.equals("anyof") || name.equals("not")) {
+            double sum = 0;
+            for (Element t : children(test, "test")) {
+                sum += test(t, result);
+            }
+            return sum;
+        }
+        if (name.equals("exists")) {
+            List<Element> args = positional(test);
+            return args.isEmpty() ? 1 : count(args.get(args.size() - 1));
+        }
+        Double fixed = FIXED_TESTS.get(name);
+        if (fixed != null) {
+            return fixed;
+        }
+        Double base = TEST_BASE.get(name);
+        if (base == null) {
+            // Some other extension
+            return 3;
+        }
+        if (result != null && name.equals("body")) {
+            result.bodyTests += 1;
+        }
+
+        double comparator = 1;
+        String matchType = "is";
+        double bodyFactor = 1;
+        List<Element> children = children(test);
+        for (int i = 0; i < children.size(); i++) {
+            Element child = children.get(i);
+            if (!child.getNodeName().equals("tag")) {
+                continue;
+            }
+            String tag = child.getTextContent();
+            if (tag.equals("comparator") && i + 1 < children.size()) {
+                comparator = comparatorCost(children.get(i + 1).getTextContent());
+            } else if (tag.equals("contains") || tag.equals("matches") || tag.equals("regex")
+                    || tag.equals("value") || tag.equals("count")) {
+                matchType = tag;
+            } else if (tag.equals("text")) {
+                bodyFactor = 1.5;
+            } else if (tag.equals("content")) {
+                bodyFactor = 1.25;
+            } else if (tag.equals("raw")) {
+                bodyFactor = 0.75;
+            }
+        }
+
+        List<Element> args = positional(test);
+        List<String> keys = args.isEmpty() ? new ArrayList<String>() : strings(args.get(args.size() - 1));
+        int fields = 1;
+        if (!name.equals("body") && !name.equals("currentdate") && args.size() >= 2) {
+            fields = count(args.get(args.size() - 2));
+        }
+        if (result != null) {
+            result.keys += keys.size();
+        }
+
+        double keyCost = 0;
+        for (String key : keys) {
+            if (matchType.equals("regex")) {
+                if (result != null) {
+                    result.regexes += 1;
+                }
+                keyCost += regexCost(key);
+            } else if (matchType.equals("contains")) {
+                keyCost += 2;
+            } else if (matchType.equals("matches")) {
+                keyCost += 3;
+            } else if (matchType.equals("value") || matchType.equals("count")) {
+                keyCost += 1.5;
+            } else {
+                keyCost += 1;
+            }
+        }
+        return base * bodyFactor * fields * Math.max(keyCost, 1) * comparator;
+    }
+
+    /**
+     * Cost of matching one regular expression. Longer patterns, unbounded
+     * repeats and alternation cost more, and a repeat inside a repeated group
+     * (which can backtrack badly) costs a lot more.
+     */
+    static double regexCost(final String pattern) {
+        double cost = 5 + pattern.length() / 10.0;
+        int depth = 0;
+        boolean repeatInGroup = false;
+        boolean[] groupRepeats = new boolean[pattern.length() + 1];
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i += 1;
+            } else if (c == '(') {
+                depth += 1;
+                groupRepeats[depth] = false;
+            } else if (c == ')') {
+                boolean inner = depth > 0 && groupRepeats[depth];
+                depth = Math.max(0, depth - 1);
+                if (inner && i + 1 < pattern.length() && isRepeat(pattern.charAt(i + 1))) {
+                    repeatInGroup = true;
+                }
+            } else if (c == '|') {
+                cost += 1;
+            } else if (isRepeat(c)) {
+                cost += 2;
+                if (depth > 0) {
+                    groupRepeats[depth] = true;
+                }
+            }
+        }
+        return repeatInGroup ? cost * 10 : cost;
+    }
+
+    private static boolean isRepeat(final char c) {
+        return c == '*' || c == '+' || c == '{';
+    }
+
+    private static double comparatorCost(final String comparator) {
+        if (comparator.equals("i;octet") || comparator.equals("i;ascii-casemap")) {
+            return 1;
+        }
+        if (comparator.equals("i;ascii-numeric")) {
+            return 1.2;
+        }
+        return 1.5;
+    }
+
+    /**
+     * Arguments that aren't tags, or the value that follows a tag that takes
+     * one.
+     */
+    private static List<Element> positional(final Element test) {
+        List<Element> result = new ArrayList<Element>();
+        boolean skipNext = false;
+        for (Element child : children(test)) {
+            String tag = child.getNodeName();
+            if (tag.equals("tag")) {
+                String t = child.getTextContent();
+                skipNext = t.equals("comparator") || t.equals("count") || t.equals("value")
+                        || t.equals("content") || t.equals("zone");
+            } else if (skipNext) {
+                skipNext = false;
+            } else if (!tag.equals("test")) {
+                result.add(child);
+            }
+        }
+        return result;
+    }
+
+    private static int count(final Element arg) {
+        return arg.getNodeName().equals("list") ? Math.max(1, children(arg, "str").size()) : 1;
+    }
+
+    private static List<String> strings(final Element arg) {
+        List<String> result = new ArrayList<String>();
+        if (arg.getNodeName().equals("str")) {
+            result.add(arg.getTextContent());
+        } else if (arg.getNodeName().equals("list")) {
+            for (Element s : children(arg, "str")) {
+                result.add(s.getTextContent());
+            }
+        }
+        return result;
+    }
+
+    private static List<Element> children(final Element parent, final String... names) {
+        List<Element> result = new ArrayList<Element>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && (names.length == 0 || Arrays.asList(names).contains(n.getNodeName()))) {
+                result.add((Element) n);
+            }
+        }
+        return result;
+    }
+}
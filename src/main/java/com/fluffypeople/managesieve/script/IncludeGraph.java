@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The scripts reachable from one script through the include extension (RFC
+ * 6609), as found by {@link IncludeResolver}.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class IncludeGraph {
+
+    public enum Scope {
+
+        PERSONAL, GLOBAL
+    }
+
+    /**
+     * Where a script lives: its scope and name.
+     */
+    public static class Key {
+
+        private final Scope scope;
+        private final String name;
+
+        public Key(final Scope scope, final String name) {
+            this.scope = scope;
+            this.name = name;
+        }
+
+        public Scope getScope() {
+            return scope;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int hashCode() {
+            return scope.hashCode() * 31 + name.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return scope == other.scope && name.equals(other.name);
+        }
+
+        @Override
+        public String toString() {
+            return (scope == Scope.GLOBAL ? ":global " : ":personal ") + "\"" + name + "\"";
+        }
+    }
+
+    /**
+     * One include command.
+     */
+    public static class Include {
+
+        private final Key target;
+        private final boolean once;
+        private final boolean optional;
+
+        Include(final Key target, final boolean once, final boolean optional) {
+            this.target = target;
+            this.once = once;
+            this.optional = optional;
+        }
+
+        public Key getTarget() {
+            return target;
+        }
+
+        public boolean isOnce() {
+            return once;
+        }
+
+        public boolean isOptional() {
+            return optional;
+        }
+    }
+
+    /**
+     * One script in the graph.
+     */
+    public static class Node {
+
+        private final Key key;
+        private final String body;
+        private final String error;
+        private final List<Include> includes;
+
+        Node(final Key key, final String body, final String error, final List<Include> includes) {
+            this.key = key;
+            this.body = body;
+            this.error = error;
+            this.includes = includes;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        /**
+         * Get the script, or null if it doesn't exist.
+         */
+        public String getBody() {
+            return body;
+        }
+
+        public boolean exists() {
+            return body != null;
+        }
+
+        /**
+         * Get the reason the script couldn't be parsed, or null if it could.
+         * Includes in a script that can't be parsed aren't followed.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public List<Include> getIncludes() {
+            return Collections.unmodifiableList(includes);
+        }
+    }
+
+    private final Key root;
+    private final Map<Key, Node> nodes = new LinkedHashMap<Key, Node>();
+    private final List<Key> missing = new ArrayList<Key>();
+    private final List<List<Key>> cycles = new ArrayList<List<Key>>();
+    private int roundTrips = 0;
+
+    IncludeGraph(final Key root) {
+        this.root = root;
+    }
+
+    public Key getRoot() {
+        return root;
+    }
+
+    /**
+     * Get a script in the graph, or null if it isn't reachable from the root.
+     */
+    public Node getNode(final Key key) {
+        return nodes.get(key);
+    }
+
+    /**
+     * Get every script in the graph, in the order they were found.
+     */
+    public Collection<Node> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    /**
+     * Get the scripts that are included without <code>:optional</code> but
+     * don't exist.
+     */
+    public List<Key> getMissing() {
+        return Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * Get the include loops. Each is listed as the scripts in the loop, in
+     * order, starting and ending with the same script.
+     */
+    public List<List<Key>> getCycles() {
+        return Collections.unmodifiableList(cycles);
+    }
+
+    /**
+     * Check if every script exists, parses, and there are no loops.
+     */
+    public boolean isComplete() {
+        if (!missing.isEmpty() || !cycles.isEmpty()) {
+            return false;
+        }
+        for (Node n : nodes.values()) {
+            if (n.getError() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of times the resolver waited for a server (one for each batch
+     * of pipelined commands).
+     */
+    public int getRoundTrips() {
+        return roundTrips;
+    }
+
+    void add(final Node node) {
+        nodes.put(node.getKey(), node);
+    }
+
+    void addMissing(final Key key) {
+        if (!missing.contains(key)) {
+            missing.add(key);
+        }
+    }
+
+    void addRoundTrip() {
+        roundTrips += 1;
+    }
+
+    /**
+     * Find the loops, once every node has been added.
+     */
+    void findCycles() {
+        Map<Key, Integer> state = new LinkedHashMap<Key, Integer>();
+        List<Key> path = new ArrayList<Key>();
+        visit(root, state, path);
+    }
+
+    // state: missing = not seen, 1 = on the current path, 2 = finished
+    private void visit(final Key key, final Map<Key, Integer> state, final List<Key> path) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            return;
+        }
+        state.put(key, 1);
+        path.add(key);
+        for (Include inc : node.includes) {
+            Integer s = state.get(inc.getTarget());
+            if (s == null) {
+                visit(inc.getTarget(), state, path);
+            } else if (s == 1) {
+                List<Key> cycle = new ArrayList<Key>(path.subList(path.indexOf(inc.getTarget()), path.size()));
+                cycle.add(inc.getTarget());
+                cycles.add(cycle);
+            }
+        }
+        path.remove(path.size() - 1);
+        state.put(key, 2);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ExpiringCache;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.Pipeline;
+import com.fluffypeople.managesieve.SieveScript;
+import com.fluffypeople.managesieve.session.SessionSource;
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import com.fluffypeople.managesieve.xml.XML;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Finds every script a script pulls in with the include extension (RFC 6609).
+ * <p>
+ * Each script is parsed with {@link SieveToXML} to find its include commands.
+ * The scripts it includes that haven't been seen yet are fetched together, one
+ * pipelined batch of GETSCRIPTs per level of the graph, so a graph three
+ * levels deep costs three round trips however wide it is. Includes are
+ * followed until nothing new turns up, and then the graph is checked for
+ * loops.
+ * <p>
+ * Personal scripts are fetched with the user's own session. ManageSieve has no
+ * standard way to reach global scripts, so they are only fetched if a source
+ * for them is set with {@link #setGlobalScripts}, usually a session for an
+ * account that holds them. Global scripts are shared by everyone, so they are
+ * cached.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class IncludeResolver {
+
+    private static final Logger log = LoggerFactory.getLogger(IncludeResolver.class);
+    private final ExpiringCache<String, String> globalCache;
+    private volatile SessionSource globalSource = null;
+    private volatile Credentials globalCredentials = null;
+    private final AtomicLong globalFetches = new AtomicLong();
+    private final AtomicLong globalCacheHits = new AtomicLong();
+
+    /**
+     * @param globalCacheSize int number of global scripts to remember
+     * @param globalCacheTtl  long milliseconds to remember each for, or zero
+     *                        for ever
+     */
+    public IncludeResolver(final int globalCacheSize, final long globalCacheTtl) {
+        this.globalCache = new ExpiringCache<String, String>(globalCacheSize, globalCacheTtl);
+    }
+
+    /**
+     * Set where global scripts are fetched from.
+     *
+     * @param source      SessionSource to borrow a session from
+     * @param credentials Credentials of the account holding the global
+     *                    scripts
+     */
+    public void setGlobalScripts(final SessionSource source, final Credentials credentials) {
+        this.globalSource = source;
+        this.globalCredentials = credentials;
+    }
+
+    public long getGlobalFetchCount() {
+        return globalFetches.get();
+    }
+
+    public long getGlobalCacheHitCount() {
+        return globalCacheHits.get();
+    }
+
+    /**
+     * Forget the cached global scripts, for example after they have been
+     * changed.
+     */
+    public void clearGlobalCache() {
+        globalCache.clear();
+    }
+
+    /**
+     * Find every script reachable from one of the user's scripts.
+     *
+     * @param client ManageSieveClient authenticated as the user
+     * @param name   String name of the personal script to start from
+     * @return the graph
+     * @throws IOException    if there are underlying IO issues, or the server
+     *                        sends BYE
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public IncludeGraph resolve(final ManageSieveClient client, final String name) throws IOException, ParseException {
+        IncludeGraph.Key root = new IncludeGraph.Key(IncludeGraph.Scope.PERSONAL, name);
+        IncludeGraph graph = new IncludeGraph(root);
+        Set<IncludeGraph.Key> seen = new LinkedHashSet<IncludeGraph.Key>();
+        seen.add(root);
+        List<IncludeGraph.Key> level = new ArrayList<IncludeGraph.Key>();
+        level.add(root);
+        Map<IncludeGraph.Key, Boolean> optional = new HashMap<IncludeGraph.Key, Boolean>();
+        optional.put(root, Boolean.FALSE);
+
+        while (!level.isEmpty()) {
+            Map<IncludeGraph.Key, String> bodies = fetch(client, level, graph);
+            List<IncludeGraph.Key> next = new ArrayList<IncludeGraph.Key>();
+            for (IncludeGraph.Key key : level) {
+                String body = bodies.get(key);
+                if (body == null) {
+                    graph.add(new IncludeGraph.Node(key, null, null, new ArrayList<IncludeGraph.Include>()));
+                    continue;
+                }
+                List<IncludeGraph.Include> includes = new ArrayList<IncludeGraph.Include>();
+                String error = null;
+                try {
+                    includes = findIncludes(body);
+                } catch (ParseException ex) {
+                    error = ex.getMessage();
+                    log.debug("Can't parse {}: {}", key, error);
+                } catch (RuntimeException ex) {
+                    // SieveToXML throws these for an unterminated text: block
+                    error = "Can't parse script: " + ex;
+                    log.debug("Can't parse {}: {}", key, error);
+                }
+                graph.add(new IncludeGraph.Node(key, body, error, includes));
+                for (IncludeGraph.Include inc : includes) {
+                    IncludeGraph.Key target = inc.getTarget();
+                    // Only optional if every include of it is
+                    Boolean wasOptional = optional.get(target);
+                    optional.put(target, (wasOptional == null || wasOptional) && inc.isOptional());
+                    if (seen.add(target)) {
+                        next.add(target);
+                    }
+                }
+            }
+            level = next;
+        }
+        // Only now is it known if every include of a script was optional
+        for (IncludeGraph.Node n : graph.getNodes()) {
+            if (!n.exists() && !optional.get(n.getKey())) {
+                graph.addMissing(n.getKey());
+            }
+        }
+        graph.findCycles();
+        return graph;
+    }
+
+    /**
+     * Find the include commands in a script.
+     *
+     * @param script String Sieve script
+     * @return List of includes, in the order they appear
+     * @throws ParseException if the script can't be parsed
+     */
+    public static List<IncludeGraph.Include> findIncludes(final String script) throws ParseException {
+        XML xml;
+        try {
+            xml = new SieveToXML().convert(script);
+        } catch (IOException ex) {
+            // Can't happen reading from a String
+            throw new ParseException(ex.getMessage());
+        }
+        List<IncludeGraph.Include> result = new ArrayList<IncludeGraph.Include>();
+        NodeList actions = xml.getDocument().getElementsByTagName("action");
+        for (int i = 0; i < actions.getLength(); i++) {
+            Element action = (Element) actions.item(i);
+            if (!"include".equals(action.getAttribute("name"))) {
+                continue;
+            }
+            IncludeGraph.Scope scope = IncludeGraph.Scope.PERSONAL;
+            boolean once = false;
+            boolean isOptional = false;
+            String name = null;
+            for (Node child = action.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (!(child instanceof Element)) {
+                    continue;
+                }
+                String tag = child.getNodeName();
+                String text = child.getTextContent();
+                if ("tag".equals(tag)) {
+                    if ("global".equals(text)) {
+                        scope = IncludeGraph.Scope.GLOBAL;
+                    } else if ("once".equals(text)) {
+                        once = true;
+                    } else if ("optional".equals(text)) {
+                        isOptional = true;
+                    }
+                } else if ("str".equals(tag)) {
+                    name = text;
+                }
+            }
+            if (name == null) {
+                throw new ParseException("include without a script name");
+            }
+            result.add(new IncludeGraph.Include(new IncludeGraph.Key(scope, name), once, isOptional));
+        }
+        return result;
+    }
+
+    /**
+     * Fetch one level of scripts: personal ones in one pipeline on the user's
+     * session, global ones from the cache or in one pipeline on a global
+     * session.
+     */
+    private Map<IncludeGraph.Key, String> fetch(final ManageSieveClient client, final List<IncludeGraph.Key> keys, final IncludeGraph graph) throws IOException, ParseException {
+        Map<IncludeGraph.Key, String> result = new HashMap<IncludeGraph.Key, String>();
+        List<String> personal = new ArrayList<String>();
+        List<String> global = new ArrayList<String>();
+        for (IncludeGraph.Key key : keys) {
+            if (key.getScope() == IncludeGraph.Scope.PERSONAL) {
+                personal.add(key.getName());
+            } else {
+                String cached = globalCache.get(key.getName());
+                if (cached != null) {
+                    globalCacheHits.incrementAndGet();
+                    result.put(key, cached);
+                } else {
+                    global.add(key.getName());
+                }
+            }
+        }
+        if (!personal.isEmpty()) {
+            for (Map.Entry<String, String> e : getScripts(client, personal).entrySet()) {
+                result.put(new IncludeGraph.Key(IncludeGraph.Scope.PERSONAL, e.getKey()), e.getValue());
+            }
+            graph.addRoundTrip();
+        }
+        SessionSource source = globalSource;
+        if (!global.isEmpty() && source != null) {
+            ManageSieveClient globalClient = source.borrow(globalCredentials);
+            Map<String, String> found;
+            try {
+                found = getScripts(globalClient, global);
+            } catch (IOException ex) {
+                source.invalidate(globalClient);
+                throw ex;
+            } catch (ParseException ex) {
+                source.invalidate(globalClient);
+                throw ex;
+            }
+            source.release(globalClient);
+            globalFetches.addAndGet(global.size());
+            graph.addRoundTrip();
+            for (Map.Entry<String, String> e : found.entrySet()) {
+                globalCache.put(e.getKey(), e.getValue());
+                result.put(new IncludeGraph.Key(IncludeGraph.Scope.GLOBAL, e.getKey()), e.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * GETSCRIPT several scripts in one pipeline.
+     *
+     * @return Map of name to body, for the scripts that exist
+     */
+    private static Map<String, String> getScripts(final ManageSieveClient client, final List<String> names) throws IOException, ParseException {
+        Pipeline pipeline = client.pipeline();
+        List<SieveScript> scripts = new ArrayList<SieveScript>();
+        for (String name : names) {
+            SieveScript s = new SieveScript(name, null, false);
+            scripts.add(s);
+            pipeline.getScript(s);
+        }
+        List<ManageSieveResponse> responses = pipeline.execute();
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < scripts.size(); i++) {
+            ManageSieveResponse resp = responses.get(i);
+            if (resp.isBye()) {
+                throw new ManageSieveException("Server sent BYE fetching " + scripts.get(i).getName(), resp);
+            }
+            if (resp.isOk()) {
+                result.put(scripts.get(i).getName(), scripts.get(i).getBody());
+            }
+        }
+        return result;
+    }
+}
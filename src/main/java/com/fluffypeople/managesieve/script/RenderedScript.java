@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A script body made by {@link ScriptTemplate#render}, already encoded as
+ * UTF-8 and ready to be sent with
+ * {@link com.fluffypeople.managesieve.ManageSieveClient#putscript(String, byte[])}.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class RenderedScript {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final byte[] body;
+
+    RenderedScript(final byte[] body) {
+        this.body = body;
+    }
+
+    /**
+     * Get the encoded body. This is not a copy, so don't change it.
+     */
+    public byte[] getBytes() {
+        return body;
+    }
+
+    /**
+     * Get the length of the encoded body in bytes, as needed for the literal
+     * it is sent in.
+     */
+    public int getLength() {
+        return body.length;
+    }
+
+    /**
+     * Get the literal header the body is sent after, for example
+     * <code>{123+}</code>.
+     */
+    public String getLiteralHeader() {
+        return "{" + body.length + "+}";
+    }
+
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(body);
+    }
+
+    /**
+     * Decode the body back to a String.
+     */
+    @Override
+    public String toString() {
+        return new String(body, UTF8);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import com.fluffypeople.managesieve.xml.XML;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Pulls searchable facts out of a script.
+ * <p>
+ * Each fact is a string <code>field:value</code>. Values are lower cased,
+ * so searches are not case sensitive. The fields are:
+ * <ul>
+ * <li><code>require</code> - an extension named in require</li>
+ * <li><code>action</code> - an action or command, such as
+ * <code>redirect</code> or <code>stop</code></li>
+ * <li>the name of an action - a positional argument of the action, for
+ * example <code>fileinto:junk</code> or
+ * <code>redirect:bob@example.com</code></li>
+ * <li>the name of an action, a dot, and a tag - a tagged argument of the
+ * action, for example <code>vacation.from:me@example.com</code></li>
+ * <li><code>redirect-domain</code> - the domain of a redirect address</li>
+ * <li><code>test</code> - a test, such as <code>header</code> or
+ * <code>body</code></li>
+ * <li><code>header</code> - a header looked at by header, address, exists or
+ * date tests</li>
+ * <li><code>envelope</code> - an envelope part looked at by an envelope
+ * test</li>
+ * <li><code>key</code> - a key that a test compares against</li>
+ * <li><code>match</code> - a header and a key it's compared against, as
+ * <code>header=key</code>, for example <code>match:from=boss@example.com</code>.
+ * Envelope parts are written <code>envelope.part</code>.</li>
+ * <li><code>error</code> - <code>parse</code> if the script can't be
+ * parsed</li>
+ * </ul>
+ * Values longer than {@link #MAX_VALUE} characters, such as vacation
+ * messages, are left out.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class RuleFacts {
+
+    public static final int MAX_VALUE = 256;
+    public static final String PARSE_ERROR = "error:parse";
+    private static final Set<String> BLOCKS = new HashSet<String>(Arrays.asList("if", "elsif", "else", "require"));
+    private static final Set<String> TEST_VALUE_TAGS = new HashSet<String>(Arrays.asList(
+            "comparator", "count", "value", "zone", "content", "index"));
+    private static final Set<String> ACTION_VALUE_TAGS = new HashSet<String>(Arrays.asList(
+            "days", "seconds", "subject", "from", "addresses", "handle", "importance", "message",
+            "options", "flags", "specialuse", "mailboxid", "last", "index", "comparator"));
+    private static final int MAX_MATCHES = 100;
+
+    private RuleFacts() {
+    }
+
+    /**
+     * Get the facts about a script. A script that can't be parsed has the
+     * single fact {@link #PARSE_ERROR}.
+     *
+     * @param script String Sieve script
+     * @return Set of facts, sorted
+     */
+    public static Set<String> extract(final String script) {
+        XML xml;
+        try {
+            xml = new SieveToXML().convert(script);
+        } catch (ParseException ex) {
+            return new TreeSet<String>(Arrays.asList(PARSE_ERROR));
+        } catch (IOException ex) {
+            // Can't happen reading from a String
+            return new TreeSet<String>(Arrays.asList(PARSE_ERROR));
+        } catch (RuntimeException ex) {
+            // SieveToXML throws these for an unterminated text: block
+            return new TreeSet<String>(Arrays.asList(PARSE_ERROR));
+        }
+        Set<String> facts = new TreeSet<String>();
+        block(xml.getDocument().getDocumentElement(), facts);
+        return facts;
+    }
+
+    private static void block(final Element block, final Set<String> facts) {
+        for (Element command : children(block, "control", "action")) {
+            String name = lower(command.getAttribute("name"));
+            if (name.equals("require")) {
+                for (Element arg : children(command)) {
+                    for (String ext : strings(arg)) {
+                        add(facts, "require", ext);
+                    }
+                }
+            } else if (!BLOCKS.contains(name)) {
+                action(command, name, facts);
+            }
+            for (Element test : children(command, "test")) {
+                test(test, facts);
+            }
+            block(command, facts);
+        }
+    }
+
+    private static void action(final Element action, final String name, final Set<String> facts) {
+        add(facts, "action", name);
+        String tag = null;
+        for (Element child : children(action)) {
+            String type = child.getNodeName();
+            if (type.equals("tag")) {
+                String t = lower(child.getTextContent());
+                tag = ACTION_VALUE_TAGS.contains(t) ? t : null;
+                continue;
+            }
+            if (type.equals("test")) {
+                continue;
+            }
+            String field = tag != null ? name + "." + tag : name;
+            for (String value : strings(child)) {
+                add(facts, field, value);
+                if (tag == null && name.equals("redirect")) {
+                    int at = value.lastIndexOf('@');
+                    if (at >= 0 && at + 1 < value.length()) {
+                        add(facts, "redirect-domain", value.substring(at + 1));
+                    }
+                }
+            }
+            tag = null;
+        }
+    }
+
+    private static void test(final Element test, final Set<String> facts) {
+        String name = lower(test.getAttribute("name"));
+        add(facts, "test", name);
+        for (Element inner : children(test, "test")) {
+            test(inner, facts);
+        }
+
+        List<Element> args = positional(test);
+        if (args.isEmpty()) {
+            return;
+        }
+        List<String> keys = strings(args.get(args.size() - 1));
+        List<String> fields = new ArrayList<String>();
+        if (name.equals("exists")) {
+            for (String h : keys) {
+                add(facts, "header", h);
+            }
+            return;
+        } else if ((name.equals("header") || name.equals("address")) && args.size() >= 2) {
+            for (String h : strings(args.get(args.size() - 2))) {
+                add(facts, "header", h);
+                fields.add(h);
+            }
+        } else if (name.equals("envelope") && args.size() >= 2) {
+            for (String p : strings(args.get(args.size() - 2))) {
+                add(facts, "envelope", p);
+                fields.add("envelope." + p);
+            }
+        } else if (name.equals("date") && args.size() >= 3) {
+            for (String h : strings(args.get(0))) {
+                add(facts, "header", h);
+                fields.add(h);
+            }
+        }
+        for (String key : keys) {
+            add(facts, "key", key);
+        }
+        int matches = 0;
+        for (String field : fields) {
+            for (String key : keys) {
+                if (matches++ < MAX_MATCHES) {
+                    add(facts, "match", field + "=" + key);
+                }
+            }
+        }
+    }
+
+    private static void add(final Set<String> facts, final String field, final String value) {
+        if (value.length() <= MAX_VALUE) {
+            facts.add(field + ":" + lower(value));
+        }
+    }
+
+    private static String lower(final String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Arguments that aren't tags, or the value that follows a tag that takes
+     * one.
+     */
+    private static List<Element> positional(final Element test) {
+        List<Element> result = new ArrayList<Element>();
+        boolean skipNext = false;
+        for (Element child : children(test)) {
+            String tag = child.getNodeName();
+            if (tag.equals("tag")) {
+                skipNext = TEST_VALUE_TAGS.contains(child.getTextContent());
+            } else if (skipNext) {
+                skipNext = false;
+            } else if (!tag.equals("test")) {
+                result.add(child);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> strings(final Element arg) {
+        List<String> result = new ArrayList<String>();
+        if (arg.getNodeName().equals("str")) {
+            result.add(arg.getTextContent());
+        } else if (arg.getNodeName().equals("list")) {
+            for (Element s : children(arg, "str")) {
+                result.add(s.getTextContent());
+            }
+        }
+        return result;
+    }
+
+    private static List<Element> children(final Element parent, final String... names) {
+        List<Element> result = new ArrayList<Element>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && (names.length == 0 || Arrays.asList(names).contains(n.getNodeName()))) {
+                result.add((Element) n);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The estimated cost of running one script, from {@link CostAnalyzer}.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ScriptCost {
+
+    private final String name;
+    double cost = 0;
+    int tests = 0;
+    int actions = 0;
+    int regexes = 0;
+    int bodyTests = 0;
+    int keys = 0;
+    int depth = 0;
+    final Set<String> extensions = new TreeSet<String>();
+
+    ScriptCost(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the name given to {@link CostAnalyzer#analyze(String, String)}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Estimated work per message, in arbitrary units. Roughly, one unit is
+     * comparing one header against one key with :is.
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    public int getTestCount() {
+        return tests;
+    }
+
+    public int getActionCount() {
+        return actions;
+    }
+
+    public int getRegexCount() {
+        return regexes;
+    }
+
+    public int getBodyTestCount() {
+        return bodyTests;
+    }
+
+    /**
+     * Total number of keys over all tests.
+     */
+    public int getKeyCount() {
+        return keys;
+    }
+
+    /**
+     * Deepest nesting of blocks.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Extensions named in require.
+     */
+    public Set<String> getExtensions() {
+        return Collections.unmodifiableSet(extensions);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[cost=" + Math.round(cost) + ", tests=" + tests + ", regexes=" + regexes + ", body=" + bodyTests + "]";
+    }
+}
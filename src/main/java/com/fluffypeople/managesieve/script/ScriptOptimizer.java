@@ -0,0 +1,578 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import com.fluffypeople.managesieve.xml.XML;
+import com.fluffypeople.managesieve.xml.XMLToSieve;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Rewrites Sieve scripts so the server has less work to do for each message,
+ * without changing what the script does.
+ * <p>
+ * The script is parsed with {@link SieveToXML}, the tree is changed, and the
+ * result is written back out with {@link XMLToSieve}. The changes are:
+ * <ul>
+ * <li>Commands after <code>stop</code> in the same block are removed, since
+ * they can never run.</li>
+ * <li>In <code>allof</code> and <code>anyof</code>, repeated tests are
+ * removed, and in <code>anyof</code> header, address and envelope tests that
+ * only differ in their keys are merged into one test with all the keys. An
+ * <code>allof</code> or <code>anyof</code> left with one test is replaced by
+ * that test.</li>
+ * <li>The tests in <code>allof</code> and <code>anyof</code> are sorted so
+ * the cheapest come first, so the server can stop early without running the
+ * expensive ones (see {@link #cost(Element)}).</li>
+ * <li>When <code>if</code> commands in a row share a test, it is tested once
+ * in an outer <code>if</code> around them.</li>
+ * </ul>
+ * Only tests known not to have side effects are moved. If the script uses
+ * the variables extension, tests that set match variables (<code>:matches</code>
+ * and <code>:regex</code>) aren't moved, and if it uses variables,
+ * editheader or imap4flags nothing is hoisted, since the actions between two
+ * tests could change what the second one sees.
+ * <p>
+ * Comments are not kept.
+ * <p>
+ * The parser reads quoted strings with Java escape rules, so
+ * <code>"\t"</code> would come back as a tab instead of a <code>t</code>.
+ * Scripts with a backslash in a quoted string before anything other than
+ * <code>"</code> or another backslash are returned unchanged (see
+ * {@link Result#isSkipped()}). Backslashes in <code>text:</code> blocks are
+ * read correctly.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ScriptOptimizer {
+
+    private static final Set<String> PURE_TESTS = new HashSet<String>(Arrays.asList(
+            "address", "allof", "anyof", "body", "currentdate", "date", "envelope", "exists",
+            "false", "hasflag", "header", "mailboxexists", "not", "size", "string", "true"));
+    private static final Set<String> KEYED_TESTS = new HashSet<String>(Arrays.asList(
+            "address", "envelope", "header"));
+
+    /**
+     * The optimized script, and what was done to it.
+     */
+    public static class Result {
+
+        private String script;
+        private int removed = 0;
+        private int merged = 0;
+        private int reordered = 0;
+        private int hoisted = 0;
+        private boolean skipped = false;
+
+        public String getScript() {
+            return script;
+        }
+
+        /**
+         * Number of unreachable commands removed.
+         */
+        public int getRemovedCount() {
+            return removed;
+        }
+
+        /**
+         * Number of tests removed by merging them into others.
+         */
+        public int getMergedCount() {
+            return merged;
+        }
+
+        /**
+         * Number of allof and anyof tests whose order was changed.
+         */
+        public int getReorderedCount() {
+            return reordered;
+        }
+
+        /**
+         * Number of shared tests moved into an outer if.
+         */
+        public int getHoistedCount() {
+            return hoisted;
+        }
+
+        public boolean isChanged() {
+            return removed + merged + reordered + hoisted > 0;
+        }
+
+        /**
+         * Check if the script was returned unchanged because it has escapes
+         * that can't be kept.
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+    }
+
+    /**
+     * Optimize a script.
+     *
+     * @param script String Sieve script
+     * @return the result
+     * @throws ParseException if the script can't be parsed
+     */
+    public Result optimize(final String script) throws ParseException {
+        if (hasUnsafeEscapes(script)) {
+            Result result = new Result();
+            result.script = script;
+            result.skipped = true;
+            return result;
+        }
+        XML xml;
+        try {
+            xml = new SieveToXML().convert(script);
+        } catch (IOException ex) {
+            // Can't happen reading from a String
+            throw new ParseException(ex.getMessage());
+        }
+        Document doc = xml.getDocument();
+        Element root = doc.getDocumentElement();
+        Set<String> required = requires(root);
+        boolean variables = required.contains("variables");
+        boolean hoist = !variables && !required.contains("editheader") && !required.contains("imap4flags");
+
+        Result result = new Result();
+        optimizeBlock(root, variables, hoist, result);
+        result.script = new XMLToSieve().convert(doc);
+        return result;
+    }
+
+    /**
+     * Estimate how much work the server does to run a test. This is
+     * {@link CostAnalyzer#testCost(Element)}.
+     *
+     * @param test Element test from {@link SieveToXML}
+     * @return double estimated cost
+     */
+    public static double cost(final Element test) {
+        return CostAnalyzer.testCost(test);
+    }
+
+    /**
+     * Check for a quoted string with a backslash before anything other than
+     * a quote or a backslash, or with a line break in it. Those escapes are
+     * the only ones that {@link SieveToXML} reads the same way as Sieve does,
+     * and it ends a quoted string at the end of the line. Comments and text:
+     * blocks are skipped.
+     */
+    static boolean hasUnsafeEscapes(final String script) {
+        return scanQuoted(script, true);
+    }
+
+    /**
+     * Check for a quoted string with a line break in it, which
+     * {@link SieveToXML} can't read. Comments and text: blocks are skipped.
+     */
+    static boolean hasMultiLineStrings(final String script) {
+        return scanQuoted(script, false);
+    }
+
+    /**
+     * Look for a quoted string with a line break in it, or if escapes is
+     * true one with an escape other than \\ or \".
+     */
+    private static boolean scanQuoted(final String script, final boolean escapes) {
+        int i = 0;
+        int n = script.length();
+        while (i < n) {
+            char c = script.charAt(i);
+            if (c == '#') {
+                i = lineEnd(script, i);
+            } else if (c == '/' && i + 1 < n && script.charAt(i + 1) == '*') {
+                int end = script.indexOf("*/", i + 2);
+                i = end < 0 ? n : end + 2;
+            } else if (c == '"') {
+                i += 1;
+                while (i < n && script.charAt(i) != '"') {
+                    if (script.charAt(i) == '\r' || script.charAt(i) == '\n') {
+                        return true;
+                    }
+                    if (script.charAt(i) == '\\') {
+                        if (i + 1 >= n) {
+                            return true;
+                        }
+                        char next = script.charAt(i + 1);
+                        if (escapes && next != '\\' && next != '"') {
+                            return true;
+                        }
+                        i += 1;
+                    }
+                    i += 1;
+                }
+                i += 1;
+            } else if (script.regionMatches(true, i, "text:", 0, 5) && (i == 0 || !Character.isLetterOrDigit(script.charAt(i - 1)))) {
+                // Skip to the line holding just a dot
+                i = lineEnd(script, i);
+                while (i < n) {
+                    int end = lineEnd(script, i);
+                    String line = script.substring(i, end).trim();
+                    i = end;
+                    if (line.equals(".")) {
+                        break;
+                    }
+                }
+            } else {
+                i += 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Index just after the end of the line containing i.
+     */
+    private static int lineEnd(final String script, final int i) {
+        int end = script.indexOf('\n', i);
+        return end < 0 ? script.length() : end + 1;
+    }
+
+    private void optimizeBlock(final Element block, final boolean variables, final boolean hoist, final Result result) {
+        removeAfterStop(block, result);
+        for (Element command : children(block, "control", "action")) {
+            for (Element test : children(command, "test")) {
+                optimizeTest(test, variables, result);
+            }
+            optimizeBlock(command, variables, hoist, result);
+        }
+        if (hoist) {
+            hoistShared(block, result);
+        }
+    }
+
+    private void removeAfterStop(final Element block, final Result result) {
+        boolean stopped = false;
+        for (Element command : children(block, "control", "action")) {
+            if (stopped) {
+                block.removeChild(command);
+                result.removed += 1;
+            } else if (command.getNodeName().equals("control") && command.getAttribute("name").equals("stop")) {
+                stopped = true;
+            }
+        }
+    }
+
+    /**
+     * Optimize a test and everything inside it, bottom up. The test may be
+     * replaced in its parent.
+     */
+    private void optimizeTest(final Element test, final boolean variables, final Result result) {
+        for (Element inner : children(test, "test")) {
+            optimizeTest(inner, variables, result);
+        }
+        String name = test.getAttribute("name");
+        if (!name.equals("allof") && !name.equals("anyof")) {
+            return;
+        }
+        List<Element> tests = children(test, "test");
+        // Repeated tests
+        for (int i = 0; i < tests.size(); i++) {
+            for (int j = tests.size() - 1; j > i; j--) {
+                if (isPure(tests.get(j), variables) && tests.get(i).isEqualNode(tests.get(j))) {
+                    test.removeChild(tests.remove(j));
+                    result.merged += 1;
+                }
+            }
+        }
+        if (name.equals("anyof")) {
+            mergeKeys(test, tests, variables, result);
+        }
+        if (tests.size() == 1) {
+            test.getParentNode().replaceChild(tests.get(0), test);
+            return;
+        }
+        reorder(test, tests, variables, result);
+    }
+
+    /**
+     * In an anyof, merge keyed tests that are the same apart from their key
+     * lists: "any of these keys" in one test means the same as several tests
+     * with one key each.
+     */
+    private void mergeKeys(final Element anyof, final List<Element> tests, final boolean variables, final Result result) {
+        for (int i = 0; i < tests.size(); i++) {
+            Element a = tests.get(i);
+            if (!KEYED_TESTS.contains(a.getAttribute("name")) || !isPure(a, variables)) {
+                continue;
+            }
+            for (int j = tests.size() - 1; j > i; j--) {
+                Element b = tests.get(j);
+                if (sameApartFromKeys(a, b)) {
+                    List<Element> aArgs = children(a);
+                    List<Element> bArgs = children(b);
+                    Element aKeys = aArgs.get(aArgs.size() - 1);
+                    Element bKeys = bArgs.get(bArgs.size() - 1);
+                    Element list = a.getOwnerDocument().createElement("list");
+                    List<String> seen = new ArrayList<String>();
+                    for (Element keys : new Element[]{aKeys, bKeys}) {
+                        for (String key : strings(keys)) {
+                            if (!seen.contains(key)) {
+                                seen.add(key);
+                            }
+                        }
+                    }
+                    for (String key : seen) {
+                        Element str = a.getOwnerDocument().createElement("str");
+                        str.setTextContent(key);
+                        list.appendChild(str);
+                    }
+                    a.replaceChild(list, aKeys);
+                    anyof.removeChild(b);
+                    tests.remove(j);
+                    result.merged += 1;
+                }
+            }
+        }
+    }
+
+    private static boolean sameApartFromKeys(final Element a, final Element b) {
+        if (!a.getAttribute("name").equals(b.getAttribute("name"))) {
+            return false;
+        }
+        List<Element> aArgs = children(a);
+        List<Element> bArgs = children(b);
+        if (aArgs.size() != bArgs.size() || aArgs.size() < 2) {
+            return false;
+        }
+        for (int k = 0; k < aArgs.size() - 1; k++) {
+            if (!aArgs.get(k).isEqualNode(bArgs.get(k))) {
+                return false;
+            }
+        }
+        String last = aArgs.get(aArgs.size() - 1).getNodeName();
+        return (last.equals("str") || last.equals("list"))
+                && bArgs.get(bArgs.size() - 1).getNodeName().matches("str|list");
+    }
+
+    private void reorder(final Element parent, final List<Element> tests, final boolean variables, final Result result) {
+        for (Element t : tests) {
+            if (!isPure(t, variables)) {
+                return;
+            }
+        }
+        List<Element> sorted = new ArrayList<Element>(tests);
+        // Stable, so tests that cost the same keep their order
+        Collections.sort(sorted, new Comparator<Element>() {
+            @Override
+            public int compare(final Element a, final Element b) {
+                return Double.compare(cost(a), cost(b));
+            }
+        });
+        if (sorted.equals(tests)) {
+            return;
+        }
+        for (Element t : sorted) {
+            // Appending moves it to the end
+            parent.appendChild(t);
+        }
+        result.reordered += 1;
+    }
+
+    /**
+     * Look for runs of if commands (without elsif or else) that share a test,
+     * and test it once around them.
+     */
+    private void hoistShared(final Element block, final Result result) {
+        List<Element> commands = children(block, "control", "action");
+        int i = 0;
+        while (i < commands.size()) {
+            Element first = commands.get(i);
+            Element shared = null;
+            int end = i + 1;
+            if (isPlainIf(commands, i)) {
+                for (Element candidate : conjuncts(first)) {
+                    if (!isPure(candidate, false)) {
+                        continue;
+                    }
+                    int j = i + 1;
+                    while (j < commands.size() && isPlainIf(commands, j) && contains(conjuncts(commands.get(j)), candidate)) {
+                        j += 1;
+                    }
+                    if (j - i >= 2) {
+                        shared = candidate;
+                        end = j;
+                        break;
+                    }
+                }
+            }
+            if (shared == null) {
+                i += 1;
+                continue;
+            }
+            Document doc = block.getOwnerDocument();
+            Element outer = doc.createElement("control");
+            outer.setAttribute("name", "if");
+            outer.appendChild(shared.cloneNode(true));
+            block.insertBefore(outer, first);
+            for (int k = i; k < end; k++) {
+                Element inner = commands.get(k);
+                block.removeChild(inner);
+                List<Element> rest = new ArrayList<Element>();
+                boolean dropped = false;
+                for (Element c : conjuncts(inner)) {
+                    if (!dropped && c.isEqualNode(shared)) {
+                        dropped = true;
+                    } else {
+                        rest.add(c);
+                    }
+                }
+                if (rest.isEmpty()) {
+                    // The shared test was all there was
+                    for (Element c : children(inner, "control", "action")) {
+                        outer.appendChild(c);
+                    }
+                    continue;
+                }
+                Element test = children(inner, "test").get(0);
+                Element replacement = rest.get(0);
+                if (rest.size() > 1) {
+                    replacement = doc.createElement("test");
+                    replacement.setAttribute("name", "allof");
+                    for (Element c : rest) {
+                        replacement.appendChild(c);
+                    }
+                }
+                inner.replaceChild(replacement, test);
+                outer.appendChild(inner);
+            }
+            result.hoisted += 1;
+            i = end;
+        }
+    }
+
+    /**
+     * Check if commands[i] is an if with no elsif or else after it.
+     */
+    private static boolean isPlainIf(final List<Element> commands, final int i) {
+        Element c = commands.get(i);
+        if (!c.getNodeName().equals("control") || !c.getAttribute("name").equals("if")) {
+            return false;
+        }
+        if (i + 1 < commands.size()) {
+            String next = commands.get(i + 1).getAttribute("name");
+            if (next.equals("elsif") || next.equals("else")) {
+                return false;
+            }
+        }
+        return children(c, "test").size() == 1;
+    }
+
+    /**
+     * The tests that must all be true for an if: the tests in its allof, or
+     * its one test.
+     */
+    private static List<Element> conjuncts(final Element command) {
+        Element test = children(command, "test").get(0);
+        if (test.getAttribute("name").equals("allof")) {
+            return children(test, "test");
+        }
+        List<Element> result = new ArrayList<Element>();
+        result.add(test);
+        return result;
+    }
+
+    private static boolean contains(final List<Element> tests, final Element test) {
+        for (Element t : tests) {
+            if (t.isEqualNode(test)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check a test (and everything in it) has no side effects. With the
+     * variables extension, :matches and :regex set match variables, so count
+     * as side effects.
+     */
+    private static boolean isPure(final Element test, final boolean variables) {
+        if (!PURE_TESTS.contains(test.getAttribute("name"))) {
+            return false;
+        }
+        for (Element child : children(test)) {
+            if (child.getNodeName().equals("test")) {
+                if (!isPure(child, variables)) {
+                    return false;
+                }
+            } else if (variables && child.getNodeName().equals("tag")) {
+                String t = child.getTextContent();
+                if (t.equals("matches") || t.equals("regex")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> requires(final Element root) {
+        Set<String> result = new HashSet<String>();
+        for (Element c : children(root, "control")) {
+            if (c.getAttribute("name").equals("require")) {
+                for (Element arg : children(c)) {
+                    result.addAll(strings(arg));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<String> strings(final Element arg) {
+        List<String> result = new ArrayList<String>();
+        if (arg.getNodeName().equals("str")) {
+            result.add(arg.getTextContent());
+        } else if (arg.getNodeName().equals("list")) {
+            for (Element s : children(arg, "str")) {
+                result.add(s.getTextContent());
+            }
+        }
+        return result;
+    }
+
+    private static List<Element> children(final Element parent, final String... names) {
+        List<Element> result = new ArrayList<Element>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && (names.length == 0 || Arrays.asList(names).contains(n.getNodeName()))) {
+                result.add((Element) n);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A Sieve script with placeholders, parsed once and rendered many times.
+ * <p>
+ * Placeholders are written <code>{{name}}</code> or
+ * <code>{{name:type}}</code>, and are replaced with Sieve syntax for the
+ * value, including any quotes, so
+ * <pre>
+ * fileinto {{folder}};
+ * redirect {{forward:address}};
+ * </pre>
+ * renders as <code>fileinto "INBOX.Lists";</code> and so on. The types are:
+ * <dl>
+ * <dt>string</dt><dd>a quoted string, with <code>"</code> and <code>\</code>
+ * escaped and line breaks written as CRLF. The default.</dd>
+ * <dt>address</dt><dd>a quoted string that must look like an email
+ * address</dd>
+ * <dt>list</dt><dd>a string list, from a Collection or array of
+ * Strings</dd>
+ * <dt>number</dt><dd>a number, from a Number or a String of digits with an
+ * optional K, M or G</dd>
+ * <dt>text</dt><dd>a multi-line <code>text:</code> block, ending with the
+ * line holding just a dot. Lines starting with a dot are doubled.</dd>
+ * </dl>
+ * <p>
+ * The text around the placeholders is encoded to UTF-8 when the template is
+ * parsed. Rendering works out the exact size of the body first, then encodes
+ * and escapes the values straight into one array of that size, so the body
+ * never exists as a String and its literal length is known before it is
+ * sent.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ScriptTemplate {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern NAME_RE = Pattern.compile("[A-Za-z_][A-Za-z0-9_.-]*");
+    private static final Pattern NUMBER_RE = Pattern.compile("[0-9]+[KMGkmg]?");
+    private static final Pattern ADDRESS_RE = Pattern.compile("[^\\s\"\\\\@]+@[^\\s\"\\\\@]+");
+    private static final byte[] TEXT_START = "text:\r\n".getBytes(UTF8);
+    private static final byte[] TEXT_END = ".\r\n".getBytes(UTF8);
+
+    public enum Type {
+
+        STRING, ADDRESS, LIST, NUMBER, TEXT
+    }
+
+    // Static text, one more than there are placeholders
+    private final byte[][] segments;
+    private final String[] names;
+    private final Type[] types;
+    private final int staticLength;
+
+    private ScriptTemplate(final List<byte[]> segments, final List<String> names, final List<Type> types) {
+        this.segments = segments.toArray(new byte[segments.size()][]);
+        this.names = names.toArray(new String[names.size()]);
+        this.types = types.toArray(new Type[types.size()]);
+        int length = 0;
+        for (byte[] s : this.segments) {
+            length += s.length;
+        }
+        this.staticLength = length;
+    }
+
+    /**
+     * Parse a template.
+     *
+     * @param template String template text
+     * @return the parsed template
+     * @throws ParseException if a placeholder isn't closed, or has a bad name
+     *                        or type
+     */
+    public static ScriptTemplate compile(final String template) throws ParseException {
+        List<byte[]> segments = new ArrayList<byte[]>();
+        List<String> names = new ArrayList<String>();
+        List<Type> types = new ArrayList<Type>();
+        int pos = 0;
+        while (true) {
+            int open = template.indexOf("{{", pos);
+            if (open == -1) {
+                segments.add(template.substring(pos).getBytes(UTF8));
+                break;
+            }
+            int close = template.indexOf("}}", open + 2);
+            if (close == -1) {
+                throw new ParseException("Placeholder at " + open + " isn't closed");
+            }
+            segments.add(template.substring(pos, open).getBytes(UTF8));
+            String spec = template.substring(open + 2, close).trim();
+            String name = spec;
+            Type type = Type.STRING;
+            int colon = spec.indexOf(':');
+            if (colon != -1) {
+                name = spec.substring(0, colon).trim();
+                String typeName = spec.substring(colon + 1).trim();
+                try {
+                    type = Type.valueOf(typeName.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException ex) {
+                    throw new ParseException("Unknown placeholder type '" + typeName + "' at " + open);
+                }
+            }
+            if (!NAME_RE.matcher(name).matches()) {
+                throw new ParseException("Bad placeholder name '" + name + "' at " + open);
+            }
+            names.add(name);
+            types.add(type);
+            pos = close + 2;
+        }
+        return new ScriptTemplate(segments, names, types);
+    }
+
+    /**
+     * Get the names of the placeholders, in the order they appear. A name used
+     * more than once is listed more than once.
+     */
+    public List<String> getPlaceholders() {
+        List<String> result = new ArrayList<String>(names.length);
+        Collections.addAll(result, names);
+        return result;
+    }
+
+    /**
+     * Fill in the placeholders.
+     *
+     * @param values Map of placeholder name to value
+     * @return the rendered script
+     * @throws IllegalArgumentException if a value is missing, or doesn't suit
+     *                                  its placeholder's type
+     */
+    public RenderedScript render(final Map<String, ?> values) {
+        Object[] resolved = new Object[names.length];
+        int length = staticLength;
+        for (int i = 0; i < names.length; i++) {
+            Object value = values.get(names[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("No value for placeholder " + names[i]);
+            }
+            resolved[i] = check(names[i], types[i], value);
+            length += write(types[i], resolved[i], null, 0);
+        }
+
+        byte[] body = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < names.length; i++) {
+            System.arraycopy(segments[i], 0, body, pos, segments[i].length);
+            pos += segments[i].length;
+            pos += write(types[i], resolved[i], body, pos);
+        }
+        byte[] last = segments[names.length];
+        System.arraycopy(last, 0, body, pos, last.length);
+        return new RenderedScript(body);
+    }
+
+    /**
+     * Check a value suits its type, and turn it into a String or String[].
+     */
+    private static Object check(final String name, final Type type, final Object value) {
+        switch (type) {
+            case LIST:
+                String[] list;
+                if (value instanceof Collection) {
+                    Collection<?> c = (Collection<?>) value;
+                    list = new String[c.size()];
+                    int i = 0;
+                    for (Object o : c) {
+                        list[i++] = String.valueOf(o);
+                    }
+                } else if (value instanceof Object[]) {
+                    Object[] a = (Object[]) value;
+                    list = new String[a.length];
+                    for (int i = 0; i < a.length; i++) {
+                        list[i] = String.valueOf(a[i]);
+                    }
+                } else {
+                    list = new String[]{value.toString()};
+                }
+                if (list.length == 0) {
+                    throw new IllegalArgumentException("Empty list for placeholder " + name);
+                }
+                return list;
+            case NUMBER:
+                String number = value.toString();
+                if ((value instanceof Double || value instanceof Float) || !NUMBER_RE.matcher(number).matches()) {
+                    throw new IllegalArgumentException("Bad number '" + number + "' for placeholder " + name);
+                }
+                return number;
+            case ADDRESS:
+                String address = value.toString();
+                if (!ADDRESS_RE.matcher(address).matches()) {
+                    throw new IllegalArgumentException("Bad address '" + address + "' for placeholder " + name);
+                }
+                return address;
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Write a value as Sieve syntax. With a null buffer nothing is written,
+     * and just the length is worked out.
+     *
+     * @return int number of bytes written
+     */
+    private static int write(final Type type, final Object value, final byte[] buf, final int start) {
+        int pos = start;
+        switch (type) {
+            case LIST:
+                String[] list = (String[]) value;
+                pos = put(buf, pos, '[');
+                for (int i = 0; i < list.length; i++) {
+                    if (i > 0) {
+                        pos = put(buf, pos, ',');
+                        pos = put(buf, pos, ' ');
+                    }
+                    pos = quoted(list[i], buf, pos);
+                }
+                pos = put(buf, pos, ']');
+                break;
+            case NUMBER:
+                pos = utf8((String) value, false, false, buf, pos);
+                break;
+            case TEXT:
+                pos = copy(TEXT_START, buf, pos);
+                pos = utf8((String) value, false, true, buf, pos);
+                pos = copy(TEXT_END, buf, pos);
+                break;
+            default:
+                pos = quoted((String) value, buf, pos);
+                break;
+        }
+        return pos - start;
+    }
+
+    private static int quoted(final String value, final byte[] buf, final int start) {
+        int pos = put(buf, start, '"');
+        pos = utf8(value, true, false, buf, pos);
+        return put(buf, pos, '"');
+    }
+
+    /**
+     * Encode a String as UTF-8.
+     *
+     * @param escape boolean true to write it as the inside of a quoted
+     *                string, with quotes and backslashes escaped and every
+     *                line break (CR, LF or CRLF) as CRLF
+     * @param text   boolean true to write it as the lines of a text: block,
+     *                with CRLF line ends, dot stuffing, and a final line end
+     */
+    private static int utf8(final String s, final boolean escape, final boolean text, final byte[] buf, final int start) {
+        int pos = start;
+        boolean lineStart = true;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (text) {
+                if (c == '\r') {
+                    continue;
+                }
+                if (c == '\n') {
+                    pos = put(buf, pos, '\r');
+                    pos = put(buf, pos, '\n');
+                    lineStart = true;
+                    continue;
+                }
+                if (lineStart && c == '.') {
+                    pos = put(buf, pos, '.');
+                }
+                lineStart = false;
+            }
+            if (escape && (c == '\r' || c == '\n')) {
+                // Sieve only allows CRLF in a quoted string
+                if (c == '\r' && i + 1 < len && s.charAt(i + 1) == '\n') {
+                    i += 1;
+                }
+                pos = put(buf, pos, '\r');
+                pos = put(buf, pos, '\n');
+                continue;
+            }
+            if (escape && (c == '"' || c == '\\')) {
+                pos = put(buf, pos, '\\');
+            }
+            if (c < 0x80) {
+                pos = put(buf, pos, c);
+            } else if (c < 0x800) {
+                pos = put(buf, pos, 0xC0 | (c >> 6));
+                pos = put(buf, pos, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(i + 1));
+                i += 1;
+                pos = put(buf, pos, 0xF0 | (cp >> 18));
+                pos = put(buf, pos, 0x80 | ((cp >> 12) & 0x3F));
+                pos = put(buf, pos, 0x80 | ((cp >> 6) & 0x3F));
+                pos = put(buf, pos, 0x80 | (cp & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired, replaced the same way String.getBytes() does
+                pos = put(buf, pos, '?');
+            } else {
+                pos = put(buf, pos, 0xE0 | (c >> 12));
+                pos = put(buf, pos, 0x80 | ((c >> 6) & 0x3F));
+                pos = put(buf, pos, 0x80 | (c & 0x3F));
+            }
+        }
+        if (text && !lineStart) {
+            pos = put(buf, pos, '\r');
+            pos = put(buf, pos, '\n');
+        }
+        return pos;
+    }
+
+    private static int put(final byte[] buf, final int pos, final int b) {
+        if (buf != null) {
+            buf[pos] = (byte) b;
+        }
+        return pos + 1;
+    }
+
+    private static int copy(final byte[] src, final byte[] buf, final int pos) {
+        if (buf != null) {
+            System.arraycopy(src, 0, buf, pos, src.length);
+        }
+        return pos + src.length;
+    }
+}
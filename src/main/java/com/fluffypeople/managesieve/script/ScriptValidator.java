@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.ExpiringCache;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.ServerCapabilities;
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import com.fluffypeople.managesieve.xml.XML;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Checks Sieve scripts, avoiding CHECKSCRIPT round trips where possible.
+ * <p>
+ * Scripts are first checked locally: they must parse with {@link SieveToXML},
+ * and every extension named in a <code>require</code> must be listed in the
+ * server's capabilities. Scripts that fail either check are rejected without
+ * touching the network. Scripts with a quoted string that spans lines are
+ * valid Sieve that {@link SieveToXML} can't read, so they skip the local
+ * checks. Scripts that pass are sent to the server with
+ * CHECKSCRIPT, since the server knows things about the script that we don't
+ * (argument types, extension specific rules, and so on).
+ * <p>
+ * Results are cached by the SHA-256 hash of the script and the server's SIEVE
+ * extensions, so checking the same script again costs nothing, and a script
+ * checked against one set of extensions isn't taken as valid for another.
+ * The server's answer can depend on more than its extensions, so use one
+ * validator per server (or per group of identical servers).
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ScriptValidator {
+
+    private static final Logger log = LoggerFactory.getLogger(ScriptValidator.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ExpiringCache<String, Result> cache;
+    private final AtomicLong localChecks = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong serverChecks = new AtomicLong();
+
+    /**
+     * Create a validator that remembers results forever (or until pushed out
+     * by newer results).
+     *
+     * @param maxEntries int number of results to remember
+     */
+    public ScriptValidator(final int maxEntries) {
+        this(maxEntries, 0);
+    }
+
+    /**
+     * Create a validator that remembers results for a limited time.
+     *
+     * @param maxEntries int number of results to remember
+     * @param ttl        long time in milliseconds to remember results for
+     */
+    public ScriptValidator(final int maxEntries, final long ttl) {
+        cache = new ExpiringCache<String, Result>(maxEntries, ttl);
+    }
+
+    /**
+     * Check a script, asking the server only if it passes local checks and
+     * hasn't been seen before.
+     *
+     * @param client ManageSieveClient to use for CHECKSCRIPT. Its capabilities
+     *               are used for the local extension check.
+     * @param script String script body
+     * @return Result of the check
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public Result check(final ManageSieveClient client, final String script) throws IOException, ParseException {
+        String key = key(script, client.getCapabilities());
+        Result result = cache.get(key);
+        if (result != null) {
+            cacheHits.incrementAndGet();
+            return result;
+        }
+
+        result = validateLocally(script, client.getCapabilities());
+        if (result.isValid()) {
+            serverChecks.incrementAndGet();
+            ManageSieveResponse resp = client.checkscript(script);
+            result = new Result(resp.isOk(), resp.getMessage(), resp);
+            if (resp.isBye()) {
+                // Says nothing about the script, don't cache it
+                return result;
+            }
+        }
+        cache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Check a script without using the network or the cache.
+     *
+     * @param script String script body
+     * @param cap    ServerCapabilities to check required extensions against.
+     *               If null, extensions are not checked.
+     * @return Result of the check. A valid result here only means the server
+     * might accept the script.
+     */
+    public Result validateLocally(final String script, final ServerCapabilities cap) {
+        localChecks.incrementAndGet();
+        if (ScriptOptimizer.hasMultiLineStrings(script)) {
+            // Valid Sieve that SieveToXML can't read, leave it to the server
+            return new Result(true, null, null);
+        }
+        XML xml;
+        try {
+            xml = new SieveToXML().convert(script);
+        } catch (ParseException ex) {
+            return new Result(false, ex.getMessage(), null);
+        } catch (IOException ex) {
+            // Reading from a String, so shouldn't happen
+            log.warn("Unexpected IO problem parsing script", ex);
+            return new Result(false, ex.getMessage(), null);
+        } catch (RuntimeException ex) {
+            // SieveToXML throws these for some broken scripts (an
+            // unterminated text: block, for one)
+            return new Result(false, "Can't parse script: " + ex, null);
+        }
+
+        if (cap != null) {
+            List<String> missing = new ArrayList<String>();
+            for (String extension : getRequiredExtensions(xml)) {
+                if (!cap.hasSieveExtension(extension)) {
+                    missing.add(extension);
+                }
+            }
+            if (!missing.isEmpty()) {
+                return new Result(false, "Extensions not supported by server: " + missing, null);
+            }
+        }
+        return new Result(true, null, null);
+    }
+
+    /**
+     * List the extensions named in the require commands of a parsed script.
+     *
+     * @param xml XML from {@link SieveToXML}
+     * @return List of extension names, in the order they appear
+     */
+    public static List<String> getRequiredExtensions(final XML xml) {
+        List<String> result = new ArrayList<String>();
+        NodeList controls = xml.getDocument().getElementsByTagName("control");
+        for (int i = 0; i < controls.getLength(); i++) {
+            Element control = (Element) controls.item(i);
+            if (!"require".equals(control.getAttribute("name"))) {
+                continue;
+            }
+            NodeList strings = control.getElementsByTagName("str");
+            for (int j = 0; j < strings.getLength(); j++) {
+                Node str = strings.item(j);
+                result.add(str.getTextContent());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of scripts checked locally.
+     */
+    public long getLocalChecks() {
+        return localChecks.get();
+    }
+
+    /**
+     * Number of checks answered from the cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Number of checks that went to the server.
+     */
+    public long getServerChecks() {
+        return serverChecks.get();
+    }
+
+    /**
+     * Cache key for a script checked against a server's extensions.
+     */
+    private static String key(final String script, final ServerCapabilities cap) {
+        StringBuilder key = new StringBuilder();
+        if (cap != null) {
+            String[] extensions = cap.getSieveExtensions();
+            Arrays.sort(extensions);
+            for (String extension : extensions) {
+                key.append(extension).append(' ');
+            }
+        }
+        key.append('\u0000').append(script);
+        return DigestUtils.sha256Hex(key.toString().getBytes(UTF8));
+    }
+
+    /**
+     * Outcome of checking a script.
+     */
+    public static class Result {
+
+        private final boolean valid;
+        private final String message;
+        private final ManageSieveResponse response;
+
+        Result(final boolean valid, final String message, final ManageSieveResponse response) {
+            this.valid = valid;
+            this.message = message;
+            this.response = response;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * Human readable reason the script was rejected, or any warnings from
+         * the server. May be null.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * The response to CHECKSCRIPT, or null if the script was rejected
+         * locally.
+         */
+        public ManageSieveResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * True if the server was asked about this script.
+         */
+        public boolean isFromServer() {
+            return response != null;
+        }
+
+        @Override
+        public String toString() {
+            return (valid ? "valid" : "invalid") + (message != null ? ": " + message : "");
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes Sieve scripts smaller before they are uploaded, by taking out
+ * comments and whitespace that don't change what the script means.
+ * <p>
+ * The script is split into tokens following the RFC 5228 grammar, the same
+ * one {@link com.fluffypeople.managesieve.xml.SieveToXML} reads. Hash and
+ * bracket comments are dropped, and tokens are joined with a single space
+ * where two words, tags or strings would otherwise run together, and nothing
+ * elsewhere. Quoted strings and <code>text:</code> blocks are copied exactly
+ * as they are.
+ * <p>
+ * Use it as a stage before upload, for example
+ * <code>client.putscript(name, minifier.minify(body))</code>, or give it to
+ * {@link com.fluffypeople.managesieve.bulk.BulkDeployer#setMinifier}. The
+ * minifier keeps a running total of the bytes it has saved.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class SieveMinifier {
+
+    private static final int NONE = 0;
+    // Word, tag, number or string: needs a space before another one
+    private static final int ATOM = 1;
+    // Punctuation, or the end of a text: block
+    private static final int PUNCT = 2;
+    private final AtomicLong scripts = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * Minify a script.
+     *
+     * @param script String Sieve script
+     * @return the same script, without comments and extra whitespace
+     * @throws ParseException if the script has an unclosed string, comment
+     *                        or text: block, or a character that can't start
+     *                        a token
+     */
+    public String minify(final String script) throws ParseException {
+        final int len = script.length();
+        StringBuilder out = new StringBuilder(len);
+        int last = NONE;
+        int i = 0;
+        while (i < len) {
+            char c = script.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                i += 1;
+            } else if (c == '#') {
+                i = skipLine(script, i);
+            } else if (c == '/' && i + 1 < len && script.charAt(i + 1) == '*') {
+                int end = script.indexOf("*/", i + 2);
+                if (end == -1) {
+                    throw new ParseException("Unclosed comment at " + position(script, i));
+                }
+                i = end + 2;
+            } else if (c == '"') {
+                int end = endOfString(script, i);
+                last = space(out, last, ATOM);
+                out.append(script, i, end);
+                i = end;
+            } else if (isWordChar(c) || (c == ':' && i + 1 < len && isWordChar(script.charAt(i + 1)))) {
+                int end = i + 1;
+                while (end < len && isWordChar(script.charAt(end))) {
+                    end += 1;
+                }
+                if (end - i == 4 && end < len && script.charAt(end) == ':' && script.startsWith("text", i)) {
+                    last = space(out, last, ATOM);
+                    i = copyText(script, end + 1, out);
+                    last = PUNCT;
+                } else {
+                    last = space(out, last, ATOM);
+                    out.append(script, i, end);
+                    i = end;
+                }
+            } else if (c == ';' || c == ',' || c == '[' || c == ']' || c == '(' || c == ')' || c == '{' || c == '}') {
+                out.append(c);
+                last = PUNCT;
+                i += 1;
+            } else {
+                throw new ParseException("Unexpected '" + c + "' at " + position(script, i));
+            }
+        }
+        String result = out.toString();
+        scripts.incrementAndGet();
+        bytesIn.addAndGet(utf8Length(script));
+        bytesOut.addAndGet(utf8Length(result));
+        return result;
+    }
+
+    /**
+     * Number of scripts minified so far.
+     */
+    public long getScriptCount() {
+        return scripts.get();
+    }
+
+    /**
+     * Total UTF-8 size of the scripts before minifying.
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * Total UTF-8 size of the scripts after minifying.
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    private static int space(final StringBuilder out, final int last, final int next) {
+        if (last == ATOM && next == ATOM) {
+            out.append(' ');
+        }
+        return next;
+    }
+
+    private static boolean isWordChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Find the end of the line starting at or after i.
+     *
+     * @return int index just after the line end, or the length of the script
+     */
+    private static int skipLine(final String script, final int i) {
+        int nl = script.indexOf('\n', i);
+        return nl == -1 ? script.length() : nl + 1;
+    }
+
+    private static int endOfString(final String script, final int start) throws ParseException {
+        int i = start + 1;
+        while (i < script.length()) {
+            char c = script.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else {
+                i += 1;
+            }
+        }
+        throw new ParseException("Unclosed string at " + position(script, start));
+    }
+
+    /**
+     * Copy a text: block. The rest of the line after "text:" can only be
+     * whitespace or a hash comment, and is dropped. The lines up to and
+     * including the one holding just a dot are copied as they are.
+     *
+     * @param start int index just after the colon
+     * @return int index just after the block
+     */
+    private static int copyText(final String script, final int start, final StringBuilder out) throws ParseException {
+        int i = start;
+        while (i < script.length() && (script.charAt(i) == ' ' || script.charAt(i) == '\t')) {
+            i += 1;
+        }
+        if (i < script.length() && script.charAt(i) == '#') {
+            i = skipLine(script, i);
+        } else if (i < script.length() && script.charAt(i) == '\r' && i + 1 < script.length() && script.charAt(i + 1) == '\n') {
+            i += 2;
+        } else if (i < script.length() && script.charAt(i) == '\n') {
+            i += 1;
+        } else {
+            throw new ParseException("Expected end of line after text: at " + position(script, start));
+        }
+        out.append("text:\r\n");
+        while (i < script.length()) {
+            int end = skipLine(script, i);
+            String line = script.substring(i, end);
+            out.append(line);
+            i = end;
+            if (line.equals(".\r\n") || line.equals(".\n")) {
+                return i;
+            }
+        }
+        throw new ParseException("Unclosed text: block at " + position(script, start));
+    }
+
+    private static String position(final String script, final int index) {
+        int line = 1;
+        for (int i = 0; i < index; i++) {
+            if (script.charAt(i) == '\n') {
+                line += 1;
+            }
+        }
+        return "line " + line;
+    }
+
+    private static long utf8Length(final String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of operations in flight to one backend, and adapts that
+ * limit to how the backend is coping.
+ * <p>
+ * The limit follows AIMD (additive increase, multiplicative decrease). Each
+ * successful operation grows the limit by <code>1/limit</code>, so it goes up
+ * by about one each time a full limit's worth of operations succeeds. When the
+ * backend is overloaded the limit is multiplied by
+ * {@link #getBackoffRatio()}. A backend is overloaded if it answers TRYLATER,
+ * sends BYE, times out, or is much slower than usual: an operation that takes
+ * more than {@link #getLatencyTolerance()} times the baseline latency counts
+ * as overload. The baseline follows the fastest operations seen, and drifts
+ * slowly upwards so a backend that has got permanently slower isn't punished
+ * forever.
+ * <p>
+ * The limit is only cut once per smoothed round trip, so a burst of failures
+ * caused by one event doesn't collapse it to the minimum.
+ * <p>
+ * Callers get a {@link Permit} before each operation, and must finish it with
+ * exactly one of {@link Permit#success()}, {@link Permit#overload()} or
+ * {@link Permit#ignore()}. If a permit is held for more than one command, or
+ * while the caller does other work, use {@link Permit#success(long)} with the
+ * time per command instead, so that the caller's own time isn't taken for
+ * backend latency.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class AdaptiveLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveLimiter.class);
+    private static final double SMOOTHING = 0.1;
+    private static final double BASELINE_DRIFT = 0.01;
+    private static final long MIN_COOLDOWN = 100;
+    // Operations faster than this are never slow, however fast the baseline
+    private static final long MIN_SLOW = 50;
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private double backoffRatio = 0.7;
+    private double latencyTolerance = 2.0;
+    private double baseline = -1;
+    private double smoothed = -1;
+    private long lastDecrease = 0;
+    private final AtomicLong overloads = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+
+    /**
+     * @param name         String name of the backend, for logging
+     * @param initialLimit limit to start with
+     * @param minLimit     lowest the limit can go. At least one.
+     * @param maxLimit     highest the limit can go
+     */
+    public AdaptiveLimiter(final String name, final int initialLimit, final int minLimit, final int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Need 1 <= minLimit <= initialLimit <= maxLimit, got "
+                    + minLimit + ", " + initialLimit + ", " + maxLimit);
+        }
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Set what the limit is multiplied by on overload. Defaults to 0.7.
+     */
+    public synchronized void setBackoffRatio(final double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1, got " + backoffRatio);
+        }
+        this.backoffRatio = backoffRatio;
+    }
+
+    public synchronized double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * Set how many times slower than the baseline an operation can be before
+     * it counts as overload. Defaults to 2.
+     */
+    public synchronized void setLatencyTolerance(final double latencyTolerance) {
+        if (latencyTolerance <= 1) {
+            throw new IllegalArgumentException("latencyTolerance must be more than 1, got " + latencyTolerance);
+        }
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    public synchronized double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    /**
+     * Wait until there is room for another operation.
+     *
+     * @param timeout long milliseconds to wait, or zero to wait forever
+     * @return Permit for the operation
+     * @throws SessionWaitException if interrupted, or if the wait times out
+     */
+    public Permit acquire(final long timeout) throws SessionWaitException {
+        synchronized (this) {
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            try {
+                while (inFlight >= (int) limit) {
+                    if (deadline == 0) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new SessionWaitException("Timed out waiting for " + name);
+                        }
+                        wait(remaining);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SessionWaitException("Interrupted waiting for " + name);
+            }
+            inFlight += 1;
+        }
+        return new Permit();
+    }
+
+    /**
+     * Current limit on operations in flight.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Number of operations in flight now.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Number of operations that ended in overload.
+     */
+    public long getOverloadCount() {
+        return overloads.get();
+    }
+
+    /**
+     * Number of times the limit was cut.
+     */
+    public long getDecreaseCount() {
+        return decreases.get();
+    }
+
+    /**
+     * Check if a response shows the server is overloaded (TRYLATER or BYE).
+     *
+     * @param resp ManageSieveResponse to check, may be null
+     * @return true if the server is overloaded
+     */
+    public static boolean isOverload(final ManageSieveResponse resp) {
+        return resp != null && (resp.isBye() || resp.getCode() == ManageSieveResponse.Code.TRYLATER);
+    }
+
+    /**
+     * Check if an exception shows the server is overloaded: a timeout, or a
+     * {@link ManageSieveException} for an overload response.
+     *
+     * @param ex Throwable to check
+     * @return true if the server is overloaded
+     */
+    public static boolean isOverload(final Throwable ex) {
+        if (ex instanceof SocketTimeoutException) {
+            return true;
+        }
+        return ex instanceof ManageSieveException && isOverload(((ManageSieveException) ex).getResponse());
+    }
+
+    private synchronized void finish(final long latency, final boolean success, final boolean overload) {
+        inFlight -= 1;
+        if (success && latency < 0) {
+            // Nothing was timed, so there's nothing to judge the backend by
+            if (inFlight + 1 >= (int) limit) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        } else if (success) {
+            if (baseline < 0 || latency < baseline) {
+                baseline = latency;
+            } else {
+                baseline += (latency - baseline) * BASELINE_DRIFT;
+            }
+            smoothed = smoothed < 0 ? latency : smoothed + (latency - smoothed) * SMOOTHING;
+            if (latency > baseline * latencyTolerance && latency > MIN_SLOW) {
+                decrease(latency);
+            } else if (inFlight + 1 >= (int) limit) {
+                // Only grow if we were actually using the limit
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        } else if (overload) {
+            overloads.incrementAndGet();
+            decrease(latency);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Cut the limit, unless it was cut less than one round trip ago. Must hold
+     * the lock.
+     */
+    private void decrease(final long latency) {
+        long now = System.currentTimeMillis();
+        long cooldown = Math.max(MIN_COOLDOWN, (long) Math.max(smoothed, 0));
+        if (now - lastDecrease < cooldown) {
+            return;
+        }
+        lastDecrease = now;
+        double old = limit;
+        limit = Math.max(minLimit, limit * backoffRatio);
+        decreases.incrementAndGet();
+        log.debug("{}: limit {} -> {} (latency {}ms)", new Object[]{name, (int) old, (int) limit, latency});
+    }
+
+    /**
+     * Permission to run one operation.
+     */
+    public class Permit {
+
+        private final long started = System.currentTimeMillis();
+        private boolean done = false;
+
+        private Permit() {
+        }
+
+        /**
+         * The operation worked. The time since the permit was acquired is used
+         * as its latency to judge the backend.
+         */
+        public void success() {
+            end(System.currentTimeMillis() - started, true, false);
+        }
+
+        /**
+         * The operation worked, and the backend took this long to answer.
+         *
+         * @param latency long milliseconds per command, or negative if no
+         *                commands were timed
+         */
+        public void success(final long latency) {
+            end(latency, true, false);
+        }
+
+        /**
+         * The backend was overloaded.
+         */
+        public void overload() {
+            end(System.currentTimeMillis() - started, false, true);
+        }
+
+        /**
+         * The operation failed for a reason that says nothing about the
+         * backend's load, for example a bad password.
+         */
+        public void ignore() {
+            end(System.currentTimeMillis() - started, false, false);
+        }
+
+        private void end(final long latency, final boolean success, final boolean overload) {
+            synchronized (this) {
+                if (done) {
+                    throw new IllegalStateException("Permit already finished");
+                }
+                done = true;
+            }
+            finish(latency, success, overload);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter. The delay before retry
+ * <code>n</code> is a random time between zero and
+ * <code>min(max, base * 2^n)</code>, so clients that failed together don't
+ * all retry together.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class Backoff {
+
+    private static final Random random = new Random();
+    private final long base;
+    private final long max;
+
+    /**
+     * @param base long milliseconds, the longest delay before the first retry
+     * @param max  long milliseconds, the longest delay before any retry
+     */
+    public Backoff(final long base, final long max) {
+        if (base < 1 || max < base) {
+            throw new IllegalArgumentException("Need 1 <= base <= max, got " + base + ", " + max);
+        }
+        this.base = base;
+        this.max = max;
+    }
+
+    public long getBase() {
+        return base;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Pick the delay before a retry.
+     *
+     * @param attempt int number of attempts that have failed so far, starting
+     *                at zero
+     * @return long milliseconds to wait
+     */
+    public long delay(final int attempt) {
+        long ceiling = base;
+        for (int i = 0; i < attempt && ceiling < max; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(max, ceiling);
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    /**
+     * Sleep before a retry.
+     *
+     * @param attempt int number of attempts that have failed so far, starting
+     *                at zero
+     * @throws InterruptedIOException if interrupted
+     */
+    public void sleep(final int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay(attempt));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during backoff");
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calls to a backend that keeps failing, so they fail straight away
+ * instead of each waiting for a timeout.
+ * <p>
+ * The breaker starts CLOSED, letting every call through and remembering
+ * whether each of the last {@link #getWindowSize()} calls failed. Once at
+ * least {@link #getMinimumCalls()} calls have been seen, if the share that
+ * failed reaches {@link #getFailureRateThreshold()} the breaker goes OPEN.
+ * While open every call is refused with a {@link CircuitOpenException}.
+ * After {@link #getOpenDuration()} the breaker goes HALF_OPEN and lets
+ * {@link #getProbes()} calls through. If they all work it closes again, and
+ * if any fails it opens again.
+ * <p>
+ * A call fails if it ends with an IOException (which includes timeouts), a
+ * ParseException, or a BYE. A NO response is an answer from a working
+ * server, so it isn't a failure, and giving up on a full local pool says
+ * nothing about the server at all. See {@link #isFailure(Throwable)}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Told when the breaker changes state. Called while the breaker is
+     * locked, so must be quick and must not call back into the breaker.
+     */
+    public interface Listener {
+
+        void stateChanged(CircuitBreaker breaker, State from, State to);
+    }
+
+    private final String name;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private boolean[] window;
+    private int windowPos = 0;
+    private int windowCount = 0;
+    private int windowFailures = 0;
+    private int minimumCalls = 10;
+    private double failureRateThreshold = 0.5;
+    private long openDuration = 30000;
+    private int probes = 3;
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private int probesOut = 0;
+    private int probesPassed = 0;
+    private long rejected = 0;
+
+    /**
+     * @param name String name of the backend, for logging
+     */
+    public CircuitBreaker(final String name) {
+        this.name = name;
+        this.window = new boolean[50];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Set the number of recent calls the failure rate is worked out over.
+     * Defaults to 50. Clears the calls seen so far.
+     */
+    public synchronized void setWindowSize(final int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be positive, got " + windowSize);
+        }
+        window = new boolean[windowSize];
+        windowPos = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+
+    public synchronized int getWindowSize() {
+        return window.length;
+    }
+
+    /**
+     * Set the fewest calls to see before the breaker can open. Defaults to
+     * 10.
+     */
+    public synchronized void setMinimumCalls(final int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    public synchronized int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Set the share of failed calls, between 0 and 1, that opens the breaker.
+     * Defaults to 0.5.
+     */
+    public synchronized void setFailureRateThreshold(final double failureRateThreshold) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("failureRateThreshold must be in (0, 1], got " + failureRateThreshold);
+        }
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public synchronized double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Set how long the breaker stays open before letting probes through.
+     * Defaults to 30 seconds.
+     *
+     * @param openDuration long milliseconds
+     */
+    public synchronized void setOpenDuration(final long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    public synchronized long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Set the number of calls let through when half open. Defaults to 3.
+     */
+    public synchronized void setProbes(final int probes) {
+        if (probes < 1) {
+            throw new IllegalArgumentException("probes must be positive, got " + probes);
+        }
+        this.probes = probes;
+    }
+
+    public synchronized int getProbes() {
+        return probes;
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Current state. An open breaker whose time is up reports HALF_OPEN.
+     */
+    public synchronized State getState() {
+        checkOpenTimeout();
+        return state;
+    }
+
+    /**
+     * Number of calls refused because the breaker was open.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Share of recent calls that failed.
+     */
+    public synchronized double getFailureRate() {
+        return windowCount == 0 ? 0 : (double) windowFailures / windowCount;
+    }
+
+    /**
+     * Ask to make a call. Every call let through must be followed by exactly
+     * one of {@link #onSuccess()}, {@link #onFailure()} or
+     * {@link #onIgnored()}.
+     *
+     * @throws CircuitOpenException if the breaker is open, or half open with
+     *                              all its probes out
+     */
+    public synchronized void acquire() throws CircuitOpenException {
+        checkOpenTimeout();
+        switch (state) {
+            case CLOSED:
+                return;
+            case HALF_OPEN:
+                if (probesOut + probesPassed < probes) {
+                    probesOut += 1;
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        rejected += 1;
+        throw new CircuitOpenException("Circuit breaker for " + name + " is " + state);
+    }
+
+    /**
+     * A call let through by {@link #acquire()} worked.
+     */
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            probesOut = Math.max(0, probesOut - 1);
+            probesPassed += 1;
+            if (probesPassed >= probes) {
+                resetWindow();
+                transition(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    /**
+     * A call let through by {@link #acquire()} failed.
+     */
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (windowCount >= minimumCalls && getFailureRate() >= failureRateThreshold) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * A call let through by {@link #acquire()} ended without showing whether
+     * the backend works, for example because of a bug in the caller or
+     * because the caller gave up on it. Nothing is recorded, but a probe
+     * that was let through is handed back so another can be sent.
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probesOut = Math.max(0, probesOut - 1);
+        }
+    }
+
+    /**
+     * Check if an exception from a call counts as a failure: any IOException
+     * or ParseException, except a {@link ManageSieveException} for a response
+     * other than BYE, a refusal by a breaker, and a
+     * {@link SessionWaitException} (the wait was on our side).
+     *
+     * @param ex Throwable the call ended with
+     * @return true if it's a failure
+     */
+    public static boolean isFailure(final Throwable ex) {
+        if (ex instanceof CircuitOpenException || ex instanceof SessionWaitException) {
+            return false;
+        }
+        if (ex instanceof ManageSieveException) {
+            ManageSieveException mse = (ManageSieveException) ex;
+            return mse.getResponse() == null || mse.getResponse().isBye();
+        }
+        return ex instanceof IOException || ex instanceof ParseException;
+    }
+
+    private void record(final boolean failed) {
+        if (windowCount == window.length) {
+            if (window[windowPos]) {
+                windowFailures -= 1;
+            }
+        } else {
+            windowCount += 1;
+        }
+        window[windowPos] = failed;
+        if (failed) {
+            windowFailures += 1;
+        }
+        windowPos = (windowPos + 1) % window.length;
+    }
+
+    private void resetWindow() {
+        windowPos = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transition(State.OPEN);
+    }
+
+    private void checkOpenTimeout() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+            probesOut = 0;
+            probesPassed = 0;
+            transition(State.HALF_OPEN);
+        }
+    }
+
+    private void transition(final State to) {
+        State from = state;
+        if (from == to) {
+            return;
+        }
+        state = to;
+        if (to == State.OPEN) {
+            log.warn("{}: circuit {} -> {}", new Object[]{name, from, to});
+        } else {
+            log.info("{}: circuit {} -> {}", new Object[]{name, from, to});
+        }
+        for (Listener l : listeners) {
+            try {
+                l.stateChanged(this, from, to);
+            } catch (RuntimeException ex) {
+                log.error("Circuit breaker listener failed", ex);
+            }
+        }
+    }
+}
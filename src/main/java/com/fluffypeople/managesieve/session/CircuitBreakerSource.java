@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A {@link SessionSource} that puts a {@link CircuitBreaker} in front of
+ * another one, usually the {@link SessionPool} for a single backend.
+ * <p>
+ * Every borrow asks the breaker first, so when it is open borrow throws a
+ * {@link CircuitOpenException} straight away instead of waiting on a server
+ * that isn't answering. Sessions given back with {@link #release} count as
+ * successes, and with {@link #invalidate} or {@link #overloaded} as failures.
+ * Sessions given back with {@link #discard} don't count either way.
+ * A borrow that fails counts as a failure if
+ * {@link CircuitBreaker#isFailure(Throwable)} says so (a login that's turned
+ * down doesn't).
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class CircuitBreakerSource implements SessionSource {
+
+    private final SessionSource delegate;
+    private final CircuitBreaker breaker;
+    private final Map<ManageSieveClient, Boolean> borrowed = new IdentityHashMap<ManageSieveClient, Boolean>();
+
+    /**
+     * @param delegate SessionSource to get sessions from
+     * @param breaker  CircuitBreaker for the backend behind delegate
+     */
+    public CircuitBreakerSource(final SessionSource delegate, final CircuitBreaker breaker) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+    }
+
+    public SessionSource getDelegate() {
+        return delegate;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Borrow a session from the delegate, if the breaker allows.
+     *
+     * @throws CircuitOpenException if the breaker is open
+     */
+    @Override
+    public ManageSieveClient borrow(final Credentials credentials) throws IOException, ParseException {
+        breaker.acquire();
+        boolean done = false;
+        try {
+            ManageSieveClient client = delegate.borrow(credentials);
+            synchronized (borrowed) {
+                borrowed.put(client, Boolean.TRUE);
+            }
+            done = true;
+            return client;
+        } catch (SessionWaitException ex) {
+            // Gave up waiting on our side, nothing learned about the server
+            throw ex;
+        } catch (IOException ex) {
+            done = true;
+            outcome(!CircuitBreaker.isFailure(ex));
+            throw ex;
+        } catch (ParseException ex) {
+            done = true;
+            breaker.onFailure();
+            throw ex;
+        } finally {
+            if (!done) {
+                // Runtime exception or local wait, nothing learned about the server
+                breaker.onIgnored();
+            }
+        }
+    }
+
+    @Override
+    public void release(final ManageSieveClient client) {
+        boolean tracked = untrack(client);
+        delegate.release(client);
+        if (tracked) {
+            breaker.onSuccess();
+        }
+    }
+
+    @Override
+    public void invalidate(final ManageSieveClient client) {
+        boolean tracked = untrack(client);
+        delegate.invalidate(client);
+        if (tracked) {
+            breaker.onFailure();
+        }
+    }
+
+    @Override
+    public void discard(final ManageSieveClient client) {
+        boolean tracked = untrack(client);
+        delegate.discard(client);
+        if (tracked) {
+            breaker.onIgnored();
+        }
+    }
+
+    @Override
+    public void overloaded(final ManageSieveClient client) {
+        boolean tracked = untrack(client);
+        delegate.overloaded(client);
+        if (tracked) {
+            breaker.onFailure();
+        }
+    }
+
+    private boolean untrack(final ManageSieveClient client) {
+        synchronized (borrowed) {
+            return borrowed.remove(client) != null;
+        }
+    }
+
+    private void outcome(final boolean ok) {
+        if (ok) {
+            breaker.onSuccess();
+        } else {
+            breaker.onFailure();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel. Cheap to schedule and cancel tens of thousands of
+ * timeouts, at the cost of only firing them to the nearest tick.
+ * <p>
+ * The wheel is an array of buckets, one per tick. A timeout goes in the
+ * bucket for its deadline, with a count of how many times round the wheel to
+ * wait first. A single thread advances the wheel once per tick and fires the
+ * timeouts that are due in the current bucket.
+ * <p>
+ * Tasks run on the timer thread, so they must be quick. Anything slow (such
+ * as network IO) should be handed off to another thread.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class HashedWheelTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+    private final long tickMillis;
+    private final Bucket[] wheel;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    /**
+     * Create and start a new timer.
+     *
+     * @param name       String name for the timer thread
+     * @param tickMillis long length of a tick in milliseconds
+     * @param wheelSize  int number of buckets. Timeouts further away than
+     *                   tickMillis * wheelSize go round the wheel more than
+     *                   once.
+     */
+    public HashedWheelTimer(final String name, final long tickMillis, final int wheelSize) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be positive, got " + tickMillis);
+        }
+        if (wheelSize < 1) {
+            throw new IllegalArgumentException("wheelSize must be positive, got " + wheelSize);
+        }
+        this.tickMillis = tickMillis;
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startTime = System.nanoTime();
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run a task after a delay.
+     *
+     * @param task  Runnable to run on the timer thread
+     * @param delay long delay in milliseconds
+     * @return Timeout that can be used to cancel the task
+     */
+    public Timeout schedule(final Runnable task, final long delay) {
+        if (!running) {
+            throw new IllegalStateException("Timer has been stopped");
+        }
+        long deadline = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + Math.max(0, delay);
+        Timeout t = new Timeout(task, deadline);
+        pending.add(t);
+        return t;
+    }
+
+    /**
+     * Stop the timer. Timeouts that haven't fired yet are dropped.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private void work() {
+        while (running) {
+            long nextTick = (tick + 1) * tickMillis;
+            long sleep = nextTick - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            transferPending();
+            Bucket bucket = wheel[(int) (tick % wheel.length)];
+            bucket.expire(tick);
+            tick += 1;
+        }
+    }
+
+    private void transferPending() {
+        Timeout t;
+        while ((t = pending.poll()) != null) {
+            if (t.isCancelled()) {
+                continue;
+            }
+            // Never schedule into the past, the current bucket is about to run
+            long due = Math.max(t.deadline / tickMillis, tick);
+            t.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due % wheel.length)].add(t);
+        }
+    }
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop this task from running, if it hasn't already.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Only touched by the timer thread, so needs no locking.
+     */
+    private static class Bucket {
+
+        private final LinkedList<Timeout> timeouts = new LinkedList<Timeout>();
+
+        void add(final Timeout t) {
+            timeouts.add(t);
+        }
+
+        void expire(final long tick) {
+            Iterator<Timeout> it = timeouts.iterator();
+            while (it.hasNext()) {
+                Timeout t = it.next();
+                if (t.cancelled) {
+                    it.remove();
+                } else if (t.rounds <= 0) {
+                    it.remove();
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException ex) {
+                        log.warn("Timer task threw an exception at tick {}", tick, ex);
+                    }
+                } else {
+                    t.rounds -= 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.SieveScript;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs read only commands (GETSCRIPT, LISTSCRIPTS, HAVESPACE) against
+ * replicas holding the same accounts, and hedges slow ones.
+ * <p>
+ * Each read is sent to one replica (taking turns). If no answer has come back
+ * within the hedge delay, the same read is sent to another replica as well.
+ * Whichever answers first wins, and the other is aborted (see
+ * {@link ManageSieveClient#abort()}) and its session discarded (see
+ * {@link SessionSource#discard}), so the loser isn't counted against its
+ * replica. The hedge
+ * delay is the {@link #getPercentile()} of recent read times, kept between
+ * the bounds set with {@link #setDelayBounds}. A read that lost counts with
+ * the time it had taken when it was stopped. Until enough reads have been
+ * timed the upper bound is used.
+ * <p>
+ * Hedges cost extra load, so they are limited by a budget: every read earns
+ * {@link #getBudgetRatio()} of a hedge, up to {@link #getBudgetBurst()}
+ * saved up, and a hedge is only sent if a whole one is available. With the
+ * default ratio of 0.05 at most about one read in twenty is hedged.
+ * <p>
+ * This class is thread safe. Call {@link #close()} when finished to stop the
+ * worker threads.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class HedgedReader {
+
+    private static final Logger log = LoggerFactory.getLogger(HedgedReader.class);
+    private static final int SAMPLES = 200;
+    private static final int MIN_SAMPLES = 20;
+    private final List<SessionSource> replicas;
+    private final ExecutorService executor;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount = 0;
+    private int samplePos = 0;
+    private double percentile = 0.95;
+    private long minDelay = 10;
+    private long maxDelay = 1000;
+    private double budgetRatio = 0.05;
+    private double budgetBurst = 10;
+    private double tokens = 0;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param replicas SessionSources for the replicas, at least one
+     */
+    public HedgedReader(final SessionSource... replicas) {
+        if (replicas.length == 0) {
+            throw new IllegalArgumentException("Need at least one replica");
+        }
+        this.replicas = new ArrayList<SessionSource>(Arrays.asList(replicas));
+        this.executor = Executors.newCachedThreadPool(new DaemonThreadFactory("hedged-read"));
+    }
+
+    /**
+     * Set the share of recent read times used as the hedge delay, between 0
+     * and 1. Defaults to 0.95.
+     */
+    public synchronized void setPercentile(final double percentile) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1], got " + percentile);
+        }
+        this.percentile = percentile;
+    }
+
+    public synchronized double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Set the shortest and longest hedge delays. Default to 10ms and 1
+     * second.
+     *
+     * @param minDelay long milliseconds
+     * @param maxDelay long milliseconds
+     */
+    public synchronized void setDelayBounds(final long minDelay, final long maxDelay) {
+        if (minDelay < 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException("Bad delay bounds " + minDelay + ", " + maxDelay);
+        }
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Set how many hedges can be sent.
+     *
+     * @param ratio double share of a hedge earned by each read
+     * @param burst double most hedges that can be saved up
+     */
+    public synchronized void setBudget(final double ratio, final double burst) {
+        if (ratio < 0 || burst < 1) {
+            throw new IllegalArgumentException("Bad budget " + ratio + ", " + burst);
+        }
+        this.budgetRatio = ratio;
+        this.budgetBurst = burst;
+        this.tokens = Math.min(tokens, burst);
+    }
+
+    public synchronized double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    public synchronized double getBudgetBurst() {
+        return budgetBurst;
+    }
+
+    /**
+     * Get the delay the next read will wait before hedging.
+     *
+     * @return long milliseconds
+     */
+    public synchronized long getHedgeDelay() {
+        if (sampleCount < MIN_SAMPLES) {
+            return maxDelay;
+        }
+        long[] sorted = new long[sampleCount];
+        System.arraycopy(samples, 0, sorted, 0, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sampleCount) - 1;
+        long delay = sorted[Math.max(0, index)];
+        return Math.max(minDelay, Math.min(maxDelay, delay));
+    }
+
+    public long getReadCount() {
+        return reads.get();
+    }
+
+    /**
+     * Number of reads that were sent to a second replica.
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Number of hedges that answered before the first replica.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Get a script. See {@link ManageSieveClient#getScript(SieveScript)}.
+     *
+     * @param credentials account to read from
+     * @param script      SieveScript with the name set. The body is filled in
+     *                    if the response is OK.
+     */
+    public ManageSieveResponse getScript(final Credentials credentials, final SieveScript script) throws IOException, ParseException {
+        Attempt<SieveScript> winner = execute(credentials, new Read<SieveScript>() {
+            @Override
+            public SieveScript newOutput() {
+                return new SieveScript(script.getName(), null, false);
+            }
+
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient client, final SieveScript out) throws IOException, ParseException {
+                return client.getScript(out);
+            }
+        });
+        if (winner.response.isOk()) {
+            script.setBody(winner.output.getBody());
+        }
+        return winner.response;
+    }
+
+    /**
+     * List scripts. See {@link ManageSieveClient#listscripts(List)}.
+     *
+     * @param credentials account to read from
+     * @param scripts     List the scripts are added to if the response is OK
+     */
+    public ManageSieveResponse listscripts(final Credentials credentials, final List<SieveScript> scripts) throws IOException, ParseException {
+        Attempt<List<SieveScript>> winner = execute(credentials, new Read<List<SieveScript>>() {
+            @Override
+            public List<SieveScript> newOutput() {
+                return new ArrayList<SieveScript>();
+            }
+
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient client, final List<SieveScript> out) throws IOException, ParseException {
+                return client.listscripts(out);
+            }
+        });
+        if (winner.response.isOk()) {
+            scripts.addAll(winner.output);
+        }
+        return winner.response;
+    }
+
+    /**
+     * Check for space. See {@link ManageSieveClient#havespace(String, long)}.
+     *
+     * @param credentials account to check
+     */
+    public ManageSieveResponse havespace(final Credentials credentials, final String name, final long size) throws IOException, ParseException {
+        return execute(credentials, new Read<Object>() {
+            @Override
+            public Object newOutput() {
+                return null;
+            }
+
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient client, final Object out) throws IOException, ParseException {
+                return client.havespace(name, size);
+            }
+        }).response;
+    }
+
+    /**
+     * Stop the worker threads. Reads in progress carry on.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> Attempt<T> execute(final Credentials credentials, final Read<T> read) throws IOException, ParseException {
+        reads.incrementAndGet();
+        earn();
+        BlockingQueue<Attempt<T>> done = new LinkedBlockingQueue<Attempt<T>>();
+        int first = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+        List<Attempt<T>> running = new ArrayList<Attempt<T>>();
+        running.add(submit(replicas.get(first), credentials, read, done));
+        Attempt<T> hedge = null;
+        Attempt<T> failed = null;
+        try {
+            Attempt<T> finished = done.poll(getHedgeDelay(), TimeUnit.MILLISECONDS);
+            if (finished == null && replicas.size() > 1 && spend()) {
+                hedges.incrementAndGet();
+                SessionSource other = replicas.get((first + 1) % replicas.size());
+                log.debug("Hedging read for {}", credentials.getAccount());
+                hedge = submit(other, credentials, read, done);
+                running.add(hedge);
+            }
+            int outstanding = running.size();
+            while (true) {
+                if (finished == null) {
+                    finished = done.take();
+                }
+                outstanding -= 1;
+                if (finished.error == null) {
+                    if (finished == hedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return finished;
+                }
+                if (failed == null) {
+                    failed = finished;
+                }
+                if (outstanding == 0) {
+                    break;
+                }
+                finished = null;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for read");
+        } finally {
+            for (Attempt<T> a : running) {
+                a.cancel();
+            }
+        }
+        if (failed.error instanceof ParseException) {
+            throw (ParseException) failed.error;
+        }
+        if (failed.error instanceof IOException) {
+            throw (IOException) failed.error;
+        }
+        throw (RuntimeException) failed.error;
+    }
+
+    private <T> Attempt<T> submit(final SessionSource source, final Credentials credentials, final Read<T> read, final BlockingQueue<Attempt<T>> done) {
+        Attempt<T> attempt = new Attempt<T>(source, credentials, read, done);
+        executor.execute(attempt);
+        return attempt;
+    }
+
+    private synchronized void earn() {
+        tokens = Math.min(budgetBurst, tokens + budgetRatio);
+    }
+
+    private synchronized boolean spend() {
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void sample(final long elapsed) {
+        samples[samplePos] = elapsed;
+        samplePos = (samplePos + 1) % SAMPLES;
+        if (sampleCount < SAMPLES) {
+            sampleCount += 1;
+        }
+    }
+
+    private interface Read<T> {
+
+        T newOutput();
+
+        ManageSieveResponse run(ManageSieveClient client, T out) throws IOException, ParseException;
+    }
+
+    /**
+     * One try at a read, against one replica.
+     */
+    private class Attempt<T> implements Runnable {
+
+        private final SessionSource source;
+        private final Credentials credentials;
+        private final Read<T> read;
+        private final BlockingQueue<Attempt<T>> done;
+        private ManageSieveClient client = null;
+        private boolean cancelled = false;
+        private ManageSieveResponse response = null;
+        private T output = null;
+        private Throwable error = null;
+
+        Attempt(final SessionSource source, final Credentials credentials, final Read<T> read, final BlockingQueue<Attempt<T>> done) {
+            this.source = source;
+            this.credentials = credentials;
+            this.read = read;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                ManageSieveClient c;
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                }
+                c = source.borrow(credentials);
+                boolean lost;
+                synchronized (this) {
+                    lost = cancelled;
+                    if (!lost) {
+                        client = c;
+                    }
+                }
+                if (lost) {
+                    // Lost while waiting for a session, which is still good
+                    source.release(c);
+                    sample(System.currentTimeMillis() - start);
+                    return;
+                }
+                boolean ok = false;
+                try {
+                    T out = read.newOutput();
+                    ManageSieveResponse r = read.run(c, out);
+                    output = out;
+                    response = r;
+                    ok = true;
+                } finally {
+                    boolean aborted;
+                    synchronized (this) {
+                        client = null;
+                        aborted = cancelled;
+                    }
+                    if (aborted) {
+                        source.discard(c);
+                    } else if (ok) {
+                        source.release(c);
+                    } else {
+                        source.invalidate(c);
+                    }
+                    if (ok || aborted) {
+                        // A loser's time so far is the least its read would
+                        // have taken, leaving it out would pull the delay down
+                        sample(System.currentTimeMillis() - start);
+                    }
+                }
+            } catch (IOException ex) {
+                error = ex;
+            } catch (ParseException ex) {
+                error = ex;
+            } catch (RuntimeException ex) {
+                error = ex;
+            }
+            done.add(this);
+        }
+
+        /**
+         * Stop this attempt if it's still going. Harmless if it has finished.
+         */
+        void cancel() {
+            ManageSieveClient c;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                c = client;
+            }
+            if (c != null) {
+                c.abort();
+            }
+        }
+    }
+}
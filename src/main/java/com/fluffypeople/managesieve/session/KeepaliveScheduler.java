@@ -0,0 +1,269 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps idle sessions alive by sending NOOP, using one timer for any number
+ * of sessions.
+ * <p>
+ * Each registered session has a timeout on a {@link HashedWheelTimer}. When it
+ * fires, the session is checked: if a command has been sent since the last
+ * check (see {@link ManageSieveClient#getLastActivity()}) the timeout is just
+ * moved to the new idle deadline. Only sessions that really have been idle for
+ * the threshold get a tagged NOOP. The NOOPs are sent from a small thread
+ * pool, so a slow server doesn't hold up the timer.
+ * <p>
+ * Sessions that answer with BYE, or that fail with an IO or parse error, are
+ * closed, unregistered, and reported to the {@link Listener} if there is one.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class KeepaliveScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(KeepaliveScheduler.class);
+    private static final int WHEEL_SIZE = 512;
+    private static final int TICKS_PER_THRESHOLD = 16;
+    private final long idleThreshold;
+    private final HashedWheelTimer timer;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final ConcurrentHashMap<ManageSieveClient, Entry> sessions = new ConcurrentHashMap<ManageSieveClient, Entry>();
+    private final AtomicLong tagCounter = new AtomicLong();
+    private final AtomicLong noopsSent = new AtomicLong();
+    private volatile Listener listener = null;
+
+    /**
+     * Called when a session is retired because the server said BYE or the
+     * connection failed.
+     */
+    public interface Listener {
+
+        /**
+         * @param client   the session that was retired. It has already been
+         *                 closed.
+         * @param response the BYE response, or null if there was an exception
+         * @param cause    the exception, or null if the server said BYE
+         */
+        void retired(ManageSieveClient client, ManageSieveResponse response, Exception cause);
+    }
+
+    /**
+     * Create a scheduler with its own pool of four threads for sending NOOPs.
+     *
+     * @param idleThreshold long milliseconds a session can be idle before a
+     *                      NOOP is sent
+     */
+    public KeepaliveScheduler(final long idleThreshold) {
+        this(idleThreshold, Executors.newFixedThreadPool(4, new DaemonThreadFactory("sieve-keepalive")), true);
+    }
+
+    /**
+     * Create a scheduler that sends NOOPs using the given executor. The
+     * executor is not shut down by {@link #shutdown()}.
+     *
+     * @param idleThreshold long milliseconds a session can be idle before a
+     *                      NOOP is sent
+     * @param executor      ExecutorService to send NOOPs from
+     */
+    public KeepaliveScheduler(final long idleThreshold, final ExecutorService executor) {
+        this(idleThreshold, executor, false);
+    }
+
+    private KeepaliveScheduler(final long idleThreshold, final ExecutorService executor, final boolean ownExecutor) {
+        if (idleThreshold < 1) {
+            throw new IllegalArgumentException("idleThreshold must be positive, got " + idleThreshold);
+        }
+        this.idleThreshold = idleThreshold;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.timer = new HashedWheelTimer("sieve-keepalive-timer", Math.max(1, idleThreshold / TICKS_PER_THRESHOLD), WHEEL_SIZE);
+    }
+
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start keeping a session alive. Registering a session twice has no
+     * effect.
+     *
+     * @param client a connected session
+     */
+    public void register(final ManageSieveClient client) {
+        Entry e = new Entry(client);
+        if (sessions.putIfAbsent(client, e) == null) {
+            schedule(e, idleThreshold - (System.currentTimeMillis() - client.getLastActivity()));
+        }
+    }
+
+    /**
+     * Stop keeping a session alive. The session is not closed.
+     *
+     * @param client the session to forget
+     * @return true if the session was registered
+     */
+    public boolean unregister(final ManageSieveClient client) {
+        Entry e = sessions.remove(client);
+        if (e != null) {
+            e.cancel();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of sessions being kept alive.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Total number of NOOPs sent.
+     */
+    public long getNoopsSent() {
+        return noopsSent.get();
+    }
+
+    /**
+     * Stop sending keepalives. Registered sessions are left open.
+     */
+    public void shutdown() {
+        timer.stop();
+        for (Entry e : sessions.values()) {
+            e.cancel();
+        }
+        sessions.clear();
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private void schedule(final Entry e, final long delay) {
+        e.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(e);
+            }
+        }, delay);
+    }
+
+    /**
+     * Runs on the timer thread.
+     */
+    private void check(final Entry e) {
+        if (sessions.get(e.client) != e) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - e.client.getLastActivity();
+        if (idle < idleThreshold) {
+            schedule(e, idleThreshold - idle);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    keepalive(e);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            log.debug("Keepalive executor is shut down, dropping session", ex);
+            sessions.remove(e.client, e);
+        }
+    }
+
+    /**
+     * Runs on the executor.
+     */
+    private void keepalive(final Entry e) {
+        if (sessions.get(e.client) != e) {
+            return;
+        }
+        try {
+            String tag = "keepalive-" + tagCounter.incrementAndGet();
+            ManageSieveResponse resp = e.client.noop(tag);
+            noopsSent.incrementAndGet();
+            if (resp.isBye()) {
+                retire(e, resp, null);
+                return;
+            }
+            if (!resp.isOk()) {
+                log.debug("Unexpected NOOP response {}, keeping session", resp);
+            }
+        } catch (IOException ex) {
+            retire(e, null, ex);
+            return;
+        } catch (ParseException ex) {
+            retire(e, null, ex);
+            return;
+        }
+        if (sessions.get(e.client) == e) {
+            schedule(e, idleThreshold);
+        }
+    }
+
+    private void retire(final Entry e, final ManageSieveResponse resp, final Exception cause) {
+        if (!sessions.remove(e.client, e)) {
+            return;
+        }
+        log.debug("Retiring session to {}: {}", e.client.getHostname(), resp != null ? resp : cause);
+        e.client.close();
+        Listener l = listener;
+        if (l != null) {
+            l.retired(e.client, resp, cause);
+        }
+    }
+
+    private static class Entry {
+
+        private final ManageSieveClient client;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        Entry(final ManageSieveClient client) {
+            this.client = client;
+        }
+
+        void cancel() {
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
+}
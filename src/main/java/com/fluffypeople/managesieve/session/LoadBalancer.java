@@ -0,0 +1,461 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SessionSource} that spreads sessions over several backends serving
+ * the same accounts, such as replicated frontends in front of shared storage.
+ * Each backend has its own source, usually a {@link SessionPool} (maybe
+ * wrapped in a {@link CircuitBreakerSource}), so sessions are still pooled per
+ * backend.
+ * <p>
+ * Each backend has a cost of
+ * <pre>(outstanding + 1) * latency / weight</pre>
+ * where outstanding is the number of its sessions that are borrowed, and
+ * latency is a moving average (EWMA) of the round trip of the commands sent
+ * on its sessions, in milliseconds (see
+ * {@link ManageSieveClient#getResponseTime()}). How long a caller keeps a
+ * session says nothing about the backend, so it isn't counted. A backend with
+ * no samples yet is given the mean latency of the backends that have them,
+ * so a new backend isn't swamped just because it looks free. With {@link Strategy#LEAST_OUTSTANDING} every
+ * backend is checked and the cheapest is used. With {@link Strategy#POWER_OF_TWO} two
+ * backends are picked at random and the cheaper of them is used, which
+ * avoids every client herding onto the same backend.
+ * <p>
+ * A backend isn't used while it is unhealthy: when marked down with
+ * {@link #setDown(String, boolean)}, when its circuit breaker (if it has one)
+ * is open, or for {@link #getDownTime()} after {@link #getFailureLimit()}
+ * borrows from it have failed in a row. If a borrow fails because of the
+ * backend (see {@link CircuitBreaker#isFailure(Throwable)}) the next best
+ * backend is tried.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class LoadBalancer implements SessionSource {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadBalancer.class);
+    // Weight given to each new latency sample
+    private static final double ALPHA = 0.3;
+
+    public enum Strategy {
+
+        LEAST_OUTSTANDING, POWER_OF_TWO
+    }
+
+    /**
+     * One backend, with its current load.
+     */
+    public static class Backend {
+
+        private final String name;
+        private final SessionSource source;
+        private final int weight;
+        private int outstanding = 0;
+        private double latency = 0;
+        private boolean sampled = false;
+        private boolean down = false;
+        private int failures = 0;
+        private long downUntil = 0;
+        private long borrowed = 0;
+
+        private Backend(final String name, final SessionSource source, final int weight) {
+            this.name = name;
+            this.source = source;
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public SessionSource getSource() {
+            return source;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Number of sessions from this backend that are borrowed now.
+         */
+        public synchronized int getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * Moving average of the round trip of commands, in milliseconds.
+         */
+        public synchronized double getLatency() {
+            return latency;
+        }
+
+        /**
+         * Number of sessions borrowed from this backend so far.
+         */
+        public synchronized long getBorrowedCount() {
+            return borrowed;
+        }
+
+        public synchronized boolean isHealthy() {
+            if (down || System.currentTimeMillis() < downUntil) {
+                return false;
+            }
+            if (source instanceof CircuitBreakerSource) {
+                return ((CircuitBreakerSource) source).getBreaker().getState() != CircuitBreaker.State.OPEN;
+            }
+            return true;
+        }
+
+        /**
+         * @param prior latency to use if there haven't been any samples yet
+         */
+        private synchronized double cost(final double prior) {
+            return (outstanding + 1) * Math.max(sampled ? latency : prior, 1.0) / weight;
+        }
+
+        private synchronized void started() {
+            outstanding += 1;
+        }
+
+        private synchronized void borrowed() {
+            failures = 0;
+            borrowed += 1;
+        }
+
+        private synchronized void failed(final int limit, final long downTime) {
+            outstanding -= 1;
+            failures += 1;
+            if (failures >= limit) {
+                failures = 0;
+                downUntil = System.currentTimeMillis() + downTime;
+                log.warn("Backend {} failed {} times in a row, not using it for {}ms", new Object[]{name, limit, downTime});
+            }
+        }
+
+        /**
+         * @param roundTrip average round trip of the session's commands, or
+         *                  -1 if none were sent
+         */
+        private synchronized void finished(final long roundTrip) {
+            outstanding -= 1;
+            if (roundTrip < 0) {
+                return;
+            }
+            latency = sampled ? latency + ALPHA * (roundTrip - latency) : roundTrip;
+            sampled = true;
+        }
+
+        private synchronized void abandoned() {
+            outstanding -= 1;
+        }
+
+        private synchronized void setDown(final boolean down) {
+            this.down = down;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + "[out=" + outstanding + ", latency=" + Math.round(latency) + "ms, weight=" + weight + "]";
+        }
+    }
+
+    /**
+     * The backend a session came from, and the session's response counters
+     * when it was borrowed.
+     */
+    private static class Lease {
+
+        private final Backend backend;
+        private final long responses;
+        private final long responseTime;
+
+        private Lease(final Backend backend, final ManageSieveClient client) {
+            this.backend = backend;
+            this.responses = client.getResponseCount();
+            this.responseTime = client.getResponseTime();
+        }
+
+        /**
+         * Average round trip of the commands sent since the session was
+         * borrowed, or -1 if there weren't any.
+         */
+        private long roundTrip(final ManageSieveClient client) {
+            long count = client.getResponseCount() - responses;
+            if (count <= 0) {
+                return -1;
+            }
+            return (client.getResponseTime() - responseTime) / count;
+        }
+    }
+
+    private final Strategy strategy;
+    private final List<Backend> backends = new CopyOnWriteArrayList<Backend>();
+    private final Map<ManageSieveClient, Lease> leases = new IdentityHashMap<ManageSieveClient, Lease>();
+    private final Random random = new Random();
+    private volatile int failureLimit = 3;
+    private volatile long downTime = 10000;
+
+    public LoadBalancer(final Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Add a backend.
+     *
+     * @param name   String name of the backend
+     * @param source SessionSource for the backend
+     * @param weight int share of the load the backend should get, relative
+     *               to the others. Must be positive.
+     * @return this balancer, for chaining
+     */
+    public LoadBalancer addBackend(final String name, final SessionSource source, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be positive, got " + weight);
+        }
+        backends.add(new Backend(name, source, weight));
+        return this;
+    }
+
+    /**
+     * Get the backends, in the order they were added.
+     */
+    public List<Backend> getBackends() {
+        return new ArrayList<Backend>(backends);
+    }
+
+    /**
+     * Mark a backend as down (so it isn't used) or up again.
+     *
+     * @param name String name of the backend
+     * @param down boolean true to stop using it
+     */
+    public void setDown(final String name, final boolean down) {
+        for (Backend b : backends) {
+            if (b.getName().equals(name)) {
+                b.setDown(down);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No backend called " + name);
+    }
+
+    /**
+     * Set how many borrows in a row can fail before a backend is left alone
+     * for a while. Defaults to 3.
+     */
+    public void setFailureLimit(final int failureLimit) {
+        if (failureLimit < 1) {
+            throw new IllegalArgumentException("failureLimit must be positive, got " + failureLimit);
+        }
+        this.failureLimit = failureLimit;
+    }
+
+    public int getFailureLimit() {
+        return failureLimit;
+    }
+
+    /**
+     * Set how long a backend is left alone after too many failures. Defaults
+     * to 10 seconds.
+     *
+     * @param downTime long milliseconds
+     */
+    public void setDownTime(final long downTime) {
+        this.downTime = downTime;
+    }
+
+    public long getDownTime() {
+        return downTime;
+    }
+
+    /**
+     * Borrow a session from the best healthy backend, trying others if it
+     * fails.
+     *
+     * @throws IOException if there are no healthy backends, or the last one
+     *                     tried failed
+     */
+    @Override
+    public ManageSieveClient borrow(final Credentials credentials) throws IOException, ParseException {
+        List<Backend> tried = new ArrayList<Backend>();
+        Exception lastFailure = null;
+        while (true) {
+            Backend backend = choose(tried);
+            if (backend == null) {
+                throw new IOException("No healthy backends for " + credentials.getAccount(), lastFailure);
+            }
+            tried.add(backend);
+            backend.started();
+            boolean done = false;
+            try {
+                ManageSieveClient client = backend.getSource().borrow(credentials);
+                backend.borrowed();
+                synchronized (leases) {
+                    leases.put(client, new Lease(backend, client));
+                }
+                done = true;
+                return client;
+            } catch (IOException ex) {
+                if (!CircuitBreaker.isFailure(ex)) {
+                    throw ex;
+                }
+                done = true;
+                backend.failed(failureLimit, downTime);
+                log.debug("Backend {} failed, trying another: {}", backend.getName(), ex.getMessage());
+                if (tried.size() == backends.size()) {
+                    throw ex;
+                }
+                lastFailure = ex;
+            } catch (ParseException ex) {
+                done = true;
+                backend.failed(failureLimit, downTime);
+                if (tried.size() == backends.size()) {
+                    throw ex;
+                }
+                lastFailure = ex;
+            } finally {
+                if (!done) {
+                    backend.abandoned();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void release(final ManageSieveClient client) {
+        Lease lease = untrack(client);
+        if (lease == null) {
+            throw new IllegalArgumentException("Session doesn't belong to this balancer");
+        }
+        lease.backend.finished(lease.roundTrip(client));
+        lease.backend.getSource().release(client);
+    }
+
+    @Override
+    public void invalidate(final ManageSieveClient client) {
+        Lease lease = untrack(client);
+        if (lease != null) {
+            lease.backend.abandoned();
+            lease.backend.getSource().invalidate(client);
+        }
+    }
+
+    @Override
+    public void discard(final ManageSieveClient client) {
+        Lease lease = untrack(client);
+        if (lease != null) {
+            lease.backend.abandoned();
+            lease.backend.getSource().discard(client);
+        }
+    }
+
+    @Override
+    public void overloaded(final ManageSieveClient client) {
+        Lease lease = untrack(client);
+        if (lease != null) {
+            // Count the round trips, so a struggling backend looks slower
+            lease.backend.finished(lease.roundTrip(client));
+            lease.backend.getSource().overloaded(client);
+        }
+    }
+
+    private Lease untrack(final ManageSieveClient client) {
+        synchronized (leases) {
+            return leases.remove(client);
+        }
+    }
+
+    private Backend choose(final List<Backend> exclude) {
+        List<Backend> healthy = new ArrayList<Backend>();
+        for (Backend b : backends) {
+            if (!exclude.contains(b) && b.isHealthy()) {
+                healthy.add(b);
+            }
+        }
+        if (healthy.isEmpty()) {
+            return null;
+        }
+        double prior = prior(healthy);
+        if (strategy == Strategy.POWER_OF_TWO) {
+            if (healthy.size() == 1) {
+                return healthy.get(0);
+            }
+            int i = random.nextInt(healthy.size());
+            int j = random.nextInt(healthy.size() - 1);
+            if (j >= i) {
+                j += 1;
+            }
+            Backend a = healthy.get(i);
+            Backend b = healthy.get(j);
+            return b.cost(prior) < a.cost(prior) ? b : a;
+        }
+        Backend best = null;
+        double bestCost = 0;
+        for (Backend b : healthy) {
+            double cost = b.cost(prior);
+            if (best == null || cost < bestCost) {
+                best = b;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Mean latency of the backends that have been sampled, or 1 if none have.
+     */
+    private static double prior(final List<Backend> healthy) {
+        double total = 0;
+        int count = 0;
+        for (Backend b : healthy) {
+            synchronized (b) {
+                if (b.sampled) {
+                    total += b.latency;
+                    count += 1;
+                }
+            }
+        }
+        return count == 0 ? 1.0 : total / count;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens and authenticates sessions ahead of time, so the first requests
+ * after a restart don't pay for connect, STARTTLS and SASL.
+ * <p>
+ * Each pool is warmed independently, and all pools are warmed in parallel.
+ * Within a pool, sessions are opened in waves that start small and double in
+ * size (up to {@link #getParallelism()}) while things go well. A wave with
+ * failures halves the next wave, and there is a pause of
+ * {@link #getRampInterval()} milliseconds between waves, so a backend that is
+ * struggling isn't hit with a burst of logins.
+ * <p>
+ * Typical use:
+ * <pre>
+ * <code>
+ * PoolWarmer warmer = new PoolWarmer();
+ * warmer.addPool("backend1", pool1, 20);
+ * warmer.addPool("backend2", pool2, 20);
+ * PoolWarmer.Report report = warmer.warm(60000);
+ * log.info("Warm up: {}", report);
+ * </code>
+ * </pre>
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class PoolWarmer {
+
+    private static final Logger log = LoggerFactory.getLogger(PoolWarmer.class);
+    private final Map<String, Target> targets = new LinkedHashMap<String, Target>();
+    private int parallelism = 8;
+    private long rampInterval = 100;
+    private int maxFailures = 3;
+
+    /**
+     * Add a pool to warm.
+     *
+     * @param name     String name for the pool, used in the report
+     * @param pool     SessionPool to warm. Must have default credentials set.
+     * @param sessions int number of idle sessions to open
+     */
+    public void addPool(final String name, final SessionPool pool, final int sessions) {
+        if (pool.getDefaultCredentials() == null) {
+            throw new IllegalArgumentException("Pool " + name + " has no default credentials");
+        }
+        targets.put(name, new Target(name, pool, Math.min(sessions, pool.getMaxSessions())));
+    }
+
+    /**
+     * Set the largest number of sessions opened at once for a single pool.
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive, got " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the pause between waves, in milliseconds.
+     */
+    public void setRampInterval(final long rampInterval) {
+        this.rampInterval = rampInterval;
+    }
+
+    public long getRampInterval() {
+        return rampInterval;
+    }
+
+    /**
+     * Set how many waves in a row can fail completely before a pool is given
+     * up on.
+     */
+    public void setMaxFailures(final int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    public int getMaxFailures() {
+        return maxFailures;
+    }
+
+    /**
+     * Warm all the pools, waiting until they are done or the timeout is
+     * reached. Pools that haven't finished by the timeout carry on warming in
+     * the background.
+     *
+     * @param timeout long maximum time to wait, in milliseconds
+     * @return Report of what happened
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Report warm(final long timeout) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final CountDownLatch done = new CountDownLatch(targets.size());
+        ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("sieve-warmup"));
+        try {
+            for (final Target t : targets.values()) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            warmPool(t);
+                        } finally {
+                            t.elapsed = System.currentTimeMillis() - start;
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            boolean complete = done.await(timeout, TimeUnit.MILLISECONDS);
+            Report report = new Report(System.currentTimeMillis() - start, complete, new ArrayList<Target>(targets.values()));
+            log.info("Pool warm up: {}", report);
+            return report;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void warmPool(final Target t) {
+        ExecutorService wave = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("sieve-warmup-" + t.name));
+        try {
+            int waveSize = 1;
+            int failedWaves = 0;
+            while (t.opened.get() < t.wanted && failedWaves < maxFailures) {
+                int size = Math.min(waveSize, t.wanted - t.opened.get());
+                final CountDownLatch latch = new CountDownLatch(size);
+                final AtomicInteger failures = new AtomicInteger();
+                for (int i = 0; i < size; i++) {
+                    wave.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (t.pool.addIdleSession()) {
+                                    t.opened.incrementAndGet();
+                                } else {
+                                    // Pool is full, count it as done
+                                    t.opened.set(t.wanted);
+                                }
+                            } catch (IOException ex) {
+                                failures.incrementAndGet();
+                                t.failed(ex);
+                            } catch (ParseException ex) {
+                                failures.incrementAndGet();
+                                t.failed(ex);
+                            } catch (RuntimeException ex) {
+                                failures.incrementAndGet();
+                                t.failed(ex);
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    });
+                }
+                latch.await();
+
+                if (failures.get() == 0) {
+                    failedWaves = 0;
+                    waveSize = Math.min(waveSize * 2, parallelism);
+                } else {
+                    failedWaves = failures.get() == size ? failedWaves + 1 : 0;
+                    waveSize = Math.max(1, waveSize / 2);
+                }
+                if (t.opened.get() < t.wanted && rampInterval > 0) {
+                    Thread.sleep(rampInterval);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            wave.shutdown();
+        }
+    }
+
+    /**
+     * Progress of warming one pool.
+     */
+    public static class Target {
+
+        private final String name;
+        private final SessionPool pool;
+        private final int wanted;
+        private final AtomicInteger opened = new AtomicInteger();
+        private final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        private volatile long elapsed = -1;
+
+        Target(final String name, final SessionPool pool, final int wanted) {
+            this.name = name;
+            this.pool = pool;
+            this.wanted = wanted;
+        }
+
+        private void failed(final Exception ex) {
+            log.debug("Warm up of {} failed to open a session", name, ex);
+            failures.add(ex);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Number of sessions asked for.
+         */
+        public int getWanted() {
+            return wanted;
+        }
+
+        /**
+         * Number of sessions opened so far.
+         */
+        public int getOpened() {
+            return Math.min(opened.get(), wanted);
+        }
+
+        /**
+         * Exceptions from sessions that couldn't be opened.
+         */
+        public List<Exception> getFailures() {
+            synchronized (failures) {
+                return new ArrayList<Exception>(failures);
+            }
+        }
+
+        /**
+         * Time taken to warm this pool in milliseconds, or -1 if it's still
+         * going.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + getOpened() + "/" + wanted + " sessions, " + failures.size() + " failures"
+                    + (elapsed >= 0 ? ", " + elapsed + "ms" : ", still warming");
+        }
+    }
+
+    /**
+     * Outcome of a warm up.
+     */
+    public static class Report {
+
+        private final long elapsed;
+        private final boolean complete;
+        private final List<Target> targets;
+
+        Report(final long elapsed, final boolean complete, final List<Target> targets) {
+            this.elapsed = elapsed;
+            this.complete = complete;
+            this.targets = targets;
+        }
+
+        /**
+         * Total time taken, in milliseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * True if every pool finished (successfully or not) before the
+         * timeout.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * True if every pool finished and opened every session asked for.
+         */
+        public boolean isSuccess() {
+            if (!complete) {
+                return false;
+            }
+            for (Target t : targets) {
+                if (t.getOpened() < t.getWanted()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public List<Target> getTargets() {
+            return Collections.unmodifiableList(targets);
+        }
+
+        /**
+         * Total number of sessions that couldn't be opened.
+         */
+        public int getFailureCount() {
+            int count = 0;
+            for (Target t : targets) {
+                count += t.getFailures().size();
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return elapsed + "ms, " + (complete ? "complete" : "incomplete") + ", " + targets;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveException;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.SessionFactory;
+import com.fluffypeople.managesieve.SieveScript;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A session that puts itself back together when the server goes away.
+ * <p>
+ * The session remembers the {@link SessionFactory} and credentials it was
+ * made with. If the server sends BYE, or the connection fails or times out,
+ * it connects and authenticates again (waiting with {@link Backoff} between
+ * tries) and carries on.
+ * <p>
+ * Commands that give the same result if they are sent twice (everything
+ * except DELETESCRIPT and RENAMESCRIPT) are sent again on the new session.
+ * If the connection is lost during DELETESCRIPT or RENAMESCRIPT there's no
+ * way to know if the server did it, so a {@link SessionLostException} is
+ * thrown instead. The session is still put back together for the next
+ * command.
+ * <p>
+ * NO responses are returned as normal. A login that's turned down is thrown
+ * as a {@link ManageSieveException} straight away, without retrying.
+ * <p>
+ * This class is thread safe, but commands are run one at a time.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class ResilientSession {
+
+    private static final Logger log = LoggerFactory.getLogger(ResilientSession.class);
+
+    private interface Command {
+
+        ManageSieveResponse run(ManageSieveClient client) throws IOException, ParseException;
+    }
+
+    private final SessionFactory factory;
+    private final Credentials credentials;
+    private ManageSieveClient client = null;
+    private int maxAttempts = 5;
+    private Backoff backoff = new Backoff(200, 10000);
+    private long reconnects = 0;
+    private long replays = 0;
+    private boolean opened = false;
+    private boolean closed = false;
+
+    /**
+     * Create a session. It doesn't connect until the first command.
+     *
+     * @param factory     SessionFactory to open sessions with
+     * @param credentials to authenticate with
+     */
+    public ResilientSession(final SessionFactory factory, final Credentials credentials) {
+        this.factory = factory;
+        this.credentials = credentials;
+    }
+
+    /**
+     * Set how hard to try to connect, and to run each command.
+     *
+     * @param maxAttempts int tries in all, including the first
+     * @param backoff     Backoff to wait between tries
+     */
+    public synchronized void setRetry(final int maxAttempts, final Backoff backoff) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive, got " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoff = backoff;
+    }
+
+    public synchronized int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Credentials getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * Number of times the session has been opened again after being lost.
+     */
+    public synchronized long getReconnectCount() {
+        return reconnects;
+    }
+
+    /**
+     * Number of commands sent again after the session was lost.
+     */
+    public synchronized long getReplayCount() {
+        return replays;
+    }
+
+    /**
+     * Get the current underlying client, connecting if needed. The client may
+     * be replaced after any command, so don't hold on to it.
+     */
+    public synchronized ManageSieveClient getClient() throws IOException, ParseException {
+        return connected();
+    }
+
+    public ManageSieveResponse capability() throws IOException, ParseException {
+        return execute("CAPABILITY", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.capability();
+            }
+        });
+    }
+
+    public ManageSieveResponse noop(final String tag) throws IOException, ParseException {
+        return execute("NOOP", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.noop(tag);
+            }
+        });
+    }
+
+    public ManageSieveResponse listscripts(final List<SieveScript> scripts) throws IOException, ParseException {
+        final List<SieveScript> found = new ArrayList<SieveScript>();
+        ManageSieveResponse resp = execute("LISTSCRIPTS", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                // Don't keep a partial list from a lost session
+                found.clear();
+                return c.listscripts(found);
+            }
+        });
+        scripts.addAll(found);
+        return resp;
+    }
+
+    public ManageSieveResponse getScript(final SieveScript script) throws IOException, ParseException {
+        return execute("GETSCRIPT", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.getScript(script);
+            }
+        });
+    }
+
+    public ManageSieveResponse havespace(final String name, final long size) throws IOException, ParseException {
+        return execute("HAVESPACE", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.havespace(name, size);
+            }
+        });
+    }
+
+    public ManageSieveResponse checkscript(final String body) throws IOException, ParseException {
+        return execute("CHECKSCRIPT", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.checkscript(body);
+            }
+        });
+    }
+
+    /**
+     * Upload a script. Sending the same script twice leaves the server in the
+     * same state, so this is repeated if the session is lost.
+     */
+    public ManageSieveResponse putscript(final String name, final String body) throws IOException, ParseException {
+        return execute("PUTSCRIPT", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.putscript(name, body);
+            }
+        });
+    }
+
+    public ManageSieveResponse setactive(final String name) throws IOException, ParseException {
+        return execute("SETACTIVE", true, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.setactive(name);
+            }
+        });
+    }
+
+    /**
+     * Delete a script.
+     *
+     * @throws SessionLostException if the session was lost while deleting
+     */
+    public ManageSieveResponse deletescript(final String name) throws IOException, ParseException {
+        return execute("DELETESCRIPT", false, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.deletescript(name);
+            }
+        });
+    }
+
+    /**
+     * Rename a script.
+     *
+     * @throws SessionLostException if the session was lost while renaming
+     */
+    public ManageSieveResponse renamescript(final String oldName, final String newName) throws IOException, ParseException {
+        return execute("RENAMESCRIPT", false, new Command() {
+            @Override
+            public ManageSieveResponse run(final ManageSieveClient c) throws IOException, ParseException {
+                return c.renamescript(oldName, newName);
+            }
+        });
+    }
+
+    /**
+     * Log out and stop. Later commands throw IOException.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (client != null) {
+            try {
+                client.logout();
+            } catch (IOException ex) {
+                log.debug("Problem logging out", ex);
+            } catch (ParseException ex) {
+                log.debug("Problem logging out", ex);
+            }
+            client.close();
+            client = null;
+        }
+    }
+
+    private synchronized ManageSieveResponse execute(final String name, final boolean idempotent, final Command command) throws IOException, ParseException {
+        int attempt = 0;
+        while (true) {
+            ManageSieveClient c = connected();
+            Exception cause;
+            try {
+                ManageSieveResponse resp = command.run(c);
+                if (!resp.isBye()) {
+                    return resp;
+                }
+                cause = new ManageSieveException("Server sent BYE", resp);
+            } catch (IOException ex) {
+                cause = ex;
+            } catch (ParseException ex) {
+                cause = ex;
+            }
+            lost(c);
+            if (!idempotent) {
+                throw new SessionLostException("Session lost during " + name + " for " + credentials.getAccount() + ", it may or may not have been done", cause);
+            }
+            attempt += 1;
+            if (attempt >= maxAttempts) {
+                throw new SessionLostException("Session lost during " + name + " for " + credentials.getAccount() + ", giving up after " + attempt + " tries", cause);
+            }
+            log.debug("{}: session lost during {}, sending again: {}", new Object[]{credentials.getAccount(), name, cause.getMessage()});
+            replays += 1;
+            backoff.sleep(attempt - 1);
+        }
+    }
+
+    private ManageSieveClient connected() throws IOException, ParseException {
+        if (closed) {
+            throw new IOException("Session is closed");
+        }
+        if (client != null && client.isConnected()) {
+            return client;
+        }
+        client = null;
+        int attempt = 0;
+        while (true) {
+            try {
+                client = factory.open(credentials);
+                if (opened) {
+                    reconnects += 1;
+                }
+                opened = true;
+                return client;
+            } catch (ManageSieveException ex) {
+                if (ex.getResponse() != null && !ex.getResponse().isBye()) {
+                    // Turned down, trying again won't help
+                    throw ex;
+                }
+                attempt = failed(attempt, ex);
+            } catch (IOException ex) {
+                attempt = failed(attempt, ex);
+            } catch (ParseException ex) {
+                attempt = failed(attempt, ex);
+            }
+        }
+    }
+
+    private int failed(final int attempt, final Exception ex) throws IOException, ParseException {
+        if (attempt + 1 >= maxAttempts) {
+            if (ex instanceof ParseException) {
+                throw (ParseException) ex;
+            }
+            throw (IOException) ex;
+        }
+        log.debug("{}: can't connect, trying again: {}", credentials.getAccount(), ex.getMessage());
+        backoff.sleep(attempt);
+        return attempt + 1;
+    }
+
+    private void lost(final ManageSieveClient c) {
+        c.close();
+        if (client == c) {
+            client = null;
+        }
+    }
+}
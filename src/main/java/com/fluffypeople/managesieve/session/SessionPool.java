@@ -0,0 +1,580 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.ServerCapabilities;
+import com.fluffypeople.managesieve.SessionFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of authenticated sessions to one server.
+ * <p>
+ * Sessions are borrowed for an account, used by one thread, then released
+ * back to the pool. When a session is borrowed the pool looks for an idle
+ * session already authenticated with the same credentials (username,
+ * password and authorization id, compared by hash so the password isn't
+ * kept). If there isn't one, an idle
+ * session for another account is re-authenticated with UNAUTHENTICATE (if the
+ * server supports it) or closed to make room, and a new session opened from
+ * the {@link SessionFactory}.
+ * <p>
+ * At most {@link #getMaxSessions()} sessions (borrowed, idle, or being
+ * opened) exist at once. Borrowers wait for a session to be released if the
+ * pool is full, for up to {@link #getBorrowTimeout()} milliseconds.
+ * <p>
+ * If a {@link KeepaliveScheduler} is set, idle sessions are registered with
+ * it so they aren't dropped by the server. Sessions the scheduler retires are
+ * noticed (and dropped) the next time they would be borrowed.
+ * <p>
+ * If an {@link AdaptiveLimiter} is set, every borrow takes a permit from it,
+ * which is given back when the session is. The limiter sees the average
+ * round trip time of the commands sent while the session was borrowed (see
+ * {@link ManageSieveClient#getResponseTime()}), and sessions given back with
+ * {@link #overloaded}, and lowers the number that can be borrowed at once when
+ * the server is struggling.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class SessionPool implements SessionSource {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionPool.class);
+    private final SessionFactory factory;
+    private final int maxSessions;
+    // Most recently released first
+    private final LinkedList<ManageSieveClient> idle = new LinkedList<ManageSieveClient>();
+    // Hash of the credentials each session is authenticated with
+    private final Map<ManageSieveClient, String> identities = new IdentityHashMap<ManageSieveClient, String>();
+    private int total = 0;
+    private boolean closed = false;
+    private volatile Credentials defaultCredentials = null;
+    private volatile long borrowTimeout = 0;
+    private volatile KeepaliveScheduler keepalive = null;
+    private volatile AdaptiveLimiter limiter = null;
+    private final Map<ManageSieveClient, Borrowed> permits = new IdentityHashMap<ManageSieveClient, Borrowed>();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong reauthenticated = new AtomicLong();
+
+    /**
+     * @param factory     SessionFactory used to open new sessions
+     * @param maxSessions int maximum number of sessions to have open at once
+     */
+    public SessionPool(final SessionFactory factory, final int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be positive, got " + maxSessions);
+        }
+        this.factory = factory;
+        this.maxSessions = maxSessions;
+    }
+
+    public SessionFactory getFactory() {
+        return factory;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Set the credentials used by {@link #borrow()} and
+     * {@link #addIdleSession()}.
+     */
+    public void setDefaultCredentials(final Credentials defaultCredentials) {
+        this.defaultCredentials = defaultCredentials;
+    }
+
+    public Credentials getDefaultCredentials() {
+        return defaultCredentials;
+    }
+
+    /**
+     * Set how long {@link #borrow} waits for a session when the pool is full.
+     * Zero (the default) means wait forever.
+     *
+     * @param borrowTimeout long timeout in milliseconds
+     */
+    public void setBorrowTimeout(final long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * Set the scheduler used to keep idle sessions alive, or null for none.
+     */
+    public void setKeepaliveScheduler(final KeepaliveScheduler keepalive) {
+        this.keepalive = keepalive;
+    }
+
+    /**
+     * Set the limiter that controls how many sessions can be borrowed at once,
+     * or null for none. The limit is never more than
+     * {@link #getMaxSessions()}.
+     */
+    public void setLimiter(final AdaptiveLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Borrow a session authenticated with the default credentials.
+     *
+     * @return an authenticated session. Must be given back with
+     * {@link #release} or {@link #invalidate}.
+     * @throws IOException    if a session can't be opened, or the wait for
+     *                        one times out or is interrupted
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public ManageSieveClient borrow() throws IOException, ParseException {
+        Credentials c = defaultCredentials;
+        if (c == null) {
+            throw new IllegalStateException("No default credentials set");
+        }
+        return borrow(c);
+    }
+
+    /**
+     * Borrow a session authenticated with the given credentials.
+     *
+     * @param credentials to authenticate with
+     * @return an authenticated session. Must be given back with
+     * {@link #release} or {@link #invalidate}.
+     * @throws IOException    if a session can't be opened, or the wait for
+     *                        one times out or is interrupted
+     * @throws ParseException if we can't parse the response from the server
+     */
+    @Override
+    public ManageSieveClient borrow(final Credentials credentials) throws IOException, ParseException {
+        AdaptiveLimiter l = limiter;
+        if (l == null) {
+            return borrowSession(credentials);
+        }
+        AdaptiveLimiter.Permit permit = l.acquire(borrowTimeout);
+        boolean success = false;
+        try {
+            ManageSieveClient client = borrowSession(credentials);
+            synchronized (this) {
+                permits.put(client, new Borrowed(permit, client));
+            }
+            success = true;
+            return client;
+        } catch (IOException ex) {
+            if (AdaptiveLimiter.isOverload(ex)) {
+                permit.overload();
+                success = true;
+            }
+            throw ex;
+        } finally {
+            if (!success) {
+                permit.ignore();
+            }
+        }
+    }
+
+    private ManageSieveClient borrowSession(final Credentials credentials) throws IOException, ParseException {
+        final String identity = identity(credentials);
+        ManageSieveClient other = null;
+        List<ManageSieveClient> dead = new ArrayList<ManageSieveClient>();
+        try {
+            synchronized (this) {
+                long deadline = borrowTimeout > 0 ? System.currentTimeMillis() + borrowTimeout : 0;
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Pool is closed");
+                    }
+                    ManageSieveClient match = takeIdle(identity, dead);
+                    if (match != null) {
+                        reused.incrementAndGet();
+                        return match;
+                    }
+                    if (total < maxSessions) {
+                        total += 1;
+                        break;
+                    }
+                    if (!idle.isEmpty()) {
+                        // Full, but there's an idle session for someone else
+                        other = idle.removeLast();
+                        unwatch(other);
+                        break;
+                    }
+                    waitForRelease(deadline);
+                }
+            }
+        } finally {
+            for (ManageSieveClient client : dead) {
+                client.close();
+            }
+        }
+
+        // We now own a slot, either empty or holding 'other'
+        boolean success = false;
+        try {
+            ManageSieveClient client = null;
+            if (other != null) {
+                client = reauthenticate(other, credentials);
+            }
+            if (client == null) {
+                client = factory.open(credentials);
+                created.incrementAndGet();
+            }
+            synchronized (this) {
+                identities.put(client, identity);
+            }
+            success = true;
+            return client;
+        } finally {
+            if (!success) {
+                freeSlot();
+            }
+        }
+    }
+
+    /**
+     * Give a session back to the pool. Sessions that are no longer connected
+     * are dropped.
+     *
+     * @param client session from {@link #borrow}
+     */
+    @Override
+    public void release(final ManageSieveClient client) {
+        Borrowed permit;
+        boolean kept = false;
+        synchronized (this) {
+            if (!identities.containsKey(client)) {
+                throw new IllegalArgumentException("Session doesn't belong to this pool");
+            }
+            permit = permits.remove(client);
+            if (!closed && client.isConnected()) {
+                idle.addFirst(client);
+                watch(client);
+                notifyAll();
+                kept = true;
+            }
+        }
+        if (permit != null) {
+            if (kept) {
+                permit.permit.success(permit.latency(client));
+            } else {
+                permit.permit.ignore();
+            }
+        }
+        if (!kept) {
+            invalidate(client);
+        }
+    }
+
+    /**
+     * Close a session and remove it from the pool. Use this instead of
+     * {@link #release} if the session is broken or in an unknown state.
+     *
+     * @param client session from {@link #borrow}
+     */
+    @Override
+    public void invalidate(final ManageSieveClient client) {
+        Borrowed permit = remove(client);
+        if (permit != null) {
+            permit.permit.ignore();
+        }
+    }
+
+    /**
+     * Close a session the caller gave up on. The same as {@link #invalidate},
+     * which doesn't tell the limiter anything either.
+     *
+     * @param client session from {@link #borrow}
+     */
+    @Override
+    public void discard(final ManageSieveClient client) {
+        invalidate(client);
+    }
+
+    /**
+     * Close a session after the server showed it was overloaded. The same as
+     * {@link #invalidate}, except that the limiter (if any) is told.
+     *
+     * @param client session from {@link #borrow}
+     */
+    @Override
+    public void overloaded(final ManageSieveClient client) {
+        Borrowed permit = remove(client);
+        if (permit != null) {
+            permit.permit.overload();
+        }
+    }
+
+    private Borrowed remove(final ManageSieveClient client) {
+        Borrowed permit;
+        synchronized (this) {
+            if (identities.remove(client) == null) {
+                return null;
+            }
+            idle.remove(client);
+            permit = permits.remove(client);
+        }
+        unwatch(client);
+        client.close();
+        freeSlot();
+        return permit;
+    }
+
+    /**
+     * Open a new session with the default credentials and add it to the idle
+     * list. Used to warm up the pool before it's needed.
+     *
+     * @return true if a session was added, false if the pool was already full
+     * @throws IOException    if the session can't be opened
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public boolean addIdleSession() throws IOException, ParseException {
+        Credentials c = defaultCredentials;
+        if (c == null) {
+            throw new IllegalStateException("No default credentials set");
+        }
+        synchronized (this) {
+            if (closed || total >= maxSessions) {
+                return false;
+            }
+            total += 1;
+        }
+        boolean success = false;
+        try {
+            ManageSieveClient client = factory.open(c);
+            created.incrementAndGet();
+            synchronized (this) {
+                identities.put(client, identity(c));
+            }
+            success = true;
+            release(client);
+            return true;
+        } finally {
+            if (!success) {
+                freeSlot();
+            }
+        }
+    }
+
+    /**
+     * Number of sessions waiting to be borrowed.
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Number of sessions open or being opened, borrowed or not.
+     */
+    public synchronized int getSessionCount() {
+        return total;
+    }
+
+    /**
+     * Number of sessions opened by this pool.
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * Number of times an idle session for the same account was borrowed.
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * Number of times an idle session was re-authenticated as a different
+     * account.
+     */
+    public long getReauthenticatedCount() {
+        return reauthenticated.get();
+    }
+
+    /**
+     * Close all idle sessions and stop handing out new ones. Borrowed
+     * sessions are closed when they are released.
+     */
+    public void close() {
+        LinkedList<ManageSieveClient> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new LinkedList<ManageSieveClient>(idle);
+            notifyAll();
+        }
+        for (ManageSieveClient client : toClose) {
+            invalidate(client);
+        }
+    }
+
+    /**
+     * Find the most recently used idle session with the given credentials.
+     * Dead sessions found on the way are removed from the pool and added to
+     * dead, to be closed once the lock is released. Must hold the lock.
+     */
+    private ManageSieveClient takeIdle(final String identity, final List<ManageSieveClient> dead) {
+        Iterator<ManageSieveClient> it = idle.iterator();
+        while (it.hasNext()) {
+            ManageSieveClient client = it.next();
+            if (!identity.equals(identities.get(client))) {
+                continue;
+            }
+            it.remove();
+            unwatch(client);
+            if (client.isConnected()) {
+                return client;
+            }
+            // Retired by keepalive, or otherwise dead
+            identities.remove(client);
+            dead.add(client);
+            total -= 1;
+            notifyAll();
+        }
+        return null;
+    }
+
+    /**
+     * Hash credentials, so sessions can be matched to them without keeping
+     * the password.
+     */
+    private static String identity(final Credentials credentials) {
+        String authz = credentials.getAuthorizationId();
+        return DigestUtils.sha256Hex(credentials.getUsername() + "\u0000" + credentials.getPassword()
+                + "\u0000" + (authz != null ? authz : ""));
+    }
+
+    /**
+     * Try to switch an idle session to another account. Returns null (having
+     * closed the session) if that isn't possible.
+     */
+    private ManageSieveClient reauthenticate(final ManageSieveClient client, final Credentials credentials) {
+        synchronized (this) {
+            identities.remove(client);
+        }
+        ServerCapabilities cap = client.getCapabilities();
+        if (client.isConnected() && cap != null && cap.hasUnauthenticate()) {
+            try {
+                ManageSieveResponse resp = client.unauthenticate();
+                if (resp.isOk()) {
+                    resp = client.authenticate(credentials.getUsername(), credentials.getPassword(), credentials.getAuthorizationId());
+                    if (resp.isOk()) {
+                        reauthenticated.incrementAndGet();
+                        return client;
+                    }
+                }
+                log.debug("Can't switch session to {}: {}", credentials, resp);
+            } catch (IOException ex) {
+                log.debug("Can't switch session to {}", credentials, ex);
+            } catch (ParseException ex) {
+                log.debug("Can't switch session to {}", credentials, ex);
+            }
+        }
+        client.close();
+        return null;
+    }
+
+    private void waitForRelease(final long deadline) throws SessionWaitException {
+        try {
+            if (deadline == 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SessionWaitException("Timed out waiting for a session");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SessionWaitException("Interrupted waiting for a session");
+        }
+    }
+
+    private synchronized void freeSlot() {
+        total -= 1;
+        notifyAll();
+    }
+
+    private void watch(final ManageSieveClient client) {
+        KeepaliveScheduler k = keepalive;
+        if (k != null) {
+            k.register(client);
+        }
+    }
+
+    private void unwatch(final ManageSieveClient client) {
+        KeepaliveScheduler k = keepalive;
+        if (k != null) {
+            k.unregister(client);
+        }
+    }
+
+    /**
+     * A limiter permit, and the session's response counters when it was
+     * borrowed.
+     */
+    private static class Borrowed {
+
+        private final AdaptiveLimiter.Permit permit;
+        private final long responses;
+        private final long responseTime;
+
+        Borrowed(final AdaptiveLimiter.Permit permit, final ManageSieveClient client) {
+            this.permit = permit;
+            this.responses = client.getResponseCount();
+            this.responseTime = client.getResponseTime();
+        }
+
+        /**
+         * Average round trip of the commands sent since the session was
+         * borrowed, or -1 if there weren't any.
+         */
+        long latency(final ManageSieveClient client) {
+            long count = client.getResponseCount() - responses;
+            if (count <= 0) {
+                return -1;
+            }
+            return (client.getResponseTime() - responseTime) / count;
+        }
+    }
+}
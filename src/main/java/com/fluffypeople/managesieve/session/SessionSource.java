@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+
+/**
+ * Somewhere to get authenticated sessions from, and give them back to.
+ * {@link SessionPool} is the basic implementation.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public interface SessionSource {
+
+    /**
+     * Get a session authenticated with the given credentials.
+     *
+     * @param credentials to authenticate with
+     * @return an authenticated session. Must be given back with
+     * {@link #release} or {@link #invalidate}.
+     * @throws IOException    if a session can't be found or opened
+     * @throws ParseException if we can't parse the response from the server
+     */
+    ManageSieveClient borrow(Credentials credentials) throws IOException, ParseException;
+
+    /**
+     * Give back a session that is in a good state, so it can be used again.
+     *
+     * @param client session from {@link #borrow}
+     */
+    void release(ManageSieveClient client);
+
+    /**
+     * Give back a session that is broken or in an unknown state. It will be
+     * closed.
+     *
+     * @param client session from {@link #borrow}
+     */
+    void invalidate(ManageSieveClient client);
+
+    /**
+     * Give back a session the caller gave up on, for example the loser of a
+     * hedged read. It will be closed, but unlike {@link #invalidate} this
+     * says nothing about the health of the server.
+     *
+     * @param client session from {@link #borrow}
+     */
+    void discard(ManageSieveClient client);
+
+    /**
+     * Give back a session after the server showed it was overloaded, by
+     * answering TRYLATER, sending BYE, or timing out. It will be closed, and
+     * the source may slow down.
+     *
+     * @param client session from {@link #borrow}
+     * @see AdaptiveLimiter#isOverload(Throwable)
+     */
+    void overloaded(ManageSieveClient client);
+}
@@ -0,0 +1,529 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Shares sessions fairly between tenants. Sits in front of another
+ * {@link SessionSource}, usually a {@link SessionPool}, and decides who gets
+ * to borrow next.
+ * <p>
+ * At most {@link #getMaxConcurrent()} sessions are borrowed through the
+ * scheduler at once. When more are wanted, borrowers queue per tenant, and
+ * free slots go to tenants by weighted fair queueing: each request is tagged
+ * with a virtual finish time of <code>max(now, tenant's last tag) +
+ * 1/weight</code>, and the waiting request with the lowest tag goes first. A
+ * tenant with weight 2 gets twice the share of a tenant with weight 1 while
+ * both are busy, and a tenant with a huge backlog can't push ahead of one that
+ * has just turned up. Each tenant can also be capped to a number of sessions
+ * at once, whatever its share.
+ * <p>
+ * Tenants with a waiting request and room under their cap are kept in a
+ * priority queue ordered by the tag of their first waiter, so handing out a
+ * slot doesn't look at every tenant. Tenants that haven't been configured with
+ * {@link #setTenant} are forgotten (stats included) as soon as they have
+ * nothing waiting or borrowed, so the scheduler doesn't grow with every
+ * tenant it has ever seen.
+ * <p>
+ * The tenant for each borrow comes from a {@link TenantResolver}. By default
+ * it's the domain part of the account name.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class TenantScheduler implements SessionSource {
+
+    /**
+     * Works out which tenant a borrow belongs to.
+     */
+    public interface TenantResolver {
+
+        String tenantOf(Credentials credentials);
+    }
+
+    /**
+     * Uses everything after the last '@' of the account name, or the empty
+     * string if there isn't one.
+     */
+    public static final TenantResolver BY_DOMAIN = new TenantResolver() {
+        @Override
+        public String tenantOf(final Credentials credentials) {
+            String account = credentials.getAccount();
+            int at = account.lastIndexOf('@');
+            return at == -1 ? "" : account.substring(at + 1).toLowerCase();
+        }
+    };
+
+    /**
+     * Orders tenants by the tag of their first waiter, and then by name.
+     */
+    private static final Comparator<Tenant> BY_FIRST_TAG = new Comparator<Tenant>() {
+        @Override
+        public int compare(final Tenant a, final Tenant b) {
+            double x = a.queue.getFirst().tag;
+            double y = b.queue.getFirst().tag;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private final SessionSource delegate;
+    private final int maxConcurrent;
+    private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+    private final PriorityQueue<Tenant> ready = new PriorityQueue<Tenant>(11, BY_FIRST_TAG);
+    private final Map<ManageSieveClient, Tenant> borrowed = new IdentityHashMap<ManageSieveClient, Tenant>();
+    private TenantResolver resolver = BY_DOMAIN;
+    private double defaultWeight = 1;
+    private int defaultCap = Integer.MAX_VALUE;
+    private double virtualTime = 0;
+    private int inFlight = 0;
+    private long borrowTimeout = 0;
+
+    /**
+     * @param delegate      SessionSource to borrow from
+     * @param maxConcurrent int sessions that can be borrowed at once across
+     *                      all tenants. Should be no more than the delegate
+     *                      can supply.
+     */
+    public TenantScheduler(final SessionSource delegate, final int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive, got " + maxConcurrent);
+        }
+        this.delegate = delegate;
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public synchronized void setTenantResolver(final TenantResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Set the weight and cap for tenants that haven't been configured.
+     * Defaults to a weight of one and no cap.
+     */
+    public synchronized void setDefaults(final double weight, final int cap) {
+        checkWeightAndCap(weight, cap);
+        this.defaultWeight = weight;
+        this.defaultCap = cap;
+    }
+
+    /**
+     * Configure a tenant.
+     *
+     * @param tenant String tenant name
+     * @param weight double share compared to other tenants
+     * @param cap    int maximum sessions the tenant can have at once
+     */
+    public synchronized void setTenant(final String tenant, final double weight, final int cap) {
+        checkWeightAndCap(weight, cap);
+        Tenant t = tenant(tenant);
+        t.weight = weight;
+        t.configured = true;
+        setCap(t, cap);
+        dispatch();
+    }
+
+    /**
+     * Set how long {@link #borrow} waits for a turn. Zero (the default) means
+     * wait forever. Time spent waiting for the delegate is extra.
+     *
+     * @param borrowTimeout long timeout in milliseconds
+     */
+    public synchronized void setBorrowTimeout(final long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    @Override
+    public ManageSieveClient borrow(final Credentials credentials) throws IOException, ParseException {
+        Tenant tenant;
+        synchronized (this) {
+            tenant = tenant(resolver.tenantOf(credentials));
+            Waiter w = new Waiter(Math.max(virtualTime, tenant.lastTag) + 1 / tenant.weight);
+            tenant.lastTag = w.tag;
+            tenant.queue.addLast(w);
+            makeReady(tenant);
+            dispatch();
+            awaitTurn(tenant, w);
+        }
+
+        boolean success = false;
+        try {
+            ManageSieveClient client = delegate.borrow(credentials);
+            synchronized (this) {
+                borrowed.put(client, tenant);
+            }
+            success = true;
+            return client;
+        } finally {
+            if (!success) {
+                synchronized (this) {
+                    finished(tenant);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void release(final ManageSieveClient client) {
+        Tenant tenant = take(client);
+        delegate.release(client);
+        done(tenant);
+    }
+
+    @Override
+    public void invalidate(final ManageSieveClient client) {
+        Tenant tenant = take(client);
+        delegate.invalidate(client);
+        done(tenant);
+    }
+
+    @Override
+    public void discard(final ManageSieveClient client) {
+        Tenant tenant = take(client);
+        delegate.discard(client);
+        done(tenant);
+    }
+
+    @Override
+    public void overloaded(final ManageSieveClient client) {
+        Tenant tenant = take(client);
+        delegate.overloaded(client);
+        done(tenant);
+    }
+
+    /**
+     * Get the stats for every tenant that has been configured, or that has
+     * sessions borrowed or waiting.
+     *
+     * @return List of TenantStats, one for each tenant
+     */
+    public synchronized List<TenantStats> getStats() {
+        List<TenantStats> result = new ArrayList<TenantStats>(tenants.size());
+        for (Tenant t : tenants.values()) {
+            result.add(t.stats());
+        }
+        return result;
+    }
+
+    /**
+     * Get the stats for one tenant.
+     *
+     * @param tenant String tenant name
+     * @return TenantStats, or null if the tenant isn't known or has been
+     * forgotten
+     */
+    public synchronized TenantStats getStats(final String tenant) {
+        Tenant t = tenants.get(tenant);
+        return t != null ? t.stats() : null;
+    }
+
+    /**
+     * Number of sessions borrowed through the scheduler now.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private synchronized Tenant take(final ManageSieveClient client) {
+        Tenant tenant = borrowed.remove(client);
+        if (tenant == null) {
+            throw new IllegalArgumentException("Session wasn't borrowed from this scheduler");
+        }
+        return tenant;
+    }
+
+    private synchronized void done(final Tenant tenant) {
+        finished(tenant);
+    }
+
+    /**
+     * Wait until the waiter is granted a slot. Must hold the lock.
+     */
+    private void awaitTurn(final Tenant tenant, final Waiter w) throws SessionWaitException {
+        long deadline = borrowTimeout > 0 ? w.enqueued + borrowTimeout : 0;
+        try {
+            while (!w.granted) {
+                if (deadline == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        tenant.timeouts += 1;
+                        withdraw(tenant, w);
+                        throw new SessionWaitException("Timed out waiting for a turn for tenant " + tenant.name);
+                    }
+                    wait(remaining);
+                }
+            }
+        } catch (InterruptedException ex) {
+            if (w.granted) {
+                finished(tenant);
+            } else {
+                withdraw(tenant, w);
+            }
+            Thread.currentThread().interrupt();
+            throw new SessionWaitException("Interrupted waiting for a turn for tenant " + tenant.name);
+        }
+    }
+
+    /**
+     * Take a waiter that gave up out of its tenant's queue. Must hold the
+     * lock.
+     */
+    private void withdraw(final Tenant tenant, final Waiter w) {
+        // The first waiter may change, which would upset the ready queue
+        unready(tenant);
+        tenant.queue.remove(w);
+        makeReady(tenant);
+        forgetIfIdle(tenant);
+    }
+
+    /**
+     * Hand out free slots, lowest tag first. Must hold the lock.
+     */
+    private void dispatch() {
+        boolean any = false;
+        while (inFlight < maxConcurrent && !ready.isEmpty()) {
+            Tenant next = ready.poll();
+            next.ready = false;
+            Waiter w = next.queue.removeFirst();
+            w.granted = true;
+            virtualTime = Math.max(virtualTime, w.tag - 1 / next.weight);
+            inFlight += 1;
+            next.inFlight += 1;
+            next.granted += 1;
+            long waited = System.currentTimeMillis() - w.enqueued;
+            next.totalWait += waited;
+            next.maxWait = Math.max(next.maxWait, waited);
+            makeReady(next);
+            any = true;
+        }
+        if (any) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * A slot has been given back. Must hold the lock.
+     */
+    private void finished(final Tenant tenant) {
+        inFlight -= 1;
+        tenant.inFlight -= 1;
+        makeReady(tenant);
+        dispatch();
+        forgetIfIdle(tenant);
+    }
+
+    /**
+     * Add a tenant to the ready queue, if it has someone waiting and room
+     * under its cap. Must hold the lock.
+     */
+    private void makeReady(final Tenant tenant) {
+        if (!tenant.ready && !tenant.queue.isEmpty() && tenant.inFlight < tenant.cap) {
+            tenant.ready = true;
+            ready.add(tenant);
+        }
+    }
+
+    /**
+     * Take a tenant out of the ready queue. Must hold the lock.
+     */
+    private void unready(final Tenant tenant) {
+        if (tenant.ready) {
+            ready.remove(tenant);
+            tenant.ready = false;
+        }
+    }
+
+    /**
+     * Drop a tenant that hasn't been configured once it has nothing waiting or
+     * borrowed. Must hold the lock.
+     */
+    private void forgetIfIdle(final Tenant tenant) {
+        if (!tenant.configured && tenant.queue.isEmpty() && tenant.inFlight == 0) {
+            tenants.remove(tenant.name);
+        }
+    }
+
+    private void setCap(final Tenant tenant, final int cap) {
+        if (tenant.cap != cap) {
+            tenant.cap = cap;
+            unready(tenant);
+            makeReady(tenant);
+        }
+    }
+
+    private Tenant tenant(final String name) {
+        Tenant t = tenants.get(name);
+        if (t == null) {
+            t = new Tenant(name, defaultWeight, defaultCap);
+            tenants.put(name, t);
+        } else if (!t.configured) {
+            t.weight = defaultWeight;
+            setCap(t, defaultCap);
+        }
+        return t;
+    }
+
+    private static void checkWeightAndCap(final double weight, final int cap) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("weight must be positive, got " + weight);
+        }
+        if (cap < 1) {
+            throw new IllegalArgumentException("cap must be positive, got " + cap);
+        }
+    }
+
+    private static class Waiter {
+
+        private final double tag;
+        private final long enqueued = System.currentTimeMillis();
+        private boolean granted = false;
+
+        Waiter(final double tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static class Tenant {
+
+        private final String name;
+        private final LinkedList<Waiter> queue = new LinkedList<Waiter>();
+        private double weight;
+        private int cap;
+        private boolean configured = false;
+        private boolean ready = false;
+        private double lastTag = 0;
+        private int inFlight = 0;
+        private long granted = 0;
+        private long timeouts = 0;
+        private long totalWait = 0;
+        private long maxWait = 0;
+
+        Tenant(final String name, final double weight, final int cap) {
+            this.name = name;
+            this.weight = weight;
+            this.cap = cap;
+        }
+
+        TenantStats stats() {
+            return new TenantStats(name, queue.size(), inFlight, granted, timeouts, totalWait, maxWait);
+        }
+    }
+
+    /**
+     * A snapshot of one tenant's queue.
+     */
+    public static class TenantStats {
+
+        private final String tenant;
+        private final int queueDepth;
+        private final int inFlight;
+        private final long granted;
+        private final long timeouts;
+        private final long totalWait;
+        private final long maxWait;
+
+        TenantStats(final String tenant, final int queueDepth, final int inFlight, final long granted, final long timeouts, final long totalWait, final long maxWait) {
+            this.tenant = tenant;
+            this.queueDepth = queueDepth;
+            this.inFlight = inFlight;
+            this.granted = granted;
+            this.timeouts = timeouts;
+            this.totalWait = totalWait;
+            this.maxWait = maxWait;
+        }
+
+        public String getTenant() {
+            return tenant;
+        }
+
+        /**
+         * Number of borrowers waiting for a turn.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Number of sessions borrowed now.
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * Number of turns handed out so far.
+         */
+        public long getGranted() {
+            return granted;
+        }
+
+        /**
+         * Number of borrowers that gave up waiting.
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Mean time waited for a turn, in milliseconds.
+         */
+        public double getMeanWait() {
+            return granted == 0 ? 0 : (double) totalWait / granted;
+        }
+
+        /**
+         * Longest time waited for a turn, in milliseconds.
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        @Override
+        public String toString() {
+            return tenant + ": " + queueDepth + " waiting, " + inFlight + " in flight, "
+                    + granted + " granted, mean wait " + (long) getMeanWait() + "ms, max wait " + maxWait + "ms";
+        }
+    }
+}
@@ -55,6 +55,12 @@ public class SieveToXML {
         commands(xml);
         xml.end();
 
+        // Anything left over means the script is broken
+        int token = in.nextToken();
+        if (token != StreamTokenizer.TT_EOF) {
+            raiseError("command or EOF", token, in.lineno());
+        }
+
         return xml;
     }
 
@@ -184,7 +190,7 @@ public class SieveToXML {
                                 }
                             }
                         } while (token != StreamTokenizer.TT_EOL);
-                        System.out.println("line: " + line.toString());
+                        log.debug("line: {}", line);
 
                         if (line.length() == 1 && line.codePointAt(0) == '.') {
                             // Found last line
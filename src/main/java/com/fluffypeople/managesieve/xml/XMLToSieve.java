@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Convert the XML representation made by {@link SieveToXML} back to a Sieve
+ * script.
+ * <p>
+ * Commands are written one per line, with blocks indented by four spaces.
+ * Strings that end with a line break are written as (dot stuffed)
+ * <code>text:</code> blocks, since {@link SieveToXML} can't read a quoted
+ * string that spans lines. Everything else is a quoted string. Comments
+ * aren't kept by {@link SieveToXML}, so they can't be written back.
+ *
+ * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
+ */
+public class XMLToSieve {
+
+    private static final String CRLF = "\r\n";
+    private static final String INDENT = "    ";
+
+    public String convert(final XML xml) {
+        return convert(xml.getDocument());
+    }
+
+    public String convert(final Document document) {
+        StringBuilder out = new StringBuilder();
+        commands(document.getDocumentElement(), "", out);
+        return out.toString();
+    }
+
+    private void commands(final Element parent, final String indent, final StringBuilder out) {
+        for (Element command : children(parent, "control", "action")) {
+            command(command, indent, out);
+        }
+    }
+
+    private void command(final Element command, final String indent, final StringBuilder out) {
+        out.append(indent).append(command.getAttribute("name"));
+        List<Element> tests = new ArrayList<Element>();
+        List<Element> block = new ArrayList<Element>();
+        for (Element child : children(command)) {
+            String tag = child.getNodeName();
+            if (tag.equals("test")) {
+                tests.add(child);
+            } else if (tag.equals("control") || tag.equals("action")) {
+                block.add(child);
+            } else {
+                argument(child, out);
+            }
+        }
+        testArguments(tests, false, out);
+        if (!block.isEmpty() || hasBlock(command)) {
+            out.append(" {").append(CRLF);
+            commands(command, indent + INDENT, out);
+            out.append(indent).append("}").append(CRLF);
+        } else {
+            out.append(";").append(CRLF);
+        }
+    }
+
+    private void test(final Element test, final StringBuilder out) {
+        out.append(test.getAttribute("name"));
+        List<Element> tests = new ArrayList<Element>();
+        for (Element child : children(test)) {
+            if (child.getNodeName().equals("test")) {
+                tests.add(child);
+            } else {
+                argument(child, out);
+            }
+        }
+        String name = test.getAttribute("name");
+        testArguments(tests, name.equals("allof") || name.equals("anyof"), out);
+    }
+
+    private void testArguments(final List<Element> tests, final boolean list, final StringBuilder out) {
+        if (tests.isEmpty() && !list) {
+            return;
+        }
+        out.append(' ');
+        if (tests.size() == 1 && !list) {
+            test(tests.get(0), out);
+            return;
+        }
+        out.append('(');
+        for (int i = 0; i < tests.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            test(tests.get(i), out);
+        }
+        out.append(')');
+    }
+
+    private void argument(final Element arg, final StringBuilder out) {
+        String tag = arg.getNodeName();
+        out.append(' ');
+        if (tag.equals("tag")) {
+            out.append(':').append(arg.getTextContent());
+        } else if (tag.equals("num")) {
+            out.append(arg.getTextContent());
+        } else if (tag.equals("str")) {
+            quote(arg.getTextContent(), out);
+        } else if (tag.equals("list")) {
+            out.append('[');
+            List<Element> strings = children(arg, "str");
+            for (int i = 0; i < strings.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                quote(strings.get(i).getTextContent(), out);
+            }
+            out.append(']');
+        } else {
+            throw new IllegalArgumentException("Unexpected element " + tag);
+        }
+    }
+
+    private static void quote(final String s, final StringBuilder out) {
+        if (s.endsWith("\n")) {
+            text(s, out);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    private static void text(final String s, final StringBuilder out) {
+        out.append("text:").append(CRLF);
+        boolean lineStart = true;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (lineStart && c == '.') {
+                out.append('.');
+            }
+            out.append(c);
+            lineStart = c == '\n';
+        }
+        out.append('.').append(CRLF);
+    }
+
+    /**
+     * Controls that always take a block, even an empty one.
+     */
+    private static boolean hasBlock(final Element command) {
+        String name = command.getAttribute("name");
+        return command.getNodeName().equals("control")
+                && (name.equals("if") || name.equals("elsif") || name.equals("else"));
+    }
+
+    /**
+     * Get the child elements of a node, or if names are given only those
+     * with one of the names.
+     */
+    static List<Element> children(final Element parent, final String... names) {
+        List<Element> result = new ArrayList<Element>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && (names.length == 0 || matches(n.getNodeName(), names))) {
+                result.add((Element) n);
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(final String name, final String[] names) {
+        for (String s : names) {
+            if (s.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+package com.fluffypeople.managesieve;
+
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+public class ExpiringCacheTest {
+
+    private long time;
+    private ExpiringCache<String, String> cache;
+
+    @BeforeMethod
+    public void setup() {
+        time = 1000;
+        cache = new ExpiringCache<String, String>(2, 100) {
+            @Override
+            protected long now() {
+                return time;
+            }
+        };
+    }
+
+    @Test
+    public void test_expiry() {
+        cache.put("a", "1");
+        time += 99;
+        assertEquals(cache.get("a"), "1");
+        time += 1;
+        assertNull(cache.get("a"), "Entry should have expired");
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void test_leastRecentlyUsedIsEvicted() {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // Touch a, so b is the eldest
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(cache.get("a"), "1");
+        assertNull(cache.get("b"));
+        assertEquals(cache.get("c"), "3");
+    }
+
+    @Test
+    public void test_putResetsExpiry() {
+        cache.put("a", "1");
+        time += 50;
+        cache.put("a", "2");
+        time += 60;
+        assertEquals(cache.get("a"), "2");
+    }
+}
@@ -0,0 +1,401 @@
+package com.fluffypeople.managesieve;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Just enough of a Manage Sieve server to test against. Listens on a random
+ * local port, accepts SASL PLAIN with any password except "wrong password",
+ * and keeps scripts in memory. Doesn't do STARTTLS, so clients must be set up
+ * without it. Can be told to refer connections, or single accounts, to another
+ * server.
+ */
+public class FakeSieveServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Map<String, Map<String, String>> scripts = new ConcurrentHashMap<String, Map<String, String>>();
+    private final Map<String, String> active = new ConcurrentHashMap<String, String>();
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private final AtomicInteger commands = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile long delay = 0;
+    private final AtomicInteger tryLater = new AtomicInteger();
+    private final AtomicInteger getTryLater = new AtomicInteger();
+    private final AtomicInteger authentications = new AtomicInteger();
+    private final Map<String, String> referrals = new ConcurrentHashMap<String, String>();
+    private volatile String greetingReferral = null;
+    private volatile boolean running = true;
+
+    public FakeSieveServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket s = serverSocket.accept();
+                        if (!running) {
+                            // Accepted while stopping
+                            s.close();
+                            return;
+                        }
+                        sockets.add(s);
+                        connections.incrementAndGet();
+                        Thread t = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(s);
+                            }
+                        });
+                        t.setDaemon(true);
+                        t.start();
+                    } catch (IOException ex) {
+                        // Closed
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public SessionFactory factory() {
+        SessionFactory factory = new SessionFactory("127.0.0.1", getPort());
+        factory.setUseTLS(false);
+        return factory;
+    }
+
+    /**
+     * Delay every response by this many milliseconds.
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Answer the next this many PUTSCRIPT commands with NO (TRYLATER).
+     */
+    public void setTryLater(int count) {
+        tryLater.set(count);
+    }
+
+    /**
+     * Answer the next this many GETSCRIPT commands with NO (TRYLATER).
+     */
+    public void setGetScriptTryLater(int count) {
+        getTryLater.set(count);
+    }
+
+    /**
+     * Answer every new connection with BYE (REFERRAL) to this URL, or null to
+     * accept connections again.
+     */
+    public void setGreetingReferral(String url) {
+        this.greetingReferral = url;
+    }
+
+    /**
+     * Answer AUTHENTICATE for this account with NO (REFERRAL) to this URL, or
+     * null to accept the account again.
+     */
+    public void setReferral(String account, String url) {
+        if (url == null) {
+            referrals.remove(account);
+        } else {
+            referrals.put(account, url);
+        }
+    }
+
+    public String getUrl() {
+        return "sieve://127.0.0.1:" + getPort();
+    }
+
+    public int getAuthenticateCount() {
+        return authentications.get();
+    }
+
+    public int getCommandCount() {
+        return commands.get();
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public Map<String, String> getScripts(String account) {
+        Map<String, String> result = scripts.get(account);
+        if (result == null) {
+            result = new ConcurrentHashMap<String, String>();
+            scripts.put(account, result);
+        }
+        return result;
+    }
+
+    public String getActive(String account) {
+        return active.get(account);
+    }
+
+    public void putScript(String account, String name, String body, boolean isActive) {
+        getScripts(account).put(name, body);
+        if (isActive) {
+            active.put(account, name);
+        }
+    }
+
+    /**
+     * Drop every open connection without saying BYE.
+     */
+    public void dropConnections() {
+        synchronized (sockets) {
+            for (Socket s : sockets) {
+                try {
+                    s.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+        // The listening socket can take one more connection until the
+        // acceptor's accept() returns
+        try {
+            acceptor.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        dropConnections();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String account = null;
+            String referral = greetingReferral;
+            if (referral != null) {
+                write(out, "BYE (REFERRAL \"" + referral + "\") \"Moved\"\r\n");
+                return;
+            }
+            write(out, capabilities() + "OK \"Ready\"\r\n");
+            while (true) {
+                List<String> args = readCommand(in);
+                if (args == null) {
+                    return;
+                }
+                commands.incrementAndGet();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                String cmd = args.get(0).toUpperCase();
+                StringBuilder reply = new StringBuilder();
+                if (cmd.equals("AUTHENTICATE")) {
+                    authentications.incrementAndGet();
+                    String[] parts = new String(Base64.decodeBase64(args.get(2).getBytes(UTF8)), UTF8).split("\u0000");
+                    String user = parts[0].isEmpty() ? parts[1] : parts[0];
+                    if (referrals.containsKey(user)) {
+                        reply.append("NO (REFERRAL \"").append(referrals.get(user)).append("\") \"Elsewhere\"\r\n");
+                    } else if (parts[2].equals("wrong password")) {
+                        reply.append("NO \"Authentication failed\"\r\n");
+                    } else {
+                        account = user;
+                        reply.append("OK\r\n");
+                    }
+                } else if (cmd.equals("UNAUTHENTICATE")) {
+                    account = null;
+                    reply.append("OK\r\n");
+                } else if (cmd.equals("CAPABILITY")) {
+                    reply.append(capabilities()).append("OK\r\n");
+                } else if (cmd.equals("NOOP")) {
+                    reply.append(args.size() > 1 ? "OK (TAG \"" + args.get(1) + "\")\r\n" : "OK\r\n");
+                } else if (cmd.equals("LOGOUT")) {
+                    write(out, "OK \"Bye\"\r\n");
+                    socket.close();
+                    return;
+                } else if (account == null) {
+                    reply.append("NO \"Not authenticated\"\r\n");
+                } else if (cmd.equals("LISTSCRIPTS")) {
+                    for (String name : getScripts(account).keySet()) {
+                        reply.append(literal(name));
+                        if (name.equals(active.get(account))) {
+                            reply.append(" ACTIVE");
+                        }
+                        reply.append("\r\n");
+                    }
+                    reply.append("OK\r\n");
+                } else if (cmd.equals("GETSCRIPT")) {
+                    String body = getScripts(account).get(args.get(1));
+                    if (getTryLater.get() > 0 && getTryLater.decrementAndGet() >= 0) {
+                        reply.append("NO (TRYLATER) \"Busy\"\r\n");
+                    } else if (body == null) {
+                        reply.append("NO (NONEXISTENT) \"No such script\"\r\n");
+                    } else {
+                        reply.append(literal(body)).append("\r\nOK\r\n");
+                    }
+                } else if (cmd.equals("PUTSCRIPT")) {
+                    if (tryLater.get() > 0 && tryLater.decrementAndGet() >= 0) {
+                        reply.append("NO (TRYLATER) \"Busy\"\r\n");
+                    } else if (args.get(2).contains("syntax error")) {
+                        reply.append("NO \"Syntax error\"\r\n");
+                    } else {
+                        getScripts(account).put(args.get(1), args.get(2));
+                        reply.append("OK\r\n");
+                    }
+                } else if (cmd.equals("CHECKSCRIPT")) {
+                    reply.append(args.get(1).contains("syntax error") ? "NO \"Syntax error\"\r\n" : "OK\r\n");
+                } else if (cmd.equals("HAVESPACE")) {
+                    reply.append(Long.parseLong(args.get(2)) > 10000 ? "NO (QUOTA/MAXSIZE) \"Too big\"\r\n" : "OK\r\n");
+                } else if (cmd.equals("SETACTIVE")) {
+                    String name = args.get(1);
+                    if (name.isEmpty()) {
+                        active.remove(account);
+                        reply.append("OK\r\n");
+                    } else if (getScripts(account).containsKey(name)) {
+                        active.put(account, name);
+                        reply.append("OK\r\n");
+                    } else {
+                        reply.append("NO (NONEXISTENT) \"No such script\"\r\n");
+                    }
+                } else if (cmd.equals("DELETESCRIPT")) {
+                    String name = args.get(1);
+                    if (name.equals(active.get(account))) {
+                        reply.append("NO (ACTIVE) \"Script is active\"\r\n");
+                    } else if (getScripts(account).remove(name) != null) {
+                        reply.append("OK\r\n");
+                    } else {
+                        reply.append("NO (NONEXISTENT) \"No such script\"\r\n");
+                    }
+                } else if (cmd.equals("RENAMESCRIPT")) {
+                    Map<String, String> s = getScripts(account);
+                    String oldName = args.get(1);
+                    String newName = args.get(2);
+                    if (!s.containsKey(oldName)) {
+                        reply.append("NO (NONEXISTENT) \"No such script\"\r\n");
+                    } else if (s.containsKey(newName)) {
+                        reply.append("NO (ALREADYEXISTS) \"Script exists\"\r\n");
+                    } else {
+                        s.put(newName, s.remove(oldName));
+                        if (oldName.equals(active.get(account))) {
+                            active.put(account, newName);
+                        }
+                        reply.append("OK\r\n");
+                    }
+                } else {
+                    reply.append("NO \"Unknown command\"\r\n");
+                }
+                write(out, reply.toString());
+            }
+        } catch (SocketException ex) {
+            // Dropped
+        } catch (IOException ex) {
+            // Dropped
+        } catch (InterruptedException ex) {
+            // Stopping
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    private static String capabilities() {
+        return "\"IMPLEMENTATION\" \"Fake\"\r\n"
+                + "\"SASL\" \"PLAIN\"\r\n"
+                + "\"SIEVE\" \"fileinto vacation include\"\r\n"
+                + "\"UNAUTHENTICATE\"\r\n"
+                + "\"VERSION\" \"1.0\"\r\n";
+    }
+
+    private static String literal(String s) {
+        return "{" + s.getBytes(UTF8).length + "}\r\n" + s;
+    }
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(UTF8));
+        out.flush();
+    }
+
+    /**
+     * Read one command line, with its arguments. Handles quoted strings,
+     * literals and atoms. Returns null at EOF.
+     */
+    private static List<String> readCommand(InputStream in) throws IOException {
+        List<String> args = new ArrayList<String>();
+        ByteArrayOutputStream atom = new ByteArrayOutputStream();
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                return null;
+            }
+            if (c == '\r') {
+                continue;
+            }
+            if (c == '\n') {
+                if (atom.size() > 0) {
+                    args.add(new String(atom.toByteArray(), UTF8));
+                }
+                return args;
+            }
+            if (c == ' ') {
+                if (atom.size() > 0) {
+                    args.add(new String(atom.toByteArray(), UTF8));
+                    atom.reset();
+                }
+            } else if (c == '"') {
+                ByteArrayOutputStream str = new ByteArrayOutputStream();
+                while ((c = in.read()) != '"') {
+                    if (c == '\\') {
+                        c = in.read();
+                    }
+                    str.write(c);
+                }
+                args.add(new String(str.toByteArray(), UTF8));
+            } else if (c == '{') {
+                StringBuilder len = new StringBuilder();
+                while ((c = in.read()) != '}') {
+                    if (c != '+') {
+                        len.append((char) c);
+                    }
+                }
+                in.read(); // CR
+                in.read(); // LF
+                byte[] data = new byte[Integer.parseInt(len.toString())];
+                int read = 0;
+                while (read < data.length) {
+                    int r = in.read(data, read, data.length - read);
+                    if (r == -1) {
+                        return null;
+                    }
+                    read += r;
+                }
+                args.add(new String(data, UTF8));
+            } else {
+                atom.write(c);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.fluffypeople.managesieve;
 import org.testng.annotations.*;
 
 import java.io.*;
+import java.util.List;
 
 import static org.testng.Assert.*;
 
@@ -45,4 +46,95 @@ public class ManageSieveClientTest {
 
         assertEquals(actual, expected);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test_pipeline() throws IOException, ParseException {
+        ManageSieveClient client = new ManageSieveClient();
+
+        StringReader in = new StringReader("OK\r\nNO (QUOTA/MAXSIZE) \"Too big\"\r\n{5}\r\nkeep;\r\nOK\r\n");
+        StringWriter out = new StringWriter();
+        client.setupForTesting(in, out);
+
+        SieveScript script = new SieveScript("b", null, false);
+        Pipeline p = client.pipeline();
+        p.havespace("a", 10);
+        p.havespace("a", 100000);
+        p.getScript(script);
+        List<ManageSieveResponse> responses = p.execute();
+
+        assertEquals(out.toString(), "HAVESPACE \"a\" 10\r\nHAVESPACE \"a\" 100000\r\nGETSCRIPT \"b\"\r\n");
+        assertEquals(responses.size(), 3);
+        assertTrue(responses.get(0).isOk());
+        assertTrue(responses.get(1).isNo());
+        assertTrue(responses.get(1).hasSubCode("MAXSIZE"));
+        assertTrue(responses.get(2).isOk());
+        assertEquals(script.getBody(), "keep;");
+        assertEquals(p.size(), 0, "Pipeline should be empty after execute");
+    }
+
+    @Test
+    public void test_swap() throws IOException, ParseException {
+        ManageSieveClient client = new ManageSieveClient();
+        StringReader in = new StringReader("\"main\" ACTIVE\r\n\"other\"\r\nOK\r\nOK\r\nOK\r\nOK\r\nOK\r\n");
+        StringWriter out = new StringWriter();
+        client.setupForTesting(in, out);
+
+        ScriptSwap.Result result = new ScriptSwap(client).swap("main", "keep;");
+
+        assertTrue(result.isOk(), result.toString());
+        assertEquals(result.getRoundTrips(), 2);
+        String[] lines = out.toString().split("\r\n");
+        assertEquals(lines[0], "LISTSCRIPTS");
+        assertTrue(lines[1].startsWith("PUTSCRIPT \"main.swap-"), lines[1]);
+        assertTrue(lines[3].startsWith("SETACTIVE \"main.swap-"), lines[3]);
+        assertEquals(lines[4], "DELETESCRIPT \"main\"");
+        assertTrue(lines[5].startsWith("RENAMESCRIPT {"), lines[5]);
+    }
+
+    @Test
+    public void test_swapRollsBack() throws IOException, ParseException {
+        ManageSieveClient client = new ManageSieveClient();
+        StringReader in = new StringReader("\"main\"\r\n\"old\" ACTIVE\r\nOK\r\nOK\r\nOK\r\n"
+                + "NO \"Locked\"\r\nNO (ALREADYEXISTS) \"Exists\"\r\nOK\r\nOK\r\n");
+        StringWriter out = new StringWriter();
+        client.setupForTesting(in, out);
+
+        ScriptSwap.Result result = new ScriptSwap(client).swap("main", "keep;");
+
+        assertFalse(result.isOk());
+        assertEquals(result.getFailedStep(), "DELETESCRIPT");
+        assertTrue(result.isRolledBack());
+        assertTrue(out.toString().contains("SETACTIVE \"old\"\r\nDELETESCRIPT \"main.swap-"), out.toString());
+    }
+
+    @Test
+    public void test_swapStopsWithoutListing() throws IOException, ParseException {
+        ManageSieveClient client = new ManageSieveClient();
+        StringReader in = new StringReader("NO \"Busy\"\r\nOK\r\nOK\r\n");
+        StringWriter out = new StringWriter();
+        client.setupForTesting(in, out);
+
+        ScriptSwap.Result result = new ScriptSwap(client).swap("main", "keep;");
+
+        assertEquals(result.getFailedStep(), "LISTSCRIPTS");
+        assertFalse(result.isRolledBack());
+        assertEquals(result.getRoundTrips(), 1);
+        // No guess at which script to activate, and nothing deleted or renamed
+        assertEquals(out.toString().split("\r\n").length, 4, out.toString());
+    }
+
+    @Test
+    public void test_swapWithoutListingUndoesUpload() throws IOException, ParseException {
+        ManageSieveClient client = new ManageSieveClient();
+        StringReader in = new StringReader("NO \"Busy\"\r\nOK\r\nNO \"Locked\"\r\nOK\r\n");
+        StringWriter out = new StringWriter();
+        client.setupForTesting(in, out);
+
+        ScriptSwap.Result result = new ScriptSwap(client).swap("main", "keep;");
+
+        assertEquals(result.getFailedStep(), "LISTSCRIPTS");
+        assertTrue(result.isRolledBack());
+        assertFalse(out.toString().contains("SETACTIVE \"\""), out.toString());
+        assertTrue(out.toString().contains("DELETESCRIPT \"main.swap-"), out.toString());
+    }
+}
@@ -0,0 +1,65 @@
+package com.fluffypeople.managesieve;
+
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+public class QuotaModelTest {
+
+    private static ManageSieveResponse response(String raw) throws IOException, ParseException {
+        ManageSieveClient client = new ManageSieveClient();
+        client.setupForTesting(new StringReader(raw + "\r\n"), new StringWriter());
+        return client.parseResponse();
+    }
+
+    @Test
+    public void test_unknownUntilLearned() throws IOException, ParseException {
+        QuotaModel model = new QuotaModel();
+        assertEquals(model.check("a", 10), QuotaModel.Answer.UNKNOWN);
+        model.learn("a", 100, response("NO (QUOTA/MAXSIZE)"));
+        assertEquals(model.check("a", 100), QuotaModel.Answer.NO);
+        assertEquals(model.check("a", 200), QuotaModel.Answer.NO);
+        // Still don't know about count or total storage
+        assertEquals(model.check("a", 10), QuotaModel.Answer.UNKNOWN);
+    }
+
+    @Test
+    public void test_yesOnceEverythingIsKnown() throws IOException, ParseException {
+        QuotaModel model = new QuotaModel();
+        model.setScripts(Arrays.asList(new SieveScript("a", "keep;", true), new SieveScript("b", "stop;", false)));
+        model.learn("c", 50, response("OK"));
+
+        // Replacing b with something smaller than c is certain to fit
+        assertEquals(model.check("b", 40), QuotaModel.Answer.YES);
+        // So is a different third script
+        assertEquals(model.check("d", 10), QuotaModel.Answer.YES);
+
+        // Once c is stored, a fourth script might not fit
+        model.scriptStored("c", 50);
+        assertEquals(model.check("d", 10), QuotaModel.Answer.UNKNOWN);
+
+        model.learn("d", 10, response("NO (QUOTA/MAXSCRIPTS)"));
+        assertEquals(model.check("e", 1), QuotaModel.Answer.NO);
+    }
+
+    @Test
+    public void test_listingWithoutSizesNeverSaysYes() throws IOException, ParseException {
+        QuotaModel model = new QuotaModel();
+        model.setScripts(Arrays.asList(new SieveScript("a", null, true)));
+        model.learn("b", 50, response("OK"));
+        assertEquals(model.check("b", 10), QuotaModel.Answer.UNKNOWN);
+        model.learn("b", 100, response("NO (QUOTA/MAXSIZE)"));
+        assertEquals(model.check("b", 100), QuotaModel.Answer.NO);
+    }
+
+    @Test
+    public void test_raisedLimitIsRelearned() throws IOException, ParseException {
+        QuotaModel model = new QuotaModel();
+        model.learn("a", 100, response("NO (QUOTA/MAXSIZE)"));
+        model.learn("a", 150, response("OK"));
+        assertNotEquals(model.check("a", 120), QuotaModel.Answer.NO);
+    }
+}
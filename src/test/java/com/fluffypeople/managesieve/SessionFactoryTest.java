@@ -0,0 +1,133 @@
+package com.fluffypeople.managesieve;
+
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+public class SessionFactoryTest {
+
+    private FakeSieveServer front;
+    private FakeSieveServer back;
+    private SessionFactory factory;
+    private ExpiringCache<String, SieveURL> cache;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        front = new FakeSieveServer();
+        back = new FakeSieveServer();
+        factory = front.factory();
+        cache = new ExpiringCache<String, SieveURL>(10, 0);
+        factory.setReferralCache(cache);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        front.stop();
+        back.stop();
+    }
+
+    @Test
+    public void test_followsAuthenticateReferral() throws Exception {
+        front.setReferral("alice", back.getUrl());
+        ManageSieveClient client = factory.open("alice", "secret");
+        try {
+            assertEquals(client.getPort(), back.getPort());
+            assertEquals(cache.get("alice"), SieveURL.parse(back.getUrl()));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void test_followsGreetingReferral() throws Exception {
+        front.setGreetingReferral(back.getUrl());
+        ManageSieveClient client = factory.connect();
+        try {
+            assertEquals(client.getPort(), back.getPort());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void test_referralLoopIsDetected() throws Exception {
+        front.setReferral("alice", back.getUrl());
+        back.setReferral("alice", front.getUrl());
+        try {
+            factory.open("alice", "secret");
+            fail("Expected a referral loop");
+        } catch (ManageSieveException ex) {
+            assertTrue(ex.getMessage().contains("loop"), ex.getMessage());
+        }
+        assertNull(cache.get("alice"));
+    }
+
+    @Test
+    public void test_maxReferrals() throws Exception {
+        factory.setMaxReferrals(0);
+        front.setReferral("alice", back.getUrl());
+        try {
+            factory.open("alice", "secret");
+            fail("Expected too many referrals");
+        } catch (ManageSieveException ex) {
+            assertTrue(ex.getMessage().contains("Too many"), ex.getMessage());
+        }
+        assertEquals(back.getConnectionCount(), 0);
+    }
+
+    @Test
+    public void test_cachedReferralSkipsTheFront() throws Exception {
+        front.setReferral("alice", back.getUrl());
+        factory.open("alice", "secret").close();
+        int frontConnections = front.getConnectionCount();
+
+        ManageSieveClient client = factory.open("alice", "secret");
+        try {
+            assertEquals(client.getPort(), back.getPort());
+            assertEquals(front.getConnectionCount(), frontConnections);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void test_wrongPasswordAtCachedBackendIsNotRetried() throws Exception {
+        cache.put("alice", SieveURL.parse(back.getUrl()));
+        try {
+            factory.open("alice", "wrong password");
+            fail("Expected authentication to fail");
+        } catch (ManageSieveException ex) {
+            // expected
+        }
+        assertEquals(back.getAuthenticateCount(), 1);
+        assertEquals(front.getAuthenticateCount(), 0);
+        assertEquals(cache.get("alice"), SieveURL.parse(back.getUrl()));
+    }
+
+    @Test
+    public void test_deadCachedBackendIsDropped() throws Exception {
+        cache.put("alice", SieveURL.parse(back.getUrl()));
+        back.stop();
+        ManageSieveClient client = factory.open("alice", "secret");
+        try {
+            assertEquals(client.getPort(), front.getPort());
+            assertNull(cache.get("alice"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void test_cachedBackendReferralIsDropped() throws Exception {
+        cache.put("alice", SieveURL.parse(back.getUrl()));
+        back.setReferral("alice", front.getUrl());
+        ManageSieveClient client = factory.open("alice", "secret");
+        try {
+            assertEquals(client.getPort(), front.getPort());
+            assertNull(cache.get("alice"));
+            assertEquals(back.getAuthenticateCount(), 1);
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.fluffypeople.managesieve;
+
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+public class SieveURLTest {
+
+    @DataProvider(name = "URLs")
+    public Object[][] createURLs() {
+        return new Object[][]{
+                {"sieve://backend.example.com", null, "backend.example.com", 4190},
+                {"sieve://backend.example.com:2000/", null, "backend.example.com", 2000},
+                {"sieve://user@backend.example.com/user/script", "user", "backend.example.com", 4190},
+                {"SIEVE://[2001:db8::1]:4191", null, "2001:db8::1", 4191},
+                {"backend.example.com", null, "backend.example.com", 4190}, // Bare hostname
+        };
+    }
+
+    @Test(dataProvider = "URLs")
+    public void test_parse(String raw, String user, String host, int port) throws ParseException {
+        SieveURL url = SieveURL.parse(raw);
+        assertEquals(url.getUser(), user);
+        assertEquals(url.getHost(), host);
+        assertEquals(url.getPort(), port);
+    }
+
+    @Test(expectedExceptions = ParseException.class)
+    public void test_parseInvalid() throws ParseException {
+        SieveURL.parse("sieve://");
+    }
+
+    @Test
+    public void test_equalsIgnoresUser() throws ParseException {
+        assertEquals(SieveURL.parse("sieve://a@Backend.example.com"), SieveURL.parse("sieve://backend.example.com:4190"));
+        assertNotEquals(SieveURL.parse("sieve://backend.example.com:2000"), SieveURL.parse("sieve://backend.example.com"));
+    }
+
+    @Test
+    public void test_toStringRoundTrip() throws ParseException {
+        SieveURL url = new SieveURL("user", "2001:db8::1", 2000);
+        assertEquals(url.toString(), "sieve://user@[2001:db8::1]:2000");
+        assertEquals(SieveURL.parse(url.toString()), url);
+    }
+}
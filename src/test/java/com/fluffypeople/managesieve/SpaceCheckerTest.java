@@ -0,0 +1,90 @@
+package com.fluffypeople.managesieve;
+
+import org.testng.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class SpaceCheckerTest {
+
+    private FakeSieveServer server;
+    private ManageSieveClient client;
+    private SpaceChecker checker;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        client = server.factory().open("alice", "secret");
+        checker = new SpaceChecker(10, 0);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void test_rejectedSizeIsAnsweredLocally() throws Exception {
+        assertFalse(checker.havespace(client, "alice", "a", 20000));
+        assertEquals(checker.getServerAnswers(), 1);
+
+        int commands = server.getCommandCount();
+        assertFalse(checker.havespace(client, "alice", "a", 30000));
+        assertEquals(checker.getLocalAnswers(), 1);
+        assertEquals(server.getCommandCount(), commands);
+
+        // Without sizes for the existing scripts, a fit always needs the server
+        assertTrue(checker.havespace(client, "alice", "a", 100));
+        assertTrue(checker.havespace(client, "alice", "a", 50));
+        assertEquals(checker.getServerAnswers(), 3);
+    }
+
+    @Test
+    public void test_loadedScriptsAllowLocalYes() throws Exception {
+        server.putScript("alice", "a", "keep;", true);
+        server.putScript("alice", "b", "discard;", false);
+        assertTrue(checker.loadScripts(client, "alice"));
+
+        assertTrue(checker.havespace(client, "alice", "c", 100));
+        assertEquals(checker.getServerAnswers(), 1);
+
+        int commands = server.getCommandCount();
+        assertTrue(checker.havespace(client, "alice", "c", 50));
+        assertTrue(checker.havespace(client, "alice", "b", 90));
+        assertEquals(checker.getLocalAnswers(), 2);
+        assertEquals(server.getCommandCount(), commands);
+    }
+
+    @Test
+    public void test_batchIsPipelined() throws Exception {
+        List<SpaceChecker.Request> requests = Arrays.asList(
+                new SpaceChecker.Request("a", 100),
+                new SpaceChecker.Request("b", 20000),
+                new SpaceChecker.Request("c", 200));
+        checker.havespace(client, "alice", requests);
+
+        assertTrue(requests.get(0).hasSpace());
+        assertFalse(requests.get(1).hasSpace());
+        assertEquals(requests.get(1).getResponse().getCode(), ManageSieveResponse.Code.QUOTA);
+        assertTrue(requests.get(2).hasSpace());
+        assertEquals(checker.getServerAnswers(), 3);
+
+        // A bigger script than one already refused is known not to fit
+        SpaceChecker.Request again = new SpaceChecker.Request("d", 25000);
+        checker.havespace(client, "alice", Arrays.asList(again));
+        assertFalse(again.hasSpace());
+        assertTrue(again.isLocal());
+    }
+
+    @Test
+    public void test_forgetDropsTheModel() throws Exception {
+        checker.havespace(client, "alice", "a", 20000);
+        checker.forget("alice");
+        checker.havespace(client, "alice", "a", 30000);
+        assertEquals(checker.getLocalAnswers(), 0);
+        assertEquals(checker.getServerAnswers(), 2);
+    }
+}
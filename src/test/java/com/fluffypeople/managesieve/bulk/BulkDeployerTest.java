@@ -0,0 +1,139 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.AdaptiveLimiter;
+import com.fluffypeople.managesieve.session.Backoff;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class BulkDeployerTest {
+
+    private FakeSieveServer server;
+    private SessionPool pool;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        pool = new SessionPool(server.factory(), 4);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        pool.close();
+        server.stop();
+    }
+
+    private static List<Account> accounts(int count) {
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < count; i++) {
+            accounts.add(new Account(new Credentials("user" + i, "secret")));
+        }
+        return accounts;
+    }
+
+    @Test
+    public void test_deployChecksEachBodyOnce() throws Exception {
+        BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+        deployer.setWorkers(4);
+        deployer.setBackendParallelism(null, 2);
+
+        StringWriter outcomes = new StringWriter();
+        JobReport report = deployer.deploy(new IteratorAccountSource(accounts(30)), "company", new ScriptProvider() {
+            @Override
+            public String scriptFor(Account account) {
+                return account.getName().endsWith("0") ? "discard;" : "keep;";
+            }
+        }, outcomes);
+
+        assertEquals(report.getAccountsDone(), 30);
+        assertEquals(deployer.getChecksSent(), 2);
+        assertEquals(server.getScripts("user7").get("company"), "keep;");
+        assertEquals(server.getScripts("user20").get("company"), "discard;");
+        assertEquals(server.getActive("user7"), "company");
+        assertEquals(outcomes.toString().split("\n").length, 31);
+    }
+
+    @Test
+    public void test_retriesWhenServerSaysTryLater() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("fake", 4, 1, 4);
+        pool.setLimiter(limiter);
+        server.setTryLater(3);
+        BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool).setRetry(5, new Backoff(1, 10)));
+
+        JobReport report = deployer.deploy(new IteratorAccountSource(accounts(10)), "company", "keep;", null);
+
+        assertEquals(report.getAccountsDone(), 10, report.getFailures().toString());
+        assertEquals(limiter.getOverloadCount(), 3);
+        assertTrue(limiter.getDecreaseCount() > 0);
+        assertEquals(server.getScripts("user9").get("company"), "keep;");
+    }
+
+    @Test
+    public void test_swapReplacesActiveScript() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            server.putScript("user" + i, "company", "discard;", true);
+        }
+        BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+        deployer.setSwap(true);
+        deployer.setCheck(false);
+
+        JobReport report = deployer.deploy(new IteratorAccountSource(accounts(5)), "company", "keep;", null);
+
+        assertEquals(report.getAccountsDone(), 5, report.getFailures().toString());
+        assertEquals(server.getScripts("user4").size(), 1);
+        assertEquals(server.getScripts("user4").get("company"), "keep;");
+        assertEquals(server.getActive("user4"), "company");
+    }
+
+    @Test
+    public void test_rejectedScriptIsNotUploaded() throws Exception {
+        BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+        StringWriter outcomes = new StringWriter();
+        JobReport report = deployer.deploy(new IteratorAccountSource(accounts(10)), "broken", "syntax error", outcomes);
+
+        assertEquals(report.getAccountsFailed(), 10);
+        assertEquals(deployer.getChecksSent(), 1);
+        assertFalse(server.getScripts("user3").containsKey("broken"));
+        assertTrue(outcomes.toString().contains(ManifestWriter.FAILED + "\tuser3\tbroken\t"), outcomes.toString());
+    }
+
+    @Test
+    public void test_staleActivationIsReported() throws Exception {
+        server.putScript("user0", "company", "discard;", false);
+        server.putScript("user0", "personal", "keep;", true);
+        BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+        deployer.setSwap(false);
+        deployer.setCheck(false);
+        StringWriter outcomes = new StringWriter();
+
+        JobReport report = deployer.deploy(new IteratorAccountSource(accounts(2)), "company", "syntax error", outcomes);
+
+        assertEquals(report.getAccountsFailed(), 2);
+        assertEquals(report.getAccountsStale(), 1);
+        assertEquals(server.getActive("user0"), "company");
+        assertTrue(outcomes.toString().contains(ManifestWriter.STALE + "\tuser0\tcompany\ttrue\t"), outcomes.toString());
+        assertTrue(outcomes.toString().contains(ManifestWriter.FAILED + "\tuser1\tcompany\t"), outcomes.toString());
+    }
+
+    @Test
+    public void test_swapIsTheDefault() throws Exception {
+        server.putScript("user0", "company", "discard;", false);
+        server.putScript("user0", "personal", "keep;", true);
+        BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+        assertTrue(deployer.isSwap());
+        deployer.setCheck(false);
+
+        JobReport report = deployer.deploy(new IteratorAccountSource(accounts(1)), "company", "syntax error", null);
+
+        assertEquals(report.getAccountsFailed(), 1);
+        assertEquals(report.getAccountsStale(), 0);
+        assertEquals(server.getActive("user0"), "personal");
+    }
+}
@@ -0,0 +1,181 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.testng.Assert.*;
+
+public class BulkExporterTest {
+
+    private FakeSieveServer server;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        server.stop();
+    }
+
+    @Test
+    public void test_export() throws Exception {
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 20; i++) {
+            String name = "user" + i;
+            server.putScript(name, "main", "keep;", true);
+            server.putScript(name, "spare script", "discard;", false);
+            accounts.add(new Account(new Credentials(name, "secret")));
+        }
+        SessionPool pool = new SessionPool(server.factory(), 4);
+        BulkExporter exporter = new BulkExporter(new SessionRouter(pool));
+        exporter.setWorkers(4);
+        exporter.setPipelineDepth(1);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        StringWriter manifest = new StringWriter();
+        JobReport report = exporter.export(new IteratorAccountSource(accounts), archive, manifest);
+        pool.close();
+
+        assertEquals(report.getAccountsDone(), 20);
+        assertEquals(report.getAccountsFailed(), 0);
+        assertEquals(report.getScripts(), 40);
+
+        Map<String, String> entries = new HashMap<String, String>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = zip.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            entries.put(entry.getName(), body.toString("UTF-8"));
+        }
+        assertEquals(entries.size(), 40);
+        assertEquals(entries.get("user3/main.sieve"), "keep;");
+        assertEquals(entries.get("user3/spare+script.sieve"), "discard;");
+
+        String[] lines = manifest.toString().split("\n");
+        assertEquals(lines[0], ManifestWriter.HEADER);
+        assertEquals(lines.length, 41);
+    }
+
+    @Test
+    public void test_failedAccountIsInManifest() throws Exception {
+        server.putScript("good", "main", "keep;", true);
+        List<Account> accounts = new ArrayList<Account>();
+        accounts.add(new Account(new Credentials("good", "secret")));
+        accounts.add(new Account(new Credentials("bad", "wrong password")));
+
+        SessionPool pool = new SessionPool(server.factory(), 2);
+        StringWriter manifest = new StringWriter();
+        JobReport report = new BulkExporter(new SessionRouter(pool)).export(new IteratorAccountSource(accounts), new ByteArrayOutputStream(), manifest);
+        pool.close();
+
+        assertEquals(report.getAccountsDone(), 1);
+        assertEquals(report.getAccountsFailed(), 1);
+        assertTrue(manifest.toString().contains(ManifestWriter.FAILED + "\tbad\t"), manifest.toString());
+    }
+
+    @Test
+    public void test_resumeRecoversEarlierArchive() throws Exception {
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 10; i++) {
+            String name = "user" + i;
+            server.putScript(name, "main", "keep;", true);
+            server.putScript(name, "spare", "discard;", false);
+            accounts.add(new Account(new Credentials(name, "secret")));
+        }
+        File archive = File.createTempFile("export", ".zip");
+        File manifest = File.createTempFile("export", ".tsv");
+        File journalFile = File.createTempFile("export", ".journal");
+        journalFile.delete();
+        SessionPool pool = new SessionPool(server.factory(), 2);
+        try {
+            BulkExporter exporter = new BulkExporter(new SessionRouter(pool));
+            exporter.setJournal(JobJournal.open(journalFile));
+            exporter.export(new IteratorAccountSource(accounts.subList(0, 5)), archive, manifest);
+            exporter.getJournal().close();
+
+            // Crash before the central directory was written
+            byte[] data = readFile(archive);
+            int cut = 0;
+            while (!(data[cut] == 'P' && data[cut + 1] == 'K' && data[cut + 2] == 1 && data[cut + 3] == 2)) {
+                cut += 1;
+            }
+            FileOutputStream out = new FileOutputStream(archive);
+            out.write(data, 0, cut);
+            out.close();
+
+            exporter = new BulkExporter(new SessionRouter(pool));
+            exporter.setJournal(JobJournal.open(journalFile));
+            JobReport report = exporter.export(new IteratorAccountSource(accounts), archive, manifest);
+            exporter.getJournal().close();
+            assertEquals(report.getAccountsSkipped(), 5);
+            assertEquals(report.getAccountsDone(), 5);
+
+            Map<String, String> entries = new HashMap<String, String>();
+            ZipFile zip = new ZipFile(archive);
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                entries.put(e.nextElement().getName(), "");
+            }
+            zip.close();
+            assertEquals(entries.size(), 20);
+            assertTrue(entries.containsKey("user0/main.sieve"));
+            assertTrue(entries.containsKey("user9/spare.sieve"));
+            assertEquals(new String(readFile(manifest), "UTF-8").split("\n").length, 21);
+            assertFalse(new File(archive.getPath() + ".partial.1").exists());
+        } finally {
+            pool.close();
+            archive.delete();
+            manifest.delete();
+            journalFile.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void test_journalNeedsFiles() throws Exception {
+        File journalFile = File.createTempFile("export", ".journal");
+        journalFile.delete();
+        BulkExporter exporter = new BulkExporter(new SessionRouter(new SessionPool(server.factory(), 1)));
+        exporter.setJournal(JobJournal.open(journalFile));
+        try {
+            exporter.export(new IteratorAccountSource(new ArrayList<Account>()), new ByteArrayOutputStream(), new StringWriter());
+        } finally {
+            exporter.getJournal().close();
+            journalFile.delete();
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,102 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class ChangePollerTest {
+
+    private FakeSieveServer server;
+    private SessionPool pool;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        pool = new SessionPool(server.factory(), 2);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        pool.close();
+        server.stop();
+    }
+
+    private static List<String> describe(List<ScriptChange> changes) {
+        List<String> result = new ArrayList<String>();
+        for (ScriptChange c : changes) {
+            result.add(c.getType() + " " + c.getScript());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void test_changesAreReported() throws Exception {
+        server.putScript("alice", "main", "keep;", true);
+        server.putScript("alice", "old", "discard;", false);
+
+        ChangePoller poller = new ChangePoller(new SessionRouter(pool));
+        poller.setIntervals(1000, 8000);
+        final List<ScriptChange> heard = Collections.synchronizedList(new ArrayList<ScriptChange>());
+        poller.addListener(new ChangePoller.ChangeListener() {
+            @Override
+            public void changed(ScriptChange change) {
+                heard.add(change);
+            }
+        });
+        poller.addAccount(new Account(new Credentials("alice", "secret")));
+
+        assertEquals(describe(poller.pollNow("alice")), Arrays.asList("ACTIVATED main", "ADDED main", "ADDED old"));
+        assertEquals(heard.size(), 3);
+
+        assertTrue(poller.pollNow("alice").isEmpty());
+        assertEquals(poller.getInterval("alice"), 1500, "Quiet account should be polled less");
+
+        server.putScript("alice", "main", "stop;", false);
+        server.getScripts("alice").remove("old");
+        server.putScript("alice", "new", "keep;", true);
+        assertEquals(describe(poller.pollNow("alice")), Arrays.asList("ACTIVATED new", "ADDED new", "DEACTIVATED main", "MODIFIED main", "REMOVED old"));
+        assertEquals(poller.getInterval("alice"), 1000, "Busy account should be polled more");
+    }
+
+    @Test
+    public void test_budgetLimitsLoad() throws Exception {
+        ChangePoller poller = new ChangePoller(new SessionRouter(pool));
+        poller.setIntervals(1, 1);
+        poller.setBudget(20);
+        server.putScript("bob", "main", "keep;", true);
+        poller.addAccount(new Account(new Credentials("bob", "secret")));
+
+        poller.start();
+        Thread.sleep(1000);
+        poller.stop();
+
+        // 2 commands per poll at 20 a second, plus the starting burst
+        long polls = poller.getPollCount();
+        assertTrue(polls >= 3 && polls <= 13, "polls: " + polls);
+    }
+
+    @Test
+    public void test_unreadableScriptIsNotRemoved() throws Exception {
+        server.putScript("alice", "main", "keep;", true);
+        server.putScript("alice", "old", "discard;", false);
+        ChangePoller poller = new ChangePoller(new SessionRouter(pool));
+        poller.addAccount(new Account(new Credentials("alice", "secret")));
+        assertEquals(poller.pollNow("alice").size(), 3);
+
+        // Both scripts are still listed, but the server is too busy to send them
+        server.setGetScriptTryLater(2);
+        assertTrue(poller.pollNow("alice").isEmpty());
+
+        server.putScript("alice", "main", "stop;", true);
+        assertEquals(describe(poller.pollNow("alice")), Arrays.asList("MODIFIED main"));
+    }
+}
@@ -0,0 +1,90 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class CostSurveyTest {
+
+    private static final String CHEAP = "keep;";
+    private static final String EXPENSIVE = "require [\"body\", \"regex\", \"fileinto\"];\r\n"
+            + "if anyof (body :contains \"x\", header :regex \"subject\" \"(a+)+\") { fileinto \"Junk\"; }\r\n";
+
+    private FakeSieveServer server;
+    private ByteArrayOutputStream archive;
+    private StringWriter manifest;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 10; i++) {
+            String name = "user" + i;
+            server.putScript(name, "main", i == 3 ? EXPENSIVE : CHEAP, true);
+            accounts.add(new Account(new Credentials(name, "secret")));
+        }
+        // Expensive, but not active
+        server.putScript("user5", "old", EXPENSIVE, false);
+        server.putScript("user7", "broken", "if {", false);
+
+        SessionPool pool = new SessionPool(server.factory(), 4);
+        BulkExporter exporter = new BulkExporter(new SessionRouter(pool));
+        archive = new ByteArrayOutputStream();
+        manifest = new StringWriter();
+        exporter.export(new IteratorAccountSource(accounts), archive, manifest);
+        pool.close();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        server.stop();
+    }
+
+    @Test
+    public void test_rankWithManifest() throws Exception {
+        CostSurvey survey = new CostSurvey();
+        survey.setWorkers(3);
+        survey.setQueueSize(2);
+        survey.analyze(new ByteArrayInputStream(archive.toByteArray()), new StringReader(manifest.toString()));
+
+        assertEquals(survey.getAccountCount(), 10);
+        assertEquals(survey.getScriptCount(), 12);
+        assertEquals(survey.getFailedCount(), 1);
+        List<AccountCost> ranking = survey.getRanking(3);
+        assertEquals(ranking.size(), 3);
+        assertEquals(ranking.get(0).getAccount(), "user3");
+        assertEquals(ranking.get(0).getScript(), "main");
+        assertEquals(ranking.get(0).getDetail().getBodyTestCount(), 1);
+        assertTrue(ranking.get(0).getCost() > ranking.get(1).getCost());
+        assertEquals(survey.getAccount("user5").getScriptCount(), 2);
+        assertEquals(survey.getAccount("user7").getFailedCount(), 1);
+
+        StringWriter report = new StringWriter();
+        survey.writeReport(report, 2);
+        String[] lines = report.toString().split("\n");
+        assertEquals(lines.length, 3);
+        assertEquals(lines[0], CostSurvey.HEADER);
+        assertTrue(lines[1].startsWith("1\tuser3\t"));
+    }
+
+    @Test
+    public void test_withoutManifestUsesWorstScript() throws Exception {
+        CostSurvey survey = new CostSurvey();
+        survey.analyze(new ByteArrayInputStream(archive.toByteArray()), null);
+        List<AccountCost> ranking = survey.getRanking(2);
+        assertEquals(ranking.get(0).getCost(), ranking.get(1).getCost());
+        assertEquals(ranking.get(0).getAccount(), "user3");
+        assertEquals(ranking.get(1).getAccount(), "user5");
+        assertEquals(ranking.get(1).getScript(), "old");
+    }
+}
@@ -0,0 +1,110 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.testng.Assert.*;
+
+public class DirectorySyncTest {
+
+    private FakeSieveServer server;
+    private SessionPool pool;
+    private File root;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        pool = new SessionPool(server.factory(), 2);
+        root = File.createTempFile("sync", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        pool.close();
+        server.stop();
+        delete(root);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private void write(String account, String script, String body, long modified) throws IOException {
+        File dir = new File(root, account);
+        dir.mkdirs();
+        File f = new File(dir, script + ".sieve");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        f.setLastModified(modified);
+    }
+
+    @Test
+    public void test_onlyChangesAreUploaded() throws Exception {
+        long t = (System.currentTimeMillis() / 1000 - 100) * 1000;
+        write("alice", "main", "keep;", t);
+        write("alice", "spam", "discard;", t);
+        write("bob", "main", "keep;", t);
+        new File(root, "bob/README").createNewFile();
+
+        DirectorySync sync = new DirectorySync(root, new SessionRouter(pool), new DirectorySync.AccountResolver() {
+            @Override
+            public Account resolve(String name) {
+                return new Account(new Credentials(name, "secret"));
+            }
+        });
+
+        JobReport first = sync.sync();
+        assertEquals(first.getScripts(), 3);
+        assertEquals(first.getAccountsDone(), 2);
+        assertEquals(server.getScripts("alice").get("spam"), "discard;");
+        assertTrue(sync.getMaxLatency() >= 100000);
+
+        // Touched but not changed
+        write("alice", "main", "keep;", t + 5000);
+        assertNull(sync.sync());
+
+        write("alice", "main", "stop;", t + 10000);
+        write("bob", "broken", "syntax error", t + 10000);
+        JobReport second = sync.sync();
+        assertEquals(second.getScripts(), 1);
+        assertEquals(server.getScripts("alice").get("main"), "stop;");
+        assertEquals(sync.getPendingCount(), 0, "Rejected scripts wait for the file to change");
+        assertEquals(sync.getUploadedCount(), 4);
+        assertEquals(sync.getFailedCount(), 1);
+    }
+
+    @Test
+    public void test_changesAreDebounced() throws Exception {
+        write("alice", "main", "keep;", System.currentTimeMillis());
+        DirectorySync sync = new DirectorySync(root, new SessionRouter(pool), new DirectorySync.AccountResolver() {
+            @Override
+            public Account resolve(String name) {
+                return new Account(new Credentials(name, "secret"));
+            }
+        });
+        sync.setQuietPeriod(200);
+
+        assertNull(sync.poll());
+        assertEquals(sync.getPendingCount(), 1);
+        Thread.sleep(250);
+        JobReport report = sync.poll();
+        assertNotNull(report);
+        assertEquals(report.getScripts(), 1);
+        assertEquals(sync.getBatchCount(), 1);
+    }
+}
@@ -0,0 +1,212 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class JobJournalTest {
+
+    private File file;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        file = File.createTempFile("journal", ".log");
+        file.delete();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void test_replay() throws Exception {
+        JobJournal journal = JobJournal.open(file);
+        journal.markFailed("a", "broken\tbadly");
+        journal.markDone("b");
+        journal.markFailed("c", null);
+        journal.markDone("c");
+        journal.close();
+
+        // Simulate a crash part way through a record
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("DONE\ta".getBytes("UTF-8"));
+        out.close();
+
+        journal = JobJournal.open(file);
+        assertFalse(journal.isDone("a"));
+        assertTrue(journal.isDone("b"));
+        assertTrue(journal.isDone("c"));
+        assertEquals(journal.getFailed().get("a"), "broken\tbadly");
+        assertEquals(journal.getFailed().size(), 1);
+
+        journal.markDone("d");
+        journal.close();
+        assertTrue(JobJournal.open(file).isDone("d"));
+    }
+
+    @Test
+    public void test_corruptLineIsReported() throws Exception {
+        JobJournal journal = JobJournal.open(file);
+        journal.markDone("a");
+        journal.close();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("garbage\nDONE\tb\n".getBytes("UTF-8"));
+        out.close();
+
+        try {
+            JobJournal.open(file);
+            fail("Expected a corrupt journal");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("Corrupt journal"), ex.getMessage());
+        }
+    }
+
+    @Test
+    public void test_compact() throws Exception {
+        JobJournal journal = JobJournal.open(file);
+        for (int i = 0; i < 100; i++) {
+            journal.markFailed("user" + i, "first try");
+            journal.markDone("user" + i);
+        }
+        long before = file.length();
+        journal.compact();
+        assertTrue(file.length() < before / 2, before + " -> " + file.length());
+
+        journal.markDone("late");
+        journal.close();
+
+        journal = JobJournal.open(file);
+        assertEquals(journal.getDoneCount(), 101);
+        assertTrue(journal.getFailed().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void test_groupCommit() throws Exception {
+        final JobJournal journal = JobJournal.open(file);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int base = t * 100;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            journal.markDone("user" + (base + i));
+                        }
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(journal.getDoneCount(), 800);
+        journal.close();
+        assertEquals(JobJournal.open(file).getDoneCount(), 800);
+    }
+
+    @Test
+    public void test_waitingRecordsShareOneSync() throws Exception {
+        final CountDownLatch syncing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final JobJournal journal = new JobJournal(file) {
+            @Override
+            void force(FileChannel target) throws IOException {
+                syncing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                super.force(target);
+            }
+        };
+        journal.load();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final String account = "user" + t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        journal.markDone(account);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            if (t == 0) {
+                // The first record is being synced on its own
+                assertTrue(syncing.await(5, TimeUnit.SECONDS));
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journal.getDoneCount() < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(journal.getDoneCount(), 8);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // One sync for the first record, and one for the seven that waited
+        assertEquals(journal.getSyncCount(), 2);
+        journal.close();
+        assertEquals(JobJournal.open(file).getDoneCount(), 8);
+    }
+
+    @Test
+    public void test_resumedDeploySkipsDoneAccounts() throws Exception {
+        FakeSieveServer server = new FakeSieveServer();
+        SessionPool pool = new SessionPool(server.factory(), 2);
+        try {
+            List<Account> accounts = new ArrayList<Account>();
+            for (int i = 0; i < 10; i++) {
+                accounts.add(new Account(new Credentials("user" + i, i == 7 ? "wrong password" : "secret")));
+            }
+            JobJournal journal = JobJournal.open(file);
+            BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+            deployer.setJournal(journal);
+            JobReport first = deployer.deploy(new IteratorAccountSource(accounts), "company", "keep;", null);
+            assertEquals(first.getAccountsDone(), 9);
+            journal.close();
+
+            accounts.set(7, new Account(new Credentials("user7", "secret")));
+            journal = JobJournal.open(file);
+            deployer.setJournal(journal);
+            JobReport second = deployer.deploy(new IteratorAccountSource(accounts), "company", "keep;", null);
+            journal.close();
+
+            assertEquals(second.getAccountsSkipped(), 9);
+            assertEquals(second.getAccountsDone(), 1);
+            assertEquals(server.getScripts("user7").get("company"), "keep;");
+        } finally {
+            pool.close();
+            server.stop();
+        }
+    }
+}
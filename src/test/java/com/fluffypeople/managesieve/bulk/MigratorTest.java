@@ -0,0 +1,87 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class MigratorTest {
+
+    private FakeSieveServer oldServer;
+    private FakeSieveServer newServer;
+    private SessionPool oldPool;
+    private SessionPool newPool;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        oldServer = new FakeSieveServer();
+        newServer = new FakeSieveServer();
+        oldPool = new SessionPool(oldServer.factory(), 4);
+        newPool = new SessionPool(newServer.factory(), 4);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        oldPool.close();
+        newPool.close();
+        oldServer.stop();
+        newServer.stop();
+    }
+
+    @Test
+    public void test_migrate() throws Exception {
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 25; i++) {
+            String name = "user" + i;
+            for (int j = 0; j < 5; j++) {
+                oldServer.putScript(name, "script" + j, "# " + name + " " + j + "\r\nkeep;", j == 2);
+            }
+            accounts.add(new Account(new Credentials(name, "secret")));
+        }
+        oldServer.putScript("empty", "x", "keep;", false);
+        oldServer.getScripts("empty").clear();
+        accounts.add(new Account(new Credentials("empty", "secret")));
+
+        Migrator migrator = new Migrator(new SessionRouter(oldPool), new SessionRouter(newPool));
+        migrator.setQueueSize(4);
+        migrator.setPipelineDepth(2);
+        StringWriter outcomes = new StringWriter();
+        JobReport report = migrator.migrate(new IteratorAccountSource(accounts), outcomes);
+
+        assertEquals(report.getAccountsDone(), 26, report.getFailures().toString());
+        assertEquals(report.getAccountsFailed(), 0);
+        assertEquals(report.getScripts(), 125);
+        assertTrue(report.getBytesPerSecond() > 0);
+        for (int i = 0; i < 25; i++) {
+            String name = "user" + i;
+            assertEquals(newServer.getScripts(name), oldServer.getScripts(name));
+            assertEquals(newServer.getActive(name), "script2");
+        }
+        assertEquals(outcomes.toString().split("\n").length, 126);
+    }
+
+    @Test
+    public void test_writeFailureFailsAccount() throws Exception {
+        oldServer.putScript("alice", "good", "keep;", true);
+        oldServer.putScript("alice", "bad", "syntax error", false);
+        oldServer.putScript("bob", "good", "keep;", true);
+        List<Account> accounts = new ArrayList<Account>();
+        accounts.add(new Account(new Credentials("alice", "secret")));
+        accounts.add(new Account(new Credentials("bob", "secret")));
+
+        StringWriter outcomes = new StringWriter();
+        JobReport report = new Migrator(new SessionRouter(oldPool), new SessionRouter(newPool)).migrate(new IteratorAccountSource(accounts), outcomes);
+
+        assertEquals(report.getAccountsDone(), 1);
+        assertEquals(report.getAccountsFailed(), 1);
+        assertTrue(report.getFailures().get(0).startsWith("alice"), report.getFailures().toString());
+        assertTrue(outcomes.toString().contains(ManifestWriter.FAILED + "\talice\tbad\t"), outcomes.toString());
+        assertEquals(newServer.getScripts("bob").get("good"), "keep;");
+    }
+}
@@ -0,0 +1,145 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class RuleIndexTest {
+
+    private static final String REDIRECT = "redirect \"out@elsewhere.org\";";
+    private static final String FILE_FROM_BOSS = "require \"fileinto\";\r\n"
+            + "if header :contains \"from\" \"boss@example.com\" { fileinto \"Boss\"; }";
+
+    private File dir;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        dir = File.createTempFile("ruleindex", "");
+        dir.delete();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void test_incremental() throws Exception {
+        RuleIndex index = RuleIndex.open(dir);
+        assertTrue(index.update("alice", "main", REDIRECT));
+        assertTrue(index.update("bob", "main", FILE_FROM_BOSS));
+        assertTrue(index.update("carol", "main", "keep;"));
+        assertFalse(index.update("alice", "main", REDIRECT));
+        index.setActive("alice", "main");
+
+        RuleQuery fromBoss = RuleQuery.and(RuleQuery.term("match", "from=Boss@example.com"), RuleQuery.term("action", "fileinto"));
+        assertEquals(index.count(RuleQuery.field("redirect-domain")), 1);
+        assertEquals(index.search(fromBoss, 10).get(0).getAccount(), "bob");
+        index.commit();
+        assertEquals(index.getSegmentCount(), 1);
+
+        // Changes after a commit are seen straight away
+        assertTrue(index.update("carol", "main", REDIRECT));
+        assertEquals(index.count(RuleQuery.term("redirect", "out@elsewhere.org")), 2);
+        assertEquals(index.count(RuleQuery.and(RuleQuery.active(), RuleQuery.field("redirect"))), 1);
+        assertEquals(index.count(RuleQuery.not(RuleQuery.field("redirect"))), 1);
+        assertTrue(index.remove("bob", "main"));
+        assertEquals(index.count(fromBoss), 0);
+        index.close();
+
+        index = RuleIndex.open(dir);
+        assertEquals(index.size(), 2);
+        assertEquals(index.count(RuleQuery.field("redirect")), 2);
+        assertEquals(index.count(RuleQuery.term("test", "header")), 0);
+        List<RuleIndex.Hit> active = index.search(RuleQuery.active(), 10);
+        assertEquals(active.size(), 1);
+        assertEquals(active.get(0).getAccount(), "alice");
+        assertTrue(active.get(0).isActive());
+        assertEquals(index.values("redirect-domain").iterator().next(), "elsewhere.org");
+
+        index.merge();
+        assertEquals(index.getSegmentCount(), 1);
+        assertEquals(index.count(RuleQuery.field("redirect")), 2);
+        index.close();
+        index = RuleIndex.open(dir);
+        assertEquals(index.size(), 2);
+        assertEquals(index.count(RuleQuery.field("redirect")), 2);
+        index.close();
+    }
+
+    @Test
+    public void test_followsChanges() throws Exception {
+        RuleIndex index = RuleIndex.open(dir);
+        Account alice = new Account(new Credentials("alice", "secret"));
+        index.changed(new ScriptChange(alice, "main", ScriptChange.Type.ADDED, "keep;", null));
+        index.changed(new ScriptChange(alice, "main", ScriptChange.Type.ACTIVATED, null, null));
+        index.changed(new ScriptChange(alice, "main", ScriptChange.Type.MODIFIED, REDIRECT, null));
+        assertEquals(index.count(RuleQuery.and(RuleQuery.active(), RuleQuery.field("redirect"))), 1);
+        index.changed(new ScriptChange(alice, "main", ScriptChange.Type.DEACTIVATED, null, null));
+        assertEquals(index.count(RuleQuery.active()), 0);
+        index.changed(new ScriptChange(alice, "main", ScriptChange.Type.REMOVED, null, null));
+        assertEquals(index.size(), 0);
+        index.close();
+    }
+
+    @Test
+    public void test_mergesWhenTooManySegments() throws Exception {
+        RuleIndex index = RuleIndex.open(dir);
+        index.setFlushSize(2);
+        index.setMaxSegments(3);
+        for (int i = 0; i < 20; i++) {
+            index.update("user" + i, "main", i % 2 == 0 ? REDIRECT : "keep;");
+        }
+        assertTrue(index.getSegmentCount() <= 3);
+        assertEquals(index.count(RuleQuery.field("redirect")), 10);
+        assertEquals(dir.listFiles().length, index.getSegmentCount() + 1);
+        index.close();
+    }
+
+    @Test
+    public void test_loadArchive() throws Exception {
+        FakeSieveServer server = new FakeSieveServer();
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 10; i++) {
+            String name = "user" + i;
+            server.putScript(name, "main", i < 3 ? REDIRECT : FILE_FROM_BOSS, true);
+            server.putScript(name, "old", REDIRECT, false);
+            accounts.add(new Account(new Credentials(name, "secret")));
+        }
+        // SieveToXML throws an IllegalArgumentException for this one
+        server.putScript("user0", "broken", "vacation text:\r\nno end\r\n", false);
+        SessionPool pool = new SessionPool(server.factory(), 4);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        StringWriter manifest = new StringWriter();
+        new BulkExporter(new SessionRouter(pool)).export(new IteratorAccountSource(accounts), archive, manifest);
+        pool.close();
+        server.stop();
+
+        RuleIndex index = RuleIndex.open(dir);
+        index.setWorkers(3);
+        assertEquals(index.load(new ByteArrayInputStream(archive.toByteArray()), new StringReader(manifest.toString())), 21);
+        assertEquals(index.getBufferedCount(), 0);
+        assertEquals(index.count(RuleQuery.term("error", "parse")), 1);
+        assertEquals(index.count(RuleQuery.field("redirect")), 13);
+        assertEquals(index.count(RuleQuery.and(RuleQuery.active(), RuleQuery.field("redirect"))), 3);
+        assertEquals(index.load(new ByteArrayInputStream(archive.toByteArray()), null), 0);
+        index.close();
+    }
+}
@@ -0,0 +1,319 @@
+package com.fluffypeople.managesieve.bulk;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class ShardCoordinatorTest {
+
+    private FakeSieveServer server;
+    private SessionPool pool;
+    private File dir;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        pool = new SessionPool(server.factory(), 6);
+        dir = File.createTempFile("shards", "");
+        dir.delete();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        pool.close();
+        server.stop();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static List<Account> accounts(int count) {
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < count; i++) {
+            accounts.add(new Account(new Credentials("user" + i, "secret")));
+        }
+        return accounts;
+    }
+
+    private ShardWorker.Job deployJob() {
+        return new ShardWorker.Job() {
+            @Override
+            public void run(ShardCoordinator.Shard shard, AccountSource accounts) throws IOException, InterruptedException {
+                BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+                deployer.setWorkers(2);
+                JobJournal journal = shard.openJournal();
+                Writer manifest = shard.openManifest();
+                try {
+                    deployer.setJournal(journal);
+                    deployer.deploy(accounts, "audit", "keep;", manifest);
+                } finally {
+                    manifest.close();
+                    journal.close();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void test_shardsAreShared() throws Exception {
+        final List<Account> accounts = accounts(200);
+        final List<Integer> finished = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < 3; w++) {
+            final ShardCoordinator coordinator = new ShardCoordinator(dir, "worker" + w, 8);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ShardWorker worker = new ShardWorker(coordinator, new ShardWorker.Accounts() {
+                            @Override
+                            public AccountSource open() {
+                                return new IteratorAccountSource(accounts);
+                            }
+                        });
+                        worker.setPollInterval(10);
+                        finished.add(worker.run(deployJob()));
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join(30000);
+        }
+
+        int total = 0;
+        for (int n : finished) {
+            total += n;
+        }
+        assertEquals(total, 8);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(server.getScripts("user" + i).get("audit"), "keep;", "user" + i);
+        }
+        StringWriter merged = new StringWriter();
+        new ShardCoordinator(dir, "merger", 8).merge(merged);
+        assertEquals(merged.toString().split("\n").length, 201);
+    }
+
+    @Test
+    public void test_deadWorkersShardIsTakenOver() throws Exception {
+        ShardCoordinator dead = new ShardCoordinator(dir, "dead", 2);
+        dead.setLeaseTime(100);
+        ShardCoordinator.Shard abandoned = dead.acquire();
+        assertNotNull(abandoned);
+
+        ShardCoordinator alive = new ShardCoordinator(dir, "alive", 2);
+        alive.setLeaseTime(100);
+        ShardWorker worker = new ShardWorker(alive, new ShardWorker.Accounts() {
+            @Override
+            public AccountSource open() {
+                return new IteratorAccountSource(accounts(50));
+            }
+        });
+        worker.setPollInterval(20);
+
+        assertEquals(worker.run(deployJob()), 2);
+        assertFalse(dead.renew(abandoned), "Lease should have been taken over");
+        assertTrue(alive.isFinished());
+        assertEquals(server.getScripts("user49").get("audit"), "keep;");
+    }
+
+    @Test
+    public void test_stolenLeaseStopsTheJob() throws Exception {
+        ShardCoordinator coordinator = new ShardCoordinator(dir, "slow", 1);
+        coordinator.setLeaseTime(150);
+        ShardWorker worker = new ShardWorker(coordinator, new ShardWorker.Accounts() {
+            @Override
+            public AccountSource open() {
+                return new IteratorAccountSource(accounts(100));
+            }
+        });
+        worker.setPollInterval(20);
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Boolean> lost = Collections.synchronizedList(new ArrayList<Boolean>());
+
+        int finished = worker.run(new ShardWorker.Job() {
+            @Override
+            public void run(ShardCoordinator.Shard shard, AccountSource accounts) throws IOException, InterruptedException {
+                boolean first = processed.isEmpty();
+                int count = 0;
+                try {
+                    while (accounts.next() != null) {
+                        count += 1;
+                        if (first && count == 5) {
+                            // Another worker takes the shard for a while
+                            Writer lease = new FileWriter(shard.getFile(".lease"));
+                            lease.write("thief\t" + (System.currentTimeMillis() + 300) + "\n");
+                            lease.close();
+                        }
+                        Thread.sleep(20);
+                    }
+                } finally {
+                    processed.add(count);
+                    lost.add(shard.isLeaseLost());
+                }
+            }
+        });
+
+        assertEquals(finished, 1);
+        assertEquals(processed.size(), 2, processed.toString());
+        assertTrue(processed.get(0) < 100, processed.toString());
+        assertTrue(lost.get(0));
+        assertEquals((int) processed.get(1), 100);
+        assertFalse(lost.get(1));
+        assertTrue(coordinator.isFinished());
+    }
+
+    @Test
+    public void test_ringSpreadsAccounts() throws Exception {
+        ShardCoordinator coordinator = new ShardCoordinator(dir, "w", 8);
+        int[] counts = new int[8];
+        for (int i = 0; i < 8000; i++) {
+            counts[coordinator.shardOf("user" + i + "@example.com")] += 1;
+        }
+        for (int count : counts) {
+            assertTrue(count > 500 && count < 1500, Arrays.toString(counts));
+        }
+    }
+
+    @Test
+    public void test_lostLeaseWaitsForWorkers() throws Exception {
+        ShardCoordinator coordinator = new ShardCoordinator(dir, "slow", 1);
+        coordinator.setLeaseTime(150);
+        ShardWorker worker = new ShardWorker(coordinator, new ShardWorker.Accounts() {
+            @Override
+            public AccountSource open() {
+                return new IteratorAccountSource(accounts(20));
+            }
+        });
+        worker.setPollInterval(20);
+        final AtomicInteger running = new AtomicInteger();
+        final List<Integer> runningAtStart = Collections.synchronizedList(new ArrayList<Integer>());
+
+        worker.run(new ShardWorker.Job() {
+            @Override
+            public void run(final ShardCoordinator.Shard shard, AccountSource accounts) throws IOException, InterruptedException {
+                runningAtStart.add(running.get());
+                final boolean first = runningAtStart.size() == 1;
+                new BulkRunner("test", 2).run(accounts, new BulkRunner.Task() {
+                    @Override
+                    public void process(Account account) throws IOException {
+                        running.incrementAndGet();
+                        try {
+                            if (first && account.getName().equals("user4")) {
+                                // Taken by a worker that dies at once, so we get it straight back
+                                Writer lease = new FileWriter(shard.getFile(".lease"));
+                                lease.write("thief\t" + System.currentTimeMillis() + "\n");
+                                lease.close();
+                            }
+                            // A read that doesn't notice interrupts
+                            long end = System.currentTimeMillis() + 300;
+                            while (System.currentTimeMillis() < end) {
+                                Thread.yield();
+                            }
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                }, new JobReport());
+            }
+        });
+
+        assertEquals(runningAtStart.size(), 2, runningAtStart.toString());
+        assertEquals((int) runningAtStart.get(1), 0);
+    }
+
+    @Test
+    public void test_shardsAreSharedBetweenProcesses() throws Exception {
+        List<Process> processes = new ArrayList<Process>();
+        for (int w = 0; w < 3; w++) {
+            ProcessBuilder pb = new ProcessBuilder(
+                    new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", System.getProperty("java.class.path"),
+                    Child.class.getName(), dir.getPath(), "worker" + w, Integer.toString(server.getPort()));
+            pb.redirectErrorStream(true);
+            processes.add(pb.start());
+        }
+        int total = 0;
+        for (Process p : processes) {
+            BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+            String last = null;
+            String line;
+            while ((line = out.readLine()) != null) {
+                last = line;
+            }
+            assertEquals(p.waitFor(), 0, last);
+            total += Integer.parseInt(last.trim());
+        }
+
+        assertEquals(total, 8);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(server.getScripts("user" + i).get("audit"), "keep;", "user" + i);
+        }
+        StringWriter merged = new StringWriter();
+        new ShardCoordinator(dir, "merger", 8).merge(merged);
+        assertEquals(merged.toString().split("\n").length, 201);
+    }
+
+    /**
+     * One worker process for {@link #test_shardsAreSharedBetweenProcesses}.
+     * Arguments are the shared directory, the worker id and the server port.
+     * Prints the number of shards it finished.
+     */
+    public static class Child {
+
+        public static void main(String[] args) throws Exception {
+            final SessionPool pool = new SessionPool(new com.fluffypeople.managesieve.SessionFactory("127.0.0.1", Integer.parseInt(args[2])), 2);
+            pool.getFactory().setUseTLS(false);
+            ShardCoordinator coordinator = new ShardCoordinator(new File(args[0]), args[1], 8);
+            ShardWorker worker = new ShardWorker(coordinator, new ShardWorker.Accounts() {
+                @Override
+                public AccountSource open() {
+                    return new IteratorAccountSource(accounts(200));
+                }
+            });
+            worker.setPollInterval(10);
+            int finished = worker.run(new ShardWorker.Job() {
+                @Override
+                public void run(ShardCoordinator.Shard shard, AccountSource accounts) throws IOException, InterruptedException {
+                    BulkDeployer deployer = new BulkDeployer(new SessionRouter(pool));
+                    deployer.setWorkers(2);
+                    JobJournal journal = shard.openJournal();
+                    Writer manifest = shard.openManifest();
+                    try {
+                        deployer.setJournal(journal);
+                        deployer.deploy(accounts, "audit", "keep;", manifest);
+                    } finally {
+                        manifest.close();
+                        journal.close();
+                    }
+                }
+            });
+            pool.close();
+            System.out.println(finished);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.fluffypeople.managesieve.script;
+
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+public class CostAnalyzerTest {
+
+    @Test
+    public void test_counts() throws Exception {
+        String script = "require [\"fileinto\", \"regex\", \"body\", \"vacation\"];\r\n"
+                + "if anyof (header :regex \"subject\" \"^(a|b)+x$\", body :text :contains [\"free\", \"money\"]) {\r\n"
+                + "    fileinto \"Junk\";\r\n"
+                + "} elsif address :is \"from\" [\"a@example.com\", \"b@example.com\", \"c@example.com\"] {\r\n"
+                + "    vacation \"Away\";\r\n"
+                + "}\r\n";
+        ScriptCost cost = new CostAnalyzer().analyze("main", script);
+        assertEquals(cost.getName(), "main");
+        assertEquals(cost.getTestCount(), 4);
+        assertEquals(cost.getActionCount(), 2);
+        assertEquals(cost.getRegexCount(), 1);
+        assertEquals(cost.getBodyTestCount(), 1);
+        assertEquals(cost.getKeyCount(), 6);
+        assertEquals(cost.getDepth(), 1);
+        assertTrue(cost.getExtensions().contains("vacation"));
+        assertTrue(cost.getCost() > new CostAnalyzer().analyze("plain", "keep;").getCost());
+    }
+
+    @Test
+    public void test_orderOfCosts() throws Exception {
+        CostAnalyzer analyzer = new CostAnalyzer();
+        double is = analyzer.analyze("a", "if header :is \"subject\" \"x\" { keep; }").getCost();
+        double contains = analyzer.analyze("b", "if header :contains \"subject\" \"x\" { keep; }").getCost();
+        double regex = analyzer.analyze("c", "require \"regex\"; if header :regex \"subject\" \"x\" { keep; }").getCost();
+        double body = analyzer.analyze("d", "require \"body\"; if body :contains \"x\" { keep; }").getCost();
+        assertTrue(is < contains);
+        assertTrue(contains < regex);
+        assertTrue(regex < body);
+        double unicode = analyzer.analyze("e", "if header :comparator \"i;unicode-casemap\" :is \"subject\" \"x\" { keep; }").getCost();
+        assertTrue(unicode > is);
+    }
+
+    @Test
+    public void test_nestedRepeatIsExpensive() {
+        assertTrue(CostAnalyzer.regexCost("(a+)+b") > 10 * CostAnalyzer.regexCost("a+b") - 1);
+        assertTrue(CostAnalyzer.regexCost("a|b|c") > CostAnalyzer.regexCost("abc"));
+    }
+}
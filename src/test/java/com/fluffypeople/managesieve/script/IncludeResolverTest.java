@@ -0,0 +1,83 @@
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.session.SessionPool;
+import org.testng.annotations.*;
+
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class IncludeResolverTest {
+
+    private static final String REQUIRE = "require \"include\";\r\n";
+    private FakeSieveServer server;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        server.stop();
+    }
+
+    @Test
+    public void test_resolvesLevelsInBatches() throws Exception {
+        server.putScript("alice", "main", REQUIRE + "include \"a\";\r\ninclude \"b\";\r\ninclude :global \"spam\";\r\n", true);
+        server.putScript("alice", "a", REQUIRE + "include \"c\";\r\n", false);
+        server.putScript("alice", "b", REQUIRE + "include :optional \"gone\";\r\ninclude \"c\";\r\n", false);
+        server.putScript("alice", "c", "keep;", false);
+        server.putScript("global", "spam", "discard;", false);
+
+        IncludeResolver resolver = new IncludeResolver(10, 0);
+        resolver.setGlobalScripts(new SessionPool(server.factory(), 1), new Credentials("global", "secret"));
+        ManageSieveClient client = server.factory().open("alice", "secret");
+
+        IncludeGraph graph = resolver.resolve(client, "main");
+        assertTrue(graph.isComplete());
+        assertEquals(graph.getNodes().size(), 6);
+        // main; a, b (and spam from global); c, gone
+        assertEquals(graph.getRoundTrips(), 4);
+        assertEquals(graph.getNode(new IncludeGraph.Key(IncludeGraph.Scope.GLOBAL, "spam")).getBody(), "discard;");
+        assertFalse(graph.getNode(new IncludeGraph.Key(IncludeGraph.Scope.PERSONAL, "gone")).exists());
+
+        resolver.resolve(client, "main");
+        assertEquals(resolver.getGlobalFetchCount(), 1);
+        assertEquals(resolver.getGlobalCacheHitCount(), 1);
+        client.logout();
+    }
+
+    @Test
+    public void test_findsCyclesAndMissing() throws Exception {
+        server.putScript("alice", "main", REQUIRE + "include \"a\";\r\ninclude \"missing\";\r\n", true);
+        server.putScript("alice", "a", REQUIRE + "include \"main\";\r\n", false);
+        ManageSieveClient client = server.factory().open("alice", "secret");
+
+        IncludeGraph graph = new IncludeResolver(10, 0).resolve(client, "main");
+        assertFalse(graph.isComplete());
+        assertEquals(graph.getMissing().size(), 1);
+        assertEquals(graph.getMissing().get(0).getName(), "missing");
+        List<List<IncludeGraph.Key>> cycles = graph.getCycles();
+        assertEquals(cycles.size(), 1);
+        assertEquals(cycles.get(0).toString(), "[:personal \"main\", :personal \"a\", :personal \"main\"]");
+        client.logout();
+    }
+
+    @Test
+    public void test_unparseableIncludeIsAnError() throws Exception {
+        server.putScript("alice", "main", REQUIRE + "include \"a\";\r\ninclude \"b\";\r\n", true);
+        server.putScript("alice", "a", "vacation text:\r\nno end\r\n", false);
+        server.putScript("alice", "b", "keep;", false);
+        ManageSieveClient client = server.factory().open("alice", "secret");
+
+        IncludeGraph graph = new IncludeResolver(10, 0).resolve(client, "main");
+        assertNotNull(graph.getNode(new IncludeGraph.Key(IncludeGraph.Scope.PERSONAL, "a")).getError());
+        assertEquals(graph.getNode(new IncludeGraph.Key(IncludeGraph.Scope.PERSONAL, "b")).getBody(), "keep;");
+        assertFalse(graph.isComplete());
+        client.logout();
+    }
+}
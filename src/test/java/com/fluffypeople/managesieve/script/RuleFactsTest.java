@@ -0,0 +1,50 @@
+package com.fluffypeople.managesieve.script;
+
+import org.testng.annotations.*;
+
+import java.util.Set;
+
+import static org.testng.Assert.*;
+
+public class RuleFactsTest {
+
+    @Test
+    public void test_extract() {
+        String script = "require [\"fileinto\", \"vacation\"];\r\n"
+                + "if address :is \"From\" \"Boss@Example.com\" {\r\n"
+                + "    fileinto \"Important\";\r\n"
+                + "} elsif exists \"X-Spam\" {\r\n"
+                + "    redirect \"someone@elsewhere.org\";\r\n"
+                + "    stop;\r\n"
+                + "}\r\n"
+                + "vacation :from \"me@example.com\" \"Gone fishing\";\r\n";
+        Set<String> facts = RuleFacts.extract(script);
+        assertTrue(facts.contains("require:fileinto"));
+        assertTrue(facts.contains("require:vacation"));
+        assertTrue(facts.contains("test:address"));
+        assertTrue(facts.contains("header:from"));
+        assertTrue(facts.contains("header:x-spam"));
+        assertTrue(facts.contains("key:boss@example.com"));
+        assertTrue(facts.contains("match:from=boss@example.com"));
+        assertTrue(facts.contains("action:fileinto"));
+        assertTrue(facts.contains("fileinto:important"));
+        assertTrue(facts.contains("redirect:someone@elsewhere.org"));
+        assertTrue(facts.contains("redirect-domain:elsewhere.org"));
+        assertTrue(facts.contains("action:stop"));
+        assertTrue(facts.contains("vacation.from:me@example.com"));
+        assertTrue(facts.contains("vacation:gone fishing"));
+        assertFalse(facts.contains("action:if"));
+        assertFalse(facts.contains("key:x-spam"));
+    }
+
+    @Test
+    public void test_parseError() {
+        Set<String> facts = RuleFacts.extract("if {");
+        assertEquals(facts.size(), 1);
+        assertTrue(facts.contains(RuleFacts.PARSE_ERROR));
+
+        facts = RuleFacts.extract("vacation text:\r\nno end\r\n");
+        assertEquals(facts.size(), 1);
+        assertTrue(facts.contains(RuleFacts.PARSE_ERROR));
+    }
+}
@@ -0,0 +1,101 @@
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+public class ScriptOptimizerTest {
+
+    @Test
+    public void test_optimize() throws Exception {
+        String script = "require [\"fileinto\", \"regex\"];\r\n"
+                + "if anyof (header :regex \"subject\" \"^\\\\[spam\\\\]\", header :is \"x-spam\" \"yes\", header :is \"x-spam\" \"YES\", exists \"x-virus\") {\r\n"
+                + "    discard;\r\n"
+                + "    stop;\r\n"
+                + "    keep;\r\n"
+                + "}\r\n"
+                + "if allof (header :contains \"list-id\" \"dev\", address :is \"from\" \"a@example.com\") {\r\n"
+                + "    fileinto \"A\";\r\n"
+                + "}\r\n"
+                + "if allof (header :contains \"list-id\" \"dev\", address :is \"from\" \"b@example.com\") {\r\n"
+                + "    fileinto \"B\";\r\n"
+                + "}\r\n";
+        ScriptOptimizer.Result result = new ScriptOptimizer().optimize(script);
+
+        assertEquals(result.getScript(), "require [\"fileinto\", \"regex\"];\r\n"
+                + "if anyof (exists \"x-virus\", header :is \"x-spam\" [\"yes\", \"YES\"], header :regex \"subject\" \"^\\\\[spam\\\\]\") {\r\n"
+                + "    discard;\r\n"
+                + "    stop;\r\n"
+                + "}\r\n"
+                + "if header :contains \"list-id\" \"dev\" {\r\n"
+                + "    if address :is \"from\" \"a@example.com\" {\r\n"
+                + "        fileinto \"A\";\r\n"
+                + "    }\r\n"
+                + "    if address :is \"from\" \"b@example.com\" {\r\n"
+                + "        fileinto \"B\";\r\n"
+                + "    }\r\n"
+                + "}\r\n");
+        assertEquals(result.getRemovedCount(), 1);
+        assertEquals(result.getMergedCount(), 1);
+        assertEquals(result.getReorderedCount(), 3);
+        assertEquals(result.getHoistedCount(), 1);
+        new SieveToXML().convert(result.getScript());
+    }
+
+    @Test
+    public void test_matchesNotMovedWithVariables() throws Exception {
+        String script = "require \"variables\";\r\n"
+                + "if anyof (header :matches \"subject\" \"*\", exists \"x\") {\r\n"
+                + "    keep;\r\n"
+                + "}\r\n";
+        ScriptOptimizer.Result result = new ScriptOptimizer().optimize(script);
+        assertFalse(result.isChanged());
+        assertEquals(result.getScript(), script);
+    }
+
+    @Test
+    public void test_roundTripKeepsStrings() throws Exception {
+        String script = "require \"vacation\";\r\n"
+                + "if header :contains \"subject\" [\"q\\\"x\", \"b\\\\s\"] {\r\n"
+                + "    # not a \\t escape\r\n"
+                + "    vacation text:\r\n"
+                + "Hello\r\n"
+                + "..dot line\r\n"
+                + "back\\slash \"q\" \\t\r\n"
+                + ".\r\n"
+                + ";\r\n"
+                + "}\r\n";
+        ScriptOptimizer.Result result = new ScriptOptimizer().optimize(script);
+        assertFalse(result.isSkipped());
+        assertEquals(new SieveToXML().convert(result.getScript()).toString(), new SieveToXML().convert(script).toString());
+    }
+
+    @Test
+    public void test_unsafeEscapesAreSkipped() throws Exception {
+        String[] scripts = {
+            "if header :contains \"subject\" \"a\\tb\" { keep; }",
+            "if header :contains \"subject\" [\"x\", \"n\\nr\"] { keep; }",
+            "if header :contains \"subject\" \"\\101\" { keep; }"
+        };
+        for (String script : scripts) {
+            ScriptOptimizer.Result result = new ScriptOptimizer().optimize(script);
+            assertTrue(result.isSkipped(), script);
+            assertFalse(result.isChanged());
+            assertEquals(result.getScript(), script);
+        }
+    }
+
+    @Test
+    public void test_multiLineQuotedStringsAreSkipped() throws Exception {
+        String[] scripts = {
+            "require \"vacation\";\r\nvacation :subject \"Away\" \"I am away\r\nuntil Monday\";\r\nkeep;\r\n",
+            "if header :contains \"subject\" \"a\nb\" { keep; }"
+        };
+        for (String script : scripts) {
+            ScriptOptimizer.Result result = new ScriptOptimizer().optimize(script);
+            assertTrue(result.isSkipped(), script);
+            assertEquals(result.getScript(), script);
+        }
+    }
+}
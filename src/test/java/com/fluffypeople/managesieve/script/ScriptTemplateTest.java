@@ -0,0 +1,90 @@
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ParseException;
+import org.testng.annotations.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public class ScriptTemplateTest {
+
+    @Test
+    public void test_render() throws Exception {
+        ScriptTemplate template = ScriptTemplate.compile(
+                "require [\"fileinto\", \"vacation\"];\r\n"
+                + "if header :contains \"from\" {{senders:list}} { fileinto {{folder}}; }\r\n"
+                + "redirect {{forward:address}};\r\n"
+                + "vacation :days {{days:number}} {{message:text}};\r\n");
+        assertEquals(template.getPlaceholders(), Arrays.asList("senders", "folder", "forward", "days", "message"));
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("senders", Arrays.asList("boss@example.com", "ceo@example.com"));
+        values.put("folder", "INBOX.\"Quoted\" \\ Café");
+        values.put("forward", "me@example.org");
+        values.put("days", 7);
+        values.put("message", "Away\n.until Monday\n");
+        RenderedScript rendered = template.render(values);
+
+        String expected = "require [\"fileinto\", \"vacation\"];\r\n"
+                + "if header :contains \"from\" [\"boss@example.com\", \"ceo@example.com\"] { fileinto \"INBOX.\\\"Quoted\\\" \\\\ Café\"; }\r\n"
+                + "redirect \"me@example.org\";\r\n"
+                + "vacation :days 7 text:\r\nAway\r\n..until Monday\r\n.\r\n;\r\n";
+        assertEquals(rendered.toString(), expected);
+        assertEquals(rendered.getLength(), expected.getBytes("UTF-8").length);
+        assertEquals(rendered.getLiteralHeader(), "{" + rendered.getLength() + "+}");
+    }
+
+    @Test
+    public void test_surrogatePairs() throws Exception {
+        ScriptTemplate template = ScriptTemplate.compile("fileinto {{f}};");
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("f", "📧 mail");
+        assertEquals(template.render(values).getBytes(), "fileinto \"📧 mail\";".getBytes("UTF-8"));
+    }
+
+    @Test
+    public void test_lineBreaksInQuotedStrings() throws Exception {
+        ScriptTemplate template = ScriptTemplate.compile("vacation :subject {{s}} {{m:list}};");
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("s", "a\nb\rc\r\nd");
+        values.put("m", Arrays.asList("x\ny"));
+        RenderedScript rendered = template.render(values);
+        String expected = "vacation :subject \"a\r\nb\r\nc\r\nd\" [\"x\r\ny\"];";
+        assertEquals(rendered.toString(), expected);
+        assertEquals(rendered.getLength(), expected.getBytes("UTF-8").length);
+    }
+
+    @Test(expectedExceptions = ParseException.class)
+    public void test_unknownType() throws Exception {
+        ScriptTemplate.compile("fileinto {{f:folder}};");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_badAddress() throws Exception {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("to", "not an address");
+        ScriptTemplate.compile("redirect {{to:address}};").render(values);
+    }
+
+    @Test
+    public void test_putscriptBytes() throws Exception {
+        FakeSieveServer server = new FakeSieveServer();
+        try {
+            ManageSieveClient client = server.factory().open("alice", "secret");
+            Map<String, Object> values = new HashMap<String, Object>();
+            values.put("folder", "Café");
+            RenderedScript rendered = ScriptTemplate.compile("require \"fileinto\";\r\nfileinto {{folder}};\r\n").render(values);
+            assertTrue(client.putscript("main", rendered.getBytes()).isOk());
+            assertTrue(client.noop(null).isOk());
+            assertEquals(server.getScripts("alice").get("main"), rendered.toString());
+            client.logout();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ServerCapabilities;
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+public class ScriptValidatorTest {
+
+    private static final String SCRIPT = "require [\"fileinto\", \"vacation\"];\n"
+            + "# Comment\n"
+            + "if address :is \"to\" \"managesieve@example.com\" {\n"
+            + "    fileinto \"managesieve\";\n"
+            + "    stop;\n"
+            + "}\n";
+
+    private ServerCapabilities cap;
+
+    @BeforeMethod
+    public void setup() {
+        cap = new ServerCapabilities();
+        cap.setSieveExtensions("fileinto vacation envelope");
+    }
+
+    @Test
+    public void test_validScript() {
+        ScriptValidator.Result result = new ScriptValidator(10).validateLocally(SCRIPT, cap);
+        assertTrue(result.isValid(), "Should be valid: " + result);
+        assertFalse(result.isFromServer());
+    }
+
+    @Test
+    public void test_syntaxError() {
+        ScriptValidator.Result result = new ScriptValidator(10).validateLocally("if true { keep; ", cap);
+        assertFalse(result.isValid());
+        assertNotNull(result.getMessage());
+    }
+
+    @Test
+    public void test_trailingGarbage() {
+        ScriptValidator.Result result = new ScriptValidator(10).validateLocally("keep; }", cap);
+        assertFalse(result.isValid());
+    }
+
+    @Test
+    public void test_missingExtension() {
+        cap.setSieveExtensions("fileinto");
+        ScriptValidator.Result result = new ScriptValidator(10).validateLocally(SCRIPT, cap);
+        assertFalse(result.isValid());
+        assertTrue(result.getMessage().contains("vacation"), result.getMessage());
+    }
+
+    @Test
+    public void test_serverAnswerIsCached() throws Exception {
+        FakeSieveServer server = new FakeSieveServer();
+        ManageSieveClient client = server.factory().open("alice", "secret");
+        try {
+            ScriptValidator validator = new ScriptValidator(10);
+            ScriptValidator.Result first = validator.check(client, SCRIPT);
+            assertTrue(first.isValid(), first.toString());
+            assertTrue(first.isFromServer());
+            assertEquals(validator.getServerChecks(), 1);
+
+            int commands = server.getCommandCount();
+            assertSame(validator.check(client, SCRIPT), first);
+            assertEquals(validator.getCacheHits(), 1);
+            assertEquals(validator.getServerChecks(), 1);
+            assertEquals(server.getCommandCount(), commands);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void test_serverCanRejectWhatPassesLocally() throws Exception {
+        FakeSieveServer server = new FakeSieveServer();
+        ManageSieveClient client = server.factory().open("alice", "secret");
+        try {
+            ScriptValidator validator = new ScriptValidator(10);
+            String script = "keep; # syntax error the parser can't see\n";
+            assertTrue(validator.validateLocally(script, client.getCapabilities()).isValid());
+
+            ScriptValidator.Result result = validator.check(client, script);
+            assertFalse(result.isValid());
+            assertTrue(result.isFromServer());
+            assertEquals(result.getMessage(), "Syntax error");
+            assertEquals(validator.getServerChecks(), 1);
+
+            // A local rejection never reaches the server
+            int commands = server.getCommandCount();
+            assertFalse(validator.check(client, "if true { keep; ").isValid());
+            assertEquals(validator.getServerChecks(), 1);
+            assertEquals(server.getCommandCount(), commands);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void test_cacheKeyIncludesExtensions() throws Exception {
+        FakeSieveServer server = new FakeSieveServer();
+        ManageSieveClient client = server.factory().open("alice", "secret");
+        try {
+            ScriptValidator validator = new ScriptValidator(10);
+            assertTrue(validator.check(client, SCRIPT).isValid());
+
+            client.getCapabilities().setSieveExtensions("fileinto");
+            ScriptValidator.Result result = validator.check(client, SCRIPT);
+            assertFalse(result.isValid());
+            assertTrue(result.getMessage().contains("vacation"), result.getMessage());
+            assertEquals(validator.getCacheHits(), 0);
+
+            // Same extensions in a different order share the cache entry
+            client.getCapabilities().setSieveExtensions("include vacation fileinto");
+            assertTrue(validator.check(client, SCRIPT).isValid());
+            assertEquals(validator.getCacheHits(), 1);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void test_unreadableScriptsGoToTheServer() throws Exception {
+        ScriptValidator validator = new ScriptValidator(10);
+        String multiLine = "require \"vacation\";\r\nvacation :subject \"Away\" \"I am away\r\nuntil Monday\";\r\nkeep;\r\n";
+        assertTrue(validator.validateLocally(multiLine, null).isValid());
+
+        ScriptValidator.Result broken = validator.validateLocally("keep;\r\nvacation text:\r\nno end\r\n", null);
+        assertFalse(broken.isValid());
+        assertNull(broken.getResponse());
+
+        FakeSieveServer server = new FakeSieveServer();
+        ManageSieveClient client = server.factory().open("alice", "secret");
+        try {
+            ScriptValidator.Result result = validator.check(client, multiLine);
+            assertTrue(result.isValid(), result.toString());
+            assertTrue(result.isFromServer());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.fluffypeople.managesieve.script;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import org.testng.annotations.*;
+
+import static org.testng.Assert.*;
+
+public class SieveMinifierTest {
+
+    private static final String SCRIPT = "# Generated script\r\n"
+            + "# Do not edit\r\n"
+            + "require [ \"fileinto\" , \"vacation\" ];\r\n"
+            + "\r\n"
+            + "/* Lists go\r\n   to their own folder */\r\n"
+            + "if header :contains \"list-id\" \"dev # not a comment\" {\r\n"
+            + "    fileinto   \"Lists/Dev\";   # trailing\r\n"
+            + "    stop ;\r\n"
+            + "}\r\n"
+            + "vacation :days 7 text: # the message\r\n"
+            + "Away  now.\r\n"
+            + "..   # kept\r\n"
+            + ".\r\n"
+            + ";\r\n";
+
+    @Test
+    public void test_minify() throws Exception {
+        SieveMinifier minifier = new SieveMinifier();
+        String minified = minifier.minify(SCRIPT);
+        assertEquals(minified, "require[\"fileinto\",\"vacation\"];"
+                + "if header :contains \"list-id\" \"dev # not a comment\"{fileinto \"Lists/Dev\";stop;}"
+                + "vacation :days 7 text:\r\nAway  now.\r\n..   # kept\r\n.\r\n;");
+        assertEquals(new SieveToXML().convert(minified).toString(), new SieveToXML().convert(SCRIPT).toString());
+        assertEquals(minifier.getBytesSaved(), SCRIPT.length() - minified.length());
+        assertEquals(minifier.getScriptCount(), 1);
+    }
+
+    @Test(expectedExceptions = ParseException.class)
+    public void test_unclosedString() throws Exception {
+        new SieveMinifier().minify("fileinto \"INBOX;");
+    }
+}
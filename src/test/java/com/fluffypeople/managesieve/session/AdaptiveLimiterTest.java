@@ -0,0 +1,67 @@
+package com.fluffypeople.managesieve.session;
+
+import org.testng.annotations.*;
+
+import java.io.InterruptedIOException;
+
+import static org.testng.Assert.*;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void test_growsWhenHealthyAndShrinksOnOverload() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 1, 10);
+        for (int i = 0; i < 20; i++) {
+            AdaptiveLimiter.Permit a = limiter.acquire(0);
+            AdaptiveLimiter.Permit b = limiter.acquire(0);
+            a.success();
+            b.success();
+        }
+        int grown = limiter.getLimit();
+        assertTrue(grown > 2, "Limit should have grown, is " + grown);
+
+        limiter.acquire(0).overload();
+        assertTrue(limiter.getLimit() < grown);
+        assertEquals(limiter.getOverloadCount(), 1);
+
+        // A second overload straight away is the same event
+        int cut = limiter.getLimit();
+        limiter.acquire(0).overload();
+        assertEquals(limiter.getLimit(), cut);
+        assertEquals(limiter.getInFlight(), 0);
+    }
+
+    @Test
+    public void test_givenLatencyIsJudged() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 1, 10);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(0).success(10);
+        }
+        // Held a long time, but nothing was timed
+        AdaptiveLimiter.Permit idle = limiter.acquire(0);
+        Thread.sleep(150);
+        idle.success(-1);
+        limiter.acquire(0).success(15);
+        assertEquals(limiter.getDecreaseCount(), 0);
+
+        limiter.acquire(0).success(500);
+        assertEquals(limiter.getDecreaseCount(), 1);
+        assertEquals(limiter.getInFlight(), 0);
+    }
+
+    @Test(expectedExceptions = InterruptedIOException.class)
+    public void test_acquireTimesOut() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 1, 1, 1);
+        limiter.acquire(0);
+        limiter.acquire(50);
+    }
+
+    @Test
+    public void test_backoffStaysInRange() {
+        Backoff backoff = new Backoff(100, 1000);
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long delay = backoff.delay(attempt);
+            assertTrue(delay >= 0 && delay <= Math.min(1000, 100L << Math.min(attempt, 20)), attempt + ": " + delay);
+        }
+    }
+}
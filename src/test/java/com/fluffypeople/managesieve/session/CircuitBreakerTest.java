@@ -0,0 +1,156 @@
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import org.testng.annotations.*;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void test_opensProbesAndCloses() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.setWindowSize(10);
+        breaker.setMinimumCalls(4);
+        breaker.setOpenDuration(50);
+        breaker.setProbes(2);
+        final List<String> changes = new ArrayList<String>();
+        breaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(CircuitBreaker b, CircuitBreaker.State from, CircuitBreaker.State to) {
+                changes.add(from + "->" + to);
+            }
+        });
+
+        breaker.acquire();
+        breaker.onSuccess();
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+        try {
+            breaker.acquire();
+            fail("Should be refused while open");
+        } catch (CircuitOpenException ex) {
+            // expected
+        }
+        assertEquals(breaker.getRejectedCount(), 1);
+
+        Thread.sleep(80);
+        assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        breaker.acquire();
+        breaker.acquire();
+        try {
+            breaker.acquire();
+            fail("Only two probes allowed");
+        } catch (CircuitOpenException ex) {
+            // expected
+        }
+        breaker.onSuccess();
+        breaker.onSuccess();
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        assertEquals(breaker.getFailureRate(), 0.0);
+        assertEquals(changes.toString(), "[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]");
+    }
+
+    @Test
+    public void test_failedProbeReopens() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.setMinimumCalls(1);
+        breaker.setOpenDuration(20);
+        breaker.acquire();
+        breaker.onFailure();
+        Thread.sleep(40);
+        breaker.acquire();
+        breaker.onFailure();
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void test_runtimeExceptionFreesProbeWithoutClosing() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.setMinimumCalls(1);
+        breaker.setOpenDuration(20);
+        breaker.setProbes(1);
+        breaker.acquire();
+        breaker.onFailure();
+        Thread.sleep(40);
+
+        SessionSource broken = new SessionSource() {
+            @Override
+            public ManageSieveClient borrow(Credentials credentials) {
+                throw new IllegalStateException("bug");
+            }
+
+            @Override
+            public void release(ManageSieveClient client) {
+            }
+
+            @Override
+            public void invalidate(ManageSieveClient client) {
+            }
+
+            @Override
+            public void discard(ManageSieveClient client) {
+            }
+
+            @Override
+            public void overloaded(ManageSieveClient client) {
+            }
+        };
+        CircuitBreakerSource source = new CircuitBreakerSource(broken, breaker);
+        try {
+            source.borrow(new Credentials("alice", "secret"));
+            fail("Expected the delegate's exception");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        // Not counted as a passed probe, but the probe can be sent again
+        assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        breaker.acquire();
+        breaker.onSuccess();
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void test_isFailure() {
+        assertTrue(CircuitBreaker.isFailure(new SocketTimeoutException()));
+        assertTrue(CircuitBreaker.isFailure(new IOException()));
+        assertFalse(CircuitBreaker.isFailure(new CircuitOpenException("open")));
+        assertFalse(CircuitBreaker.isFailure(new SessionWaitException("full")));
+        assertFalse(CircuitBreaker.isFailure(new IllegalStateException()));
+    }
+
+    @Test
+    public void test_fullPoolDoesNotOpenBreaker() throws Exception {
+        FakeSieveServer server = new FakeSieveServer();
+        SessionPool pool = new SessionPool(server.factory(), 1);
+        pool.setBorrowTimeout(20);
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.setMinimumCalls(1);
+        CircuitBreakerSource source = new CircuitBreakerSource(pool, breaker);
+        Credentials alice = new Credentials("alice", "secret");
+        try {
+            ManageSieveClient held = source.borrow(alice);
+            try {
+                source.borrow(alice);
+                fail("Expected the wait to time out");
+            } catch (SessionWaitException ex) {
+                // expected
+            }
+            assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+            source.release(held);
+        } finally {
+            pool.close();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.fluffypeople.managesieve.session;
+
+import org.testng.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.*;
+
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+    private long started;
+
+    @BeforeMethod
+    public void setup() {
+        started = System.nanoTime();
+        timer = new HashedWheelTimer("test-timer", 50, 4);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        timer.stop();
+    }
+
+    private long elapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    @Test
+    public void test_deadlineIsRoundedUpToTheTick() throws Exception {
+        final long[] firedAt = new long[1];
+        final CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                firedAt[0] = elapsed();
+                fired.countDown();
+            }
+        }, 60);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        // Deadline falls in the second tick, which is only run once it ends
+        assertTrue(firedAt[0] >= 100, "Fired at " + firedAt[0]);
+    }
+
+    @Test
+    public void test_cancelledTimeoutDoesNotRun() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        final CountDownLatch later = new CountDownLatch(1);
+        HashedWheelTimer.Timeout t = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }, 50);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                later.countDown();
+            }
+        }, 150);
+        t.cancel();
+
+        assertTrue(t.isCancelled());
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void test_timeoutsGoRoundTheWheel() throws Exception {
+        // The wheel covers 200ms, so 450ms needs two extra rounds
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final long[] firedAt = new long[1];
+        final CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                firedAt[0] = elapsed();
+                order.add("far");
+                fired.countDown();
+            }
+        }, 450);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.add("near");
+            }
+        }, 60);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(firedAt[0] >= 450, "Fired at " + firedAt[0]);
+        assertEquals(order, Arrays.asList("near", "far"));
+    }
+
+    @Test
+    public void test_failingTaskDoesNotStopTheTimer() throws Exception {
+        final CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        }, 10);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 60);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_stopDropsPendingTimeouts() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }, 60);
+        timer.stop();
+
+        Thread.sleep(250);
+        assertFalse(ran.get());
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 10);
+            fail("Expected the stopped timer to refuse new timeouts");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+}
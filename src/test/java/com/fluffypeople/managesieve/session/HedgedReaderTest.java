@@ -0,0 +1,180 @@
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.SieveScript;
+import org.testng.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.testng.Assert.*;
+
+public class HedgedReaderTest {
+
+    private FakeSieveServer slow;
+    private FakeSieveServer fast;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        slow = new FakeSieveServer();
+        fast = new FakeSieveServer();
+        slow.putScript("alice", "main", "keep;", true);
+        fast.putScript("alice", "main", "keep;", true);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        slow.stop();
+        fast.stop();
+    }
+
+    @Test
+    public void test_slowReplicaIsHedged() throws Exception {
+        slow.setDelay(2000);
+        HedgedReader reader = new HedgedReader(new SessionPool(slow.factory(), 2), new SessionPool(fast.factory(), 2));
+        reader.setDelayBounds(10, 50);
+        reader.setBudget(1, 5);
+
+        long start = System.currentTimeMillis();
+        SieveScript script = new SieveScript("main", null, false);
+        ManageSieveResponse resp = reader.getScript(new Credentials("alice", "secret"), script);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(resp.isOk(), resp.toString());
+        assertEquals(script.getBody(), "keep;");
+        assertTrue(elapsed < 1500, "Took " + elapsed + "ms");
+        assertEquals(reader.getHedgeCount(), 1);
+        assertEquals(reader.getHedgeWinCount(), 1);
+        reader.close();
+    }
+
+    @Test
+    public void test_hedgeLoserIsNotAFailure() throws Exception {
+        SessionPool slowPool = new SessionPool(slow.factory(), 2);
+        slowPool.release(slowPool.borrow(new Credentials("alice", "secret")));
+        slow.setDelay(2000);
+        CircuitBreaker breaker = new CircuitBreaker("slow");
+        breaker.setMinimumCalls(1);
+        HedgedReader reader = new HedgedReader(new CircuitBreakerSource(slowPool, breaker), new SessionPool(fast.factory(), 2));
+        reader.setDelayBounds(10, 50);
+        reader.setBudget(1, 5);
+
+        SieveScript script = new SieveScript("main", null, false);
+        assertTrue(reader.getScript(new Credentials("alice", "secret"), script).isOk());
+        assertEquals(reader.getHedgeWinCount(), 1);
+
+        // Wait for the aborted attempt to give its session back
+        long deadline = System.currentTimeMillis() + 2000;
+        while (slowPool.getSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(slowPool.getSessionCount(), 0);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        assertEquals(breaker.getFailureRate(), 0.0);
+        reader.close();
+    }
+
+    @Test
+    public void test_budgetLimitsHedges() throws Exception {
+        HedgedReader reader = new HedgedReader(new SessionPool(slow.factory(), 2), new SessionPool(fast.factory(), 2));
+        reader.setDelayBounds(0, 0);
+        reader.setBudget(0, 1);
+
+        for (int i = 0; i < 4; i++) {
+            List<SieveScript> scripts = new ArrayList<SieveScript>();
+            assertTrue(reader.listscripts(new Credentials("alice", "secret"), scripts).isOk());
+            assertEquals(scripts.size(), 1);
+        }
+        assertEquals(reader.getReadCount(), 4);
+        assertEquals(reader.getHedgeCount(), 0);
+        reader.close();
+    }
+
+    @Test
+    public void test_loserStillBorrowingGivesSessionBack() throws Exception {
+        final SessionPool slowPool = new SessionPool(slow.factory(), 2);
+        slowPool.release(slowPool.borrow(new Credentials("alice", "secret")));
+        final CountDownLatch gate = new CountDownLatch(1);
+        SessionSource gated = new SessionSource() {
+            @Override
+            public ManageSieveClient borrow(Credentials credentials) throws IOException, ParseException {
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                return slowPool.borrow(credentials);
+            }
+
+            @Override
+            public void release(ManageSieveClient client) {
+                slowPool.release(client);
+            }
+
+            @Override
+            public void invalidate(ManageSieveClient client) {
+                slowPool.invalidate(client);
+            }
+
+            @Override
+            public void discard(ManageSieveClient client) {
+                slowPool.discard(client);
+            }
+
+            @Override
+            public void overloaded(ManageSieveClient client) {
+                slowPool.overloaded(client);
+            }
+        };
+        HedgedReader reader = new HedgedReader(gated, new SessionPool(fast.factory(), 2));
+        reader.setDelayBounds(10, 50);
+        reader.setBudget(1, 5);
+        int commands = slow.getCommandCount();
+
+        SieveScript script = new SieveScript("main", null, false);
+        assertTrue(reader.getScript(new Credentials("alice", "secret"), script).isOk());
+        assertEquals(reader.getHedgeWinCount(), 1);
+        gate.countDown();
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (slowPool.getIdleCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(slowPool.getIdleCount(), 1);
+        assertEquals(slowPool.getSessionCount(), 1);
+        assertEquals(slow.getCommandCount(), commands);
+        reader.close();
+    }
+
+    @Test
+    public void test_losersCountTowardsTheDelay() throws Exception {
+        // Enough warm sessions that no loser waits for a login
+        SessionPool slowPool = new SessionPool(slow.factory(), 12);
+        List<ManageSieveClient> warm = new ArrayList<ManageSieveClient>();
+        for (int i = 0; i < 12; i++) {
+            warm.add(slowPool.borrow(new Credentials("alice", "secret")));
+        }
+        for (ManageSieveClient client : warm) {
+            slowPool.release(client);
+        }
+        slow.setDelay(300);
+        HedgedReader reader = new HedgedReader(slowPool, new SessionPool(fast.factory(), 4));
+        reader.setDelayBounds(10, 100);
+        reader.setBudget(1, 5);
+
+        for (int i = 0; i < 20; i++) {
+            List<SieveScript> scripts = new ArrayList<SieveScript>();
+            assertTrue(reader.listscripts(new Credentials("alice", "secret"), scripts).isOk());
+        }
+        // Every winner was quick, only the losers were slow
+        assertEquals(reader.getHedgeWinCount(), 10);
+        assertTrue(reader.getHedgeDelay() >= 50, "Delay " + reader.getHedgeDelay());
+        reader.close();
+    }
+}
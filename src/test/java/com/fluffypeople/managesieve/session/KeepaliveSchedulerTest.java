@@ -0,0 +1,90 @@
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.SieveScript;
+import org.testng.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class KeepaliveSchedulerTest {
+
+    private FakeSieveServer server;
+    private KeepaliveScheduler scheduler;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        scheduler = new KeepaliveScheduler(100);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        scheduler.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void test_idleSessionGetsNoop() throws Exception {
+        ManageSieveClient client = server.factory().open("alice", "secret");
+        int commands = server.getCommandCount();
+        scheduler.register(client);
+        scheduler.register(client);
+        assertEquals(scheduler.size(), 1);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (scheduler.getNoopsSent() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(scheduler.getNoopsSent() > 0, "No NOOP sent");
+        assertTrue(server.getCommandCount() > commands);
+        assertTrue(client.isConnected());
+        assertEquals(scheduler.size(), 1);
+
+        assertTrue(scheduler.unregister(client));
+        assertFalse(scheduler.unregister(client));
+        client.close();
+    }
+
+    @Test
+    public void test_busySessionIsLeftAlone() throws Exception {
+        ManageSieveClient client = server.factory().open("alice", "secret");
+        scheduler.register(client);
+        long end = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < end) {
+            assertTrue(client.listscripts(new ArrayList<SieveScript>()).isOk());
+            Thread.sleep(20);
+        }
+        assertEquals(scheduler.getNoopsSent(), 0);
+        client.close();
+    }
+
+    @Test
+    public void test_deadSessionIsRetired() throws Exception {
+        final ManageSieveClient[] retired = new ManageSieveClient[1];
+        final Exception[] causes = new Exception[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.setListener(new KeepaliveScheduler.Listener() {
+            @Override
+            public void retired(ManageSieveClient client, ManageSieveResponse response, Exception cause) {
+                retired[0] = client;
+                causes[0] = cause;
+                done.countDown();
+            }
+        });
+        ManageSieveClient client = server.factory().open("alice", "secret");
+        scheduler.register(client);
+        server.dropConnections();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS), "Session was not retired");
+        assertSame(retired[0], client);
+        assertNotNull(causes[0]);
+        assertEquals(scheduler.size(), 0);
+        assertFalse(client.isConnected());
+    }
+}
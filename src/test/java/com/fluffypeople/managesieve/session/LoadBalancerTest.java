@@ -0,0 +1,136 @@
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import org.testng.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class LoadBalancerTest {
+
+    private FakeSieveServer one;
+    private FakeSieveServer two;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        one = new FakeSieveServer();
+        two = new FakeSieveServer();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        one.stop();
+        two.stop();
+    }
+
+    @Test
+    public void test_spreadsOutstandingSessionsByWeight() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Strategy.LEAST_OUTSTANDING);
+        balancer.addBackend("one", new SessionPool(one.factory(), 10), 1);
+        balancer.addBackend("two", new SessionPool(two.factory(), 10), 2);
+
+        List<ManageSieveClient> clients = new ArrayList<ManageSieveClient>();
+        for (int i = 0; i < 6; i++) {
+            clients.add(balancer.borrow(new Credentials("user" + i, "secret")));
+        }
+        List<LoadBalancer.Backend> backends = balancer.getBackends();
+        assertEquals(backends.get(0).getOutstanding(), 2);
+        assertEquals(backends.get(1).getOutstanding(), 4);
+
+        for (ManageSieveClient client : clients) {
+            balancer.release(client);
+        }
+        assertEquals(backends.get(0).getOutstanding(), 0);
+        assertEquals(backends.get(1).getOutstanding(), 0);
+    }
+
+    @Test
+    public void test_skipsDownAndFailingBackends() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Strategy.POWER_OF_TWO);
+        balancer.setFailureLimit(1);
+        balancer.addBackend("one", new SessionPool(one.factory(), 10), 1);
+        // Heavier, so it's always tried first once it's stopped
+        balancer.addBackend("two", new SessionPool(two.factory(), 10), 10);
+
+        balancer.setDown("one", true);
+        for (int i = 0; i < 4; i++) {
+            balancer.release(balancer.borrow(new Credentials("alice", "secret")));
+        }
+        assertEquals(balancer.getBackends().get(0).getBorrowedCount(), 0);
+        assertEquals(balancer.getBackends().get(1).getBorrowedCount(), 4);
+
+        balancer.setDown("one", false);
+        two.stop();
+        for (int i = 0; i < 4; i++) {
+            ManageSieveClient client = balancer.borrow(new Credentials("bob" + i, "secret"));
+            assertTrue(client.noop(null).isOk());
+            balancer.release(client);
+        }
+        assertEquals(balancer.getBackends().get(0).getBorrowedCount(), 4);
+        assertFalse(balancer.getBackends().get(1).isHealthy());
+    }
+
+    @Test
+    public void test_newBackendStartsAtMeanLatency() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Strategy.LEAST_OUTSTANDING);
+        balancer.addBackend("one", new SessionPool(one.factory(), 10), 1);
+        one.setDelay(50);
+        ManageSieveClient warm = balancer.borrow(new Credentials("alice", "secret"));
+        assertTrue(warm.noop(null).isOk());
+        balancer.release(warm);
+        one.setDelay(0);
+
+        balancer.addBackend("two", new SessionPool(two.factory(), 10), 1);
+        List<ManageSieveClient> clients = new ArrayList<ManageSieveClient>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(balancer.borrow(new Credentials("user" + i, "secret")));
+        }
+        List<LoadBalancer.Backend> backends = balancer.getBackends();
+        assertEquals(backends.get(0).getOutstanding(), 2);
+        assertEquals(backends.get(1).getOutstanding(), 2);
+        for (ManageSieveClient client : clients) {
+            balancer.release(client);
+        }
+    }
+
+    @Test
+    public void test_noHealthyBackendKeepsTheLastFailure() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Strategy.LEAST_OUTSTANDING);
+        balancer.addBackend("one", new SessionPool(one.factory(), 10), 1);
+        balancer.addBackend("two", new SessionPool(two.factory(), 10), 1);
+        one.stop();
+        balancer.setDown("two", true);
+        try {
+            balancer.borrow(new Credentials("alice", "secret"));
+            fail("Expected no healthy backends");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("No healthy backends"), ex.getMessage());
+            assertTrue(ex.getCause() instanceof IOException, String.valueOf(ex.getCause()));
+        }
+    }
+
+    @Test
+    public void test_holdTimeIsNotLatency() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Strategy.LEAST_OUTSTANDING);
+        balancer.addBackend("one", new SessionPool(one.factory(), 10), 1);
+        LoadBalancer.Backend backend = balancer.getBackends().get(0);
+
+        ManageSieveClient client = balancer.borrow(new Credentials("alice", "secret"));
+        Thread.sleep(100);
+        balancer.release(client);
+        assertEquals(backend.getLatency(), 0.0);
+
+        client = balancer.borrow(new Credentials("alice", "secret"));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(client.noop(null).isOk());
+        }
+        Thread.sleep(100);
+        balancer.release(client);
+        assertTrue(backend.getLatency() < 50, backend.toString());
+    }
+}
@@ -0,0 +1,61 @@
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.SieveScript;
+import org.testng.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class ResilientSessionTest {
+
+    private FakeSieveServer server;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+        server.putScript("alice", "main", "keep;", true);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        server.stop();
+    }
+
+    @Test
+    public void test_readsAreReplayedAfterConnectionLoss() throws Exception {
+        ResilientSession session = new ResilientSession(server.factory(), new Credentials("alice", "secret"));
+        session.setRetry(3, new Backoff(1, 10));
+        assertTrue(session.noop(null).isOk());
+
+        server.dropConnections();
+        List<SieveScript> scripts = new ArrayList<SieveScript>();
+        assertTrue(session.listscripts(scripts).isOk());
+        assertEquals(scripts.size(), 1);
+        assertEquals(session.getReconnectCount(), 1);
+        assertEquals(session.getReplayCount(), 1);
+        session.close();
+    }
+
+    @Test
+    public void test_deleteIsNotReplayed() throws Exception {
+        ResilientSession session = new ResilientSession(server.factory(), new Credentials("alice", "secret"));
+        session.setRetry(3, new Backoff(1, 10));
+        assertTrue(session.putscript("other", "discard;").isOk());
+
+        server.dropConnections();
+        try {
+            session.deletescript("other");
+            fail("DELETESCRIPT should not be sent again");
+        } catch (SessionLostException ex) {
+            // expected, the server may or may not have deleted it
+        }
+        assertTrue(session.noop(null).isOk());
+        assertEquals(session.getReconnectCount(), 1);
+        assertEquals(session.getReplayCount(), 0);
+        session.close();
+    }
+}
@@ -0,0 +1,146 @@
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.FakeSieveServer;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.SieveScript;
+import org.testng.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class SessionPoolTest {
+
+    private FakeSieveServer server;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        server = new FakeSieveServer();
+    }
+
+    @AfterMethod
+    public void teardown() {
+        server.stop();
+    }
+
+    @Test
+    public void test_sessionsAreReusedPerAccount() throws Exception {
+        server.putScript("alice", "a", "keep;", true);
+        SessionPool pool = new SessionPool(server.factory(), 2);
+
+        ManageSieveClient client = pool.borrow(new Credentials("alice", "secret"));
+        List<SieveScript> scripts = new ArrayList<SieveScript>();
+        assertTrue(client.listscripts(scripts).isOk());
+        assertEquals(scripts.size(), 1);
+        pool.release(client);
+
+        assertSame(pool.borrow(new Credentials("alice", "secret")), client);
+        assertEquals(pool.getCreatedCount(), 1);
+        assertEquals(pool.getReusedCount(), 1);
+        pool.release(client);
+        pool.close();
+    }
+
+    @Test
+    public void test_fullPoolReauthenticatesIdleSession() throws Exception {
+        SessionPool pool = new SessionPool(server.factory(), 1);
+
+        ManageSieveClient alice = pool.borrow(new Credentials("alice", "secret"));
+        pool.release(alice);
+        ManageSieveClient bob = pool.borrow(new Credentials("bob", "secret"));
+
+        assertSame(bob, alice, "Should have switched the idle session to bob");
+        assertEquals(pool.getReauthenticatedCount(), 1);
+        assertTrue(bob.putscript("b", "keep;").isOk());
+        assertTrue(server.getScripts("bob").containsKey("b"));
+        pool.release(bob);
+        pool.close();
+    }
+
+    @Test
+    public void test_idleSessionNeedsSameCredentials() throws Exception {
+        SessionPool pool = new SessionPool(server.factory(), 2);
+        ManageSieveClient client = pool.borrow(new Credentials("alice", "secret"));
+        pool.release(client);
+
+        try {
+            pool.borrow(new Credentials("alice", "wrong password"));
+            fail("Wrong password should not get alice's session");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals(pool.getIdleCount(), 1);
+        assertEquals(pool.getReusedCount(), 0);
+        assertSame(pool.borrow(new Credentials("alice", "secret")), client);
+        pool.close();
+    }
+
+    @Test
+    public void test_deadIdleSessionIsDropped() throws Exception {
+        SessionPool pool = new SessionPool(server.factory(), 1);
+        ManageSieveClient client = pool.borrow(new Credentials("alice", "secret"));
+        pool.release(client);
+        client.abort();
+
+        ManageSieveClient fresh = pool.borrow(new Credentials("alice", "secret"));
+        assertNotSame(fresh, client);
+        assertFalse(client.isConnected());
+        assertEquals(pool.getSessionCount(), 1);
+        assertEquals(pool.getCreatedCount(), 2);
+        pool.release(fresh);
+        pool.close();
+    }
+
+    @Test
+    public void test_warmUp() throws Exception {
+        SessionPool pool = new SessionPool(server.factory(), 5);
+        pool.setDefaultCredentials(new Credentials("service", "secret"));
+
+        PoolWarmer warmer = new PoolWarmer();
+        warmer.setRampInterval(0);
+        warmer.addPool("fake", pool, 4);
+        PoolWarmer.Report report = warmer.warm(10000);
+
+        assertTrue(report.isSuccess(), report.toString());
+        assertEquals(pool.getIdleCount(), 4);
+        assertEquals(server.getConnectionCount(), 4);
+
+        pool.release(pool.borrow());
+        assertEquals(server.getConnectionCount(), 4, "Borrow should use a warm session");
+        pool.close();
+    }
+
+    @Test
+    public void test_limiterJudgesRoundTripsNotHoldTime() throws Exception {
+        SessionPool pool = new SessionPool(server.factory(), 2);
+        AdaptiveLimiter limiter = new AdaptiveLimiter("fake", 2, 1, 10);
+        pool.setLimiter(limiter);
+        Credentials alice = new Credentials("alice", "secret");
+        for (int i = 0; i < 5; i++) {
+            ManageSieveClient client = pool.borrow(alice);
+            assertTrue(client.listscripts(new ArrayList<SieveScript>()).isOk());
+            pool.release(client);
+        }
+
+        // Slow caller, quick server
+        ManageSieveClient client = pool.borrow(alice);
+        long responses = client.getResponseCount();
+        assertTrue(client.listscripts(new ArrayList<SieveScript>()).isOk());
+        Thread.sleep(200);
+        assertTrue(client.listscripts(new ArrayList<SieveScript>()).isOk());
+        assertEquals(client.getResponseCount(), responses + 2);
+        pool.release(client);
+        assertEquals(limiter.getDecreaseCount(), 0);
+
+        // Slow server
+        server.setDelay(200);
+        client = pool.borrow(alice);
+        assertTrue(client.listscripts(new ArrayList<SieveScript>()).isOk());
+        pool.release(client);
+        assertEquals(limiter.getDecreaseCount(), 1);
+        pool.close();
+    }
+}
@@ -0,0 +1,164 @@
+package com.fluffypeople.managesieve.session;
+
+import com.fluffypeople.managesieve.Credentials;
+import com.fluffypeople.managesieve.ManageSieveClient;
+import org.testng.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class TenantSchedulerTest {
+
+    /**
+     * Hands out unconnected clients, for testing the scheduling alone.
+     */
+    private static class StubSource implements SessionSource {
+
+        @Override
+        public ManageSieveClient borrow(Credentials credentials) {
+            return new ManageSieveClient();
+        }
+
+        @Override
+        public void release(ManageSieveClient client) {
+        }
+
+        @Override
+        public void invalidate(ManageSieveClient client) {
+        }
+
+        @Override
+        public void discard(ManageSieveClient client) {
+        }
+
+        @Override
+        public void overloaded(ManageSieveClient client) {
+        }
+    }
+
+    private static Thread borrower(final TenantScheduler scheduler, final String account, final List<String> order) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ManageSieveClient client = scheduler.borrow(new Credentials(account, "secret"));
+                    order.add(account);
+                    scheduler.release(client);
+                } catch (Exception ex) {
+                    order.add("failed " + ex);
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void waitForQueue(TenantScheduler scheduler, String tenant, int depth) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            TenantScheduler.TenantStats stats = scheduler.getStats(tenant);
+            if (stats != null && stats.getQueueDepth() == depth) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Queue for " + tenant + " never reached " + depth);
+    }
+
+    @Test
+    public void test_smallTenantIsNotStarved() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler(new StubSource(), 1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        ManageSieveClient held = scheduler.borrow(new Credentials("first@big.example", "secret"));
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            threads.add(borrower(scheduler, "user" + i + "@big.example", order));
+            waitForQueue(scheduler, "big.example", i + 1);
+        }
+        threads.add(borrower(scheduler, "user@small.example", order));
+        waitForQueue(scheduler, "small.example", 1);
+
+        scheduler.release(held);
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+
+        assertEquals(order.size(), 6, order.toString());
+        assertTrue(order.indexOf("user@small.example") <= 1, order.toString());
+        assertEquals(scheduler.getInFlight(), 0);
+        int big = 0;
+        for (String account : order) {
+            if (account.endsWith("@big.example")) {
+                big += 1;
+            }
+        }
+        assertEquals(big, 5);
+    }
+
+    @Test
+    public void test_idleTenantsAreForgotten() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler(new StubSource(), 2);
+        scheduler.setTenant("kept.example", 2, 5);
+
+        ManageSieveClient a = scheduler.borrow(new Credentials("a@passing.example", "secret"));
+        ManageSieveClient b = scheduler.borrow(new Credentials("b@kept.example", "secret"));
+        assertEquals(scheduler.getStats("passing.example").getInFlight(), 1);
+        scheduler.release(a);
+        scheduler.release(b);
+
+        assertNull(scheduler.getStats("passing.example"));
+        assertEquals(scheduler.getStats("kept.example").getGranted(), 1);
+        assertEquals(scheduler.getStats().size(), 1);
+
+        for (int i = 0; i < 1000; i++) {
+            scheduler.release(scheduler.borrow(new Credentials("user@tenant" + i + ".example", "secret")));
+        }
+        assertEquals(scheduler.getStats().size(), 1);
+        assertEquals(scheduler.getInFlight(), 0);
+    }
+
+    @Test
+    public void test_weightsShareSlots() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler(new StubSource(), 1);
+        scheduler.setTenant("heavy.example", 2, 10);
+        scheduler.setTenant("light.example", 1, 10);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        ManageSieveClient held = scheduler.borrow(new Credentials("first@other.example", "secret"));
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(borrower(scheduler, "h" + i + "@heavy.example", order));
+            waitForQueue(scheduler, "heavy.example", i + 1);
+            threads.add(borrower(scheduler, "l" + i + "@light.example", order));
+            waitForQueue(scheduler, "light.example", i + 1);
+        }
+        scheduler.release(held);
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+
+        assertEquals(order.size(), 8, order.toString());
+        // Tags are 0.5, 1, 1.5, 2 for heavy and 1, 2, 3, 4 for light
+        int heavy = 0;
+        for (String account : order.subList(0, 6)) {
+            if (account.endsWith("@heavy.example")) {
+                heavy += 1;
+            }
+        }
+        assertEquals(heavy, 4, order.toString());
+    }
+
+    @Test(expectedExceptions = java.io.InterruptedIOException.class)
+    public void test_tenantCap() throws Exception {
+        TenantScheduler scheduler = new TenantScheduler(new StubSource(), 10);
+        scheduler.setTenant("capped.example", 1, 1);
+        scheduler.setBorrowTimeout(50);
+
+        scheduler.borrow(new Credentials("a@capped.example", "secret"));
+        // The scheduler has room, but the tenant doesn't
+        scheduler.borrow(new Credentials("b@capped.example", "secret"));
+    }
+}